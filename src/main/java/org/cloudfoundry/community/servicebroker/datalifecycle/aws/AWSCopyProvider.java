@@ -1,14 +1,21 @@
 package org.cloudfoundry.community.servicebroker.datalifecycle.aws;
 
-import static org.cloudfoundry.community.servicebroker.datalifecycle.config.LCCatalogConfig.PRODUCTION;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState.BOOTING;
+import static org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState.INSTANCE_PENDING;
+import static org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState.IP_ASSOCIATED;
+import static org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState.SANITIZING;
 
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 import org.apache.log4j.Logger;
+import org.cloudfoundry.community.servicebroker.datalifecycle.dto.CopyProgress;
 import org.cloudfoundry.community.servicebroker.datalifecycle.provider.CopyProvider;
 import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -23,61 +30,162 @@ public class AWSCopyProvider implements CopyProvider {
 
 	private final static String description = "CF Service Broker Snapshot Image";
 
-	private HashMap<String, String> instanceImages;
+	private CopyArtifactRegistry artifacts;
+
+	private String sourceInstance;
+
+	/**
+	 * Resolved the first time someone asks, the source doesn't move.
+	 */
+	private volatile String sourceEndpoint;
+
+	/**
+	 * Steps after a wait call out to AWS, so they run here rather than on the
+	 * scheduler the wait finished on.
+	 */
+	private Executor executor;
 
 	@Autowired
-	public AWSCopyProvider(final AWSHelper aws, String username,
-			String password, String uri, String sourceInstance) {
+	public AWSCopyProvider(final AWSHelper aws,
+			CopyArtifactRegistry artifacts, String username, String password,
+			String uri, String sourceInstance, Executor executor) {
 		this.aws = aws;
+		this.executor = executor;
+		this.artifacts = artifacts;
+		this.sourceInstance = sourceInstance;
 		creds = new HashMap<>();
 		creds.put("username", username);
 		creds.put("password", password);
 		creds.put("uri", uri);
-		instanceImages = new HashMap<>();
-		instanceImages.put(sourceInstance, PRODUCTION);
 	}
 
 	@Override
-	public String createCopy(String instanceId) throws ServiceBrokerException {
-		log.info("Creating copy instance " + instanceId);
-		String amiId;
-		try {
-			amiId = aws.createAMI(instanceId, description);
-		} catch (TimeoutException e) {
-			throw new ServiceBrokerException(e);
+	public CompletableFuture<CopyProgress> advanceCopy(CopyProgress progress)
+			throws ServiceBrokerException {
+		log.info("Advancing copy of " + progress.getSourceId() + " from "
+				+ progress);
+		if (null != progress.getCopyId()
+				&& !artifacts.contains(progress.getCopyId())) {
+			// Started before we kept track of them.
+			artifacts.register(progress.getCopyId(), progress.getImageId());
+		}
+		if (null != progress.getAddress()
+				&& null == artifacts.getEndpoint(progress.getCopyId())) {
+			artifacts.setEndpoint(progress.getCopyId(),
+					endpointFor(progress.getAddress()));
+		}
+
+		switch (progress.getState()) {
+		case AMI_PENDING:
+			if (null == progress.getImageId()) {
+				return completedFuture(progress.withImageId(aws.createAMI(
+						progress.getSourceId(), description)));
+			}
+			return aws.waitForAMI(progress.getImageId()).thenApplyAsync(
+					ami -> progress.next(INSTANCE_PENDING), executor);
+		case INSTANCE_PENDING:
+			if (null == progress.getCopyId()) {
+				String instance = aws.startEC2Instance(progress.getImageId());
+				artifacts.register(instance, progress.getImageId());
+				return completedFuture(progress.withCopyId(instance));
+			}
+			return aws.waitForInstance(progress.getCopyId()).thenApplyAsync(
+					running -> progress.withAddress(
+							addElasticIp(progress.getCopyId())).next(
+							IP_ASSOCIATED), executor);
+		case IP_ASSOCIATED:
+			// Nothing to wait on, the address is on and the boot check is next.
+			return completedFuture(progress.next(BOOTING));
+		case BOOTING:
+			return aws.waitForBoot(progress.getAddress()).thenApplyAsync(
+					up -> progress.next(SANITIZING), executor);
+		default:
+			throw new ServiceBrokerException("Can't advance a copy that's "
+					+ progress.getState());
 		}
-		String instance = aws.startEC2Instance(amiId);
-		instanceImages.put(instance, amiId);
-		return instance;
 	}
 
 	@Override
-	public void deleteCopy(final String instance) throws ServiceBrokerException {
+	public CompletableFuture<Void> deleteCopy(final String instance)
+			throws ServiceBrokerException {
 		log.info("Deleting copy " + instance);
 		aws.terminateEc2Instance(instance);
-		aws.deregisterAMI(instanceImages.get(instance));
-		aws.deleteStorageArtifacts(instanceImages.get(instance));
-		instanceImages.remove(instance);
+		String image = artifacts.getImageId(instance);
+		if (null == image) {
+			log.warn("Don't know what " + instance
+					+ " was built from, leaving its image behind");
+			aws.releaseElasticIp(instance);
+			return CompletableFuture.completedFuture(null);
+		}
+		aws.deregisterAMI(image);
+		// The volume is gone once the artifacts are, so is the instance.
+		return aws.deleteStorageArtifacts(image).thenRun(() -> {
+			aws.releaseElasticIp(instance);
+			artifacts.remove(instance);
+		});
 	}
 
+	@Override
+	public CompletableFuture<Void> deleteImage(final String image)
+			throws ServiceBrokerException {
+		log.info("Deleting image " + image);
+		aws.deregisterAMI(image);
+		return aws.deleteStorageArtifacts(image);
+	}
+
+	/**
+	 * Copies' endpoints are recorded when their address is associated, so
+	 * this doesn't call out to AWS. Only the source, and copies made before
+	 * endpoints were recorded, are looked up (once).
+	 */
 	@Override
 	public Map<String, Object> getCreds(final String instance)
 			throws ServiceBrokerException {
-		if (!instanceImages.containsKey(instance)) {
+		if (!sourceInstance.equals(instance) && !artifacts.contains(instance)) {
 			return null;
 		}
 		Map<String, Object> newCreds = new HashMap<>(creds);
+		newCreds.put("uri", getEndpoint(instance));
+		return newCreds;
+	}
 
-		String instanceIp = aws.getEC2InstancePublicIp(instance);
-		String pgURI = (String) creds.get("uri");
+	private String getEndpoint(String instance) throws ServiceBrokerException {
+		if (sourceInstance.equals(instance)) {
+			if (null == sourceEndpoint) {
+				sourceEndpoint = endpointFor(aws
+						.getEC2InstancePublicIp(instance));
+			}
+			return sourceEndpoint;
+		}
+		String endpoint = artifacts.getEndpoint(instance);
+		if (null == endpoint) {
+			endpoint = endpointFor(aws.getEC2InstancePublicIp(instance));
+			artifacts.setEndpoint(instance, endpoint);
+		}
+		return endpoint;
+	}
 
+	private String endpointFor(String ip) throws ServiceBrokerException {
+		String pgURI = (String) creds.get("uri");
 		try {
-			newCreds.put("uri",
-					pgURI.replace(new URI(pgURI).getHost(), instanceIp));
+			return pgURI.replace(new URI(pgURI).getHost(), ip);
 		} catch (URISyntaxException e) {
 			log.error("Bad URI!!" + pgURI);
 			throw new ServiceBrokerException(e);
 		}
-		return newCreds;
+	}
+
+	/**
+	 * Associate an address and record the endpoint that goes with it,
+	 * replacing whatever was recorded before.
+	 */
+	private String addElasticIp(String instance) {
+		try {
+			String ip = aws.addElasticIp(instance);
+			artifacts.setEndpoint(instance, endpointFor(ip));
+			return ip;
+		} catch (ServiceBrokerException e) {
+			throw new CompletionException(e);
+		}
 	}
 }
@@ -2,42 +2,71 @@ package org.cloudfoundry.community.servicebroker.datalifecycle.aws;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
 import org.apache.log4j.Logger;
 import org.cloudfoundry.community.servicebroker.datalifecycle.utils.HostUtils;
+import org.cloudfoundry.community.servicebroker.datalifecycle.utils.WaitPolicy;
+import org.cloudfoundry.community.servicebroker.datalifecycle.utils.Waiter;
 import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.ec2.AmazonEC2Client;
 import com.amazonaws.services.ec2.model.AssociateAddressRequest;
+import com.amazonaws.services.ec2.model.BlockDeviceMapping;
 import com.amazonaws.services.ec2.model.CreateImageRequest;
 import com.amazonaws.services.ec2.model.CreateImageResult;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
 import com.amazonaws.services.ec2.model.DeleteSnapshotRequest;
 import com.amazonaws.services.ec2.model.DeleteVolumeRequest;
 import com.amazonaws.services.ec2.model.DeregisterImageRequest;
-import com.amazonaws.services.ec2.model.DescribeAddressesResult;
-import com.amazonaws.services.ec2.model.DescribeImagesRequest;
-import com.amazonaws.services.ec2.model.DescribeImagesResult;
-import com.amazonaws.services.ec2.model.DescribeInstanceStatusRequest;
-import com.amazonaws.services.ec2.model.DescribeInstanceStatusResult;
 import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.DescribeSnapshotsRequest;
 import com.amazonaws.services.ec2.model.DescribeSnapshotsResult;
-import com.amazonaws.services.ec2.model.DescribeVolumesRequest;
-import com.amazonaws.services.ec2.model.DescribeVolumesResult;
+import com.amazonaws.services.ec2.model.EbsBlockDevice;
+import com.amazonaws.services.ec2.model.EbsInstanceBlockDevice;
 import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Image;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceBlockDeviceMapping;
 import com.amazonaws.services.ec2.model.InstanceType;
 import com.amazonaws.services.ec2.model.RunInstancesRequest;
 import com.amazonaws.services.ec2.model.RunInstancesResult;
 import com.amazonaws.services.ec2.model.Snapshot;
+import com.amazonaws.services.ec2.model.Tag;
 import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
 import com.amazonaws.services.ec2.model.Volume;
 
 public class AWSHelper {
 	private Logger log = Logger.getLogger(AWSHelper.class);
 
+	/**
+	 * Tagged on everything the broker creates, with the id of the source
+	 * instance.
+	 */
+	static final String SOURCE_TAG = "data-lifecycle:source";
+
+	/**
+	 * Tagged on everything the broker creates, with the id of the AMI it came
+	 * from (or is).
+	 */
+	static final String AMI_TAG = "data-lifecycle:ami";
+
+	static final long IMAGE_DEADLINE = TimeUnit.MINUTES.toMillis(45);
+
+	static final long INSTANCE_DEADLINE = TimeUnit.MINUTES.toMillis(10);
+
+	static final long VOLUME_DEADLINE = TimeUnit.MINUTES.toMillis(10);
+
+	static final WaitPolicy BOOT_WAIT = new WaitPolicy(5, 20, 15 * 60,
+			TimeUnit.SECONDS);
+
 	private AmazonEC2Client ec2Client;
 
 	private String subnetId;
@@ -48,13 +77,23 @@ public class AWSHelper {
 
 	private int bootCheckPort;
 
+	private Waiter waiter;
+
+	private EC2Watcher watcher;
+
+	private ElasticIpPool addresses;
+
 	public AWSHelper(AmazonEC2Client ec2Client, String subnetId,
-			String sourceInstanceId, HostUtils hostUtils, int bootCheckPort) {
+			String sourceInstanceId, HostUtils hostUtils, int bootCheckPort,
+			Waiter waiter, EC2Watcher watcher, ElasticIpPool addresses) {
 		this.ec2Client = ec2Client;
 		this.subnetId = subnetId;
 		this.sourceInstanceId = sourceInstanceId;
 		this.hostUtils = hostUtils;
 		this.bootCheckPort = bootCheckPort;
+		this.waiter = waiter;
+		this.watcher = watcher;
+		this.addresses = addresses;
 	}
 
 	public String getEC2InstancePublicIp(String instance) {
@@ -82,10 +121,10 @@ public class AWSHelper {
 	 * 
 	 * @param amiId
 	 *            to start
-	 * @return the id of the running instance.
-	 * @throws ServiceBrokerException
+	 * @return the id of the instance, which will still be pending.
+	 * @see #waitForInstance(String)
 	 */
-	public String startEC2Instance(String amiId) throws ServiceBrokerException {
+	public String startEC2Instance(String amiId) {
 		RunInstancesResult instance = ec2Client
 				.runInstances(new RunInstancesRequest().withImageId(amiId)
 						.withInstanceType("m1.small").withMinCount(1)
@@ -93,55 +132,41 @@ public class AWSHelper {
 						.withInstanceType(InstanceType.T2Micro));
 
 		String instanceId = getInstanceId(instance);
-		addElasticIp(instanceId);
-		log.info("Instance " + instanceId + " started successfully");
+		log.info("Started instance " + instanceId + " from " + amiId);
+		tag(amiId, instanceId);
 		return instanceId;
 	}
 
 	/**
-	 * Associate the next available elastic IP with an instance.
+	 * Lease the next available elastic IP and associate it with a running
+	 * instance. The lease is held until {@link #releaseElasticIp(String)}.
 	 * 
 	 * @param instanceId
+	 * @return the ip associated with the instance.
 	 * @throws ServiceBrokerException
+	 *             if there are no free ips.
+	 * @see #waitForBoot(String)
 	 */
-	public void addElasticIp(String instanceId) throws ServiceBrokerException {
-		AssociateAddressRequest addressRequest = new AssociateAddressRequest()
-				.withInstanceId(instanceId).withPublicIp(
-						getAvaliableElasticIp());
-		log.info("Associating " + addressRequest.getPublicIp()
-				+ " with instance " + instanceId);
-		if (waitForInstance(instanceId)) {
-			ec2Client.associateAddress(addressRequest);
-		} else {
-			throw new ServiceBrokerException(
-					"Instance did not transition to 'running' in alotted time.");
-		}
-		// We need the machine to boot before this will work.
-		if (!hostUtils.waitForBoot(addressRequest.getPublicIp(), bootCheckPort)) {
-			throw new ServiceBrokerException(
-					"Host failed to boot in time alotted");
+	public String addElasticIp(String instanceId)
+			throws ServiceBrokerException {
+		String ip = addresses.lease(instanceId);
+		log.info("Associating " + ip + " with instance " + instanceId);
+		try {
+			ec2Client.associateAddress(new AssociateAddressRequest()
+					.withInstanceId(instanceId).withPublicIp(ip));
+		} catch (AmazonClientException e) {
+			addresses.release(instanceId);
+			throw e;
 		}
+		return ip;
 	}
 
 	/**
-	 * Pull back a list of the elastic ip's that aren't attached to anything and
-	 * return the first one.
-	 * 
-	 * @return the first available IP.
-	 * @throws ServiceBrokerException
+	 * Give the instance's elastic IP back to the pool, call once the instance
+	 * is gone.
 	 */
-	public String getAvaliableElasticIp() throws ServiceBrokerException {
-		DescribeAddressesResult result = ec2Client.describeAddresses();
-		log.info("Found " + result.getAddresses().size() + " addresses!");
-		return result
-				.getAddresses()
-				.stream()
-				.filter(a -> null == a.getInstanceId())
-				.findAny()
-				.orElseThrow(
-						() -> new ServiceBrokerException(
-								"No elastic IP's avaliable!")).getPublicIp();
-
+	public void releaseElasticIp(String instanceId) {
+		addresses.release(instanceId);
 	}
 
 	/**
@@ -152,14 +177,12 @@ public class AWSHelper {
 	 *            the EC2 instance to create an AMI from
 	 * @param description
 	 *            to shove in the console so you know what your looking at
-	 * @return id of the ami
-	 * @throws TimeoutException
-	 *             if the ami isn't available in time.
+	 * @return the id of the ami, which will still be pending.
 	 * 
+	 * @see #waitForAMI(String)
 	 * @see #deleteStorageArtifacts(String)
 	 */
-	public String createAMI(String sourceInstance, String description)
-			throws TimeoutException {
+	public String createAMI(String sourceInstance, String description) {
 		CreateImageResult imageResult = ec2Client
 				.createImage(new CreateImageRequest()
 						.withInstanceId(sourceInstance)
@@ -170,43 +193,67 @@ public class AWSHelper {
 						.withNoReboot(true));
 
 		String amiId = imageResult.getImageId();
-		if (!waitForImage(amiId)) {
-			throw new TimeoutException(
-					"Timed out waiting for amazon to create AMI " + amiId);
-		}
-		log.info("Created new AMI with ID: " + amiId);
+		log.info("Creating new AMI with ID: " + amiId);
+		tag(amiId, amiId);
 		return amiId;
 	}
 
+	/**
+	 * Tag resources so they can be found with server side filters later
+	 * rather than by listing everything in the account. Tagging is best
+	 * effort, if it fails we fall back to finding things the old way.
+	 * 
+	 * @param ami
+	 *            the resources belong to
+	 * @param resourceIds
+	 *            to tag
+	 */
+	private void tag(String ami, List<String> resourceIds) {
+		if (resourceIds.isEmpty()) {
+			return;
+		}
+		try {
+			ec2Client.createTags(new CreateTagsRequest().withResources(
+					resourceIds).withTags(
+					new Tag(SOURCE_TAG, sourceInstanceId), new Tag(AMI_TAG, ami)));
+		} catch (AmazonClientException e) {
+			log.warn("Failed to tag " + resourceIds + ": " + e.getMessage());
+		}
+	}
+
+	private void tag(String ami, String resourceId) {
+		tag(ami, Collections.singletonList(resourceId));
+	}
+
 	/**
 	 * Find the snap & volumes associated with the AMI we used and delete it.
-	 * AWS doesn't help us out much and the only relationship (as of 2/14/2015)
-	 * we can leverage is the description field.
+	 * Snaps are found by the tag put on them once the AMI was available, only
+	 * looking at our own. Copies made before we tagged anything are found by
+	 * the description field, still filtered on the server side.
 	 * 
 	 * @param ami
 	 *            to find associated snaps for
+	 * @return a future that completes once the artifacts are gone.
 	 * @throws ServiceBrokerExceptions
 	 */
-	public void deleteStorageArtifacts(String ami)
+	public CompletableFuture<Void> deleteStorageArtifacts(String ami)
 			throws ServiceBrokerException {
 
-		DescribeSnapshotsResult desc = ec2Client.describeSnapshots();
-		if (null == desc.getSnapshots()) {
-			return;
+		List<Snapshot> matching = findSnapshots(new Filter("tag:" + AMI_TAG)
+				.withValues(ami));
+		if (matching.isEmpty()) {
+			// The snaps that get created (but not cleaned up) as part of the
+			// ami creation used to be tracked only by the description. This
+			// is brittle and will probably fail in unexpected and glamorous
+			// ways, so it's only a fallback.
+			String amiDesc = "Created by CreateImage(" + sourceInstanceId
+					+ ") for " + ami + " from vol";
+			matching = findSnapshots(
+					new Filter("description").withValues(amiDesc + "*"))
+					.stream()
+					.filter(s -> safeContains(s::getDescription, amiDesc))
+					.collect(Collectors.toList());
 		}
-		List<Snapshot> snapshots = desc.getSnapshots();
-
-		// The only way I can find to track the snaps that get created (but not
-		// cleaned up) as part of the ami creation is by the description. This
-		// code is brittle and will probably fail in unexpected and glamorous
-		// ways.
-		String amiDesc = "Created by CreateImage(" + sourceInstanceId
-				+ ") for " + ami + " from vol";
-
-		// Would be nice if the aws client return optionals...
-		List<Snapshot> matching = snapshots.stream()
-				.filter(s -> safeContains(s::getDescription, amiDesc))
-				.collect(Collectors.toList());
 
 		switch (matching.size()) {
 		case 0:
@@ -215,47 +262,60 @@ public class AWSHelper {
 			// create their own instances in AWS and not jack them up by
 			// deleting the volume
 			log.error("No snapshots found for AMI " + ami);
-			break;
+			return CompletableFuture.completedFuture(null);
 		case 1:
 			String snap = matching.get(0).getSnapshotId();
 			log.info("Deleting snapshot " + snap);
 			ec2Client.deleteSnapshot(new DeleteSnapshotRequest()
 					.withSnapshotId(snap));
 
-			deleteVolumeForSnap(snap);
-			break;
+			return deleteVolumeForSnap(snap);
 		default:
 			throw new ServiceBrokerException(
 					"Found too many snapshots for AMI " + ami);
 		}
 	}
 
-	private void deleteVolumeForSnap(String snap) {
-
-		waitForVolume(snap);
-		String volId = getVolume(snap).getVolumeId();
-		log.info("Deleting volume " + volId);
-		ec2Client.deleteVolume(new DeleteVolumeRequest().withVolumeId(volId));
+	/**
+	 * The filter keeps this to a handful of snaps no matter how many the
+	 * account can see. This version of the api doesn't page snapshots.
+	 */
+	private List<Snapshot> findSnapshots(Filter filter) {
+		DescribeSnapshotsResult desc = ec2Client
+				.describeSnapshots(new DescribeSnapshotsRequest().withOwnerIds(
+						"self").withFilters(filter));
+		return null == desc.getSnapshots() ? Collections.emptyList() : desc
+				.getSnapshots();
 	}
 
-	private void waitForVolume(String snap) {
-		int retries = 0;
-		Volume vol = getVolume(snap);
-		while ("in-use".equals(vol.getState()) && retries < 5) {
-			log.error("Volume is still in use, sleeping 30");
-			sleep();
-			retries++;
-			vol = getVolume(snap);
-		}
+	private CompletableFuture<Void> deleteVolumeForSnap(String snap) {
+		return waitForVolume(snap).thenAccept(volId -> {
+			if (!volId.isPresent()) {
+				log.info("No volume left for snapshot " + snap);
+				return;
+			}
+			log.info("Deleting volume " + volId.get());
+			ec2Client.deleteVolume(new DeleteVolumeRequest()
+					.withVolumeId(volId.get()));
+		});
 	}
 
-	private Volume getVolume(String snap) {
-		DescribeVolumesResult volumes = ec2Client
-				.describeVolumes(new DescribeVolumesRequest()
-						.withFilters(new Filter().withName("snapshot-id")
-								.withValues(snap)));
-
-		return volumes.getVolumes().stream().findFirst().get();
+	/**
+	 * @return a future for the id of the snap's volume once it's detached,
+	 *         empty if the volume went away with its instance.
+	 */
+	private CompletableFuture<Optional<String>> waitForVolume(String snap) {
+		return watcher.watchVolumeForSnapshot(snap, latest -> {
+			if (!latest.isPresent()) {
+				return Optional.of(Optional.empty());
+			}
+			Volume vol = latest.get();
+			if ("in-use".equals(vol.getState())) {
+				log.info("Volume " + vol.getVolumeId() + " is still in use");
+				return Optional.empty();
+			}
+			return Optional.of(Optional.of(vol.getVolumeId()));
+		}, VOLUME_DEADLINE);
 	}
 
 	private boolean safeContains(Callable<String> s, String c) {
@@ -267,68 +327,74 @@ public class AWSHelper {
 		return false;
 	}
 
-	private boolean waitForInstance(String instanceId) {
+	/**
+	 * @return a future that completes once the instance is running.
+	 */
+	public CompletableFuture<Boolean> waitForInstance(String instanceId) {
 		log.info("Waiting for instance to transition to running");
-		for (int i = 0; i < 5; ++i) {
-
-			DescribeInstanceStatusResult result = ec2Client
-					.describeInstanceStatus(new DescribeInstanceStatusRequest()
-							.withInstanceIds(instanceId));
-			if (!result.getInstanceStatuses().isEmpty()) {
-				String state = result.getInstanceStatuses().get(0)
-						.getInstanceState().getName();
-
-				log.info("Instance state is " + state);
-
-				if (state.equals("running")) {
-					return true;
-				}
+		return watcher.watchInstance(instanceId, latest -> {
+			if (!latest.isPresent()) {
+				return Optional.empty();
 			}
+			Instance instance = latest.get();
+			String state = instance.getState().getName();
+			log.info("Instance " + instanceId + " state is " + state);
+			if (!"running".equals(state)) {
+				return Optional.empty();
+			}
+			tag(instance.getImageId(), instance.getBlockDeviceMappings()
+					.stream().map(InstanceBlockDeviceMapping::getEbs)
+					.filter(ebs -> null != ebs)
+					.map(EbsInstanceBlockDevice::getVolumeId)
+					.collect(Collectors.toList()));
+			return Optional.of(true);
+		}, INSTANCE_DEADLINE);
+	}
 
-			sleep();
-
-		}
-		return false;
+	/**
+	 * @return a future that completes once the host responds on the boot check
+	 *         port.
+	 */
+	public CompletableFuture<Boolean> waitForBoot(String ip) {
+		return waiter.waitFor("host " + ip + " to boot",
+				() -> hostUtils.isResponding(ip, bootCheckPort) ? Optional
+						.of(true) : Optional.empty(), BOOT_WAIT);
 	}
 
-	private boolean waitForImage(String imageId) {
-		for (int i = 0; i < 5; i++) {
-			String imageState = getImageState(imageId);
-			log.info("Image state is " + imageState);
+	/**
+	 * @return a future for the id of the AMI that completes once it's
+	 *         available, or exceptionally with a {@link TimeoutException} if it
+	 *         isn't available in time or a {@link ServiceBrokerException} if it
+	 *         fails to build.
+	 */
+	public CompletableFuture<String> waitForAMI(String imageId) {
+		return watcher.watchImage(imageId, latest -> {
+			// Might not be visible yet, keep waiting until the deadline.
+			String imageState = latest.map(Image::getState).orElse("unknown");
+			log.info("Image " + imageId + " state is " + imageState);
 			switch (imageState) {
 			case "available":
-				return true;
+				// The snaps only exist once the image is available.
+				tag(imageId, snapshotsOf(latest.get()));
+				return Optional.of(imageId);
 			case "failed":
-				return false;
+				throw new ServiceBrokerException("AMI " + imageId
+						+ " failed to build");
 			default:
-				log.info("Waiting 30s for AMI " + imageId);
-				sleep();
+				return Optional.empty();
 			}
-		}
-		return false;
+		}, IMAGE_DEADLINE);
 	}
 
-	private void sleep() {
-		try {
-			Thread.sleep(30000);
-		} catch (InterruptedException e) {
-			log.error(e);
-		}
+	private List<String> snapshotsOf(Image image) {
+		return image.getBlockDeviceMappings().stream()
+				.map(BlockDeviceMapping::getEbs)
+				.filter(ebs -> null != ebs)
+				.map(EbsBlockDevice::getSnapshotId)
+				.filter(id -> null != id).collect(Collectors.toList());
 	}
 
 	private String getInstanceId(RunInstancesResult instance) {
 		return instance.getReservation().getInstances().get(0).getInstanceId();
 	}
-
-	private String getImageState(String imageId) {
-		String state = "failed";
-		DescribeImagesResult result = ec2Client
-				.describeImages(new DescribeImagesRequest()
-						.withImageIds(imageId));
-		if (null != result && null != result.getImages()
-				&& !result.getImages().isEmpty()) {
-			state = result.getImages().get(0).getState();
-		}
-		return state;
-	}
 }
@@ -0,0 +1,87 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.aws;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.log4j.Logger;
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.CopyArtifact;
+import org.cloudfoundry.community.servicebroker.datalifecycle.repo.CopyArtifactRepo;
+
+/**
+ * Which image each copy instance was started from and the endpoint it can be
+ * reached at. Writes go to the database first so nothing is forgotten across
+ * a restart, reads only ever hit the in-memory map.
+ */
+public class CopyArtifactRegistry {
+
+	private Logger log = Logger.getLogger(CopyArtifactRegistry.class);
+
+	private CopyArtifactRepo repo;
+
+	private Map<String, CopyArtifact> artifacts = new ConcurrentHashMap<>();
+
+	public CopyArtifactRegistry(CopyArtifactRepo repo) {
+		this.repo = repo;
+	}
+
+	/**
+	 * Load what we knew before the last restart.
+	 */
+	@PostConstruct
+	public void load() {
+		repo.findAll().forEach(a -> artifacts.put(a.getCopyId(), a));
+		log.info("Loaded " + artifacts.size() + " copy artifacts");
+	}
+
+	public void register(String copyId, String imageId) {
+		CopyArtifact artifact = new CopyArtifact(copyId, imageId,
+				System.currentTimeMillis());
+		repo.save(artifact);
+		artifacts.put(copyId, artifact);
+	}
+
+	/**
+	 * @return the image the copy was started from, null for unknown copies.
+	 */
+	public String getImageId(String copyId) {
+		CopyArtifact artifact = artifacts.get(copyId);
+		return null == artifact ? null : artifact.getImageId();
+	}
+
+	/**
+	 * @return the copy's endpoint, null for unknown copies or if it hasn't
+	 *         been recorded.
+	 */
+	public String getEndpoint(String copyId) {
+		CopyArtifact artifact = artifacts.get(copyId);
+		return null == artifact ? null : artifact.getEndpoint();
+	}
+
+	/**
+	 * Record (or replace) where a known copy can be reached.
+	 */
+	public void setEndpoint(String copyId, String endpoint) {
+		CopyArtifact artifact = artifacts.get(copyId);
+		if (null == artifact) {
+			return;
+		}
+		CopyArtifact updated = new CopyArtifact(copyId,
+				artifact.getImageId(), artifact.getCreatedAt(), endpoint);
+		repo.save(updated);
+		artifacts.put(copyId, updated);
+	}
+
+	public boolean contains(String copyId) {
+		return artifacts.containsKey(copyId);
+	}
+
+	public void remove(String copyId) {
+		// Everything in the map was saved first.
+		if (artifacts.containsKey(copyId)) {
+			repo.delete(copyId);
+			artifacts.remove(copyId);
+		}
+	}
+}
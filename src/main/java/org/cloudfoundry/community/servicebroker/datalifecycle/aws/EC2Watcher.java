@@ -0,0 +1,273 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.aws;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.log4j.Logger;
+import org.springframework.boot.actuate.metrics.CounterService;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.DescribeImagesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeVolumesRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Image;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Volume;
+
+/**
+ * Watches the images, instances and volumes that in flight operations are
+ * waiting on. Every tick it makes one describe call per resource type (per
+ * {@value #BATCH_SIZE} ids) covering everything being waited on, and hands the
+ * result to each waiting operation. The number of calls stays flat no matter
+ * how many copies are in flight.
+ *
+ * Lookups are done with id filters rather than ids so an id EC2 doesn't know
+ * about yet (it's eventually consistent) doesn't fail the whole batch.
+ */
+public class EC2Watcher {
+
+	/**
+	 * Decides whether a wait is over given the latest view of the resource.
+	 */
+	@FunctionalInterface
+	public interface Check<T, R> {
+		/**
+		 * @param latest
+		 *            view of the resource, empty if EC2 didn't return it
+		 * @return a value once the wait is over, empty to keep waiting.
+		 * @throws Exception
+		 *             to fail the wait
+		 */
+		Optional<R> check(Optional<T> latest) throws Exception;
+	}
+
+	static final int BATCH_SIZE = 100;
+
+	private Logger log = Logger.getLogger(EC2Watcher.class);
+
+	private AmazonEC2Client ec2Client;
+
+	private ScheduledExecutorService scheduler;
+
+	private CounterService counterService;
+
+	private long interval;
+
+	private Watched<Image> images = new Watched<>("images", this::describeImages);
+
+	private Watched<Instance> instances = new Watched<>("instances",
+			this::describeInstances);
+
+	private Watched<Volume> volumes = new Watched<>("volumes",
+			this::describeVolumes);
+
+	/**
+	 * @param interval
+	 *            between polls in ms
+	 */
+	public EC2Watcher(AmazonEC2Client ec2Client,
+			ScheduledExecutorService scheduler, CounterService counterService,
+			long interval) {
+		this.ec2Client = ec2Client;
+		this.scheduler = scheduler;
+		this.counterService = counterService;
+		this.interval = interval;
+	}
+
+	@PostConstruct
+	public void start() {
+		scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				poll();
+			} catch (RuntimeException e) {
+				// Don't let one bad poll stop the schedule.
+				log.error("Failed to poll EC2", e);
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Wait on an image.
+	 *
+	 * @param deadline
+	 *            in ms after which the wait fails with a
+	 *            {@link TimeoutException}
+	 */
+	public <R> CompletableFuture<R> watchImage(String imageId,
+			Check<Image, R> check, long deadline) {
+		return images.watch(imageId, check, deadline);
+	}
+
+	/**
+	 * Wait on an instance.
+	 *
+	 * @see #watchImage(String, Check, long)
+	 */
+	public <R> CompletableFuture<R> watchInstance(String instanceId,
+			Check<Instance, R> check, long deadline) {
+		return instances.watch(instanceId, check, deadline);
+	}
+
+	/**
+	 * Wait on the volume created from a snapshot.
+	 *
+	 * @see #watchImage(String, Check, long)
+	 */
+	public <R> CompletableFuture<R> watchVolumeForSnapshot(String snapshotId,
+			Check<Volume, R> check, long deadline) {
+		return volumes.watch(snapshotId, check, deadline);
+	}
+
+	/**
+	 * Look at everything that's being waited on. Runs every interval once
+	 * started.
+	 */
+	public void poll() {
+		images.poll();
+		instances.poll();
+		volumes.poll();
+	}
+
+	private Map<String, Image> describeImages(List<String> imageIds) {
+		Map<String, Image> found = new HashMap<>();
+		ec2Client
+				.describeImages(
+						new DescribeImagesRequest().withFilters(new Filter(
+								"image-id", imageIds))).getImages()
+				.forEach(i -> found.put(i.getImageId(), i));
+		return found;
+	}
+
+	private Map<String, Instance> describeInstances(List<String> instanceIds) {
+		Map<String, Instance> found = new HashMap<>();
+		ec2Client
+				.describeInstances(
+						new DescribeInstancesRequest().withFilters(new Filter(
+								"instance-id", instanceIds)))
+				.getReservations()
+				.forEach(
+						r -> r.getInstances().forEach(
+								i -> found.put(i.getInstanceId(), i)));
+		return found;
+	}
+
+	private Map<String, Volume> describeVolumes(List<String> snapshotIds) {
+		Map<String, Volume> found = new HashMap<>();
+		ec2Client
+				.describeVolumes(
+						new DescribeVolumesRequest().withFilters(new Filter(
+								"snapshot-id", snapshotIds))).getVolumes()
+				.forEach(v -> found.putIfAbsent(v.getSnapshotId(), v));
+		return found;
+	}
+
+	/**
+	 * The waits on one type of resource, keyed by the id they're waiting on.
+	 */
+	private class Watched<T> {
+
+		private String type;
+
+		private Function<List<String>, Map<String, T>> describe;
+
+		private Map<String, Set<Watch<T, ?>>> watches = new ConcurrentHashMap<>();
+
+		Watched(String type, Function<List<String>, Map<String, T>> describe) {
+			this.type = type;
+			this.describe = describe;
+		}
+
+		<R> CompletableFuture<R> watch(String id, Check<T, R> check,
+				long deadline) {
+			Watch<T, R> watch = new Watch<>(check);
+			// Under the id's lock, so poll can't drop the set it goes in.
+			watches.compute(id, (k, w) -> {
+				Set<Watch<T, ?>> added = null == w ? ConcurrentHashMap
+						.newKeySet() : w;
+				added.add(watch);
+				return added;
+			});
+			ScheduledFuture<?> timeout = scheduler.schedule(
+					() -> watch.result.completeExceptionally(new TimeoutException(
+							"Timed out waiting on " + type + " " + id)),
+					deadline, TimeUnit.MILLISECONDS);
+			watch.result.whenComplete((r, e) -> timeout.cancel(false));
+			return watch.result;
+		}
+
+		void poll() {
+			// Drop anything that timed out or was given up on.
+			for (String id : watches.keySet()) {
+				watches.computeIfPresent(id, (k, w) -> {
+					w.removeIf(Watch::isDone);
+					return w.isEmpty() ? null : w;
+				});
+			}
+
+			List<String> ids = new ArrayList<>(watches.keySet());
+			if (ids.isEmpty()) {
+				return;
+			}
+			int calls = 0;
+			for (int i = 0; i < ids.size(); i += BATCH_SIZE) {
+				List<String> batch = ids.subList(i,
+						Math.min(ids.size(), i + BATCH_SIZE));
+				++calls;
+				counterService.increment("ec2watcher." + type + ".calls");
+				Map<String, T> found;
+				try {
+					found = describe.apply(batch);
+				} catch (AmazonClientException e) {
+					log.warn("Failed to describe " + type + ": "
+							+ e.getMessage());
+					continue;
+				}
+				batch.forEach(id -> watches.getOrDefault(id,
+						ConcurrentHashMap.newKeySet()).forEach(
+						w -> w.check(Optional.ofNullable(found.get(id)))));
+			}
+			// What we'd have spent polling each id on its own.
+			for (int saved = ids.size() - calls; saved > 0; --saved) {
+				counterService.increment("ec2watcher.calls.saved");
+			}
+		}
+	}
+
+	private static class Watch<T, R> {
+
+		private Check<T, R> check;
+
+		private CompletableFuture<R> result = new CompletableFuture<>();
+
+		Watch(Check<T, R> check) {
+			this.check = check;
+		}
+
+		boolean isDone() {
+			return result.isDone();
+		}
+
+		void check(Optional<T> latest) {
+			try {
+				check.check(latest).ifPresent(result::complete);
+			} catch (Exception e) {
+				result.completeExceptionally(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.aws;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.log4j.Logger;
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.Address;
+import com.amazonaws.services.ec2.model.AllocateAddressRequest;
+import com.amazonaws.services.ec2.model.DomainType;
+
+/**
+ * Hands out elastic ips to copies. The inventory is loaded once and kept
+ * fresh in the background, so a provision doesn't have to list the account's
+ * addresses, and an address is leased to exactly one copy until that copy is
+ * deleted, so two provisions can't grab the same one.
+ *
+ * If minFree is set the pool allocates new addresses whenever fewer than that
+ * are free. It's zero (never allocate) by default, addresses cost money.
+ */
+public class ElasticIpPool {
+
+	private Logger log = Logger.getLogger(ElasticIpPool.class);
+
+	private AmazonEC2Client ec2Client;
+
+	private GaugeService gaugeService;
+
+	private int minFree;
+
+	private Deque<String> free = new ArrayDeque<>();
+
+	/**
+	 * Instance id to the address leased to it.
+	 */
+	private Map<String, String> leases = new HashMap<>();
+
+	/**
+	 * Addresses being allocated right now.
+	 */
+	private int allocating;
+
+	public ElasticIpPool(AmazonEC2Client ec2Client,
+			GaugeService gaugeService, int minFree) {
+		this.ec2Client = ec2Client;
+		this.gaugeService = gaugeService;
+		this.minFree = Math.max(0, minFree);
+	}
+
+	/**
+	 * Reload the inventory. Addresses that are leased stay leased whatever
+	 * EC2 says, everything else is free if it isn't attached to anything.
+	 */
+	@PostConstruct
+	@Scheduled(fixedDelay = 60000)
+	public void refresh() {
+		List<Address> addresses;
+		try {
+			addresses = ec2Client.describeAddresses().getAddresses();
+		} catch (AmazonClientException e) {
+			log.error("Failed to refresh elastic ips: " + e.getMessage());
+			return;
+		}
+		synchronized (this) {
+			free.clear();
+			addresses
+					.stream()
+					.filter(a -> null == a.getInstanceId()
+							&& !leases.containsValue(a.getPublicIp()))
+					.forEach(a -> free.add(a.getPublicIp()));
+			log.info("Found " + addresses.size() + " addresses, "
+					+ free.size() + " free");
+		}
+		topUp();
+		report();
+	}
+
+	/**
+	 * Lease a free address to an instance. EC2 is only called outside the
+	 * lock, so a lease that has to refresh or allocate doesn't hold up the
+	 * others.
+	 *
+	 * @return the address, the caller is expected to associate it.
+	 * @throws ServiceBrokerException
+	 *             if there are no free ips and none can be allocated.
+	 */
+	public String lease(String instanceId) throws ServiceBrokerException {
+		long start = System.currentTimeMillis();
+		String ip = take(instanceId);
+		if (null == ip) {
+			// Maybe someone released one outside the broker.
+			refresh();
+			ip = take(instanceId);
+		}
+		if (null == ip) {
+			throw new ServiceBrokerException("No elastic IP's avaliable!");
+		}
+		gaugeService.submit("elasticip.lease.wait", System.currentTimeMillis()
+				- start);
+		topUp();
+		report();
+		return ip;
+	}
+
+	/**
+	 * Give back the address leased to an instance, once it's been terminated.
+	 * Does nothing if the instance doesn't hold a lease.
+	 */
+	public void release(String instanceId) {
+		synchronized (this) {
+			String ip = leases.remove(instanceId);
+			if (null == ip) {
+				return;
+			}
+			log.info("Releasing " + ip + " from " + instanceId);
+			free.add(ip);
+		}
+		report();
+	}
+
+	/**
+	 * @return a free address now leased to the instance, null if there
+	 *         wasn't one.
+	 */
+	private synchronized String take(String instanceId) {
+		String ip = free.poll();
+		if (null != ip) {
+			leases.put(instanceId, ip);
+		}
+		return ip;
+	}
+
+	private void topUp() {
+		int wanted;
+		synchronized (this) {
+			// Less any another top up is already allocating.
+			wanted = Math.max(0, minFree - free.size() - allocating);
+			allocating += wanted;
+		}
+		for (; wanted > 0; --wanted) {
+			String ip;
+			try {
+				ip = ec2Client.allocateAddress(
+						new AllocateAddressRequest().withDomain(DomainType.Vpc))
+						.getPublicIp();
+				log.info("Allocated elastic ip " + ip);
+			} catch (AmazonClientException e) {
+				log.error("Failed to allocate an elastic ip: " + e.getMessage());
+				synchronized (this) {
+					allocating -= wanted;
+				}
+				return;
+			}
+			synchronized (this) {
+				--allocating;
+				if (!free.contains(ip) && !leases.containsValue(ip)) {
+					free.add(ip);
+				}
+			}
+		}
+	}
+
+	private void report() {
+		int freeCount;
+		int leasedCount;
+		synchronized (this) {
+			freeCount = free.size();
+			leasedCount = leases.size();
+		}
+		gaugeService.submit("elasticip.pool.free", freeCount);
+		gaugeService.submit("elasticip.pool.leased", leasedCount);
+	}
+}
@@ -1,17 +1,34 @@
 package org.cloudfoundry.community.servicebroker.datalifecycle.config;
 
+import java.util.concurrent.ScheduledExecutorService;
+
 import org.cloudfoundry.community.servicebroker.datalifecycle.aws.AWSCopyProvider;
 import org.cloudfoundry.community.servicebroker.datalifecycle.aws.AWSHelper;
+import org.cloudfoundry.community.servicebroker.datalifecycle.aws.CopyArtifactRegistry;
+import org.cloudfoundry.community.servicebroker.datalifecycle.aws.EC2Watcher;
+import org.cloudfoundry.community.servicebroker.datalifecycle.aws.ElasticIpPool;
 import org.cloudfoundry.community.servicebroker.datalifecycle.provider.CopyProvider;
+import org.cloudfoundry.community.servicebroker.datalifecycle.repo.CopyArtifactRepo;
 import org.cloudfoundry.community.servicebroker.datalifecycle.utils.HostUtils;
+import org.cloudfoundry.community.servicebroker.datalifecycle.utils.Waiter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.TaskExecutor;
 
 import com.amazonaws.services.ec2.AmazonEC2Client;
 
+/**
+ * Copies by cloning the source's EC2 instance, the default. Nothing here
+ * (including the EC2 and elastic IP polling) is set up with another
+ * COPY_PROVIDER.
+ */
 @Configuration
+@ConditionalOnProperty(name = "COPY_PROVIDER", havingValue = "aws", matchIfMissing = true)
 class AWSCopyProviderConfig {
 
 	@Value("#{environment.PROD_DB_USER}")
@@ -28,15 +45,50 @@ class AWSCopyProviderConfig {
 	private AmazonEC2Client ec2Client;
 	@Autowired
 	private HostUtils hostUtils;
+	@Autowired
+	private Waiter waiter;
+	@Autowired
+	private ScheduledExecutorService scheduler;
+	@Autowired
+	private CounterService counterService;
+	@Autowired
+	private GaugeService gaugeService;
+	@Autowired
+	private CopyArtifactRepo copyArtifactRepo;
+	@Autowired
+	private TaskExecutor executor;
 
 	@Value("#{environment.BOOT_CHECK_PORT}")
 	private int bootCheckPort;
 
+	@Value("#{environment.EC2_POLL_INTERVAL ?: 5000}")
+	private long pollInterval;
+
+	@Value("#{environment.ELASTIC_IP_MIN_FREE ?: 0}")
+	private int minFreeIps;
+
+	@Bean
+	EC2Watcher ec2Watcher() {
+		return new EC2Watcher(ec2Client, scheduler, counterService,
+				pollInterval);
+	}
+
+	@Bean
+	ElasticIpPool elasticIpPool() {
+		return new ElasticIpPool(ec2Client, gaugeService, minFreeIps);
+	}
+
+	@Bean
+	CopyArtifactRegistry copyArtifactRegistry() {
+		return new CopyArtifactRegistry(copyArtifactRepo);
+	}
+
 	@Bean
 	CopyProvider copyProvider() {
 		return new AWSCopyProvider(new AWSHelper(ec2Client, subnetId,
-				sourceInstance, hostUtils, bootCheckPort), username, password,
-				uri, sourceInstance);
+				sourceInstance, hostUtils, bootCheckPort, waiter, ec2Watcher(),
+				elasticIpPool()), copyArtifactRegistry(), username, password,
+				uri, sourceInstance, executor);
 
 	}
 }
@@ -0,0 +1,59 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.config;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.cloudfoundry.community.servicebroker.datalifecycle.repo.BrokerActionRepository;
+import org.cloudfoundry.community.servicebroker.datalifecycle.service.BrokerActionLog;
+import org.cloudfoundry.community.servicebroker.datalifecycle.service.BrokerActionMigration;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+@Configuration
+class BrokerActionLogConfig {
+
+	@Value("#{environment.AUDIT_QUEUE_SIZE ?: 10000}")
+	private int queueSize;
+
+	@Value("#{environment.AUDIT_FLUSH_INTERVAL ?: 1000}")
+	private long flushInterval;
+
+	@Value("#{environment.AUDIT_RETENTION_DAYS ?: 30}")
+	private int retentionDays;
+
+	@Autowired
+	private BrokerActionRepository brokerRepo;
+
+	@Autowired
+	private ScheduledExecutorService scheduler;
+
+	@Autowired
+	private CounterService counterService;
+
+	@Autowired
+	private GaugeService gaugeService;
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Bean
+	public BrokerActionMigration brokerActionMigration() {
+		return new BrokerActionMigration(jdbcTemplate,
+				new TransactionTemplate(transactionManager), brokerRepo);
+	}
+
+	@Bean
+	public BrokerActionLog brokerActionLog() {
+		return new BrokerActionLog(brokerRepo, scheduler, counterService,
+				gaugeService, queueSize, flushInterval, retentionDays);
+	}
+}
@@ -0,0 +1,66 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.config;
+
+import static org.cloudfoundry.community.servicebroker.datalifecycle.config.LCCatalogConfig.COPY;
+
+import java.util.Collections;
+
+import org.cloudfoundry.community.servicebroker.datalifecycle.provider.CopyProvider;
+import org.cloudfoundry.community.servicebroker.datalifecycle.repo.PoolBuildRepo;
+import org.cloudfoundry.community.servicebroker.datalifecycle.repo.PooledCopyRepo;
+import org.cloudfoundry.community.servicebroker.datalifecycle.service.CopyPoolManager;
+import org.cloudfoundry.community.servicebroker.datalifecycle.service.DataProviderService;
+import org.cloudfoundry.community.servicebroker.datalifecycle.service.ProvisioningStateMachine;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+@Configuration
+@EnableScheduling
+class CopyPoolConfig {
+
+	@Value("#{environment.SOURCE_INSTANCE_ID}")
+	private String sourceInstance;
+
+	@Value("#{environment.COPY_POOL_MIN_SIZE ?: 0}")
+	private int minSize;
+
+	@Value("#{environment.COPY_POOL_MAX_SIZE ?: 0}")
+	private int maxSize;
+
+	@Autowired
+	private CopyProvider copyProvider;
+
+	@Autowired
+	private ProvisioningStateMachine stateMachine;
+
+	@Autowired
+	private DataProviderService dataProviderService;
+
+	@Autowired
+	private PooledCopyRepo repo;
+
+	@Autowired
+	private PoolBuildRepo buildRepo;
+
+	@Autowired
+	private TaskExecutor executor;
+
+	@Autowired
+	private CounterService counterService;
+
+	@Autowired
+	private GaugeService gaugeService;
+
+	@Bean
+	public CopyPoolManager copyPoolManager() {
+		return new CopyPoolManager(copyProvider, stateMachine,
+				dataProviderService, repo, buildRepo, executor, counterService,
+				gaugeService, sourceInstance, Collections.singleton(COPY),
+				minSize, maxSize);
+	}
+}
@@ -1,16 +1,103 @@
 package org.cloudfoundry.community.servicebroker.datalifecycle.config;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.cloudfoundry.community.servicebroker.datalifecycle.postgres.BulkProfile;
+import org.cloudfoundry.community.servicebroker.datalifecycle.postgres.CopyWarmup;
+import org.cloudfoundry.community.servicebroker.datalifecycle.postgres.PostgresConnectionPools;
 import org.cloudfoundry.community.servicebroker.datalifecycle.postgres.PostgresDataProvider;
 import org.cloudfoundry.community.servicebroker.datalifecycle.postgres.PostgresScriptExecutor;
 import org.cloudfoundry.community.servicebroker.datalifecycle.provider.DataProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.GaugeService;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 @Configuration
 class PostgresDataProviderConfig {
 
+	@Value("#{environment.COPY_DB_MAX_CONNECTIONS ?: 4}")
+	private int maxConnections;
+
+	@Value("#{environment.COPY_DB_CONNECTION_MAX_AGE ?: 1800000}")
+	private long connectionMaxAge;
+
+	@Value("#{environment.COPY_DB_STATEMENT_TIMEOUT ?: 0}")
+	private int statementTimeout;
+
+	@Value("#{environment.COPY_DB_SOCKET_TIMEOUT ?: 0}")
+	private int socketTimeout;
+
+	@Value("#{environment.SANITIZE_PARALLELISM ?: 4}")
+	private int sanitizeParallelism;
+
+	@Value("#{environment.SANITIZE_CHUNK_SIZE ?: 50000}")
+	private int sanitizeChunkSize;
+
+	@Value("#{environment.SANITIZE_BULK ?: false}")
+	private boolean bulk;
+
+	@Value("#{environment.SANITIZE_WORK_MEM ?: '256MB'}")
+	private String workMem;
+
+	@Value("#{environment.SANITIZE_MAINTENANCE_WORK_MEM ?: '1GB'}")
+	private String maintenanceWorkMem;
+
+	@Value("#{environment.SANITIZE_DISABLE_TRIGGERS ?: false}")
+	private boolean disableTriggers;
+
+	@Value("#{environment.SANITIZE_DROP_INDEXES ?: false}")
+	private boolean dropIndexes;
+
+	@Value("#{environment.WARMUP_ANALYZE ?: true}")
+	private boolean analyze;
+
+	@Value("#{environment.WARMUP_VACUUM ?: false}")
+	private boolean vacuum;
+
+	@Value("#{environment.WARMUP_PREWARM_TABLES ?: 0}")
+	private int prewarmTables;
+
+	@Autowired
+	private GaugeService gaugeService;
+
+	/**
+	 * Every worker sanitizing a copy holds a connection to it, so the pool is
+	 * at least that big.
+	 */
+	@Bean
+	public PostgresConnectionPools postgresConnectionPools() {
+		return new PostgresConnectionPools(Math.max(maxConnections,
+				sanitizeParallelism), connectionMaxAge, statementTimeout,
+				socketTimeout);
+	}
+
+	@Bean(destroyMethod = "shutdownNow")
+	public ExecutorService sanitizeExecutor() {
+		return Executors.newCachedThreadPool();
+	}
+
 	@Bean
 	public DataProvider postgresDataProvidr() {
-		return new PostgresDataProvider(new PostgresScriptExecutor());
+		return new PostgresDataProvider(new PostgresScriptExecutor(
+				postgresConnectionPools(), sanitizeExecutor(),
+				sanitizeParallelism, sanitizeChunkSize, bulk ? new BulkProfile(
+						workMem, maintenanceWorkMem, disableTriggers,
+						dropIndexes) : null), copyWarmup(), gaugeService);
+	}
+
+	/**
+	 * Shares the copy's pool with sanitizing, it runs once sanitizing is
+	 * done. Null if there's nothing to do.
+	 */
+	private CopyWarmup copyWarmup() {
+		if (!analyze && !vacuum && prewarmTables <= 0) {
+			return null;
+		}
+		return new CopyWarmup(postgresConnectionPools(), sanitizeExecutor(),
+				gaugeService, sanitizeParallelism, analyze, vacuum,
+				prewarmTables);
 	}
 }
@@ -0,0 +1,67 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.config;
+
+import org.cloudfoundry.community.servicebroker.datalifecycle.provider.CopyProvider;
+import org.cloudfoundry.community.servicebroker.datalifecycle.provider.DataProvider;
+import org.cloudfoundry.community.servicebroker.datalifecycle.service.BrokerActionLog;
+import org.cloudfoundry.community.servicebroker.datalifecycle.service.DataProviderService;
+import org.cloudfoundry.community.servicebroker.datalifecycle.service.LCServiceInstanceManager;
+import org.cloudfoundry.community.servicebroker.datalifecycle.service.ProvisioningStateMachine;
+import org.cloudfoundry.community.servicebroker.datalifecycle.service.ScriptMigration;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+@Configuration
+class ProvisioningConfig {
+
+	@Value("#{environment.SOURCE_INSTANCE_ID}")
+	private String sourceInstance;
+
+	@Autowired
+	private CopyProvider copyProvider;
+
+	@Autowired
+	private DataProvider dataProvider;
+
+	@Autowired
+	private DataProviderService dataProviderService;
+
+	@Autowired
+	private LCServiceInstanceManager instanceManager;
+
+	@Autowired
+	private BrokerActionLog actionLog;
+
+	@Autowired
+	private TaskExecutor executor;
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Bean
+	public ScriptMigration scriptMigration() {
+		return new ScriptMigration(jdbcTemplate, new TransactionTemplate(
+				transactionManager), dataProviderService);
+	}
+
+	/**
+	 * Copies picked up on startup are sanitized with the script carried over
+	 * from an older broker.
+	 */
+	@Bean
+	@DependsOn("scriptMigration")
+	public ProvisioningStateMachine provisioningStateMachine() {
+		return new ProvisioningStateMachine(copyProvider, dataProvider,
+				dataProviderService, instanceManager, actionLog, executor,
+				sourceInstance);
+	}
+}
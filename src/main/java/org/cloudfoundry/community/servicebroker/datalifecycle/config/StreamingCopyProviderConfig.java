@@ -0,0 +1,86 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.config;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import org.cloudfoundry.community.servicebroker.datalifecycle.postgres.StreamingCopyProvider;
+import org.cloudfoundry.community.servicebroker.datalifecycle.provider.CopyProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Streams copies between databases instead of cloning the source's volume,
+ * with COPY_PROVIDER=stream.
+ */
+@Configuration
+@ConditionalOnProperty(name = "COPY_PROVIDER", havingValue = "stream")
+class StreamingCopyProviderConfig {
+
+	@Value("#{environment.PROD_DB_USER}")
+	private String username;
+	@Value("#{environment.PROD_DB_PASSWORD}")
+	private String password;
+	@Value("#{environment.PROD_DB_URI}")
+	private String uri;
+	@Value("#{environment.SOURCE_INSTANCE_ID}")
+	private String sourceInstance;
+
+	@Value("#{environment.COPY_STREAM_TARGET_USER}")
+	private String targetUsername;
+	@Value("#{environment.COPY_STREAM_TARGET_PASSWORD}")
+	private String targetPassword;
+	@Value("#{environment.COPY_STREAM_TARGET_URI}")
+	private String targetUri;
+	@Value("#{environment.COPY_STREAM_TEMPLATE}")
+	private String template;
+	@Value("#{environment.COPY_STREAM_TABLES}")
+	private String tables;
+	@Value("#{environment.COPY_STREAM_MASKS ?: '{}'}")
+	private String masks;
+
+	@Value("#{environment.COPY_STREAM_PARALLELISM ?: 4}")
+	private int parallelism;
+
+	@Autowired
+	private GaugeService gaugeService;
+
+	@Bean(destroyMethod = "shutdownNow")
+	public ExecutorService streamExecutor() {
+		return Executors.newCachedThreadPool();
+	}
+
+	@Bean
+	CopyProvider copyProvider() throws IOException {
+		List<String> tableList = Arrays.stream(tables.split(","))
+				.map(String::trim).filter(t -> !t.isEmpty())
+				.collect(Collectors.toList());
+		@SuppressWarnings("unchecked")
+		Map<String, Object> rules = new ObjectMapper().readValue(masks,
+				Map.class);
+		return new StreamingCopyProvider(creds(uri, username, password),
+				sourceInstance, creds(targetUri, targetUsername,
+						targetPassword), template, tableList, rules,
+				streamExecutor(), gaugeService, parallelism);
+	}
+
+	private Map<String, Object> creds(String uri, String username,
+			String password) {
+		Map<String, Object> creds = new HashMap<>();
+		creds.put("username", username);
+		creds.put("password", password);
+		creds.put("uri", uri);
+		return creds;
+	}
+}
@@ -1,15 +1,41 @@
 package org.cloudfoundry.community.servicebroker.datalifecycle.config;
 
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.core.task.TaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
 @Configuration
 class TaskExecutorConfig {
 
+	@Value("#{environment.TASK_THREADS ?: 8}")
+	private int taskThreads;
+
+	@Value("#{environment.SCHEDULER_THREADS ?: 4}")
+	private int schedulerThreads;
+
+	/**
+	 * Runs the short steps between waits (and sanitizing), so it's a fixed
+	 * pool rather than a thread per provision.
+	 */
 	@Bean
 	public TaskExecutor newTaskExecutor() {
-		return new SimpleAsyncTaskExecutor();
+		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+		executor.setCorePoolSize(taskThreads);
+		executor.setMaxPoolSize(taskThreads);
+		executor.setThreadNamePrefix("broker-task-");
+		return executor;
+	}
+
+	/**
+	 * Shared by everything that polls on a schedule rather than sleeping.
+	 */
+	@Bean(destroyMethod = "shutdownNow")
+	public ScheduledExecutorService newScheduler() {
+		return Executors.newScheduledThreadPool(schedulerThreads);
 	}
 }
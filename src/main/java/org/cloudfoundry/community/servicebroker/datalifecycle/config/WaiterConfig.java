@@ -0,0 +1,28 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.config;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.cloudfoundry.community.servicebroker.datalifecycle.utils.Waiter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.TaskExecutor;
+
+@Configuration
+class WaiterConfig {
+
+	@Autowired
+	private ScheduledExecutorService scheduler;
+
+	@Autowired
+	private TaskExecutor executor;
+
+	/**
+	 * Probes can block, so they run on the task executor and the scheduler
+	 * only keeps time.
+	 */
+	@Bean
+	public Waiter newWaiter() {
+		return new Waiter(scheduler, executor);
+	}
+}
@@ -2,18 +2,24 @@ package org.cloudfoundry.community.servicebroker.datalifecycle.controller;
 
 import net.minidev.json.JSONObject;
 
+import org.cloudfoundry.community.servicebroker.datalifecycle.postgres.MaskingCompiler;
 import org.cloudfoundry.community.servicebroker.datalifecycle.service.DataProviderService;
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.util.UriComponents;
 import org.springframework.web.util.UriComponentsBuilder;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 @RestController
@@ -24,28 +30,145 @@ class SanitizeController {
 
 	private static final String location = "/api/sanitizescript";
 
+	private static final String scripts = "/api/scripts";
+
+	private static final String planScript = "/api/plans/{planId}/script";
+
+	private static final String masks = "/api/masks";
+
+	/**
+	 * The default script. Tagged with the script's digest, so a client that
+	 * already has the current script gets a 304.
+	 */
 	@RequestMapping(value = location, method = RequestMethod.GET)
-	public ResponseEntity<JSONObject> getSanitizeScript() {
-		String script = dataService.getScript();
+	public ResponseEntity<JSONObject> getSanitizeScript(
+			@RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+		return getScript(DataProviderService.DEFAULT, ifNoneMatch, HttpStatus.OK);
+	}
+
+	@RequestMapping(value = location, method = RequestMethod.POST, produces = "application/json")
+	public ResponseEntity<String> addSanitizeScript(@RequestBody Map<String, Object> script) {
+
+		dataService.saveScript((String) script.get("script"));
+		return created(location);
+	}
+
+	@RequestMapping(value = scripts, method = RequestMethod.GET)
+	public ResponseEntity<List<JSONObject>> getScripts() {
+		List<JSONObject> response = new ArrayList<>();
+		dataService.getScriptNames().forEach(name -> {
+			JSONObject script = new JSONObject();
+			script.put("name", name);
+			script.put("digest", dataService.getScriptDigest(name));
+			response.add(script);
+		});
+		return new ResponseEntity<List<JSONObject>>(response, HttpStatus.OK);
+	}
+
+	/**
+	 * A named script, tagged like the default one.
+	 */
+	@RequestMapping(value = scripts + "/{name:.+}", method = RequestMethod.GET)
+	public ResponseEntity<JSONObject> getNamedScript(
+			@PathVariable String name,
+			@RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+		return getScript(name, ifNoneMatch, HttpStatus.NOT_FOUND);
+	}
+
+	@RequestMapping(value = scripts + "/{name:.+}", method = RequestMethod.PUT, produces = "application/json")
+	public ResponseEntity<String> putNamedScript(@PathVariable String name,
+			@RequestBody Map<String, Object> script) {
+		dataService.saveScript(name, (String) script.get("script"));
+		return created(scripts + "/" + name);
+	}
+
+	@RequestMapping(value = scripts + "/{name:.+}", method = RequestMethod.DELETE, produces = "application/json")
+	public ResponseEntity<String> deleteNamedScript(@PathVariable String name) {
+		return new ResponseEntity<String>("{}",
+				dataService.deleteScript(name) ? HttpStatus.OK
+						: HttpStatus.NOT_FOUND);
+	}
+
+	/**
+	 * Save a named script compiled from masking rules, see
+	 * {@link MaskingCompiler}. Responds with the script.
+	 */
+	@RequestMapping(value = masks + "/{name:.+}", method = RequestMethod.PUT, produces = "application/json")
+	public ResponseEntity<JSONObject> putMask(@PathVariable String name,
+			@RequestBody Map<String, Object> rules) {
 		JSONObject response = new JSONObject();
-		if (null != script) {
+		String script;
+		try {
+			script = MaskingCompiler.compile(rules);
+		} catch (IllegalArgumentException e) {
+			response.put("description", e.getMessage());
+			return new ResponseEntity<JSONObject>(response,
+					HttpStatus.BAD_REQUEST);
+		}
+		dataService.saveScript(name, script);
+		response.put("script", script);
+		return new ResponseEntity<JSONObject>(response, locationOf(scripts
+				+ "/" + name), HttpStatus.CREATED);
+	}
 
-			response.put("script", script);
+	@RequestMapping(value = planScript, method = RequestMethod.GET)
+	public ResponseEntity<JSONObject> getPlanScript(@PathVariable String planId) {
+		JSONObject response = new JSONObject();
+		response.put("name", dataService.getScriptNameForPlan(planId));
+		return new ResponseEntity<JSONObject>(response, HttpStatus.OK);
+	}
+
+	@RequestMapping(value = planScript, method = RequestMethod.PUT, produces = "application/json")
+	public ResponseEntity<JSONObject> putPlanScript(
+			@PathVariable String planId, @RequestBody Map<String, Object> script) {
+		JSONObject response = new JSONObject();
+		try {
+			dataService.assignScript(planId, (String) script.get("name"));
+		} catch (ServiceBrokerException e) {
+			response.put("description", e.getMessage());
+			return new ResponseEntity<JSONObject>(response,
+					HttpStatus.BAD_REQUEST);
 		}
 		return new ResponseEntity<JSONObject>(response, HttpStatus.OK);
 	}
 
-	@RequestMapping(value = location, method = RequestMethod.POST, produces = "application/json")
-	public ResponseEntity<String> addSanitizeScript(@RequestBody Map<String, Object> script) {
+	@RequestMapping(value = planScript, method = RequestMethod.DELETE, produces = "application/json")
+	public ResponseEntity<String> deletePlanScript(@PathVariable String planId) {
+		dataService.unassignScript(planId);
+		return new ResponseEntity<String>("{}", HttpStatus.OK);
+	}
 
-		dataService.saveScript((String) script.get("script"));
-		String response = "{}";
+	private ResponseEntity<JSONObject> getScript(String name,
+			String ifNoneMatch, HttpStatus missing) {
+		String digest = dataService.getScriptDigest(name);
+		String script = dataService.getScriptByDigest(digest);
+		HttpHeaders headers = new HttpHeaders();
+		if (null != digest) {
+			headers.setETag("\"" + digest + "\"");
+			if (headers.getETag().equals(ifNoneMatch)) {
+				return new ResponseEntity<JSONObject>(headers,
+						HttpStatus.NOT_MODIFIED);
+			}
+		}
+		JSONObject response = new JSONObject();
+		if (null == script) {
+			return new ResponseEntity<JSONObject>(response, headers, missing);
+		}
+		response.put("script", script);
+		return new ResponseEntity<JSONObject>(response, headers, HttpStatus.OK);
+	}
+
+	private ResponseEntity<String> created(String path) {
+		return new ResponseEntity<String>("{}", locationOf(path),
+				HttpStatus.CREATED);
+	}
 
+	private HttpHeaders locationOf(String path) {
 		HttpHeaders headers = new HttpHeaders();
-		UriComponents components = UriComponentsBuilder.fromPath(location)
+		UriComponents components = UriComponentsBuilder.fromPath(path)
 				.buildAndExpand();
 
 		headers.setLocation(components.toUri());
-		return new ResponseEntity<String>(response, headers, HttpStatus.CREATED);
+		return headers;
 	}
 }
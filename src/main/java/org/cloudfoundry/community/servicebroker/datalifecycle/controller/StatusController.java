@@ -1,21 +1,36 @@
 package org.cloudfoundry.community.servicebroker.datalifecycle.controller;
 
-import java.util.List;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.function.Consumer;
+
+import javax.servlet.http.HttpServletResponse;
 
 import org.cloudfoundry.community.servicebroker.datalifecycle.dto.InstancePair;
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.BrokerAction;
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.BrokerActionState;
+import org.cloudfoundry.community.servicebroker.datalifecycle.repo.BrokerActionRepository;
 import org.cloudfoundry.community.servicebroker.datalifecycle.service.LCServiceInstanceBindingService;
 import org.cloudfoundry.community.servicebroker.datalifecycle.service.LCServiceInstanceService;
+import org.cloudfoundry.community.servicebroker.datalifecycle.utils.Pages;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import com.amazonaws.util.json.JSONException;
 import com.amazonaws.util.json.JSONObject;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 @RestController
 class StatusController {
@@ -26,16 +41,118 @@ class StatusController {
 	@Autowired
 	private LCServiceInstanceBindingService bindingService;
 
+	@Autowired
+	private BrokerActionRepository actionRepo;
+
+	@Autowired
+	private ObjectMapper mapper;
+
+	static final String NDJSON = "application/x-ndjson";
+
+	private static final MediaType NDJSON_TYPE = MediaType.valueOf(NDJSON);
+
+	static final int MAX_PAGE_SIZE = 1000;
+
+	/**
+	 * Every instance, written out as they're read so the response doesn't
+	 * have to fit in memory. One per line if that's asked for by name.
+	 */
 	@RequestMapping(value = "/api/instances", method = RequestMethod.GET)
-	ResponseEntity<List<InstancePair>> getServiceInstances() {
-		return new ResponseEntity<List<InstancePair>>(
-				instanceService.getProvisionedInstances(), HttpStatus.OK);
+	void getServiceInstances(
+			@RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+			HttpServletResponse response) throws IOException {
+		write(response, instanceService::forEachProvisionedInstance, accept);
 	}
 
+	@RequestMapping(value = "/api/instances", method = RequestMethod.GET, params = "page")
+	Slice<InstancePair> getServiceInstances(@RequestParam int page,
+			@RequestParam(defaultValue = "100") int size) {
+		return instanceService.getProvisionedInstances(pageOf(page, size));
+	}
+
+	/**
+	 * Every binding, written out as they're read.
+	 */
 	@RequestMapping(value = "/api/bindings", method = RequestMethod.GET)
-	ResponseEntity<List<InstancePair>> getServiceBindings() {
-		return new ResponseEntity<List<InstancePair>>(
-				bindingService.getAppToCopyBinding(), HttpStatus.OK);
+	void getServiceBindings(
+			@RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+			HttpServletResponse response) throws IOException {
+		write(response, bindingService::forEachAppToCopyBinding, accept);
+	}
+
+	@RequestMapping(value = "/api/bindings", method = RequestMethod.GET, params = "page")
+	Slice<InstancePair> getServiceBindings(@RequestParam int page,
+			@RequestParam(defaultValue = "100") int size) {
+		return bindingService.getAppToCopyBindings(pageOf(page, size));
+	}
+
+	/**
+	 * Every action in a state, one per line. Pages of them are available
+	 * from /actions/search/findByStateOrderByCreatedAtDesc.
+	 */
+	@RequestMapping(value = "/api/actions", method = RequestMethod.GET, produces = NDJSON)
+	void exportActions(@RequestParam BrokerActionState state,
+			HttpServletResponse response) throws IOException {
+		writeLines(response, c -> Pages.forEach(0L,
+				(after, p) -> actionRepo.findByStateAfter(state, after, p),
+				BrokerAction::getId, c));
+	}
+
+	private Pageable pageOf(int page, int size) {
+		return new PageRequest(Math.max(0, page), Math.max(1,
+				Math.min(size, MAX_PAGE_SIZE)));
+	}
+
+	/**
+	 * A JSON array unless the client names NDJSON, so wildcards (and clients
+	 * that don't say) get JSON.
+	 */
+	private void write(HttpServletResponse response,
+			Consumer<Consumer<Object>> source, String accept)
+			throws IOException {
+		if (null != accept
+				&& MediaType.parseMediaTypes(accept).stream()
+						.anyMatch(t -> !t.isWildcardSubtype()
+								&& t.isCompatibleWith(NDJSON_TYPE)
+								&& 0 < t.getQualityValue())) {
+			writeLines(response, source);
+		} else {
+			response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+			write(response, source, true);
+		}
+	}
+
+	private void writeLines(HttpServletResponse response,
+			Consumer<Consumer<Object>> source) throws IOException {
+		response.setContentType(NDJSON);
+		write(response, source, false);
+	}
+
+	private void write(HttpServletResponse response,
+			Consumer<Consumer<Object>> source, boolean array)
+			throws IOException {
+		try (JsonGenerator json = mapper.getFactory().createGenerator(
+				response.getOutputStream())) {
+			json.setRootValueSeparator(null);
+			if (array) {
+				json.writeStartArray();
+			}
+			source.accept(o -> {
+				try {
+					json.writeObject(o);
+					if (!array) {
+						json.writeRaw('\n');
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+			if (array) {
+				json.writeEndArray();
+			}
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
 	}
 
 	@RequestMapping(value = "/api/sourceinstance", method = RequestMethod.GET)
@@ -0,0 +1,105 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.dto;
+
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState;
+
+/**
+ * Immutable snapshot of how far along a copy is, along with whatever the copy
+ * provider has created for it so far. It's everything needed to pick the copy
+ * back up after a restart.
+ */
+public class CopyProgress {
+
+	private ProvisioningState state;
+
+	private String sourceId;
+
+	private String imageId;
+
+	private String copyId;
+
+	private String address;
+
+	private String scriptDigest;
+
+	public CopyProgress(ProvisioningState state, String sourceId,
+			String imageId, String copyId, String address) {
+		this(state, sourceId, imageId, copyId, address, null);
+	}
+
+	public CopyProgress(ProvisioningState state, String sourceId,
+			String imageId, String copyId, String address, String scriptDigest) {
+		this.state = state;
+		this.sourceId = sourceId;
+		this.imageId = imageId;
+		this.copyId = copyId;
+		this.address = address;
+		this.scriptDigest = scriptDigest;
+	}
+
+	/**
+	 * @return progress for a copy of the source that hasn't been started yet.
+	 */
+	public static CopyProgress start(String sourceId) {
+		return new CopyProgress(ProvisioningState.AMI_PENDING, sourceId, null,
+				null, null);
+	}
+
+	public ProvisioningState getState() {
+		return state;
+	}
+
+	public String getSourceId() {
+		return sourceId;
+	}
+
+	public String getImageId() {
+		return imageId;
+	}
+
+	public String getCopyId() {
+		return copyId;
+	}
+
+	public String getAddress() {
+		return address;
+	}
+
+	/**
+	 * @return digest of the script the copy is to be sanitized with, null for
+	 *         the default script.
+	 */
+	public String getScriptDigest() {
+		return scriptDigest;
+	}
+
+	public CopyProgress next(ProvisioningState state) {
+		return new CopyProgress(state, sourceId, imageId, copyId, address,
+				scriptDigest);
+	}
+
+	public CopyProgress withImageId(String imageId) {
+		return new CopyProgress(state, sourceId, imageId, copyId, address,
+				scriptDigest);
+	}
+
+	public CopyProgress withCopyId(String copyId) {
+		return new CopyProgress(state, sourceId, imageId, copyId, address,
+				scriptDigest);
+	}
+
+	public CopyProgress withAddress(String address) {
+		return new CopyProgress(state, sourceId, imageId, copyId, address,
+				scriptDigest);
+	}
+
+	public CopyProgress withScriptDigest(String scriptDigest) {
+		return new CopyProgress(state, sourceId, imageId, copyId, address,
+				scriptDigest);
+	}
+
+	@Override
+	public String toString() {
+		return state + " (image: " + imageId + ", copy: " + copyId
+				+ ", address: " + address + ")";
+	}
+}
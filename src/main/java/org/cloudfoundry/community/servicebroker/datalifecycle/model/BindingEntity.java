@@ -2,6 +2,8 @@ package org.cloudfoundry.community.servicebroker.datalifecycle.model;
 
 import javax.persistence.Entity;
 import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
 
 import org.cloudfoundry.community.servicebroker.model.ServiceInstanceBinding;
 
@@ -9,9 +11,14 @@ import org.cloudfoundry.community.servicebroker.model.ServiceInstanceBinding;
  * Savable version of a service binding.
  * 
  * We don't save the creds
+ * 
+ * An app can only be bound to a service instance once, the constraint (and
+ * the index that comes with it) backs the duplicate check on bind.
  *
  */
 @Entity
+@Table(uniqueConstraints = { @UniqueConstraint(name = "uk_binding_app_instance", columnNames = {
+		"appGuid", "serviceInstanceId" }) })
 public class BindingEntity {
 
 	@Id
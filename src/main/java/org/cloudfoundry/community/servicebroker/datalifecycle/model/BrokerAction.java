@@ -1,13 +1,33 @@
 package org.cloudfoundry.community.servicebroker.datalifecycle.model;
 
+import java.util.concurrent.TimeUnit;
+
 import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
-
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+/**
+ * One step an instance or binding went through. Actions are only ever added,
+ * so an actor's actions are its timeline. They used to be kept one per actor
+ * in broker_action, and are carried over from there on startup.
+ */
 @Entity
+@Table(name = "broker_action_log", indexes = {
+		@Index(name = "idx_action_actor_created", columnList = "actor,createdAt"),
+		@Index(name = "idx_action_state_created", columnList = "state,createdAt"),
+		@Index(name = "idx_action_bucket", columnList = "bucket") })
 public class BrokerAction {
 
+	/**
+	 * Width of the time buckets actions are expired by.
+	 */
+	public static final long BUCKET = TimeUnit.DAYS.toMillis(1);
+
 	@Id
-	private String id;
+	@GeneratedValue
+	private Long id;
 
 	private String actor;
 
@@ -15,14 +35,36 @@ public class BrokerAction {
 
 	private String action;
 
+	private long createdAt;
+
+	private long duration;
+
+	private long bucket;
+
 	public BrokerAction() {
 	}
 
-	public BrokerAction(String id, BrokerActionState state, String action) {
-		this.setId(id);
-		this.actor = id;
+	public BrokerAction(String actor, BrokerActionState state, String action) {
+		this(actor, state, action, System.currentTimeMillis());
+	}
+
+	public BrokerAction(String actor, BrokerActionState state, String action,
+			long createdAt) {
+		this.actor = actor;
 		this.state = state;
 		this.action = action;
+		this.setCreatedAt(createdAt);
+	}
+
+	/**
+	 * @return the bucket an action at the time falls in.
+	 */
+	public static long bucketOf(long time) {
+		return time / BUCKET;
+	}
+
+	public Long getId() {
+		return id;
 	}
 
 	public String getActor() {
@@ -49,11 +91,30 @@ public class BrokerAction {
 		this.action = action;
 	}
 
-	public String getId() {
-		return id;
+	/**
+	 * @return when the action happened, in ms since the epoch.
+	 */
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
+	private void setCreatedAt(long createdAt) {
+		this.createdAt = createdAt;
+		this.bucket = bucketOf(createdAt);
+	}
+
+	/**
+	 * @return ms since the actor's previous action, zero if this is its first.
+	 */
+	public long getDuration() {
+		return duration;
+	}
+
+	public void setDuration(long duration) {
+		this.duration = duration;
 	}
 
-	private void setId(String id) {
-		this.id = id;
+	public long getBucket() {
+		return bucket;
 	}
 }
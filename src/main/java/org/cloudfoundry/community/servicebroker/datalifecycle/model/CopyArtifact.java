@@ -0,0 +1,76 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.model;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * What a copy was built from and where to reach it, so it can be cleaned up
+ * (and bound to) after the broker restarts.
+ */
+@Entity
+public class CopyArtifact {
+
+	@Id
+	private String copyId;
+
+	private String imageId;
+
+	private long createdAt;
+
+	private String endpoint;
+
+	public CopyArtifact() {
+	}
+
+	public CopyArtifact(String copyId, String imageId, long createdAt) {
+		this(copyId, imageId, createdAt, null);
+	}
+
+	public CopyArtifact(String copyId, String imageId, long createdAt,
+			String endpoint) {
+		this.setCopyId(copyId);
+		this.setImageId(imageId);
+		this.setCreatedAt(createdAt);
+		this.setEndpoint(endpoint);
+	}
+
+	public String getCopyId() {
+		return copyId;
+	}
+
+	private void setCopyId(String copyId) {
+		this.copyId = copyId;
+	}
+
+	/**
+	 * @return the image the copy was started from, its snapshots and volumes
+	 *         are tagged with it.
+	 */
+	public String getImageId() {
+		return imageId;
+	}
+
+	private void setImageId(String imageId) {
+		this.imageId = imageId;
+	}
+
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
+	private void setCreatedAt(long createdAt) {
+		this.createdAt = createdAt;
+	}
+
+	/**
+	 * @return the uri apps should connect to, null until the copy has an
+	 *         address.
+	 */
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	private void setEndpoint(String endpoint) {
+		this.endpoint = endpoint;
+	}
+}
@@ -0,0 +1,41 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.model;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * The name a script is known by, pointing at the current version of its
+ * content.
+ */
+@Entity
+public class NamedScript {
+
+	@Id
+	private String name;
+
+	private String digest;
+
+	protected NamedScript() {
+	}
+
+	public NamedScript(String name, String digest) {
+		this.setName(name);
+		this.setDigest(digest);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	private void setName(String name) {
+		this.name = name;
+	}
+
+	public String getDigest() {
+		return digest;
+	}
+
+	private void setDigest(String digest) {
+		this.digest = digest;
+	}
+}
@@ -0,0 +1,40 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.model;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * The named script copies provisioned with a plan are sanitized with.
+ */
+@Entity
+public class PlanScript {
+
+	@Id
+	private String planId;
+
+	private String scriptName;
+
+	protected PlanScript() {
+	}
+
+	public PlanScript(String planId, String scriptName) {
+		this.setPlanId(planId);
+		this.setScriptName(scriptName);
+	}
+
+	public String getPlanId() {
+		return planId;
+	}
+
+	private void setPlanId(String planId) {
+		this.planId = planId;
+	}
+
+	public String getScriptName() {
+		return scriptName;
+	}
+
+	private void setScriptName(String scriptName) {
+		this.scriptName = scriptName;
+	}
+}
@@ -0,0 +1,85 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.model;
+
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.Id;
+
+import org.cloudfoundry.community.servicebroker.datalifecycle.dto.CopyProgress;
+
+/**
+ * A copy being built for the warm pool, saved before it's started and after
+ * every step so a restart can pick it back up, or clean up what it made.
+ */
+@Entity
+public class PoolBuild {
+
+	@Id
+	private String id;
+
+	private String planId;
+
+	private long startedAt;
+
+	@Enumerated(EnumType.STRING)
+	private ProvisioningState provisioningState;
+
+	private String sourceId;
+
+	private String imageId;
+
+	private String copyId;
+
+	private String address;
+
+	private String scriptDigest;
+
+	public PoolBuild() {
+	}
+
+	public PoolBuild(String id, String planId, long startedAt,
+			CopyProgress progress) {
+		this.setId(id);
+		this.setPlanId(planId);
+		this.setStartedAt(startedAt);
+		this.setProgress(progress);
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	private void setId(String id) {
+		this.id = id;
+	}
+
+	public String getPlanId() {
+		return planId;
+	}
+
+	private void setPlanId(String planId) {
+		this.planId = planId;
+	}
+
+	public long getStartedAt() {
+		return startedAt;
+	}
+
+	private void setStartedAt(long startedAt) {
+		this.startedAt = startedAt;
+	}
+
+	public CopyProgress getProgress() {
+		return new CopyProgress(provisioningState, sourceId, imageId, copyId,
+				address, scriptDigest);
+	}
+
+	public void setProgress(CopyProgress progress) {
+		this.provisioningState = progress.getState();
+		this.sourceId = progress.getSourceId();
+		this.imageId = progress.getImageId();
+		this.copyId = progress.getCopyId();
+		this.address = progress.getAddress();
+		this.scriptDigest = progress.getScriptDigest();
+	}
+}
@@ -0,0 +1,67 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.model;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * A copy that has been created and sanitized ahead of time and is waiting in
+ * the warm pool to be handed out to a new service instance.
+ */
+@Entity
+public class PooledCopy {
+
+	@Id
+	private String copyId;
+
+	private String planId;
+
+	private String scriptDigest;
+
+	private long createdAt;
+
+	public PooledCopy() {
+	}
+
+	public PooledCopy(String copyId, String planId, String scriptDigest,
+			long createdAt) {
+		this.setCopyId(copyId);
+		this.setPlanId(planId);
+		this.setScriptDigest(scriptDigest);
+		this.setCreatedAt(createdAt);
+	}
+
+	public String getCopyId() {
+		return copyId;
+	}
+
+	private void setCopyId(String copyId) {
+		this.copyId = copyId;
+	}
+
+	public String getPlanId() {
+		return planId;
+	}
+
+	private void setPlanId(String planId) {
+		this.planId = planId;
+	}
+
+	/**
+	 * @return digest of the sanitization script the copy was scrubbed with.
+	 */
+	public String getScriptDigest() {
+		return scriptDigest;
+	}
+
+	private void setScriptDigest(String scriptDigest) {
+		this.scriptDigest = scriptDigest;
+	}
+
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
+	private void setCreatedAt(long createdAt) {
+		this.createdAt = createdAt;
+	}
+}
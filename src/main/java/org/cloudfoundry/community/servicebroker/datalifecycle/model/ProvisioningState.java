@@ -0,0 +1,19 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.model;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Where a copy is on its way up (or down). Persisted with the service instance
+ * so a restart picks up in flight copies where they left off.
+ */
+public enum ProvisioningState {
+	AMI_PENDING, INSTANCE_PENDING, IP_ASSOCIATED, BOOTING, SANITIZING, READY, DEPROVISIONING, FAILED;
+
+	/**
+	 * @return the states that still have work left to do.
+	 */
+	public static Set<ProvisioningState> inFlight() {
+		return EnumSet.complementOf(EnumSet.of(READY, FAILED));
+	}
+}
@@ -1,16 +1,28 @@
 package org.cloudfoundry.community.servicebroker.datalifecycle.model;
 
+import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
+import javax.persistence.Table;
 
+import org.springframework.util.DigestUtils;
+
+/**
+ * A script's content, stored under its digest so a script shared by several
+ * names or saved again unchanged is only stored once. Scripts are reached by
+ * name through {@link NamedScript}.
+ */
+// Not the old single script table, its id was a number. Its script is
+// carried over on startup.
 @Entity
+@Table(name = "script_content")
 public class SanitizationScript {
 
-	public final static long ID = 1;
-
 	@Id
-	private long id = ID;
+	private String digest;
 
+	// Scripts are often longer than the default varchar(255).
+	@Column(columnDefinition = "text")
 	private String script;
 
 	protected SanitizationScript() {
@@ -18,6 +30,11 @@ public class SanitizationScript {
 
 	public SanitizationScript(final String script) {
 		this.setScript(script);
+		this.setDigest(digestOf(script));
+	}
+
+	public static String digestOf(String script) {
+		return DigestUtils.md5DigestAsHex(script.getBytes());
 	}
 
 	public String getScript() {
@@ -28,11 +45,11 @@ public class SanitizationScript {
 		this.script = script;
 	}
 
-	public long getId() {
-		return id;
+	public String getDigest() {
+		return digest;
 	}
 
-	public void setId(long id) {
-		this.id = id;
+	private void setDigest(String digest) {
+		this.digest = digest;
 	}
 }
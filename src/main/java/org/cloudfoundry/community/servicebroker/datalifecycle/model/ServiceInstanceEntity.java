@@ -1,11 +1,21 @@
 package org.cloudfoundry.community.servicebroker.datalifecycle.model;
 
+import java.util.Date;
+
 import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
 
+import org.cloudfoundry.community.servicebroker.datalifecycle.dto.CopyProgress;
 import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
 
 @Entity
+@Table(indexes = { @Index(name = "idx_instance_provisioning_state", columnList = "provisioningState") })
 public class ServiceInstanceEntity {
 
 	@Id
@@ -29,6 +39,20 @@ public class ServiceInstanceEntity {
 
 	private String lastOperationDescription;
 
+	@Enumerated(EnumType.STRING)
+	private ProvisioningState provisioningState;
+
+	private String sourceId;
+
+	private String imageId;
+
+	private String address;
+
+	private String scriptDigest;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date stateChangedAt;
+
 	public ServiceInstanceEntity() {
 	}
 
@@ -127,4 +151,32 @@ public class ServiceInstanceEntity {
 		this.lastOperationDescription = lastOperationDescription;
 	}
 
+	/**
+	 * @return how far along the copy behind this instance is, or null if it
+	 *         isn't tracked (production instances and pooled copies).
+	 */
+	public CopyProgress getProgress() {
+		if (null == provisioningState) {
+			return null;
+		}
+		return new CopyProgress(provisioningState, sourceId, imageId, copyId,
+				address, scriptDigest);
+	}
+
+	public void setProgress(CopyProgress progress) {
+		this.provisioningState = progress.getState();
+		this.sourceId = progress.getSourceId();
+		this.imageId = progress.getImageId();
+		this.address = progress.getAddress();
+		this.scriptDigest = progress.getScriptDigest();
+		this.stateChangedAt = new Date();
+	}
+
+	public ProvisioningState getProvisioningState() {
+		return provisioningState;
+	}
+
+	public Date getStateChangedAt() {
+		return stateChangedAt;
+	}
 }
@@ -0,0 +1,227 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.postgres;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Session settings and table changes that make a sanitize run cheaper, all of
+ * which are undone before the copy is handed out.
+ *
+ * Every connection running the script gets more memory for sorts, hashes and
+ * index builds, and doesn't wait on commits being flushed. Optionally, user
+ * triggers on the tables the script writes are disabled and their indexes
+ * that don't back a constraint or enforce uniqueness are dropped, so updates
+ * don't maintain them. Tables are named as the script names them and looked
+ * up once, so the changes land on the same table the script writes.
+ * What was changed is kept in {@value #STATE_TABLE} in the copy until it's
+ * put back, so a run that didn't finish is put right by the next one.
+ */
+public class BulkProfile {
+
+	static final String STATE_TABLE = "broker_bulk_state";
+
+	private static final Pattern MEMORY = Pattern
+			.compile("\\d+\\s*(?:kB|MB|GB|TB)?");
+
+	private static final String TABLE = "select to_regclass(?)::text";
+
+	private static final String TRIGGERS = "select tgname from pg_trigger"
+			+ " where tgrelid = ?::regclass and not tgisinternal and tgenabled <> 'D'";
+
+	private static final String INDEXES = "select pg_get_indexdef(i.indexrelid), x.oid::regclass::text"
+			+ " from pg_index i join pg_class x on x.oid = i.indexrelid"
+			+ " where i.indrelid = ?::regclass and not i.indisunique"
+			+ " and not i.indisexclusion and not exists"
+			+ " (select 1 from pg_constraint k where k.conindid = i.indexrelid)";
+
+	private Logger log = Logger.getLogger(BulkProfile.class);
+
+	private String workMem;
+
+	private String maintenanceWorkMem;
+
+	private boolean disableTriggers;
+
+	private boolean dropIndexes;
+
+	/**
+	 * @param workMem
+	 *            for each connection, like 256MB
+	 * @param maintenanceWorkMem
+	 *            for each connection, like 1GB
+	 * @param disableTriggers
+	 *            on the tables the script writes while it runs
+	 * @param dropIndexes
+	 *            on the tables the script writes, and build them again after
+	 * @throws IllegalArgumentException
+	 *             for a memory setting that isn't one.
+	 */
+	public BulkProfile(String workMem, String maintenanceWorkMem,
+			boolean disableTriggers, boolean dropIndexes) {
+		this.workMem = checkMemory(workMem);
+		this.maintenanceWorkMem = checkMemory(maintenanceWorkMem);
+		this.disableTriggers = disableTriggers;
+		this.dropIndexes = dropIndexes;
+	}
+
+	/**
+	 * @return true if the profile changes the tables, not just the session.
+	 */
+	boolean changesTables() {
+		return disableTriggers || dropIndexes;
+	}
+
+	void apply(Connection connection) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("set work_mem = '" + workMem + "'");
+			statement.execute("set maintenance_work_mem = '"
+					+ maintenanceWorkMem + "'");
+			statement.execute("set synchronous_commit = off");
+		}
+	}
+
+	/**
+	 * Put the connection's settings back before it goes back to the pool.
+	 */
+	void reset(Connection connection) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("reset work_mem");
+			statement.execute("reset maintenance_work_mem");
+			statement.execute("reset synchronous_commit");
+		}
+	}
+
+	/**
+	 * Disable triggers and drop indexes on the tables, remembering what to do
+	 * to put them back.
+	 *
+	 * @param tables
+	 *            as the script names them, tables that aren't there are
+	 *            skipped
+	 */
+	void prepare(Connection connection, Set<String> tables)
+			throws SQLException {
+		Set<String> resolved = new LinkedHashSet<>();
+		for (String table : tables) {
+			for (String[] name : query(connection, TABLE, table, 1)) {
+				if (null != name[0]) {
+					resolved.add(name[0]);
+				}
+			}
+		}
+		List<String> undo = new ArrayList<>();
+		List<String> changes = new ArrayList<>();
+		for (String table : resolved) {
+			if (disableTriggers) {
+				for (String[] trigger : query(connection, TRIGGERS, table, 1)) {
+					changes.add("alter table " + table + " disable trigger "
+							+ quote(trigger[0]));
+					undo.add("alter table " + table + " enable trigger "
+							+ quote(trigger[0]));
+				}
+			}
+			if (dropIndexes) {
+				for (String[] index : query(connection, INDEXES, table, 2)) {
+					changes.add("drop index " + index[1]);
+					undo.add(index[0]);
+				}
+			}
+		}
+		boolean autoCommit = connection.getAutoCommit();
+		connection.setAutoCommit(false);
+		try (Statement statement = connection.createStatement();
+				PreparedStatement remember = connection
+						.prepareStatement("insert into " + STATE_TABLE
+								+ " (statement) values (?)")) {
+			statement.execute("create table if not exists " + STATE_TABLE
+					+ " (statement text not null)");
+			for (String statementToUndo : undo) {
+				remember.setString(1, statementToUndo);
+				remember.executeUpdate();
+			}
+			for (String change : changes) {
+				statement.execute(change);
+			}
+			connection.commit();
+		} catch (SQLException e) {
+			connection.rollback();
+			throw e;
+		} finally {
+			connection.setAutoCommit(autoCommit);
+		}
+		log.info("Bulk sanitizing: " + changes.size() + " changes to "
+				+ resolved.size() + " tables");
+	}
+
+	/**
+	 * @return the statements that put back what the last prepare changed,
+	 *         empty if there's nothing to put back.
+	 */
+	List<String> undoStatements(Connection connection) throws SQLException {
+		List<String> undo = new ArrayList<>();
+		try (Statement statement = connection.createStatement();
+				ResultSet exists = statement.executeQuery("select to_regclass('"
+						+ STATE_TABLE + "') is not null")) {
+			if (!exists.next() || !exists.getBoolean(1)) {
+				return undo;
+			}
+		}
+		try (Statement statement = connection.createStatement();
+				ResultSet result = statement.executeQuery("select statement from "
+						+ STATE_TABLE)) {
+			while (result.next()) {
+				undo.add(result.getString(1));
+			}
+		}
+		return undo;
+	}
+
+	/**
+	 * Forget what was changed, once it's all been put back.
+	 */
+	void forget(Connection connection) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("drop table if exists " + STATE_TABLE);
+		}
+	}
+
+	private static List<String[]> query(Connection connection, String sql,
+			String table, int columns) throws SQLException {
+		List<String[]> rows = new ArrayList<>();
+		try (PreparedStatement query = connection.prepareStatement(sql)) {
+			query.setString(1, table);
+			try (ResultSet result = query.executeQuery()) {
+				while (result.next()) {
+					String[] row = new String[columns];
+					for (int i = 0; i < columns; ++i) {
+						row[i] = result.getString(i + 1);
+					}
+					rows.add(row);
+				}
+			}
+		}
+		return rows;
+	}
+
+	private static String checkMemory(String memory) {
+		if (null == memory || !MEMORY.matcher(memory.trim()).matches()) {
+			throw new IllegalArgumentException("Not a memory setting: "
+					+ memory);
+		}
+		return memory.trim();
+	}
+
+	private static String quote(String name) {
+		return "\"" + name.replace("\"", "\"\"") + "\"";
+	}
+}
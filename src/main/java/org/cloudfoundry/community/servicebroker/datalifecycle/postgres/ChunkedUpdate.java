@@ -0,0 +1,244 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.postgres;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.springframework.util.DigestUtils;
+
+/**
+ * Runs an update a range of rows at a time, committing each range, so a
+ * masking update over a huge table doesn't hold its locks and WAL for the
+ * whole table and a failure only loses the range it was in.
+ *
+ * Tables are split on ranges of their single integer primary key. Updates of
+ * tables without one, or that change the key, are run whole: splitting on
+ * pages by ctid means a sequential scan per range, and rows an earlier range
+ * moved can be updated again by a later one. How far an update got is kept
+ * in the copy in {@value #PROGRESS_TABLE}, so running the same update
+ * against the same copy again picks up after the last range that was
+ * committed.
+ */
+final class ChunkedUpdate {
+
+	static final String PROGRESS_TABLE = "broker_sanitize_progress";
+
+	private static final Logger log = Logger.getLogger(ChunkedUpdate.class);
+
+	static final Pattern UPDATE = Pattern.compile(
+			"^\\s*update\\s+(?:only\\s+)?([\\w.\"]+)"
+					+ "(?:\\s+(?:as\\s+)?(?!set\\b)(\\w+))?\\s+set\\b",
+			Pattern.CASE_INSENSITIVE);
+
+	private static final String KEY = "select a.attname from pg_index i"
+			+ " join pg_attribute a on a.attrelid = i.indrelid and a.attnum = i.indkey[0]"
+			+ " where i.indrelid = ?::regclass and i.indisprimary and i.indnatts = 1"
+			+ " and a.atttypid in ('int2'::regtype, 'int4'::regtype, 'int8'::regtype)";
+
+	private ChunkedUpdate() {
+	}
+
+	/**
+	 * @return true if the statement is an update we know how to split.
+	 */
+	static boolean isChunkable(String sql) {
+		return UPDATE.matcher(sql).find();
+	}
+
+	static void createProgressTable(Connection connection) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("create table if not exists " + PROGRESS_TABLE
+					+ " (statement text primary key, next_key bigint not null)");
+		}
+	}
+
+	static void dropProgressTable(Connection connection) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("drop table if exists " + PROGRESS_TABLE);
+		}
+	}
+
+	/**
+	 * Run the update over the table in ranges of about chunkSize rows,
+	 * starting after the last range committed by an earlier run, or all at
+	 * once if the table can't be split on its key.
+	 *
+	 * @return the number of rows updated by this run.
+	 */
+	static long run(Connection connection, String sql, int chunkSize)
+			throws SQLException {
+		Matcher update = UPDATE.matcher(sql);
+		if (!update.find()) {
+			throw new SQLException("Can't run in chunks: " + sql);
+		}
+		String table = update.group(1);
+		String qualifier = null == update.group(2) ? table : update.group(2);
+		String key = keyOf(connection, table);
+		if (null == key || assignsKey(sql, update.end(), key)) {
+			log.warn("Running the update of " + table + " whole, "
+					+ (null == key ? "it has no single integer primary key"
+							: "it changes the key") + ": " + sql);
+			try (Statement statement = connection.createStatement()) {
+				return statement.executeUpdate(sql);
+			}
+		}
+		String statementKey = DigestUtils.md5DigestAsHex(sql.getBytes());
+		Long resume = progressOf(connection, statementKey);
+		long[] bounds = boundsOf(connection, table, key);
+		long from = null == resume ? bounds[0] : Math.max(resume, bounds[0]);
+		long end = bounds[1] + 1;
+		long step = Math.max(1, chunkSize);
+		if (null != resume) {
+			log.info("Resuming " + table + " from " + from);
+		}
+
+		long start = System.currentTimeMillis();
+		long rows = 0;
+		boolean autoCommit = connection.getAutoCommit();
+		connection.setAutoCommit(false);
+		try (Statement statement = connection.createStatement()) {
+			while (from < end) {
+				long to = Math.min(end, from + step);
+				String range = qualifier + "." + key + " >= " + from + " and "
+						+ qualifier + "." + key + " < " + to;
+				rows += statement.executeUpdate(restrict(sql, range));
+				saveProgress(connection, statementKey, to, null == resume);
+				connection.commit();
+				resume = to;
+				from = to;
+				log.info(table + ": " + rows + " rows at "
+						+ rate(rows, start) + " rows/s");
+			}
+		} catch (SQLException e) {
+			connection.rollback();
+			throw e;
+		} finally {
+			connection.setAutoCommit(autoCommit);
+		}
+		log.info("Updated " + rows + " rows of " + table + " in "
+				+ (System.currentTimeMillis() - start) + "ms, "
+				+ rate(rows, start) + " rows/s");
+		return rows;
+	}
+
+	/**
+	 * @return the update limited to the rows matching the range as well as
+	 *         its own where clause, if it has one.
+	 */
+	static String restrict(String sql, String range) {
+		int where = topLevelWhere(sql);
+		if (where < 0) {
+			return sql + " where " + range;
+		}
+		return sql.substring(0, where) + "where ("
+				+ sql.substring(where + "where".length()).trim() + ") and "
+				+ range;
+	}
+
+	/**
+	 * @return where the update's own where keyword is, ignoring any in
+	 *         strings, quoted names or sub queries, -1 if there isn't one.
+	 */
+	static int topLevelWhere(String sql) {
+		String lower = sql.toLowerCase();
+		int depth = 0;
+		char quote = 0;
+		int found = -1;
+		for (int i = 0; i < lower.length(); ++i) {
+			char c = lower.charAt(i);
+			if (0 != quote) {
+				if (c == quote) {
+					quote = 0;
+				}
+			} else if ('\'' == c || '"' == c) {
+				quote = c;
+			} else if ('(' == c) {
+				++depth;
+			} else if (')' == c) {
+				--depth;
+			} else if (0 == depth && lower.startsWith("where", i)
+					&& (0 == i || !isWordPart(lower.charAt(i - 1)))
+					&& (i + 5 == lower.length() || !isWordPart(lower
+							.charAt(i + 5)))) {
+				found = i;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return true if the update's set list, which starts at from, assigns
+	 *         the key column.
+	 */
+	static boolean assignsKey(String sql, int from, String key) {
+		int where = topLevelWhere(sql);
+		String sets = sql.substring(from, where < 0 ? sql.length() : where);
+		return Pattern
+				.compile("(?:^|,)\\s*\"?" + Pattern.quote(key) + "\"?\\s*=",
+						Pattern.CASE_INSENSITIVE).matcher(sets).find();
+	}
+
+	private static boolean isWordPart(char c) {
+		return Character.isLetterOrDigit(c) || '_' == c;
+	}
+
+	private static long rate(long rows, long start) {
+		return rows * 1000 / Math.max(1, System.currentTimeMillis() - start);
+	}
+
+	private static Long progressOf(Connection connection, String statementKey)
+			throws SQLException {
+		try (PreparedStatement query = connection.prepareStatement("select"
+				+ " next_key from " + PROGRESS_TABLE + " where statement = ?")) {
+			query.setString(1, statementKey);
+			try (ResultSet result = query.executeQuery()) {
+				return result.next() ? result.getLong(1) : null;
+			}
+		}
+	}
+
+	private static void saveProgress(Connection connection,
+			String statementKey, long next, boolean first) throws SQLException {
+		String sql = first ? "insert into " + PROGRESS_TABLE
+				+ " (next_key, statement) values (?, ?)" : "update "
+				+ PROGRESS_TABLE + " set next_key = ? where statement = ?";
+		try (PreparedStatement save = connection.prepareStatement(sql)) {
+			save.setLong(1, next);
+			save.setString(2, statementKey);
+			save.executeUpdate();
+		}
+	}
+
+	private static String keyOf(Connection connection, String table)
+			throws SQLException {
+		try (PreparedStatement query = connection.prepareStatement(KEY)) {
+			query.setString(1, table);
+			try (ResultSet result = query.executeQuery()) {
+				return result.next() ? result.getString(1) : null;
+			}
+		}
+	}
+
+	/**
+	 * @return the lowest and highest key, or an empty range for an empty
+	 *         table.
+	 */
+	private static long[] boundsOf(Connection connection, String table,
+			String key) throws SQLException {
+		try (Statement query = connection.createStatement();
+				ResultSet result = query.executeQuery("select min(" + key
+						+ "), max(" + key + ") from " + table)) {
+			result.next();
+			long min = result.getLong(1);
+			if (result.wasNull()) {
+				return new long[] { 0, -1 };
+			}
+			return new long[] { min, result.getLong(2) };
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.postgres;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Masks rows of {@code COPY ... TO STDOUT} text output on their way to a
+ * {@code COPY ... FROM STDIN}, the same way the {@link MaskingCompiler} rules
+ * would have once they were in. Masked rows are added to a buffer that's
+ * reused from one batch to the next, so the only allocation per row is the
+ * one the driver makes reading it.
+ *
+ * Not thread safe, each table being streamed gets its own.
+ */
+class CopyRowMasker {
+
+	private static final byte TAB = '\t';
+
+	private static final byte NEWLINE = '\n';
+
+	private static final byte BACKSLASH = '\\';
+
+	private static final byte[] NULL = { BACKSLASH, 'N' };
+
+	private static final byte[] HEX = "0123456789abcdef"
+			.getBytes(StandardCharsets.US_ASCII);
+
+	private static final byte[] EMAIL_PREFIX = "user_"
+			.getBytes(StandardCharsets.US_ASCII);
+
+	private static final byte[] EMAIL_SUFFIX = "@example.invalid"
+			.getBytes(StandardCharsets.US_ASCII);
+
+	private enum Kind {
+		REPLACE, HASH, FAKE_EMAIL
+	}
+
+	private static class ColumnMask {
+
+		private final Kind kind;
+
+		private final byte[] value;
+
+		ColumnMask(Kind kind, byte[] value) {
+			this.kind = kind;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * By column position, null for columns that go through as they are.
+	 */
+	private final ColumnMask[] masks;
+
+	private final MessageDigest md5;
+
+	private final byte[] digest = new byte[16];
+
+	private final byte[] hex = new byte[32];
+
+	private byte[] decoded = new byte[256];
+
+	private byte[] buffer;
+
+	private int length;
+
+	/**
+	 * @param columns
+	 *            in the order they're copied
+	 * @param rules
+	 *            column to masking rule, as {@link MaskingCompiler} takes
+	 *            them
+	 * @param capacity
+	 *            to start the buffer at
+	 * @throws IllegalArgumentException
+	 *             for a rule we don't know.
+	 */
+	CopyRowMasker(List<String> columns, Map<String, Object> rules,
+			int capacity) {
+		masks = new ColumnMask[columns.size()];
+		for (int i = 0; i < masks.length; ++i) {
+			Object rule = rules.get(columns.get(i));
+			if (null != rule) {
+				masks[i] = maskFor(columns.get(i), rule);
+			}
+		}
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		buffer = new byte[Math.max(64, capacity)];
+	}
+
+	/**
+	 * @return true if any column is masked.
+	 */
+	boolean masks() {
+		for (ColumnMask mask : masks) {
+			if (null != mask) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Mask a row, as COPY sends it with its trailing new line, and add it to
+	 * the buffer.
+	 */
+	void add(byte[] row) {
+		int end = row.length;
+		if (end > 0 && NEWLINE == row[end - 1]) {
+			--end;
+		}
+		int column = 0;
+		int start = 0;
+		for (int i = 0; i <= end; ++i) {
+			if (i < end && TAB != row[i]) {
+				continue;
+			}
+			if (column > 0) {
+				put(TAB);
+			}
+			ColumnMask mask = column < masks.length ? masks[column] : null;
+			if (null == mask) {
+				put(row, start, i - start);
+			} else {
+				mask(mask, row, start, i - start);
+			}
+			++column;
+			start = i + 1;
+		}
+		put(NEWLINE);
+	}
+
+	byte[] buffer() {
+		return buffer;
+	}
+
+	int length() {
+		return length;
+	}
+
+	void clear() {
+		length = 0;
+	}
+
+	private void mask(ColumnMask mask, byte[] row, int from, int count) {
+		if (Kind.REPLACE == mask.kind) {
+			put(mask.value, 0, mask.value.length);
+			return;
+		}
+		if (2 == count && BACKSLASH == row[from] && 'N' == row[from + 1]) {
+			// Like md5(null), null stays null.
+			put(NULL, 0, NULL.length);
+			return;
+		}
+		md5.reset();
+		md5.update(decoded, 0, decode(row, from, count));
+		try {
+			md5.digest(digest, 0, digest.length);
+		} catch (DigestException e) {
+			throw new IllegalStateException(e);
+		}
+		for (int i = 0; i < digest.length; ++i) {
+			hex[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+			hex[2 * i + 1] = HEX[digest[i] & 0xf];
+		}
+		if (Kind.HASH == mask.kind) {
+			put(hex, 0, hex.length);
+		} else {
+			put(EMAIL_PREFIX, 0, EMAIL_PREFIX.length);
+			put(hex, 0, 16);
+			put(EMAIL_SUFFIX, 0, EMAIL_SUFFIX.length);
+		}
+	}
+
+	/**
+	 * Undo COPY's backslash escapes into the decoded buffer, so values hash
+	 * the same as they would in the database.
+	 *
+	 * @return the decoded length.
+	 */
+	private int decode(byte[] row, int from, int count) {
+		if (decoded.length < count) {
+			decoded = new byte[Math.max(count, 2 * decoded.length)];
+		}
+		int length = 0;
+		for (int i = from; i < from + count; ++i) {
+			byte b = row[i];
+			if (BACKSLASH == b && i + 1 < from + count) {
+				b = unescape(row[++i]);
+			}
+			decoded[length++] = b;
+		}
+		return length;
+	}
+
+	private static byte unescape(byte b) {
+		switch (b) {
+		case 'b':
+			return '\b';
+		case 'f':
+			return '\f';
+		case 'n':
+			return '\n';
+		case 'r':
+			return '\r';
+		case 't':
+			return '\t';
+		case 'v':
+			return 0x0b;
+		default:
+			// COPY TO doesn't write octal or hex escapes.
+			return b;
+		}
+	}
+
+	private void put(byte b) {
+		ensure(1);
+		buffer[length++] = b;
+	}
+
+	private void put(byte[] bytes, int from, int count) {
+		ensure(count);
+		System.arraycopy(bytes, from, buffer, length, count);
+		length += count;
+	}
+
+	private void ensure(int count) {
+		if (length + count > buffer.length) {
+			byte[] bigger = new byte[Math.max(length + count,
+					2 * buffer.length)];
+			System.arraycopy(buffer, 0, bigger, 0, length);
+			buffer = bigger;
+		}
+	}
+
+	private static ColumnMask maskFor(String column, Object rule) {
+		if (rule instanceof Map
+				&& ((Map<?, ?>) rule).containsKey(MaskingCompiler.CONSTANT)) {
+			Object value = ((Map<?, ?>) rule).get(MaskingCompiler.CONSTANT);
+			return new ColumnMask(Kind.REPLACE, null == value ? NULL
+					: escape(value.toString()));
+		}
+		if (MaskingCompiler.NULL.equals(rule)) {
+			return new ColumnMask(Kind.REPLACE, NULL);
+		}
+		if (MaskingCompiler.HASH.equals(rule)) {
+			return new ColumnMask(Kind.HASH, null);
+		}
+		if (MaskingCompiler.FAKE_EMAIL.equals(rule)) {
+			return new ColumnMask(Kind.FAKE_EMAIL, null);
+		}
+		throw new IllegalArgumentException("Unknown masking rule " + rule
+				+ " for " + column);
+	}
+
+	/**
+	 * @return the value as COPY text format wants it.
+	 */
+	static byte[] escape(String value) {
+		return value.replace("\\", "\\\\").replace("\t", "\\t")
+				.replace("\n", "\\n").replace("\r", "\\r")
+				.getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,226 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.postgres;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+import org.springframework.boot.actuate.metrics.GaugeService;
+
+/**
+ * Gets a sanitized copy ready to be used: fresh planner statistics for every
+ * table, optionally vacuumed first, and the most used tables and their
+ * indexes read into shared buffers. Nothing here is needed for the copy to
+ * be correct, so failures are logged and the copy is handed out anyway.
+ *
+ * Tables are analyzed at the same time on up to parallelism pooled
+ * connections. Prewarming needs the pg_prewarm extension, and stops once as
+ * many blocks as fit in shared_buffers have been read.
+ */
+public class CopyWarmup {
+
+	static final String ANALYZE = "analyze";
+
+	static final String VACUUM = "vacuum";
+
+	static final String PREWARM = "prewarm";
+
+	static final String TABLES = "select c.oid::regclass::text from pg_class c"
+			+ " join pg_namespace n on n.oid = c.relnamespace"
+			+ " where c.relkind in ('r', 'm')"
+			+ " and n.nspname not in ('pg_catalog', 'information_schema')"
+			+ " and n.nspname not like 'pg_toast%'"
+			+ " order by pg_total_relation_size(c.oid) desc";
+
+	static final String HOTTEST = "select relid::regclass::text from pg_stat_user_tables"
+			+ " order by coalesce(seq_scan, 0) + coalesce(idx_scan, 0) desc,"
+			+ " pg_total_relation_size(relid) desc limit ?";
+
+	static final String INDEXES = "select indexrelid::regclass::text from pg_index"
+			+ " where indrelid = to_regclass(?)";
+
+	private Logger log = Logger.getLogger(CopyWarmup.class);
+
+	private PostgresConnectionPools pools;
+
+	private ExecutorService executor;
+
+	private GaugeService gaugeService;
+
+	private int parallelism;
+
+	private boolean analyze;
+
+	private boolean vacuum;
+
+	private int prewarm;
+
+	/**
+	 * @param parallelism
+	 *            connections to analyze on at once
+	 * @param analyze
+	 *            every table
+	 * @param vacuum
+	 *            every table as it's analyzed
+	 * @param prewarm
+	 *            how many of the most used tables to read in, zero for none
+	 */
+	public CopyWarmup(PostgresConnectionPools pools, ExecutorService executor,
+			GaugeService gaugeService, int parallelism, boolean analyze,
+			boolean vacuum, int prewarm) {
+		this.pools = pools;
+		this.executor = executor;
+		this.gaugeService = gaugeService;
+		this.parallelism = Math.max(1, parallelism);
+		this.analyze = analyze;
+		this.vacuum = vacuum;
+		this.prewarm = Math.max(0, prewarm);
+	}
+
+	/**
+	 * @return how long each stage that ran took in ms, in the order they ran.
+	 */
+	public Map<String, Long> run(Map<String, Object> creds) {
+		Map<String, Long> timings = new LinkedHashMap<>();
+		if (vacuum || analyze) {
+			String stage = vacuum ? VACUUM : ANALYZE;
+			long start = System.currentTimeMillis();
+			try {
+				eachTable(creds, vacuum ? "vacuum analyze " : "analyze ");
+			} catch (SQLException e) {
+				log.warn("Couldn't " + stage + " " + creds.get("uri") + ": "
+						+ e.getMessage());
+			}
+			timings.put(stage, System.currentTimeMillis() - start);
+		}
+		if (prewarm > 0) {
+			long start = System.currentTimeMillis();
+			try {
+				prewarm(creds);
+			} catch (SQLException e) {
+				log.warn("Couldn't prewarm " + creds.get("uri") + ": "
+						+ e.getMessage());
+			}
+			timings.put(PREWARM, System.currentTimeMillis() - start);
+		}
+		timings.forEach((stage, ms) -> gaugeService.submit("copy.warmup."
+				+ stage + ".ms", ms));
+		log.info("Warmed up " + creds.get("uri") + ": " + timings);
+		return timings;
+	}
+
+	/**
+	 * Run the command on every table, biggest first so the longest ones
+	 * don't hold up the end. A table that fails is logged and skipped.
+	 */
+	private void eachTable(Map<String, Object> creds, String command)
+			throws SQLException {
+		Queue<String> tables = new ConcurrentLinkedQueue<>();
+		try (Connection connection = pools.getConnection(creds);
+				Statement statement = connection.createStatement();
+				ResultSet result = statement.executeQuery(TABLES)) {
+			while (result.next()) {
+				tables.add(result.getString(1));
+			}
+		}
+		Runnable worker = () -> {
+			try (Connection connection = pools.getConnection(creds);
+					Statement statement = connection.createStatement()) {
+				String table;
+				while (null != (table = tables.poll())) {
+					try {
+						statement.execute(command + table);
+					} catch (SQLException e) {
+						log.warn("Couldn't " + command + table + ": "
+								+ e.getMessage());
+					}
+				}
+			} catch (SQLException e) {
+				log.warn("No connection to warm up on: " + e.getMessage());
+			}
+		};
+		int workers = Math.min(parallelism, tables.size());
+		if (workers <= 1) {
+			worker.run();
+			return;
+		}
+		List<Future<?>> running = new ArrayList<>();
+		for (int i = 0; i < workers; ++i) {
+			running.add(executor.submit(worker));
+		}
+		for (Future<?> future : running) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted warming up", e);
+			} catch (ExecutionException e) {
+				throw new SQLException(e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Read the most used tables and their indexes into shared buffers, until
+	 * they're full.
+	 */
+	private void prewarm(Map<String, Object> creds) throws SQLException {
+		try (Connection connection = pools.getConnection(creds);
+				Statement statement = connection.createStatement()) {
+			statement.execute("create extension if not exists pg_prewarm");
+			long budget;
+			try (ResultSet result = statement
+					.executeQuery("select setting::bigint from pg_settings"
+							+ " where name = 'shared_buffers'")) {
+				budget = result.next() ? result.getLong(1) : Long.MAX_VALUE;
+			}
+			List<String> relations = new ArrayList<>();
+			for (String table : query(connection, HOTTEST, prewarm)) {
+				relations.add(table);
+				relations.addAll(query(connection, INDEXES, table));
+			}
+			long blocks = 0;
+			try (PreparedStatement read = connection
+					.prepareStatement("select pg_prewarm(to_regclass(?))")) {
+				for (String relation : relations) {
+					if (blocks >= budget) {
+						break;
+					}
+					read.setString(1, relation);
+					try (ResultSet result = read.executeQuery()) {
+						if (result.next()) {
+							blocks += result.getLong(1);
+						}
+					}
+				}
+			}
+			log.info("Prewarmed " + blocks + " blocks of "
+					+ relations.size() + " relations");
+		}
+	}
+
+	private static List<String> query(Connection connection, String sql,
+			Object parameter) throws SQLException {
+		List<String> rows = new ArrayList<>();
+		try (PreparedStatement query = connection.prepareStatement(sql)) {
+			query.setObject(1, parameter);
+			try (ResultSet result = query.executeQuery()) {
+				while (result.next()) {
+					rows.add(result.getString(1));
+				}
+			}
+		}
+		return rows;
+	}
+}
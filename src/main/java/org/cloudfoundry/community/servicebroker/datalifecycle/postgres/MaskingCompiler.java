@@ -0,0 +1,163 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.postgres;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Turns masking rules into a sanitize script, so nobody has to hand write
+ * one. Rules are keyed by {@code table.column}, or just {@code table} for
+ * {@value #TRUNCATE_TABLE} and {@value #REWRITE}, and are one of:
+ *
+ * <ul>
+ * <li>{@value #NULL}, to clear the column</li>
+ * <li>{@value #HASH}, to replace the value with its md5</li>
+ * <li>{@value #FAKE_EMAIL}, to replace the value with an address made from its
+ * md5, so equal addresses stay equal and different ones stay different</li>
+ * <li>{@value #TRUNCATE_TABLE}, to empty the table</li>
+ * <li>{@value #REWRITE} or {@value #REWRITE_UNLOGGED}, to mask the table by
+ * rewriting it rather than updating it in place, see {@link TableRewrite}</li>
+ * <li>{@code {"constant": value}}, to set the column to the value</li>
+ * </ul>
+ *
+ * Every table is passed over once: one truncate for all the emptied tables,
+ * then one update per table setting all of its masked columns. Output is
+ * ordered by table and column, so the same rules always make the same script.
+ * Names are quoted, so they're matched as written, case and all, and can be
+ * keywords like {@code user} or {@code order}.
+ */
+public final class MaskingCompiler {
+
+	public static final String NULL = "null";
+
+	public static final String HASH = "hash";
+
+	public static final String FAKE_EMAIL = "fake-email";
+
+	public static final String TRUNCATE_TABLE = "truncate-table";
+
+	public static final String CONSTANT = "constant";
+
+	public static final String REWRITE = "rewrite";
+
+	public static final String REWRITE_UNLOGGED = "rewrite-unlogged";
+
+	private static final Pattern TABLE = Pattern
+			.compile("([A-Za-z_][A-Za-z0-9_$]*\\.)?[A-Za-z_][A-Za-z0-9_$]*");
+
+	private static final Pattern COLUMN = Pattern
+			.compile("[A-Za-z_][A-Za-z0-9_$]*");
+
+	private MaskingCompiler() {
+	}
+
+	/**
+	 * @return the script for the rules.
+	 * @throws IllegalArgumentException
+	 *             if a rule or a name isn't one we know.
+	 */
+	public static String compile(Map<String, Object> rules) {
+		Set<String> truncated = new TreeSet<>();
+		Map<String, String> rewritten = new TreeMap<>();
+		Map<String, Map<String, String>> updates = new TreeMap<>();
+		rules.forEach((target, rule) -> {
+			if (TRUNCATE_TABLE.equals(rule)) {
+				truncated.add(checkTable(target));
+				return;
+			}
+			if (REWRITE.equals(rule) || REWRITE_UNLOGGED.equals(rule)) {
+				rewritten.put(checkTable(target),
+						REWRITE.equals(rule) ? "-- rewrite"
+								: "-- rewrite: unlogged");
+				return;
+			}
+			int dot = target.lastIndexOf('.');
+			if (dot < 0) {
+				throw new IllegalArgumentException("Expected table.column for "
+						+ target);
+			}
+			String table = checkTable(target.substring(0, dot));
+			String column = target.substring(dot + 1);
+			if (!COLUMN.matcher(column).matches()) {
+				throw new IllegalArgumentException("Bad column name " + column);
+			}
+			updates.computeIfAbsent(table, t -> new TreeMap<>()).put(column,
+					valueOf(column, rule));
+		});
+
+		List<String> statements = new ArrayList<>();
+		if (!truncated.isEmpty()) {
+			List<String> tables = new ArrayList<>();
+			truncated.forEach(t -> tables.add(quote(t)));
+			statements.add("truncate table " + String.join(", ", tables));
+		}
+		updates.forEach((table, columns) -> {
+			if (truncated.contains(table)) {
+				return;
+			}
+			List<String> sets = new ArrayList<>();
+			columns.forEach((column, value) -> sets.add(quote(column) + " = "
+					+ value));
+			String update = "update " + quote(table) + " set "
+					+ String.join(", ", sets);
+			if (rewritten.containsKey(table)) {
+				update = rewritten.get(table) + "\n" + update;
+			}
+			statements.add(update);
+		});
+		rewritten.keySet().forEach(table -> {
+			if (!updates.containsKey(table)) {
+				throw new IllegalArgumentException("Nothing to rewrite "
+						+ table + " for");
+			}
+		});
+		StringBuilder script = new StringBuilder();
+		statements.forEach(s -> script.append(s).append(";\n"));
+		return script.toString();
+	}
+
+	private static String checkTable(String table) {
+		if (!TABLE.matcher(table).matches()) {
+			throw new IllegalArgumentException("Bad table name " + table);
+		}
+		return table;
+	}
+
+	private static String valueOf(String column, Object rule) {
+		if (rule instanceof Map && ((Map<?, ?>) rule).containsKey(CONSTANT)) {
+			Object value = ((Map<?, ?>) rule).get(CONSTANT);
+			return null == value ? "null" : literal(value.toString());
+		}
+		if (NULL.equals(rule)) {
+			return "null";
+		}
+		if (HASH.equals(rule)) {
+			return "md5(" + quote(column) + "::text)";
+		}
+		if (FAKE_EMAIL.equals(rule)) {
+			return "'user_' || substr(md5(" + quote(column)
+					+ "::text), 1, 16) || '@example.invalid'";
+		}
+		throw new IllegalArgumentException("Unknown masking rule " + rule
+				+ " for " + column);
+	}
+
+	/**
+	 * @return the name, or each part of a schema qualified one, quoted.
+	 */
+	private static String quote(String name) {
+		List<String> parts = new ArrayList<>();
+		for (String part : name.split("\\.")) {
+			parts.add("\"" + part.replace("\"", "\"\"") + "\"");
+		}
+		return String.join(".", parts);
+	}
+
+	private static String literal(String value) {
+		return "'" + value.replace("'", "''") + "'";
+	}
+}
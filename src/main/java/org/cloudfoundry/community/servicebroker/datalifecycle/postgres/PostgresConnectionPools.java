@@ -0,0 +1,179 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.postgres;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.log4j.Logger;
+import org.apache.tomcat.jdbc.pool.DataSource;
+import org.apache.tomcat.jdbc.pool.PoolProperties;
+import org.springframework.scheduling.annotation.Scheduled;
+
+/**
+ * A small connection pool per copy, so sanitizing and whatever runs against
+ * the copy after it reuse warm connections rather than opening a backend per
+ * step. Pools are made the first time a copy is reached, and closed when the
+ * copy is released or once nothing has used them for a while. Connections
+ * past a maximum age are closed the next time they're borrowed or handed
+ * back, never while in use, so a long statement isn't cut off but its
+ * connection can outlive the maximum while it runs.
+ */
+public class PostgresConnectionPools {
+
+	static final long IDLE_POOL_TIMEOUT = TimeUnit.MINUTES.toMillis(30);
+
+	private Logger log = Logger.getLogger(PostgresConnectionPools.class);
+
+	private int maxActive;
+
+	private long maxAge;
+
+	private int statementTimeout;
+
+	private int socketTimeout;
+
+	/**
+	 * Keyed by jdbc url and user, which is as close to the copy as the creds
+	 * get.
+	 */
+	private Map<String, Pool> pools = new ConcurrentHashMap<>();
+
+	/**
+	 * @param maxActive
+	 *            connections per copy
+	 * @param maxAge
+	 *            of a connection in ms, checked when it's borrowed or handed
+	 *            back
+	 * @param statementTimeout
+	 *            in seconds, zero for none
+	 * @param socketTimeout
+	 *            in seconds, zero for none
+	 */
+	public PostgresConnectionPools(int maxActive, long maxAge,
+			int statementTimeout, int socketTimeout) {
+		this.maxActive = Math.max(1, maxActive);
+		this.maxAge = maxAge;
+		this.statementTimeout = Math.max(0, statementTimeout);
+		this.socketTimeout = Math.max(0, socketTimeout);
+	}
+
+	/**
+	 * @return a connection to the copy the creds are for, the caller closes
+	 *         it to hand it back.
+	 */
+	public Connection getConnection(Map<String, Object> creds)
+			throws SQLException {
+		Pool pool = pools.computeIfAbsent(keyOf(creds), k -> new Pool(
+				dataSourceFor(creds)));
+		pool.lastUsed = System.currentTimeMillis();
+		return pool.dataSource.getConnection();
+	}
+
+	/**
+	 * @return a connection to the copy if its pool looks to have one to
+	 *         spare, null otherwise. Used for optional extra work, so the
+	 *         caller doesn't wait on connections it can do without. Someone
+	 *         else can take the last one between looking and borrowing, so
+	 *         failing to get it is also null rather than an error.
+	 */
+	public Connection getSpareConnection(Map<String, Object> creds) {
+		Pool pool = pools.get(keyOf(creds));
+		if (null == pool || pool.dataSource.getActive() >= maxActive) {
+			return null;
+		}
+		try {
+			return getConnection(creds);
+		} catch (SQLException e) {
+			log.debug("No spare connection to " + creds.get("uri") + ": "
+					+ e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Close the pool for the copy the creds are for, if there is one.
+	 */
+	public void release(Map<String, Object> creds) {
+		close(keyOf(creds), pools.remove(keyOf(creds)));
+	}
+
+	@Scheduled(fixedDelay = 60000)
+	public void evictIdle() {
+		evictIdle(System.currentTimeMillis());
+	}
+
+	void evictIdle(long now) {
+		pools.forEach((key, pool) -> {
+			if (now - pool.lastUsed > IDLE_POOL_TIMEOUT
+					&& 0 == pool.dataSource.getActive()
+					&& pools.remove(key, pool)) {
+				close(key, pool);
+			}
+		});
+	}
+
+	@PreDestroy
+	public void closeAll() {
+		pools.keySet().forEach(key -> close(key, pools.remove(key)));
+	}
+
+	int size() {
+		return pools.size();
+	}
+
+	private void close(String key, Pool pool) {
+		if (null == pool) {
+			return;
+		}
+		log.info("Closing connection pool for " + key);
+		pool.dataSource.close(true);
+	}
+
+	private String keyOf(Map<String, Object> creds) {
+		return urlOf(creds) + " as " + creds.get("username");
+	}
+
+	private String urlOf(Map<String, Object> creds) {
+		return "jdbc:" + (String) creds.get("uri");
+	}
+
+	private DataSource dataSourceFor(Map<String, Object> creds) {
+		PoolProperties properties = new PoolProperties();
+		properties.setDriverClassName("org.postgresql.Driver");
+		properties.setUrl(urlOf(creds));
+		properties.setUsername((String) creds.get("username"));
+		properties.setPassword((String) creds.get("password"));
+		properties.setInitialSize(0);
+		properties.setMinIdle(0);
+		properties.setMaxIdle(maxActive);
+		properties.setMaxActive(maxActive);
+		properties.setMaxAge(maxAge);
+		properties.setTestOnBorrow(true);
+		properties.setValidationQuery("select 1");
+		properties.setValidationInterval(TimeUnit.SECONDS.toMillis(30));
+		properties.setConnectionProperties("socketTimeout=" + socketTimeout
+				+ ";");
+		String interceptors = "StatementCache(prepared=true,callable=false,max=50)";
+		if (statementTimeout > 0) {
+			interceptors += ";QueryTimeoutInterceptor(queryTimeout="
+					+ statementTimeout + ")";
+		}
+		properties.setJdbcInterceptors(interceptors);
+		return new DataSource(properties);
+	}
+
+	private static class Pool {
+
+		private final DataSource dataSource;
+
+		private volatile long lastUsed = System.currentTimeMillis();
+
+		Pool(DataSource dataSource) {
+			this.dataSource = dataSource;
+		}
+	}
+}
@@ -1,11 +1,15 @@
 package org.cloudfoundry.community.servicebroker.datalifecycle.postgres;
 
 import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 import org.apache.log4j.Logger;
 import org.cloudfoundry.community.servicebroker.datalifecycle.exception.DataProviderSanitizationFailedException;
 import org.cloudfoundry.community.servicebroker.datalifecycle.provider.DataProvider;
+import org.springframework.boot.actuate.metrics.GaugeService;
 
 /**
  * Created by jkruck on 4/20/15.
@@ -13,30 +17,110 @@ import org.cloudfoundry.community.servicebroker.datalifecycle.provider.DataProvi
 public class PostgresDataProvider implements DataProvider {
 	private Logger log = Logger.getLogger(PostgresDataProvider.class);
 
+	private static final int SLOWEST = 5;
+
 	private PostgresScriptExecutor executor;
 
+	private CopyWarmup warmup;
+
+	private GaugeService gaugeService;
+
 	public PostgresDataProvider(PostgresScriptExecutor executor) {
+		this(executor, null);
+	}
+
+	/**
+	 * @param warmup
+	 *            run on every copy once it's sanitized, may be null
+	 */
+	public PostgresDataProvider(PostgresScriptExecutor executor,
+			CopyWarmup warmup) {
+		this(executor, warmup, null);
+	}
+
+	/**
+	 * @param gaugeService
+	 *            to report each statement's time and rows to, may be null
+	 */
+	public PostgresDataProvider(PostgresScriptExecutor executor,
+			CopyWarmup warmup, GaugeService gaugeService) {
 		this.executor = executor;
+		this.warmup = warmup;
+		this.gaugeService = gaugeService;
 	}
 
 	@Override
 	public void sanitize(String script, Map<String, Object> creds)
 			throws DataProviderSanitizationFailedException {
+		sanitize(script, creds, null);
+	}
+
+	/**
+	 * Also reports how long each statement took and how many rows it changed
+	 * as sanitize.statement.&lt;verb&gt;.&lt;table&gt;.ms and .rows gauges,
+	 * and logs the slowest.
+	 */
+	@Override
+	public void sanitize(String script, Map<String, Object> creds,
+			Consumer<String> progress)
+			throws DataProviderSanitizationFailedException {
+		sanitize(script, null, creds, progress);
+	}
+
+	/**
+	 * The digest lets the executor reuse the statements it split the script
+	 * into last time.
+	 */
+	@Override
+	public void sanitize(String script, String digest,
+			Map<String, Object> creds, Consumer<String> progress)
+			throws DataProviderSanitizationFailedException {
 		// We assume that the URI has username, password and db embedded in it.
 
 		log.info("Running script: " + script + ".");
-		if (null == script || 0 == script.length()) {
+		if (null != script && 0 < script.length()) {
+			checkForURI(creds);
+			try {
+				report(executor.execute(script, digest, creds, progress));
+				log.info("Sanitization run complete");
+			} catch (SQLException e) {
+				log.error("Failed to execute script!");
+				throw new DataProviderSanitizationFailedException(
+						e.getMessage());
+			}
+		}
+		if (null != warmup && null != creds) {
+			checkForURI(creds);
+			if (null != progress) {
+				progress.accept("Warming up");
+			}
+			warmup.run(creds);
+		}
+	}
+
+	private void report(List<StatementTiming> timings) {
+		if (null == timings) {
 			return;
 		}
-		checkForURI(creds);
-
-		try {
-			executor.execute(script, creds);
-			log.info("Sanitization run complete");
-		} catch (SQLException e) {
-			log.error("Failed to execute script!");
-			throw new DataProviderSanitizationFailedException(e.getMessage());
+		if (null != gaugeService) {
+			timings.forEach(t -> {
+				gaugeService.submit("sanitize.statement." + t.getName()
+						+ ".ms", t.getMs());
+				if (t.getRows() >= 0) {
+					gaugeService.submit("sanitize.statement." + t.getName()
+							+ ".rows", t.getRows());
+				}
+			});
 		}
+		timings.stream()
+				.sorted(Comparator.comparingLong(StatementTiming::getMs)
+						.reversed()).limit(SLOWEST)
+				.forEach(t -> log.info("Slow sanitize statement " + t));
+	}
+
+	@Override
+	public void release(Map<String, Object> creds) {
+		executor.release(creds);
 	}
 
 	private void checkForURI(Map<String, Object> creds) {
@@ -1,26 +1,619 @@
 package org.cloudfoundry.community.servicebroker.datalifecycle.postgres;
 
+import static org.springframework.jdbc.datasource.init.ScriptUtils.DEFAULT_BLOCK_COMMENT_END_DELIMITER;
+import static org.springframework.jdbc.datasource.init.ScriptUtils.DEFAULT_BLOCK_COMMENT_START_DELIMITER;
+import static org.springframework.jdbc.datasource.init.ScriptUtils.DEFAULT_COMMENT_PREFIX;
+import static org.springframework.jdbc.datasource.init.ScriptUtils.DEFAULT_STATEMENT_SEPARATOR;
+import static org.springframework.jdbc.datasource.init.ScriptUtils.FALLBACK_STATEMENT_SEPARATOR;
+
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import org.apache.log4j.Logger;
-import org.springframework.core.io.ByteArrayResource;
+import org.cloudfoundry.community.servicebroker.datalifecycle.postgres.ScriptStatement.Rewrite;
 import org.springframework.jdbc.datasource.init.ScriptUtils;
 
+/**
+ * Runs a script the way {@link ScriptUtils#executeSqlScript} would, but keeps
+ * the statements from the last script it split so running the same script
+ * against every copy doesn't re-parse it. Connections come from the copy's
+ * pool.
+ *
+ * Given more than one worker, statements that don't touch the same tables run
+ * at the same time on their own connections, see {@link ScriptPlanner}. A
+ * script can also put statements together with a {@code -- group: name} line
+ * before them and a {@code -- end group} line after. Scripts with
+ * statements that leave state on their connection, like {@code begin},
+ * {@code set} or {@code create temp table}, always run in order on one
+ * connection.
+ *
+ * An update with a {@code -- chunked} line before it is run a range of rows at
+ * a time, see {@link ChunkedUpdate}. {@code -- chunked: 10000} sets how many
+ * rows go in a range.
+ *
+ * An update of a whole table with a {@code -- rewrite} line before it writes a
+ * masked copy of the table instead and swaps it in, see {@link TableRewrite}.
+ * {@code -- rewrite: unlogged} fills the new table unlogged.
+ *
+ * With a {@link BulkProfile} the script runs with its settings, and anything
+ * it changes on the tables is put back once the script is done, whether or
+ * not it worked.
+ */
 public class PostgresScriptExecutor {
 	private Logger log = Logger.getLogger(PostgresScriptExecutor.class);
 
-	public void execute(String script, Map<String, Object> creds)
+	static final int DEFAULT_CHUNK_SIZE = 50000;
+
+	/**
+	 * Scripts whose statements are kept between runs, one per plan's script
+	 * is usually plenty.
+	 */
+	static final int PARSED_SCRIPTS = 16;
+
+	private static final Pattern GROUP_START = Pattern.compile(
+			"^\\s*--\\s*group:\\s*(\\S+)\\s*$", Pattern.CASE_INSENSITIVE);
+
+	private static final Pattern GROUP_END = Pattern.compile(
+			"^\\s*--\\s*end\\s+group\\s*$", Pattern.CASE_INSENSITIVE);
+
+	private static final Pattern CHUNKED = Pattern.compile(
+			"^\\s*--\\s*chunked(?::\\s*(\\d+))?\\s*$",
+			Pattern.CASE_INSENSITIVE);
+
+	private static final Pattern REWRITE = Pattern.compile(
+			"^\\s*--\\s*rewrite(:\\s*unlogged)?\\s*$",
+			Pattern.CASE_INSENSITIVE);
+
+	private static final String FOREIGN_KEYS = "select c.relname, p.relname from pg_constraint k"
+			+ " join pg_class c on c.oid = k.conrelid"
+			+ " join pg_class p on p.oid = k.confrelid"
+			+ " where k.contype = 'f'";
+
+	static final long PROGRESS_INTERVAL = 10000;
+
+	/**
+	 * Progress views, by the Postgres version that added them, to how far
+	 * along an operation in each is.
+	 */
+	private static final Map<String, String> PROGRESS_VIEWS = new LinkedHashMap<>();
+	static {
+		PROGRESS_VIEWS.put("pg_catalog.pg_stat_progress_vacuum",
+				"heap_blks_scanned::float / nullif(heap_blks_total, 0)");
+		PROGRESS_VIEWS.put("pg_catalog.pg_stat_progress_create_index",
+				"blocks_done::float / nullif(blocks_total, 0)");
+		PROGRESS_VIEWS.put("pg_catalog.pg_stat_progress_analyze",
+				"sample_blks_scanned::float / nullif(sample_blks_total, 0)");
+		PROGRESS_VIEWS.put("pg_catalog.pg_stat_progress_copy",
+				"bytes_processed::float / nullif(bytes_total, 0)");
+	}
+
+	private PostgresConnectionPools pools;
+
+	private ExecutorService executor;
+
+	private int parallelism;
+
+	private int chunkSize;
+
+	private BulkProfile bulk;
+
+	private final Map<String, List<ScriptStatement>> parsed = new ParsedScripts(
+			PARSED_SCRIPTS);
+
+	public PostgresScriptExecutor(PostgresConnectionPools pools) {
+		this(pools, null, 1, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param parallelism
+	 *            most statements to run against a copy at once, one or less
+	 *            runs the script in order on a single connection.
+	 * @param chunkSize
+	 *            rows per range for chunked updates that don't say
+	 */
+	public PostgresScriptExecutor(PostgresConnectionPools pools,
+			ExecutorService executor, int parallelism, int chunkSize) {
+		this(pools, executor, parallelism, chunkSize, null);
+	}
+
+	/**
+	 * @param bulk
+	 *            profile to sanitize with, null to run with the defaults
+	 */
+	public PostgresScriptExecutor(PostgresConnectionPools pools,
+			ExecutorService executor, int parallelism, int chunkSize,
+			BulkProfile bulk) {
+		this.pools = pools;
+		this.executor = executor;
+		this.parallelism = null == executor ? 1 : Math.max(1, parallelism);
+		this.chunkSize = Math.max(1, chunkSize);
+		this.bulk = bulk;
+	}
+
+	/**
+	 * @return how long each statement took, in the order they finished.
+	 */
+	public List<StatementTiming> execute(String script,
+			Map<String, Object> creds) throws SQLException {
+		return execute(script, creds, null);
+	}
+
+	/**
+	 * Run the script, telling the listener how far along it is as statements
+	 * finish and every {@value #PROGRESS_INTERVAL}ms while they run.
+	 *
+	 * @param listener
+	 *            for descriptions of the run's progress, may be null
+	 * @return how long each statement took, in the order they finished.
+	 */
+	public List<StatementTiming> execute(String script,
+			Map<String, Object> creds, Consumer<String> listener)
 			throws SQLException {
-		String username = (String) creds.get("username");
-		String password = (String) creds.get("password");
-		String uri = "jdbc:" + (String) creds.get("uri");
-		log.info("Sanitizing " + uri + " " + " as " + username);
-		Connection connection = DriverManager.getConnection(uri, username,
-				password);
-		ScriptUtils.executeSqlScript(connection,
-				new ByteArrayResource(script.getBytes()));
+		return execute(script, null, creds, listener);
+	}
+
+	/**
+	 * Run the script like {@link #execute(String, Map, Consumer)}, reusing
+	 * the statements it was split into the last time it ran.
+	 *
+	 * @param digest
+	 *            of the script, null to split it again
+	 */
+	public List<StatementTiming> execute(String script, String digest,
+			Map<String, Object> creds, Consumer<String> listener)
+			throws SQLException {
+		log.info("Sanitizing " + creds.get("uri") + " " + " as "
+				+ creds.get("username"));
+		List<ScriptStatement> statements = statementsOf(script, digest);
+		boolean chunked = statements.stream().anyMatch(
+				s -> s.getChunkSize() > 0);
+		if (chunked) {
+			try (Connection connection = pools.getConnection(creds)) {
+				ChunkedUpdate.createProgressTable(connection);
+			}
+		}
+		if (null != bulk && bulk.changesTables()) {
+			// Put back anything a run that didn't finish left changed.
+			undoBulkChanges(creds);
+			Set<String> tables = new LinkedHashSet<>();
+			statements.forEach(s -> tables.addAll(ScriptPlanner.targetsOf(s
+					.getSql())));
+			try (Connection connection = pools.getConnection(creds)) {
+				bulk.prepare(connection, tables);
+			}
+		}
+		SanitizeProgress progress = new SanitizeProgress(statements.size(),
+				null == listener ? d -> {
+				} : listener, PROGRESS_INTERVAL);
+		// Backends running the script, so only their progress is measured.
+		Set<Integer> pids = ConcurrentHashMap.newKeySet();
+		Future<?> watching = null == listener || null == executor ? null
+				: executor.submit(() -> watch(progress, creds, pids));
+		try {
+			if (parallelism > 1 && !ScriptPlanner.needsOneSession(statements)) {
+				executeInParallel(statements, creds, progress, pids);
+			} else {
+				run(Collections.singletonList(statements), creds, progress,
+						pids);
+			}
+		} catch (SQLException e) {
+			if (null != bulk && bulk.changesTables()) {
+				try {
+					undoBulkChanges(creds);
+				} catch (SQLException undo) {
+					e.addSuppressed(undo);
+				}
+			}
+			throw e;
+		} finally {
+			progress.close();
+			if (null != watching) {
+				watching.cancel(true);
+			}
+		}
+		if (null != bulk && bulk.changesTables()) {
+			undoBulkChanges(creds);
+		}
+		if (chunked) {
+			// Done, a retry starts over.
+			try (Connection connection = pools.getConnection(creds)) {
+				ChunkedUpdate.dropProgressTable(connection);
+			}
+		}
+		return progress.getTimings();
+	}
+
+	/**
+	 * Let go of the connections to a copy that's going away.
+	 */
+	public void release(Map<String, Object> creds) {
+		pools.release(creds);
+	}
+
+	/**
+	 * @return the script split into statements, from an earlier run if one
+	 *         had the same digest.
+	 */
+	List<ScriptStatement> statementsOf(String script, String digest) {
+		if (null == digest) {
+			return split(script);
+		}
+		List<ScriptStatement> statements;
+		synchronized (parsed) {
+			statements = parsed.get(digest);
+		}
+		if (null == statements) {
+			statements = split(script);
+			synchronized (parsed) {
+				parsed.put(digest, statements);
+			}
+		}
+		return statements;
+	}
+
+	/**
+	 * Put back what the bulk profile changed, building indexes in parallel.
+	 */
+	private void undoBulkChanges(Map<String, Object> creds)
+			throws SQLException {
+		List<String> undo;
+		try (Connection connection = pools.getConnection(creds)) {
+			undo = bulk.undoStatements(connection);
+		}
+		if (undo.isEmpty()) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		List<List<ScriptStatement>> groups = new ArrayList<>();
+		undo.forEach(sql -> groups.add(Collections
+				.singletonList(new ScriptStatement(sql, null))));
+		run(groups, creds, null, null);
+		try (Connection connection = pools.getConnection(creds)) {
+			bulk.forget(connection);
+		}
+		log.info("Put back " + undo.size() + " triggers and indexes in "
+				+ (System.currentTimeMillis() - start) + "ms");
+	}
+
+	private void executeInParallel(List<ScriptStatement> statements,
+			Map<String, Object> creds, SanitizeProgress progress,
+			Set<Integer> pids) throws SQLException {
+		List<List<List<ScriptStatement>>> phases = ScriptPlanner.plan(
+				statements, foreignKeysOf(creds));
+		for (List<List<ScriptStatement>> groups : phases) {
+			run(groups, creds, progress, pids);
+		}
+	}
+
+	/**
+	 * Run the groups at the same time, each in order on one connection.
+	 * Nothing new is started once a statement fails, and the first failure is
+	 * thrown once whatever was already running is done.
+	 *
+	 * @param progress
+	 *            to record each statement in, may be null
+	 * @param pids
+	 *            to add the backend of each connection used to, may be null
+	 */
+	private void run(List<List<ScriptStatement>> groups,
+			Map<String, Object> creds, SanitizeProgress progress,
+			Set<Integer> pids) throws SQLException {
+		Queue<List<ScriptStatement>> queue = new ConcurrentLinkedQueue<>(groups);
+		AtomicReference<SQLException> failure = new AtomicReference<>();
+		Runnable worker = () -> {
+			// Not prepared, a ? in the script isn't a parameter.
+			try (Connection connection = pools.getConnection(creds);
+					Statement statement = connection.createStatement()) {
+				track(connection, pids);
+				if (null != bulk) {
+					bulk.apply(connection);
+				}
+				try {
+					runGroups(connection, statement, queue, failure, creds,
+							progress, pids);
+				} finally {
+					if (null != bulk) {
+						bulk.reset(connection);
+					}
+				}
+			} catch (SQLException e) {
+				failure.compareAndSet(null, e);
+			}
+		};
+		int workers = Math.min(parallelism, groups.size());
+		if (workers <= 1) {
+			worker.run();
+		} else {
+			List<Future<?>> running = new ArrayList<>();
+			for (int i = 0; i < workers; ++i) {
+				running.add(executor.submit(worker));
+			}
+			awaitAll(running);
+		}
+		if (null != failure.get()) {
+			throw failure.get();
+		}
+	}
+
+	private void runGroups(Connection connection, Statement statement,
+			Queue<List<ScriptStatement>> queue,
+			AtomicReference<SQLException> failure, Map<String, Object> creds,
+			SanitizeProgress progress, Set<Integer> pids) throws SQLException {
+		List<ScriptStatement> group;
+		while (null == failure.get() && null != (group = queue.poll())) {
+			for (ScriptStatement sql : group) {
+				if (null != progress) {
+					progress.started(sql);
+				}
+				long rows = -1;
+				if (Rewrite.NONE != sql.getRewrite()) {
+					TableRewrite.run(connection, sql.getSql(),
+							Rewrite.UNLOGGED == sql.getRewrite(),
+							() -> track(pools.getSpareConnection(creds), pids),
+							executor,
+							parallelism);
+				} else if (sql.getChunkSize() > 0) {
+					rows = ChunkedUpdate.run(connection, sql.getSql(),
+							sql.getChunkSize());
+				} else if (!statement.execute(sql.getSql())) {
+					rows = statement.getUpdateCount();
+				}
+				if (null != progress) {
+					progress.finished(sql, rows);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Note the backend behind a connection the script runs on.
+	 *
+	 * @return the connection
+	 */
+	private Connection track(Connection connection, Set<Integer> pids) {
+		if (null == connection || null == pids) {
+			return connection;
+		}
+		try (Statement statement = connection.createStatement();
+				ResultSet result = statement
+						.executeQuery("select pg_backend_pid()")) {
+			if (result.next()) {
+				pids.add(result.getInt(1));
+			}
+		} catch (SQLException e) {
+			log.debug("Couldn't get the backend pid: " + e.getMessage());
+		}
+		return connection;
+	}
+
+	/**
+	 * Measure how far along the running statements are from the server's
+	 * progress views every {@value #PROGRESS_INTERVAL}ms, on a spare
+	 * connection when there is one, until interrupted.
+	 *
+	 * @param pids
+	 *            of the backends running the script
+	 */
+	private void watch(SanitizeProgress progress, Map<String, Object> creds,
+			Set<Integer> pids) {
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				Thread.sleep(PROGRESS_INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			}
+			double fraction = 0;
+			try (Connection connection = pools.getSpareConnection(creds)) {
+				if (null != connection) {
+					fraction = measure(connection, pids);
+				}
+			} catch (SQLException e) {
+				log.debug("Couldn't measure progress: " + e.getMessage());
+			}
+			progress.measured(fraction);
+		}
+	}
+
+	/**
+	 * @return the sum of how far along, from 0 to 1, each operation the
+	 *         backends are running is in the progress views this server has.
+	 *         Anything else running against the copy isn't counted.
+	 */
+	static double measure(Connection connection, Collection<Integer> pids)
+			throws SQLException {
+		if (pids.isEmpty()) {
+			return 0;
+		}
+		String backends = pids.stream().map(String::valueOf)
+				.collect(Collectors.joining(", "));
+		List<String> parts = new ArrayList<>();
+		try (PreparedStatement exists = connection
+				.prepareStatement("select to_regclass(?) is not null")) {
+			for (Map.Entry<String, String> view : PROGRESS_VIEWS.entrySet()) {
+				exists.setString(1, view.getKey());
+				try (ResultSet result = exists.executeQuery()) {
+					if (result.next() && result.getBoolean(1)) {
+						parts.add("select " + view.getValue() + " as f from "
+								+ view.getKey() + " where pid in (" + backends
+								+ ")");
+					}
+				}
+			}
+		}
+		if (parts.isEmpty()) {
+			return 0;
+		}
+		try (Statement statement = connection.createStatement();
+				ResultSet result = statement
+						.executeQuery("select coalesce(sum(least(f, 1)), 0) from ("
+								+ String.join(" union all ", parts) + ") p")) {
+			return result.next() ? result.getDouble(1) : 0;
+		}
+	}
+
+	private void awaitAll(List<Future<?>> running) throws SQLException {
+		for (Future<?> future : running) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				running.forEach(f -> f.cancel(true));
+				throw new SQLException("Interrupted while sanitizing", e);
+			} catch (ExecutionException e) {
+				throw new SQLException("Sanitizing failed", e.getCause());
+			}
+		}
+	}
+
+	private Map<String, Set<String>> foreignKeysOf(Map<String, Object> creds)
+			throws SQLException {
+		Map<String, Set<String>> references = new HashMap<>();
+		try (Connection connection = pools.getConnection(creds);
+				Statement statement = connection.createStatement();
+				ResultSet keys = statement.executeQuery(FOREIGN_KEYS)) {
+			while (keys.next()) {
+				references.computeIfAbsent(keys.getString(1),
+						t -> new HashSet<>()).add(keys.getString(2));
+			}
+		}
+		return references;
+	}
+
+	private List<ScriptStatement> split(String script) {
+		String separator = ScriptUtils.containsSqlScriptDelimiters(
+				strip(script), DEFAULT_STATEMENT_SEPARATOR) ? DEFAULT_STATEMENT_SEPARATOR
+				: FALLBACK_STATEMENT_SEPARATOR;
+		List<ScriptStatement> statements = new ArrayList<>();
+		String group = null;
+		int chunk = 0;
+		Rewrite rewrite = Rewrite.NONE;
+		StringBuilder section = new StringBuilder();
+		for (String line : script.split("\n", -1)) {
+			Matcher start = GROUP_START.matcher(line);
+			Matcher chunked = CHUNKED.matcher(line);
+			Matcher rewritten = REWRITE.matcher(line);
+			boolean end = GROUP_END.matcher(line).matches();
+			if (!start.matches() && !end && !chunked.matches()
+					&& !rewritten.matches()) {
+				section.append(line).append("\n");
+				continue;
+			}
+			if (addStatements(statements, section.toString(), separator,
+					group, chunk, rewrite)) {
+				chunk = 0;
+				rewrite = Rewrite.NONE;
+			}
+			section.setLength(0);
+			if (start.matches() || end) {
+				group = end ? null : start.group(1);
+			} else if (chunked.matches()) {
+				chunk = null == chunked.group(1) ? chunkSize : Integer
+						.parseInt(chunked.group(1));
+			} else {
+				rewrite = null == rewritten.group(1) ? Rewrite.LOGGED
+						: Rewrite.UNLOGGED;
+			}
+		}
+		addStatements(statements, section.toString(), separator, group, chunk,
+				rewrite);
+		return Collections.unmodifiableList(statements);
+	}
+
+	/**
+	 * Add the statements in a section of the script, the first of them is
+	 * run in chunks if chunk is more than zero, or as a rewrite.
+	 *
+	 * @return false if there weren't any.
+	 */
+	private boolean addStatements(List<ScriptStatement> statements,
+			String section, String separator, String group, int chunk,
+			Rewrite rewrite) {
+		String stripped = strip(section);
+		if (stripped.trim().isEmpty()) {
+			return false;
+		}
+		List<String> split = new ArrayList<>();
+		ScriptUtils.splitSqlScript(null, stripped, separator,
+				DEFAULT_COMMENT_PREFIX, DEFAULT_BLOCK_COMMENT_START_DELIMITER,
+				DEFAULT_BLOCK_COMMENT_END_DELIMITER, split);
+		for (String sql : split) {
+			if (Rewrite.NONE != rewrite && !TableRewrite.isRewritable(sql)) {
+				log.warn("Only updates of whole tables can be rewritten,"
+						+ " updating in place: " + sql);
+				rewrite = Rewrite.NONE;
+			}
+			if (chunk > 0 && !ChunkedUpdate.isChunkable(sql)) {
+				log.warn("Only updates can run in chunks, running whole: "
+						+ sql);
+				chunk = 0;
+			}
+			statements.add(new ScriptStatement(sql, group,
+					Rewrite.NONE == rewrite ? chunk : 0, rewrite));
+			chunk = 0;
+			rewrite = Rewrite.NONE;
+		}
+		return true;
+	}
+
+	private String strip(String script) {
+		try {
+			return ScriptUtils.readScript(new LineNumberReader(
+					new StringReader(script)), DEFAULT_COMMENT_PREFIX,
+					DEFAULT_STATEMENT_SEPARATOR);
+		} catch (IOException e) {
+			// Can't happen reading from a string.
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Statements by script digest, dropping the least recently used past a
+	 * few scripts.
+	 */
+	private static class ParsedScripts extends
+			LinkedHashMap<String, List<ScriptStatement>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int capacity;
+
+		ParsedScripts(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<String, List<ScriptStatement>> eldest) {
+			return size() > capacity;
+		}
 	}
 }
@@ -0,0 +1,138 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.postgres;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * How far along a sanitize run is: which statements are done, how long each
+ * took and how many rows it changed, and which are running. Statements are
+ * weighed the same, plus however far the server says the running ones are,
+ * to estimate how much of the script is done.
+ *
+ * The description is handed to a listener as statements finish and when the
+ * server's progress is measured, at most once per interval, and never once
+ * the run is closed.
+ */
+final class SanitizeProgress {
+
+	private static final int MAX_SQL = 60;
+
+	private final int total;
+
+	private final Consumer<String> listener;
+
+	private final long interval;
+
+	private final AtomicInteger done = new AtomicInteger();
+
+	private final Map<ScriptStatement, Long> running = new ConcurrentHashMap<>();
+
+	private final List<StatementTiming> timings = Collections
+			.synchronizedList(new ArrayList<>());
+
+	private volatile double runningFraction;
+
+	private long lastReport;
+
+	private boolean closed;
+
+	/**
+	 * @param total
+	 *            statements in the script
+	 * @param interval
+	 *            least ms between reports to the listener
+	 */
+	SanitizeProgress(int total, Consumer<String> listener, long interval) {
+		this.total = Math.max(1, total);
+		this.listener = listener;
+		this.interval = interval;
+	}
+
+	void started(ScriptStatement statement) {
+		running.put(statement, System.currentTimeMillis());
+	}
+
+	/**
+	 * @param rows
+	 *            changed by the statement, negative if that isn't known
+	 */
+	void finished(ScriptStatement statement, long rows) {
+		Long start = running.remove(statement);
+		long ms = null == start ? 0 : System.currentTimeMillis() - start;
+		timings.add(new StatementTiming(statement.getSql(), ms, rows));
+		done.incrementAndGet();
+		report();
+	}
+
+	/**
+	 * @param fraction
+	 *            how many statements' worth of work the server says the
+	 *            running statements have done
+	 */
+	void measured(double fraction) {
+		runningFraction = fraction;
+		report();
+	}
+
+	int percent() {
+		int finished = done.get();
+		if (finished >= total) {
+			return 100;
+		}
+		double partial = Math.min(Math.max(0, runningFraction),
+				running.size());
+		return (int) Math.min(99, (finished + partial) * 100 / total);
+	}
+
+	String describe() {
+		StringBuilder description = new StringBuilder("Sanitizing, ")
+				.append(done.get()).append(" of ").append(total)
+				.append(" statements done (").append(percent()).append("%)");
+		long now = System.currentTimeMillis();
+		running.entrySet()
+				.stream()
+				.min(Map.Entry.comparingByValue())
+				.ifPresent(
+						oldest -> description.append(", running for ")
+								.append((now - oldest.getValue()) / 1000)
+								.append("s: ")
+								.append(abbreviate(oldest.getKey().getSql())));
+		return description.toString();
+	}
+
+	/**
+	 * @return the statements that have finished, in the order they did.
+	 */
+	List<StatementTiming> getTimings() {
+		synchronized (timings) {
+			return new ArrayList<>(timings);
+		}
+	}
+
+	/**
+	 * Stop telling the listener, the run is over.
+	 */
+	synchronized void close() {
+		closed = true;
+	}
+
+	private synchronized void report() {
+		long now = System.currentTimeMillis();
+		if (closed || now - lastReport < interval) {
+			return;
+		}
+		lastReport = now;
+		listener.accept(describe());
+	}
+
+	private static String abbreviate(String sql) {
+		String line = sql.replaceAll("\\s+", " ").trim();
+		return line.length() <= MAX_SQL ? line : line.substring(0, MAX_SQL)
+				+ "...";
+	}
+}
@@ -0,0 +1,198 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.postgres;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Works out which statements in a script can run at the same time.
+ *
+ * Statements that write a table we can name are put in the same group as
+ * every other statement that touches one of the tables it touches, or a table
+ * related to one of them by a foreign key, or that the script marked as part
+ * of the same group. Groups run in parallel, the statements in a group run in
+ * script order. Anything else (functions, settings, selects) is a barrier:
+ * everything before it finishes before it runs, and everything after it waits
+ * for it.
+ */
+final class ScriptPlanner {
+
+	private static final Pattern WRITE = Pattern.compile(
+			"^\\s*(update|delete|insert|truncate|alter\\s+table)\\b",
+			Pattern.CASE_INSENSITIVE);
+
+	private static final Pattern TABLE = Pattern.compile(
+			"\\b(?:update|from|join|into|table)\\s+(?:only\\s+|if\\s+exists\\s+)*([\\w.\"]+)",
+			Pattern.CASE_INSENSITIVE);
+
+	private static final Pattern TARGET = Pattern.compile(
+			"^\\s*(?:update|delete\\s+from|insert\\s+into|alter\\s+table)"
+					+ "\\s+(?:only\\s+|if\\s+exists\\s+)*([\\w.\"]+)",
+			Pattern.CASE_INSENSITIVE);
+
+	private static final Pattern TRUNCATE = Pattern.compile(
+			"^\\s*truncate\\s+(?:table\\s+)?(?:only\\s+)?([\\w.\", ]+)",
+			Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * Statements whose effect lasts past them on their connection: transaction
+	 * control, settings, temp tables, cursors, locks and the like.
+	 */
+	private static final Pattern SESSION = Pattern.compile(
+			"^\\s*(begin|start\\s+transaction|commit|end|rollback|abort|savepoint"
+					+ "|release|set|reset|discard|prepare|declare|listen|lock"
+					+ "|create\\s+(?:global\\s+|local\\s+)?temp(?:orary)?\\b"
+					+ "|select\\s+(?:set_config|pg_advisory_lock)\\b)\\b",
+			Pattern.CASE_INSENSITIVE);
+
+	private ScriptPlanner() {
+	}
+
+	/**
+	 * @return true if any of the statements leaves something behind on its
+	 *         connection that later ones may rely on, so the script has to
+	 *         run on one connection.
+	 */
+	static boolean needsOneSession(List<ScriptStatement> statements) {
+		return statements.stream().anyMatch(
+				s -> SESSION.matcher(s.getSql()).find());
+	}
+
+	/**
+	 * @param foreignKeys
+	 *            table to the tables it references
+	 * @return phases to run one after the other, each a list of groups that
+	 *         can run at the same time.
+	 */
+	static List<List<List<ScriptStatement>>> plan(List<ScriptStatement> statements,
+			Map<String, Set<String>> foreignKeys) {
+		List<List<List<ScriptStatement>>> phases = new ArrayList<>();
+		List<ScriptStatement> phase = new ArrayList<>();
+		for (ScriptStatement statement : statements) {
+			if (null == statement.getGroup()
+					&& tablesOf(statement.getSql()).isEmpty()) {
+				addPhase(phases, phase, foreignKeys);
+				phases.add(Collections.singletonList(Collections
+						.singletonList(statement)));
+				phase = new ArrayList<>();
+			} else {
+				phase.add(statement);
+			}
+		}
+		addPhase(phases, phase, foreignKeys);
+		return phases;
+	}
+
+	/**
+	 * @return the unqualified, lower cased names of the tables a writing
+	 *         statement touches, empty if it isn't one.
+	 */
+	static Set<String> tablesOf(String sql) {
+		Set<String> tables = new LinkedHashSet<>();
+		if (!WRITE.matcher(sql).find()) {
+			return tables;
+		}
+		Matcher truncate = TRUNCATE.matcher(sql);
+		if (truncate.find()) {
+			for (String table : truncate.group(1).split(",")) {
+				if (!table.trim().isEmpty()) {
+					tables.add(normalize(table.trim().split("\\s+")[0]));
+				}
+			}
+		}
+		Matcher matcher = TABLE.matcher(sql);
+		while (matcher.find()) {
+			tables.add(normalize(matcher.group(1)));
+		}
+		return tables;
+	}
+
+	/**
+	 * @return the tables a writing statement changes, named as it names them,
+	 *         leaving out any it only reads.
+	 */
+	static Set<String> targetsOf(String sql) {
+		Set<String> tables = new LinkedHashSet<>();
+		Matcher truncate = TRUNCATE.matcher(sql);
+		if (truncate.find()) {
+			for (String table : truncate.group(1).split(",")) {
+				if (!table.trim().isEmpty()) {
+					tables.add(table.trim().split("\\s+")[0]);
+				}
+			}
+		}
+		Matcher target = TARGET.matcher(sql);
+		if (target.find()) {
+			tables.add(target.group(1));
+		}
+		return tables;
+	}
+
+	/**
+	 * Schemas are dropped, so same named tables in different schemas are
+	 * treated as the same table. That only ever serializes more than needed.
+	 */
+	static String normalize(String table) {
+		String name = table.substring(table.lastIndexOf('.') + 1);
+		return name.replace("\"", "").toLowerCase();
+	}
+
+	private static void addPhase(List<List<List<ScriptStatement>>> phases,
+			List<ScriptStatement> statements,
+			Map<String, Set<String>> foreignKeys) {
+		if (statements.isEmpty()) {
+			return;
+		}
+		UnionFind related = new UnionFind();
+		foreignKeys.forEach((table, references) -> references
+				.forEach(r -> related.union("table:" + normalize(table),
+						"table:" + normalize(r))));
+		for (int i = 0; i < statements.size(); ++i) {
+			String node = "statement:" + i;
+			related.find(node);
+			ScriptStatement statement = statements.get(i);
+			if (null != statement.getGroup()) {
+				related.union(node, "group:" + statement.getGroup());
+			}
+			for (String table : tablesOf(statement.getSql())) {
+				related.union(node, "table:" + table);
+			}
+		}
+		Map<String, List<ScriptStatement>> groups = new LinkedHashMap<>();
+		for (int i = 0; i < statements.size(); ++i) {
+			groups.computeIfAbsent(related.find("statement:" + i),
+					k -> new ArrayList<>()).add(statements.get(i));
+		}
+		phases.add(new ArrayList<>(groups.values()));
+	}
+
+	private static class UnionFind {
+
+		private Map<String, String> parents = new HashMap<>();
+
+		String find(String node) {
+			String parent = parents.computeIfAbsent(node, n -> n);
+			if (parent.equals(node)) {
+				return node;
+			}
+			String root = find(parent);
+			parents.put(node, root);
+			return root;
+		}
+
+		void union(String a, String b) {
+			String rootA = find(a);
+			String rootB = find(b);
+			if (!rootA.equals(rootB)) {
+				parents.put(rootB, rootA);
+			}
+		}
+	}
+}
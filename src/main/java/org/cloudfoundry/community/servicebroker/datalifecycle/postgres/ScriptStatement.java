@@ -0,0 +1,63 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.postgres;
+
+/**
+ * A statement from a sanitize script, along with the group it was marked as
+ * part of, if any, and whether it was marked to run in chunks or as a table
+ * rewrite.
+ */
+class ScriptStatement {
+
+	private final String sql;
+
+	private final String group;
+
+	private final int chunkSize;
+
+	private final Rewrite rewrite;
+
+	enum Rewrite {
+		NONE, LOGGED, UNLOGGED
+	}
+
+	ScriptStatement(String sql, String group) {
+		this(sql, group, 0, Rewrite.NONE);
+	}
+
+	ScriptStatement(String sql, String group, int chunkSize, Rewrite rewrite) {
+		this.sql = sql;
+		this.group = group;
+		this.chunkSize = chunkSize;
+		this.rewrite = rewrite;
+	}
+
+	String getSql() {
+		return sql;
+	}
+
+	/**
+	 * @return the group the script put the statement in, null if none.
+	 */
+	String getGroup() {
+		return group;
+	}
+
+	/**
+	 * @return rows per chunk to run the statement in, zero to run it whole.
+	 */
+	int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * @return how to rewrite the statement's table rather than update it in
+	 *         place, {@link Rewrite#NONE} to update it in place.
+	 */
+	Rewrite getRewrite() {
+		return rewrite;
+	}
+
+	@Override
+	public String toString() {
+		return sql;
+	}
+}
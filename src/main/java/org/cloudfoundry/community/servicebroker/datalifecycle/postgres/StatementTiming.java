@@ -0,0 +1,54 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.postgres;
+
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * How long a sanitize statement took and how many rows it changed.
+ */
+public final class StatementTiming {
+
+	private final String sql;
+
+	private final long ms;
+
+	private final long rows;
+
+	StatementTiming(String sql, long ms, long rows) {
+		this.sql = sql;
+		this.ms = ms;
+		this.rows = rows;
+	}
+
+	public String getSql() {
+		return sql;
+	}
+
+	public long getMs() {
+		return ms;
+	}
+
+	/**
+	 * @return rows changed, negative if that isn't known.
+	 */
+	public long getRows() {
+		return rows;
+	}
+
+	/**
+	 * @return what the statement does and to which table, like update.users,
+	 *         to name its metrics by.
+	 */
+	public String getName() {
+		String verb = sql.trim().split("\\s+", 2)[0].toLowerCase(Locale.ROOT)
+				.replaceAll("\\W", "");
+		Set<String> tables = ScriptPlanner.tablesOf(sql);
+		return tables.isEmpty() ? verb : verb + "."
+				+ tables.iterator().next();
+	}
+
+	@Override
+	public String toString() {
+		return ms + "ms, " + (rows < 0 ? "?" : rows) + " rows: " + sql;
+	}
+}
@@ -0,0 +1,447 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.postgres;
+
+import static java.sql.Connection.TRANSACTION_REPEATABLE_READ;
+import static org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState.SANITIZING;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.cloudfoundry.community.servicebroker.datalifecycle.dto.CopyProgress;
+import org.cloudfoundry.community.servicebroker.datalifecycle.provider.CopyProvider;
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyOut;
+import org.springframework.boot.actuate.metrics.GaugeService;
+
+/**
+ * Makes copies by streaming tables out of the source database and into a new
+ * database on a target server, masking rows on the way so unmasked data never
+ * lands anywhere. Each copy is a database made from a template that has the
+ * source's schema and no data, then filled with
+ * {@code COPY ... TO STDOUT}/{@code COPY ... FROM STDIN}.
+ *
+ * Tables are read from one exported snapshot of the source so the copy is
+ * consistent, and written parents before children as far as foreign keys
+ * allow, several at a time. Each table in flight holds one buffer, so memory
+ * doesn't grow with table size. Masking rules are the same as the
+ * {@link MaskingCompiler}'s, tables marked
+ * {@value MaskingCompiler#TRUNCATE_TABLE} aren't copied at all.
+ *
+ * Copies only use the first state: with no copy id the database is made, with
+ * one the tables are streamed and the copy goes on to be sanitized. Streaming
+ * into a database this provider didn't just make means an earlier run got part
+ * way, so the copied tables are emptied first.
+ */
+public class StreamingCopyProvider implements CopyProvider {
+
+	static final String PREFIX = "copy_";
+
+	static final int FLUSH_SIZE = 1 << 20;
+
+	private static final Pattern COPY_NAME = Pattern.compile(PREFIX
+			+ "[0-9a-f]{32}");
+
+	private static final String COLUMNS = "select attname from pg_attribute"
+			+ " where attrelid = ?::regclass and attnum > 0 and not attisdropped order by attnum";
+
+	private static final String FOREIGN_KEYS = "select c.relname, p.relname from pg_constraint k"
+			+ " join pg_class c on c.oid = k.conrelid"
+			+ " join pg_class p on p.oid = k.confrelid"
+			+ " where k.contype = 'f'";
+
+	private Logger log = Logger.getLogger(StreamingCopyProvider.class);
+
+	private Map<String, Object> sourceCreds;
+
+	private String sourceInstance;
+
+	private Map<String, Object> targetCreds;
+
+	private String template;
+
+	private List<String> tables;
+
+	private Map<String, Object> rules;
+
+	private ExecutorService executor;
+
+	private GaugeService gaugeService;
+
+	private int parallelism;
+
+	/**
+	 * Copies made since we started that haven't been streamed into yet.
+	 */
+	private Set<String> fresh = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param sourceCreds
+	 *            uri, username and password of the source database
+	 * @param targetCreds
+	 *            of a database on the target server the user can create
+	 *            databases from
+	 * @param template
+	 *            database on the target server with the source's schema
+	 * @param tables
+	 *            to copy
+	 * @param rules
+	 *            masking rules, as {@link MaskingCompiler} takes them
+	 */
+	public StreamingCopyProvider(Map<String, Object> sourceCreds,
+			String sourceInstance, Map<String, Object> targetCreds,
+			String template, List<String> tables, Map<String, Object> rules,
+			ExecutorService executor, GaugeService gaugeService,
+			int parallelism) {
+		this.sourceCreds = sourceCreds;
+		this.sourceInstance = sourceInstance;
+		this.targetCreds = targetCreds;
+		this.template = template;
+		this.tables = tables;
+		this.rules = rules;
+		this.executor = executor;
+		this.gaugeService = gaugeService;
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	@Override
+	public CompletableFuture<CopyProgress> advanceCopy(CopyProgress progress)
+			throws ServiceBrokerException {
+		log.info("Advancing copy of " + progress.getSourceId() + " from "
+				+ progress);
+		switch (progress.getState()) {
+		case AMI_PENDING:
+			if (null == progress.getCopyId()) {
+				return CompletableFuture.supplyAsync(
+						() -> progress.withCopyId(createDatabase()), executor);
+			}
+			return CompletableFuture.supplyAsync(() -> {
+				stream(progress.getCopyId());
+				return progress.next(SANITIZING);
+			}, executor);
+		default:
+			throw new ServiceBrokerException("Can't advance a copy that's "
+					+ progress.getState());
+		}
+	}
+
+	@Override
+	public CompletableFuture<Void> deleteCopy(String instance)
+			throws ServiceBrokerException {
+		if (!COPY_NAME.matcher(instance).matches()) {
+			throw new ServiceBrokerException("Not a copy: " + instance);
+		}
+		log.info("Deleting copy " + instance);
+		return CompletableFuture.runAsync(() -> {
+			try (Connection connection = connect(targetCreds);
+					Statement statement = connection.createStatement()) {
+				statement.execute("select pg_terminate_backend(pid)"
+						+ " from pg_stat_activity where datname = '" + instance
+						+ "'");
+				statement.execute("drop database if exists " + instance);
+			} catch (SQLException e) {
+				throw new CompletionException(new ServiceBrokerException(e));
+			}
+		}, executor);
+	}
+
+	@Override
+	public Map<String, Object> getCreds(String instance)
+			throws ServiceBrokerException {
+		if (sourceInstance.equals(instance)) {
+			return new HashMap<>(sourceCreds);
+		}
+		if (!COPY_NAME.matcher(instance).matches()) {
+			return null;
+		}
+		Map<String, Object> creds = new HashMap<>(targetCreds);
+		creds.put("uri", withDatabase((String) targetCreds.get("uri"), instance));
+		return creds;
+	}
+
+	/**
+	 * @return the tables in the order to load them, each a list that can be
+	 *         loaded at the same time once the lists before it are. Tables in
+	 *         a cycle go in the last one.
+	 */
+	static List<List<String>> loadOrder(List<String> tables,
+			Map<String, Set<String>> foreignKeys) {
+		Map<String, String> byName = new HashMap<>();
+		tables.forEach(t -> byName.put(ScriptPlanner.normalize(t), t));
+		Set<String> left = new LinkedHashSet<>(tables);
+		List<List<String>> levels = new ArrayList<>();
+		while (!left.isEmpty()) {
+			List<String> level = new ArrayList<>();
+			for (String table : left) {
+				boolean ready = true;
+				for (String parent : foreignKeys.getOrDefault(
+						ScriptPlanner.normalize(table), new HashSet<>())) {
+					String parentTable = byName.get(ScriptPlanner
+							.normalize(parent));
+					if (null != parentTable && !parentTable.equals(table)
+							&& left.contains(parentTable)) {
+						ready = false;
+					}
+				}
+				if (ready) {
+					level.add(table);
+				}
+			}
+			if (level.isEmpty()) {
+				level.addAll(left);
+			}
+			left.removeAll(level);
+			levels.add(level);
+		}
+		return levels;
+	}
+
+	static String withDatabase(String uri, String database) {
+		try {
+			URI parsed = new URI(uri);
+			return new URI(parsed.getScheme(), parsed.getAuthority(), "/"
+					+ database, parsed.getQuery(), null).toString();
+		} catch (URISyntaxException e) {
+			throw new IllegalArgumentException("Bad URI " + uri, e);
+		}
+	}
+
+	private String createDatabase() {
+		String name = PREFIX + UUID.randomUUID().toString().replace("-", "");
+		log.info("Creating database " + name + " from " + template);
+		try (Connection connection = connect(targetCreds);
+				Statement statement = connection.createStatement()) {
+			statement.execute("create database " + name + " template "
+					+ template);
+		} catch (SQLException e) {
+			throw new CompletionException(new ServiceBrokerException(e));
+		}
+		fresh.add(name);
+		return name;
+	}
+
+	private void stream(String copy) {
+		long start = System.currentTimeMillis();
+		Map<String, Object> copyCreds = getCopyCreds(copy);
+		List<String> copied = new ArrayList<>();
+		tables.forEach(t -> {
+			if (!MaskingCompiler.TRUNCATE_TABLE.equals(rules.get(t))) {
+				copied.add(t);
+			}
+		});
+		if (copied.isEmpty()) {
+			log.warn("No tables to stream into " + copy);
+			return;
+		}
+		try (Connection snapshot = connect(sourceCreds);
+				Statement statement = snapshot.createStatement()) {
+			snapshot.setAutoCommit(false);
+			snapshot.setTransactionIsolation(TRANSACTION_REPEATABLE_READ);
+			String id;
+			try (ResultSet result = statement
+					.executeQuery("select pg_export_snapshot()")) {
+				result.next();
+				id = result.getString(1);
+			}
+			List<List<String>> levels;
+			try (Connection target = connect(copyCreds);
+					Statement truncate = target.createStatement()) {
+				levels = loadOrder(copied, foreignKeysOf(target));
+				if (!fresh.remove(copy)) {
+					// Anything already there is from an earlier, unfinished
+					// run. Tables that aren't streamed came empty from the
+					// template, so cascading to ones that reference these
+					// only clears what's already clear.
+					log.info("Emptying " + copy + " to stream it again");
+					truncate.execute("truncate table "
+							+ String.join(", ", copied) + " cascade");
+				}
+			}
+			for (List<String> level : levels) {
+				streamAll(level, id, copyCreds);
+			}
+			snapshot.commit();
+		} catch (SQLException e) {
+			throw new CompletionException(new ServiceBrokerException(e));
+		}
+		log.info("Streamed " + copied.size() + " tables into " + copy
+				+ " in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	private Map<String, Object> getCopyCreds(String copy) {
+		Map<String, Object> creds = new HashMap<>(targetCreds);
+		creds.put("uri", withDatabase((String) targetCreds.get("uri"), copy));
+		return creds;
+	}
+
+	/**
+	 * Stream the tables on up to parallelism pairs of connections. Nothing new
+	 * is started once one fails, and the first failure is thrown once the
+	 * others are done.
+	 */
+	private void streamAll(List<String> level, String snapshot,
+			Map<String, Object> copyCreds) throws SQLException {
+		Queue<String> queue = new ConcurrentLinkedQueue<>(level);
+		AtomicReference<SQLException> failure = new AtomicReference<>();
+		Runnable worker = () -> {
+			String table;
+			while (null == failure.get() && null != (table = queue.poll())) {
+				try {
+					streamTable(table, snapshot, copyCreds);
+				} catch (SQLException e) {
+					failure.compareAndSet(null, e);
+				}
+			}
+		};
+		List<Future<?>> running = new ArrayList<>();
+		for (int i = 1; i < Math.min(parallelism, level.size()); ++i) {
+			running.add(executor.submit(worker));
+		}
+		worker.run();
+		for (Future<?> future : running) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				running.forEach(f -> f.cancel(true));
+				throw new SQLException("Interrupted while streaming", e);
+			} catch (ExecutionException e) {
+				throw new SQLException("Streaming failed", e.getCause());
+			}
+		}
+		if (null != failure.get()) {
+			throw failure.get();
+		}
+	}
+
+	private void streamTable(String table, String snapshot,
+			Map<String, Object> copyCreds) throws SQLException {
+		long start = System.currentTimeMillis();
+		long rows = 0;
+		long bytes = 0;
+		try (Connection source = connect(sourceCreds);
+				Connection target = connect(copyCreds);
+				Statement statement = source.createStatement()) {
+			source.setAutoCommit(false);
+			source.setTransactionIsolation(TRANSACTION_REPEATABLE_READ);
+			statement.execute("set transaction snapshot '" + snapshot + "'");
+			List<String> columns = columnsOf(source, table);
+			CopyRowMasker masker = new CopyRowMasker(columns,
+					rulesFor(table), FLUSH_SIZE);
+			String columnList = quoted(columns);
+			CopyOut out = source.unwrap(PGConnection.class).getCopyAPI()
+					.copyOut("COPY " + table + " (" + columnList
+							+ ") TO STDOUT");
+			CopyIn in = target.unwrap(PGConnection.class).getCopyAPI()
+					.copyIn("COPY " + table + " (" + columnList
+							+ ") FROM STDIN");
+			try {
+				byte[] row;
+				while (null != (row = out.readFromCopy())) {
+					masker.add(row);
+					++rows;
+					if (masker.length() >= FLUSH_SIZE) {
+						bytes += masker.length();
+						in.writeToCopy(masker.buffer(), 0, masker.length());
+						masker.clear();
+					}
+				}
+				bytes += masker.length();
+				in.writeToCopy(masker.buffer(), 0, masker.length());
+				in.endCopy();
+			} finally {
+				if (out.isActive()) {
+					out.cancelCopy();
+				}
+				if (in.isActive()) {
+					in.cancelCopy();
+				}
+			}
+			source.commit();
+		}
+		long elapsed = Math.max(1, System.currentTimeMillis() - start);
+		long rate = rows * 1000 / elapsed;
+		gaugeService.submit("copy.stream." + table + ".rowsPerSecond", rate);
+		log.info("Streamed " + rows + " rows (" + bytes / 1024 + "KB) of "
+				+ table + " in " + elapsed + "ms, " + rate + " rows/s, "
+				+ (bytes * 1000 / elapsed / 1024) + "KB/s");
+	}
+
+	/**
+	 * @return the rules for the table's columns, keyed by column.
+	 */
+	private Map<String, Object> rulesFor(String table) {
+		Map<String, Object> columns = new HashMap<>();
+		rules.forEach((target, rule) -> {
+			int dot = target.lastIndexOf('.');
+			if (dot > 0 && target.substring(0, dot).equals(table)
+					&& !MaskingCompiler.TRUNCATE_TABLE.equals(rule)) {
+				columns.put(target.substring(dot + 1), rule);
+			}
+		});
+		return columns;
+	}
+
+	private List<String> columnsOf(Connection connection, String table)
+			throws SQLException {
+		List<String> columns = new ArrayList<>();
+		try (PreparedStatement query = connection.prepareStatement(COLUMNS)) {
+			query.setString(1, table);
+			try (ResultSet result = query.executeQuery()) {
+				while (result.next()) {
+					columns.add(result.getString(1));
+				}
+			}
+		}
+		return columns;
+	}
+
+	private Map<String, Set<String>> foreignKeysOf(Connection connection)
+			throws SQLException {
+		Map<String, Set<String>> references = new HashMap<>();
+		try (Statement statement = connection.createStatement();
+				ResultSet keys = statement.executeQuery(FOREIGN_KEYS)) {
+			while (keys.next()) {
+				references.computeIfAbsent(keys.getString(1),
+						t -> new HashSet<>()).add(keys.getString(2));
+			}
+		}
+		return references;
+	}
+
+	private static String quoted(List<String> columns) {
+		List<String> quoted = new ArrayList<>();
+		columns.forEach(c -> quoted.add("\"" + c.replace("\"", "\"\"") + "\""));
+		return String.join(", ", quoted);
+	}
+
+	Connection connect(Map<String, Object> creds) throws SQLException {
+		return DriverManager.getConnection("jdbc:" + creds.get("uri"),
+				(String) creds.get("username"), (String) creds.get("password"));
+	}
+}
@@ -0,0 +1,430 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.postgres;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Masks a whole table by writing a masked copy of it and swapping the copy in,
+ * rather than updating it in place. The result is compact with fresh indexes
+ * instead of twice the size and full of dead rows.
+ *
+ * The new table is made like the old one (defaults, not null and check
+ * constraints, storage and comments), optionally unlogged while it's filled
+ * (9.5 on, before that it's filled logged).
+ * Its indexes are built once it's full, several at a time if there are
+ * connections to spare, and everything is swapped in in one transaction along
+ * with primary keys, unique constraints, foreign keys and sequence ownership.
+ *
+ * Tables this can't swap without losing something (anything referencing
+ * them, triggers, table or column grants, inheritance, identity and exclusion
+ * constraints, another owner, storage parameters, replica identity and row
+ * level security) are updated in place instead.
+ */
+final class TableRewrite {
+
+	/**
+	 * Somewhere to get an extra connection to the same database from, null if
+	 * there isn't one to spare.
+	 */
+	interface ConnectionSource {
+		Connection get() throws SQLException;
+	}
+
+	private static final Logger log = Logger.getLogger(TableRewrite.class);
+
+	static final String SUFFIX = "_masked";
+
+	private static final Pattern COLUMN = Pattern
+			.compile("^\\s*(\"(?:[^\"]|\"\")+\"|\\w+)\\s*=(.*)$", Pattern.DOTALL);
+
+	private static final Pattern INDEX = Pattern.compile(
+			"^(CREATE (?:UNIQUE )?INDEX )(\\S+)( ON (?:ONLY )?)(\\S+)( .*)$",
+			Pattern.DOTALL);
+
+	private static final String[][] BLOCKERS = {
+			{ "select exists(select 1 from pg_constraint where confrelid = ?::regclass)",
+					"other tables reference it" },
+			{ "select exists(select 1 from pg_depend d join pg_rewrite r on r.oid = d.objid"
+					+ " where d.refobjid = ?::regclass and r.ev_class <> d.refobjid)",
+					"views depend on it" },
+			{ "select exists(select 1 from pg_trigger where tgrelid = ?::regclass and not tgisinternal)",
+					"it has triggers" },
+			{ "select exists(select 1 from pg_constraint where conrelid = ?::regclass and contype = 'x')",
+					"it has exclusion constraints" },
+			{ "select exists(select 1 from pg_inherits where inhrelid = ?::regclass or inhparent = ?::regclass)",
+					"it's part of an inheritance tree" },
+			{ "select relkind <> 'r' or relacl is not null from pg_class where oid = ?::regclass",
+					"it isn't a plain table or has grants" },
+			{ "select exists(select 1 from information_schema.columns c join pg_class t"
+					+ " on t.relname = c.table_name join pg_namespace n on n.oid = t.relnamespace"
+					+ " and n.nspname = c.table_schema where t.oid = ?::regclass and c.is_identity = 'YES')",
+					"it has identity columns" },
+			{ "select exists(select 1 from pg_attribute where attrelid = ?::regclass and attacl is not null)",
+					"it has column grants" },
+			{ "select relowner <> (select oid from pg_roles where rolname = current_user)"
+					+ " from pg_class where oid = ?::regclass",
+					"another role owns it" },
+			{ "select c.reloptions is not null or t.reloptions is not null from pg_class c"
+					+ " left join pg_class t on t.oid = c.reltoastrelid where c.oid = ?::regclass",
+					"it has storage parameters" },
+			{ "select relreplident <> 'd' from pg_class where oid = ?::regclass",
+					"it has a replica identity set" },
+			// pg_policy and relrowsecurity are 9.5 on, so neither is named directly
+			{ "select coalesce(row_to_json(c)->>'relrowsecurity', 'false')::boolean"
+					+ " or exists(select 1 from pg_depend d where d.refobjid = c.oid"
+					+ " and d.classid = to_regclass('pg_catalog.pg_policy'))"
+					+ " from pg_class c where c.oid = ?::regclass",
+					"it has row level security" } };
+
+	// alter table ... set logged is 9.5 on
+	private static final String SET_LOGGED = "select current_setting('server_version_num')::int >= 90500";
+
+	private static final String NAME = "select n.nspname, c.relname from pg_class c"
+			+ " join pg_namespace n on n.oid = c.relnamespace where c.oid = ?::regclass";
+
+	private static final String COLUMNS = "select attname from pg_attribute"
+			+ " where attrelid = ?::regclass and attnum > 0 and not attisdropped order by attnum";
+
+	private static final String INDEXES = "select x.relname, pg_get_indexdef(i.indexrelid), k.conname, k.contype"
+			+ " from pg_index i join pg_class x on x.oid = i.indexrelid"
+			+ " left join pg_constraint k on k.conindid = i.indexrelid and k.conrelid = i.indrelid"
+			+ " and k.contype in ('p', 'u') where i.indrelid = ?::regclass";
+
+	private static final String FOREIGN_KEYS = "select conname, pg_get_constraintdef(oid)"
+			+ " from pg_constraint where conrelid = ?::regclass and contype = 'f'";
+
+	private static final String SEQUENCES = "select s.oid::regclass::text, a.attname from pg_depend d"
+			+ " join pg_class s on s.oid = d.objid and s.relkind = 'S'"
+			+ " join pg_attribute a on a.attrelid = d.refobjid and a.attnum = d.refobjsubid"
+			+ " where d.refobjid = ?::regclass and d.deptype = 'a'";
+
+	private TableRewrite() {
+	}
+
+	/**
+	 * @return true if the statement is an update of every row of a table, the
+	 *         only kind we can turn into a rewrite.
+	 */
+	static boolean isRewritable(String sql) {
+		Matcher update = ChunkedUpdate.UPDATE.matcher(sql);
+		return update.find() && ChunkedUpdate.topLevelWhere(sql) < 0
+				&& null != assignmentsOf(sql.substring(update.end()));
+	}
+
+	/**
+	 * Rewrite the table the update is for with the update applied, or run the
+	 * update as it is if the table can't be swapped.
+	 *
+	 * @param spare
+	 *            to build indexes on alongside the connection, may be null
+	 * @param executor
+	 *            to build indexes on spare connections with, may be null
+	 */
+	static void run(Connection connection, String sql, boolean unlogged,
+			ConnectionSource spare, ExecutorService executor, int parallelism)
+			throws SQLException {
+		Matcher update = ChunkedUpdate.UPDATE.matcher(sql);
+		Map<String, String> assignments = update.find()
+				&& ChunkedUpdate.topLevelWhere(sql) < 0 ? assignmentsOf(sql
+				.substring(update.end())) : null;
+		if (null == assignments) {
+			throw new SQLException("Can't rewrite for: " + sql);
+		}
+		String table = update.group(1);
+		String alias = null == update.group(2) ? "" : " " + update.group(2);
+		String blocker = blockerFor(connection, table);
+		if (null != blocker) {
+			log.warn("Updating " + table + " in place, " + blocker);
+			try (Statement statement = connection.createStatement()) {
+				statement.execute(sql);
+			}
+			return;
+		}
+
+		if (unlogged && !canSetLogged(connection)) {
+			log.warn("Writing " + table
+					+ " logged, unlogged tables can't be set logged before 9.5");
+			unlogged = false;
+		}
+
+		long start = System.currentTimeMillis();
+		String[] name = nameOf(connection, table);
+		String schema = quote(name[0]);
+		String newTable = schema + "." + quote(name[1] + SUFFIX);
+		List<String> select = new ArrayList<>();
+		for (String column : query(connection, COLUMNS, table, 1)) {
+			String value = assignments.get(column);
+			select.add(null == value ? quote(column) : value + " as "
+					+ quote(column));
+		}
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("drop table if exists " + newTable);
+			statement.execute("create " + (unlogged ? "unlogged " : "")
+					+ "table " + newTable + " (like " + table
+					+ " including defaults including constraints"
+					+ " including storage including comments)");
+			statement.execute("insert into " + newTable + " select "
+					+ String.join(", ", select) + " from " + table + alias);
+			if (unlogged) {
+				statement.execute("alter table " + newTable + " set logged");
+			}
+		}
+		log.info("Wrote " + table + " masked in "
+				+ (System.currentTimeMillis() - start) + "ms");
+
+		List<String[]> indexes = indexesOf(connection, table);
+		List<String> builds = new ArrayList<>();
+		for (String[] index : indexes) {
+			Matcher def = INDEX.matcher(index[1]);
+			if (!def.matches()) {
+				throw new SQLException("Can't rebuild index " + index[1]);
+			}
+			builds.add(def.group(1) + quote(index[0] + SUFFIX) + def.group(3)
+					+ newTable + def.group(5));
+		}
+		buildIndexes(connection, builds, spare, executor, parallelism);
+
+		swap(connection, table, schema, name[1], newTable, indexes);
+		log.info("Rewrote " + table + " in "
+				+ (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * @return column (as the catalog has it) to the value it's set to, null if
+	 *         there's an assignment we can't map onto a single column.
+	 */
+	static Map<String, String> assignmentsOf(String sets) {
+		Map<String, String> assignments = new LinkedHashMap<>();
+		for (String assignment : splitTopLevel(sets)) {
+			Matcher column = COLUMN.matcher(assignment);
+			if (!column.matches()) {
+				return null;
+			}
+			String name = column.group(1);
+			name = name.startsWith("\"") ? name.substring(1,
+					name.length() - 1).replace("\"\"", "\"") : name
+					.toLowerCase();
+			assignments.put(name, column.group(2).trim());
+		}
+		return assignments.isEmpty() ? null : assignments;
+	}
+
+	private static List<String> splitTopLevel(String sets) {
+		List<String> parts = new ArrayList<>();
+		int depth = 0;
+		char quote = 0;
+		int from = 0;
+		for (int i = 0; i < sets.length(); ++i) {
+			char c = sets.charAt(i);
+			if (0 != quote) {
+				if (c == quote) {
+					quote = 0;
+				}
+			} else if ('\'' == c || '"' == c) {
+				quote = c;
+			} else if ('(' == c) {
+				++depth;
+			} else if (')' == c) {
+				--depth;
+			} else if (',' == c && 0 == depth) {
+				parts.add(sets.substring(from, i));
+				from = i + 1;
+			}
+		}
+		parts.add(sets.substring(from));
+		return parts;
+	}
+
+	private static String blockerFor(Connection connection, String table)
+			throws SQLException {
+		for (String[] blocker : BLOCKERS) {
+			try (PreparedStatement query = connection
+					.prepareStatement(blocker[0])) {
+				for (int i = 1; i <= blocker[0].split("\\?", -1).length - 1; ++i) {
+					query.setString(i, table);
+				}
+				try (ResultSet result = query.executeQuery()) {
+					if (result.next() && result.getBoolean(1)) {
+						return blocker[1];
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	private static boolean canSetLogged(Connection connection)
+			throws SQLException {
+		try (PreparedStatement query = connection.prepareStatement(SET_LOGGED);
+				ResultSet result = query.executeQuery()) {
+			return result.next() && result.getBoolean(1);
+		}
+	}
+
+	private static String[] nameOf(Connection connection, String table)
+			throws SQLException {
+		try (PreparedStatement query = connection.prepareStatement(NAME)) {
+			query.setString(1, table);
+			try (ResultSet result = query.executeQuery()) {
+				result.next();
+				return new String[] { result.getString(1), result.getString(2) };
+			}
+		}
+	}
+
+	/**
+	 * @return name, definition, constraint name and constraint type of each
+	 *         index, the last two null for indexes that aren't constraints.
+	 */
+	private static List<String[]> indexesOf(Connection connection,
+			String table) throws SQLException {
+		List<String[]> indexes = new ArrayList<>();
+		try (PreparedStatement query = connection.prepareStatement(INDEXES)) {
+			query.setString(1, table);
+			try (ResultSet result = query.executeQuery()) {
+				while (result.next()) {
+					indexes.add(new String[] { result.getString(1),
+							result.getString(2), result.getString(3),
+							result.getString(4) });
+				}
+			}
+		}
+		return indexes;
+	}
+
+	private static List<String> query(Connection connection, String sql,
+			String table, int columns) throws SQLException {
+		List<String> rows = new ArrayList<>();
+		try (PreparedStatement query = connection.prepareStatement(sql)) {
+			query.setString(1, table);
+			try (ResultSet result = query.executeQuery()) {
+				while (result.next()) {
+					for (int i = 1; i <= columns; ++i) {
+						rows.add(result.getString(i));
+					}
+				}
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Build the indexes on the connection and on as many spare ones as we
+	 * can get, up to parallelism in all.
+	 */
+	private static void buildIndexes(Connection connection,
+			List<String> builds, ConnectionSource spare,
+			ExecutorService executor, int parallelism) throws SQLException {
+		Queue<String> queue = new ConcurrentLinkedQueue<>(builds);
+		AtomicReference<SQLException> failure = new AtomicReference<>();
+		List<Future<?>> running = new ArrayList<>();
+		List<Connection> borrowed = new ArrayList<>();
+		try {
+			while (null != executor && null != spare
+					&& running.size() + 1 < Math.min(parallelism, builds.size())) {
+				Connection extra = spare.get();
+				if (null == extra) {
+					break;
+				}
+				borrowed.add(extra);
+				running.add(executor.submit(() -> build(extra, queue, failure)));
+			}
+			build(connection, queue, failure);
+			for (Future<?> future : running) {
+				try {
+					future.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					running.forEach(f -> f.cancel(true));
+					throw new SQLException("Interrupted building indexes", e);
+				} catch (ExecutionException e) {
+					throw new SQLException("Building indexes failed",
+							e.getCause());
+				}
+			}
+		} finally {
+			for (Connection extra : borrowed) {
+				extra.close();
+			}
+		}
+		if (null != failure.get()) {
+			throw failure.get();
+		}
+	}
+
+	private static void build(Connection connection, Queue<String> queue,
+			AtomicReference<SQLException> failure) {
+		try (Statement statement = connection.createStatement()) {
+			String index;
+			while (null == failure.get() && null != (index = queue.poll())) {
+				statement.execute(index);
+			}
+		} catch (SQLException e) {
+			failure.compareAndSet(null, e);
+		}
+	}
+
+	private static void swap(Connection connection, String table,
+			String schema, String name, String newTable,
+			List<String[]> indexes) throws SQLException {
+		List<String> sequences = query(connection, SEQUENCES, table, 2);
+		List<String> foreignKeys = query(connection, FOREIGN_KEYS, table, 2);
+		boolean autoCommit = connection.getAutoCommit();
+		connection.setAutoCommit(false);
+		try (Statement statement = connection.createStatement()) {
+			for (int i = 0; i < sequences.size(); i += 2) {
+				statement.execute("alter sequence " + sequences.get(i)
+						+ " owned by " + newTable + "."
+						+ quote(sequences.get(i + 1)));
+			}
+			statement.execute("drop table " + table);
+			statement.execute("alter table " + newTable + " rename to "
+					+ quote(name));
+			String swapped = schema + "." + quote(name);
+			for (String[] index : indexes) {
+				String built = quote(index[0] + SUFFIX);
+				if (null != index[2]) {
+					statement.execute("alter table " + swapped
+							+ " add constraint " + quote(index[2])
+							+ ("p".equals(index[3]) ? " primary key" : " unique")
+							+ " using index " + built);
+				} else {
+					statement.execute("alter index " + schema + "." + built
+							+ " rename to " + quote(index[0]));
+				}
+			}
+			for (int i = 0; i < foreignKeys.size(); i += 2) {
+				statement.execute("alter table " + swapped
+						+ " add constraint " + quote(foreignKeys.get(i)) + " "
+						+ foreignKeys.get(i + 1));
+			}
+			connection.commit();
+		} catch (SQLException e) {
+			connection.rollback();
+			throw e;
+		} finally {
+			connection.setAutoCommit(autoCommit);
+		}
+	}
+
+	private static String quote(String name) {
+		return "\"" + name.replace("\"", "\"\"") + "\"";
+	}
+}
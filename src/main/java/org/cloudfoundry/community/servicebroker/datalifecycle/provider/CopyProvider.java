@@ -1,23 +1,30 @@
 package org.cloudfoundry.community.servicebroker.datalifecycle.provider;
 
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
+import org.cloudfoundry.community.servicebroker.datalifecycle.dto.CopyProgress;
 import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
 
 public interface CopyProvider {
 
 	/**
-	 * Create a copy of the source instance. The implementer should inject that
-	 * through an environment variable or other means. Upon the copy will be
-	 * launched and accessible to clients.
+	 * Take the next step towards a running copy of the progress's source
+	 * instance. The implementer should kick off whatever the step needs and
+	 * return without blocking, completing the future once the step is done.
 	 * 
-	 * @param instanceId
-	 *            to create a copy of
-	 * @return the id of the new copy.
+	 * Copies start at {@link CopyProgress#start(String)} and are handed back
+	 * for sanitizing once the returned progress reaches SANITIZING. Every
+	 * progress returned is persisted, so the implementer must be able to pick
+	 * up from any of them after a restart.
+	 * 
+	 * @param progress
+	 *            the copy has made so far
+	 * @return a future for the progress after this step.
 	 * @throws ServiceBrokerException
 	 *             on error
 	 */
-	String createCopy(String instanceId)
+	CompletableFuture<CopyProgress> advanceCopy(CopyProgress progress)
 			throws ServiceBrokerException;
 
 	/**
@@ -26,12 +33,29 @@ public interface CopyProvider {
 	 * 
 	 * @param instance
 	 *            to delete
+	 * @return a future that completes once the artifacts are gone.
 	 * @throws ServiceBrokerException
 	 *             on error
 	 */
-	void deleteCopy(final String instance)
+	CompletableFuture<Void> deleteCopy(final String instance)
 			throws ServiceBrokerException;
 
+	/**
+	 * Remove the image a copy was to be started from, for a copy given up on
+	 * before it was. Providers that don't make images have nothing to do.
+	 * 
+	 * @param image
+	 *            to delete
+	 * @return a future that completes once the image and its artifacts are
+	 *         gone.
+	 * @throws ServiceBrokerException
+	 *             on error
+	 */
+	default CompletableFuture<Void> deleteImage(final String image)
+			throws ServiceBrokerException {
+		return CompletableFuture.completedFuture(null);
+	}
+
 	/**
 	 * Return the creds hash associated with service brokers. Should contain a
 	 * URI, username, password or whatever makes sense for your service. Will be
@@ -1,6 +1,7 @@
 package org.cloudfoundry.community.servicebroker.datalifecycle.provider;
 
 import java.util.Map;
+import java.util.function.Consumer;
 
 import org.cloudfoundry.community.servicebroker.datalifecycle.exception.DataProviderSanitizationFailedException;
 
@@ -25,6 +26,44 @@ public interface DataProvider {
 	 */
 	void sanitize(String script, Map<String, Object> creds)
 			throws DataProviderSanitizationFailedException;
-			
+
+	/**
+	 * Sanitize like {@link #sanitize(String, Map)}, telling the listener how
+	 * it's going while it does. Providers that can't tell just sanitize.
+	 *
+	 * @param progress
+	 *            called with a short description of how far along sanitizing
+	 *            is, every so often
+	 */
+	default void sanitize(String script, Map<String, Object> creds,
+			Consumer<String> progress)
+			throws DataProviderSanitizationFailedException {
+		sanitize(script, creds);
+	}
+
+	/**
+	 * Sanitize like {@link #sanitize(String, Map, Consumer)} with the digest
+	 * of the script, for providers that keep what they work out from a
+	 * script between runs.
+	 *
+	 * @param digest
+	 *            of the script, may be null
+	 */
+	default void sanitize(String script, String digest,
+			Map<String, Object> creds, Consumer<String> progress)
+			throws DataProviderSanitizationFailedException {
+		sanitize(script, creds, progress);
+	}
+
+	/**
+	 * Called before the copy behind the creds is deleted, to let go of
+	 * anything held open against it.
+	 *
+	 * @param creds
+	 *            the copy was sanitized with
+	 */
+	default void release(Map<String, Object> creds) {
+	}
+
 	//TODO Password change is implicit in above, explicit api?
 }
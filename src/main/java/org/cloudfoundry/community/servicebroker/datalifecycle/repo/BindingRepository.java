@@ -1,11 +1,40 @@
 package org.cloudfoundry.community.servicebroker.datalifecycle.repo;
 
+import java.util.List;
+
+import org.cloudfoundry.community.servicebroker.datalifecycle.dto.InstancePair;
 import org.cloudfoundry.community.servicebroker.datalifecycle.model.BindingEntity;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.PagingAndSortingRepository;
+import org.springframework.data.repository.query.Param;
 import org.springframework.data.rest.core.annotation.RepositoryRestResource;
+import org.springframework.data.rest.core.annotation.RestResource;
 
 @RepositoryRestResource(collectionResourceRel = "bindings", path = "bindings")
 public interface BindingRepository extends
 		PagingAndSortingRepository<BindingEntity, String> {
 
+	BindingEntity findFirstByAppGuidAndServiceInstanceId(String appGuid,
+			String serviceInstanceId);
+
+	/**
+	 * @return app guid to copy id for each binding, ordered by binding id.
+	 */
+	@Query("select new org.cloudfoundry.community.servicebroker.datalifecycle.dto.InstancePair(b.appGuid, s.copyId) "
+			+ "from BindingEntity b, ServiceInstanceEntity s "
+			+ "where b.serviceInstanceId = s.id order by b.id")
+	Slice<InstancePair> findAppToCopyPairs(Pageable page);
+
+	/**
+	 * @return binding id, app guid and copy id for each binding with an id
+	 *         after the given one, ordered by binding id.
+	 */
+	@RestResource(exported = false)
+	@Query("select b.id, b.appGuid, s.copyId "
+			+ "from BindingEntity b, ServiceInstanceEntity s "
+			+ "where b.serviceInstanceId = s.id and b.id > :after order by b.id")
+	List<Object[]> findAppToCopyPairsAfter(@Param("after") String after,
+			Pageable page);
 }
@@ -4,13 +4,68 @@ import java.util.List;
 
 import org.cloudfoundry.community.servicebroker.datalifecycle.model.BrokerAction;
 import org.cloudfoundry.community.servicebroker.datalifecycle.model.BrokerActionState;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.PagingAndSortingRepository;
 import org.springframework.data.repository.query.Param;
 import org.springframework.data.rest.core.annotation.RepositoryRestResource;
+import org.springframework.data.rest.core.annotation.RestResource;
+import org.springframework.transaction.annotation.Transactional;
 
 @RepositoryRestResource(collectionResourceRel = "actions", path = "actions")
 public interface BrokerActionRepository extends
-		PagingAndSortingRepository<BrokerAction, String> {
+		PagingAndSortingRepository<BrokerAction, Long> {
 
-	List<BrokerAction> findByState(@Param("state") BrokerActionState state);
+	/**
+	 * Newest first.
+	 */
+	Page<BrokerAction> findByStateOrderByCreatedAtDesc(
+			@Param("state") BrokerActionState state, Pageable page);
+
+	/**
+	 * Actions in the state with ids after the given one, ordered by id (so
+	 * oldest first).
+	 */
+	@RestResource(exported = false)
+	@Query("select a from BrokerAction a where a.state = :state and a.id > :after order by a.id")
+	List<BrokerAction> findByStateAfter(
+			@Param("state") BrokerActionState state,
+			@Param("after") long after, Pageable page);
+
+	/**
+	 * Actors whose latest action is in the state, as of that action, newest
+	 * first. What an actor is doing now, rather than everything it ever did.
+	 */
+	@Query(value = "select a from BrokerAction a where a.state = :state and a.id ="
+			+ " (select max(b.id) from BrokerAction b where b.actor = a.actor)"
+			+ " order by a.createdAt desc", countQuery = "select count(a) from BrokerAction a"
+			+ " where a.state = :state and a.id ="
+			+ " (select max(b.id) from BrokerAction b where b.actor = a.actor)")
+	Page<BrokerAction> findLatestByState(
+			@Param("state") BrokerActionState state, Pageable page);
+
+	/**
+	 * An actor's timeline, oldest first.
+	 */
+	Page<BrokerAction> findByActorOrderByCreatedAtAsc(
+			@Param("actor") String actor, Pageable page);
+
+	/**
+	 * Actions in [from, to), in ms since the epoch, oldest first.
+	 */
+	@Query("select a from BrokerAction a where a.createdAt >= :from and a.createdAt < :to order by a.createdAt")
+	Page<BrokerAction> findByCreatedAtBetween(@Param("from") long from,
+			@Param("to") long to, Pageable page);
+
+	/**
+	 * Drop every bucket older than the given one, a bucket at a time rather
+	 * than a row at a time.
+	 */
+	@RestResource(exported = false)
+	@Modifying
+	@Transactional
+	@Query("delete from BrokerAction a where a.bucket < :bucket")
+	int deleteBucketsBefore(@Param("bucket") long bucket);
 }
@@ -0,0 +1,7 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.repo;
+
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.CopyArtifact;
+import org.springframework.data.repository.CrudRepository;
+
+public interface CopyArtifactRepo extends CrudRepository<CopyArtifact, String> {
+}
@@ -0,0 +1,10 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.repo;
+
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.NamedScript;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.rest.core.annotation.RepositoryRestResource;
+
+// Changed through DataProviderService, which caches them.
+@RepositoryRestResource(exported = false)
+public interface NamedScriptRepo extends CrudRepository<NamedScript, String> {
+}
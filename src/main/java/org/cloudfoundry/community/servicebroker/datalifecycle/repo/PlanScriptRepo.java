@@ -0,0 +1,14 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.repo;
+
+import java.util.List;
+
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.PlanScript;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.rest.core.annotation.RepositoryRestResource;
+
+// Changed through DataProviderService, which caches them.
+@RepositoryRestResource(exported = false)
+public interface PlanScriptRepo extends CrudRepository<PlanScript, String> {
+
+	List<PlanScript> findByScriptName(String scriptName);
+}
@@ -0,0 +1,12 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.repo;
+
+import java.util.List;
+
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.PoolBuild;
+import org.springframework.data.repository.CrudRepository;
+
+public interface PoolBuildRepo extends CrudRepository<PoolBuild, String> {
+
+	@Override
+	List<PoolBuild> findAll();
+}
@@ -0,0 +1,11 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.repo;
+
+import java.util.List;
+
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.PooledCopy;
+import org.springframework.data.repository.CrudRepository;
+
+public interface PooledCopyRepo extends CrudRepository<PooledCopy, String> {
+
+	List<PooledCopy> findByPlanIdOrderByCreatedAtAsc(String planId);
+}
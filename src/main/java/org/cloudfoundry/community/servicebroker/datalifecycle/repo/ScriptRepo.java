@@ -2,7 +2,13 @@ package org.cloudfoundry.community.servicebroker.datalifecycle.repo;
 
 import org.cloudfoundry.community.servicebroker.datalifecycle.model.SanitizationScript;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.rest.core.annotation.RepositoryRestResource;
 
-public interface ScriptRepo extends CrudRepository<SanitizationScript, Long> {
+/**
+ * Script content, keyed by digest. Changed through DataProviderService, which
+ * caches it.
+ */
+@RepositoryRestResource(exported = false)
+public interface ScriptRepo extends CrudRepository<SanitizationScript, String> {
 
 }
@@ -1,8 +1,29 @@
 package org.cloudfoundry.community.servicebroker.datalifecycle.repo;
 
+import java.util.Collection;
+import java.util.List;
+
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState;
 import org.cloudfoundry.community.servicebroker.datalifecycle.model.ServiceInstanceEntity;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.PagingAndSortingRepository;
+import org.springframework.data.repository.query.Param;
 
 public interface ServiceInstanceRepo extends
 		PagingAndSortingRepository<ServiceInstanceEntity, String> {
+
+	List<ServiceInstanceEntity> findByProvisioningStateIn(
+			Collection<ProvisioningState> states);
+
+	@Query("select s.copyId from ServiceInstanceEntity s order by s.id")
+	Slice<String> findCopyIds(Pageable page);
+
+	/**
+	 * @return instances with ids after the given one, ordered by id.
+	 */
+	@Query("select s from ServiceInstanceEntity s where s.id > :after order by s.id")
+	List<ServiceInstanceEntity> findAfter(@Param("after") String after,
+			Pageable page);
 }
@@ -0,0 +1,233 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.service;
+
+import static org.cloudfoundry.community.servicebroker.datalifecycle.model.BrokerActionState.IN_PROGRESS;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.log4j.Logger;
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.BrokerAction;
+import org.cloudfoundry.community.servicebroker.datalifecycle.repo.BrokerActionRepository;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+
+/**
+ * Takes the broker action audit writes off the request thread. Actions are
+ * queued and written in batches in the background every flush interval.
+ *
+ * The queue is bounded. When it's full the caller writes out what's queued
+ * itself before adding its action, so a backlog slows requests down rather
+ * than losing actions or eating the heap. Whatever is queued is written out on
+ * shutdown.
+ *
+ * When a batch can't be written its actions are written one at a time, and
+ * the ones that still fail are held to try again on the next flush. If two
+ * in a row fail the database is taken to be down and the rest are held
+ * without trying. Held actions are bounded by the queue's capacity, the
+ * oldest dropped first, and one that fails on its second try is dropped.
+ *
+ * Each action records how long it was since the actor's previous one, so a
+ * slow step shows up in the timeline. Actions older than the retention period
+ * are dropped a day's bucket at a time.
+ */
+public class BrokerActionLog {
+
+	static final int BATCH_SIZE = 100;
+
+	/**
+	 * An operation that's been quiet this long isn't going to finish, so
+	 * its actor is forgotten.
+	 */
+	static final long STALE = TimeUnit.DAYS.toMillis(1);
+
+	private Logger log = Logger.getLogger(BrokerActionLog.class);
+
+	private BrokerActionRepository repo;
+
+	private ScheduledExecutorService scheduler;
+
+	private CounterService counterService;
+
+	private GaugeService gaugeService;
+
+	private long flushInterval;
+
+	private int retentionDays;
+
+	private BlockingQueue<BrokerAction> queue;
+
+	private int capacity;
+
+	/**
+	 * Actions that failed to write, to try once more. Only used while
+	 * flushing.
+	 */
+	private Deque<BrokerAction> held = new ArrayDeque<>();
+
+	private ScheduledFuture<?> flushes;
+
+	/**
+	 * When each actor with an operation under way last did something.
+	 */
+	private Map<String, Long> lastSeen = new ConcurrentHashMap<>();
+
+	/**
+	 * @param capacity
+	 *            of the queue
+	 * @param flushInterval
+	 *            between background writes in ms
+	 * @param retentionDays
+	 *            how many days of actions to keep, zero keeps them forever
+	 */
+	public BrokerActionLog(BrokerActionRepository repo,
+			ScheduledExecutorService scheduler, CounterService counterService,
+			GaugeService gaugeService, int capacity, long flushInterval,
+			int retentionDays) {
+		this.repo = repo;
+		this.scheduler = scheduler;
+		this.counterService = counterService;
+		this.gaugeService = gaugeService;
+		this.flushInterval = flushInterval;
+		this.retentionDays = Math.max(0, retentionDays);
+		this.capacity = Math.max(1, capacity);
+		this.queue = new ArrayBlockingQueue<>(this.capacity);
+	}
+
+	@PostConstruct
+	public void start() {
+		flushes = scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				flush();
+			} catch (RuntimeException e) {
+				log.error("Failed to flush broker actions", e);
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Queue an action to be written. Only blocks if the queue is full.
+	 */
+	public void record(BrokerAction action) {
+		// The operation is over once it's completed or failed.
+		Long previous = IN_PROGRESS == action.getState() ? lastSeen.put(
+				action.getActor(), action.getCreatedAt()) : lastSeen
+				.remove(action.getActor());
+		if (null != previous) {
+			action.setDuration(action.getCreatedAt() - previous);
+		}
+		while (!queue.offer(action)) {
+			counterService.increment("audit.queue.full");
+			flush();
+		}
+	}
+
+	/**
+	 * Write out everything that's queued.
+	 */
+	public synchronized void flush() {
+		if (!held.isEmpty()) {
+			List<BrokerAction> retry = new ArrayList<>(held);
+			held.clear();
+			write(retry, true);
+		}
+		List<BrokerAction> batch = new ArrayList<>(BATCH_SIZE);
+		while (queue.drainTo(batch, BATCH_SIZE) > 0) {
+			write(batch, false);
+			batch = new ArrayList<>(BATCH_SIZE);
+		}
+		gaugeService.submit("audit.queue.size", queue.size());
+	}
+
+	@PreDestroy
+	public void stop() {
+		if (null != flushes) {
+			flushes.cancel(false);
+		}
+		flush();
+	}
+
+	/**
+	 * Drop the buckets that have aged out, and forget actors whose
+	 * operations went quiet.
+	 */
+	@Scheduled(fixedDelay = 3600000)
+	public void expire() {
+		expire(System.currentTimeMillis());
+	}
+
+	void expire(long now) {
+		lastSeen.values().removeIf(seen -> now - seen > STALE);
+		if (0 == retentionDays) {
+			return;
+		}
+		long cutoff = BrokerAction.bucketOf(now) - retentionDays;
+		try {
+			int dropped = repo.deleteBucketsBefore(cutoff);
+			if (dropped > 0) {
+				log.info("Dropped " + dropped + " broker actions older than "
+						+ retentionDays + " days");
+			}
+		} catch (DataAccessException e) {
+			log.error("Failed to drop old broker actions: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @param retried
+	 *            if the actions have failed to write before
+	 */
+	private void write(List<BrokerAction> batch, boolean retried) {
+		try {
+			repo.save(batch);
+			gaugeService.submit("audit.batch.size", batch.size());
+			return;
+		} catch (DataAccessException e) {
+			counterService.increment("audit.write.failed");
+			log.error("Failed to write " + batch.size()
+					+ " broker actions, writing them one at a time: "
+					+ e.getMessage());
+		}
+		int failures = 0;
+		for (BrokerAction action : batch) {
+			if (failures > 1) {
+				hold(action);
+				continue;
+			}
+			try {
+				repo.save(action);
+				failures = 0;
+			} catch (DataAccessException e) {
+				++failures;
+				if (retried) {
+					counterService.increment("audit.dropped");
+					log.error("Dropping broker action for " + action.getActor()
+							+ ": " + e.getMessage());
+				} else {
+					hold(action);
+				}
+			}
+		}
+	}
+
+	private void hold(BrokerAction action) {
+		if (held.size() >= capacity) {
+			held.poll();
+			counterService.increment("audit.dropped");
+		}
+		held.add(action);
+	}
+}
@@ -0,0 +1,67 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.service;
+
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.log4j.Logger;
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.BrokerAction;
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.BrokerActionState;
+import org.cloudfoundry.community.servicebroker.datalifecycle.repo.BrokerActionRepository;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Actions used to be kept one per actor, keyed by the actor's id, in
+ * {@value #OLD_TABLE}. Now that every action is kept they live in their own
+ * table, and on startup each actor's last action is carried over from the
+ * old one, which is then dropped.
+ */
+public class BrokerActionMigration {
+
+	static final String OLD_TABLE = "broker_action";
+
+	private Logger log = Logger.getLogger(BrokerActionMigration.class);
+
+	private JdbcTemplate jdbc;
+
+	private TransactionTemplate transaction;
+
+	private BrokerActionRepository repo;
+
+	public BrokerActionMigration(JdbcTemplate jdbc,
+			TransactionTemplate transaction, BrokerActionRepository repo) {
+		this.jdbc = jdbc;
+		this.transaction = transaction;
+		this.repo = repo;
+	}
+
+	@PostConstruct
+	public void migrate() {
+		if (!Tables.exists(jdbc, OLD_TABLE)) {
+			return;
+		}
+		int migrated = transaction.execute(status -> {
+			List<BrokerAction> actions = jdbc.query(
+					"select actor, state, action from " + OLD_TABLE,
+					(row, i) -> new BrokerAction(row.getString(1),
+							stateOf(row.getObject(2)), row.getString(3)));
+			repo.save(actions);
+			jdbc.execute("drop table " + OLD_TABLE);
+			return actions.size();
+		});
+		log.info("Carried " + migrated + " broker actions over from "
+				+ OLD_TABLE);
+	}
+
+	/**
+	 * Enums were stored by ordinal, unless someone mapped them by name.
+	 */
+	private static BrokerActionState stateOf(Object state) {
+		if (state instanceof Number) {
+			return BrokerActionState.values()[((Number) state).intValue()];
+		}
+		return null == state ? null : BrokerActionState.valueOf(state
+				.toString());
+	}
+}
@@ -0,0 +1,377 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.service;
+
+import java.time.Clock;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.log4j.Logger;
+import org.cloudfoundry.community.servicebroker.datalifecycle.dto.CopyProgress;
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.PoolBuild;
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.PooledCopy;
+import org.cloudfoundry.community.servicebroker.datalifecycle.provider.CopyProvider;
+import org.cloudfoundry.community.servicebroker.datalifecycle.repo.PoolBuildRepo;
+import org.cloudfoundry.community.servicebroker.datalifecycle.repo.PooledCopyRepo;
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.scheduling.annotation.Scheduled;
+
+/**
+ * Keeps a number of ready, sanitized copies per plan so a provision can be
+ * satisfied without waiting on the copy provider.
+ *
+ * The number of copies kept for a plan follows demand: it's the number of
+ * provisions we expect to see while one refill is in flight (provision rate
+ * over the last hour times the average refill latency), clamped to
+ * [minSize, maxSize]. A maxSize of zero disables the pool.
+ *
+ * Copies are tagged with a digest of the script they were sanitized with and
+ * are discarded rather than handed out if the plan's script has changed since.
+ *
+ * Refills are saved before they start and after every step, so a restart
+ * picks them back up where they were. Ones for plans that aren't pooled any
+ * more, and ones that fail, have whatever they made deleted.
+ */
+public class CopyPoolManager {
+
+	private Logger log = Logger.getLogger(CopyPoolManager.class);
+
+	static final long DEMAND_WINDOW = TimeUnit.HOURS.toMillis(1);
+
+	/**
+	 * What we assume a refill costs until we've measured one.
+	 */
+	static final long DEFAULT_REFILL_LATENCY = TimeUnit.MINUTES.toMillis(15);
+
+	private static final double LATENCY_WEIGHT = 0.3;
+
+	private CopyProvider copyProvider;
+
+	private ProvisioningStateMachine stateMachine;
+
+	private DataProviderService dataProviderService;
+
+	private PooledCopyRepo repo;
+
+	private PoolBuildRepo buildRepo;
+
+	private TaskExecutor executor;
+
+	private CounterService counterService;
+
+	private GaugeService gaugeService;
+
+	private String sourceInstanceId;
+
+	private int minSize;
+
+	private int maxSize;
+
+	private Clock clock;
+
+	private Map<String, PlanPool> pools = new HashMap<>();
+
+	public CopyPoolManager(CopyProvider copyProvider,
+			ProvisioningStateMachine stateMachine,
+			DataProviderService dataProviderService, PooledCopyRepo repo,
+			PoolBuildRepo buildRepo, TaskExecutor executor,
+			CounterService counterService, GaugeService gaugeService,
+			String sourceInstanceId, Collection<String> planIds, int minSize,
+			int maxSize) {
+		this(copyProvider, stateMachine, dataProviderService, repo, buildRepo,
+				executor, counterService, gaugeService, sourceInstanceId,
+				planIds, minSize, maxSize, Clock.systemUTC());
+	}
+
+	CopyPoolManager(CopyProvider copyProvider,
+			ProvisioningStateMachine stateMachine,
+			DataProviderService dataProviderService, PooledCopyRepo repo,
+			PoolBuildRepo buildRepo, TaskExecutor executor,
+			CounterService counterService, GaugeService gaugeService,
+			String sourceInstanceId, Collection<String> planIds, int minSize,
+			int maxSize, Clock clock) {
+		this.copyProvider = copyProvider;
+		this.stateMachine = stateMachine;
+		this.dataProviderService = dataProviderService;
+		this.repo = repo;
+		this.buildRepo = buildRepo;
+		this.executor = executor;
+		this.counterService = counterService;
+		this.gaugeService = gaugeService;
+		this.sourceInstanceId = sourceInstanceId;
+		this.minSize = Math.max(0, Math.min(minSize, maxSize));
+		this.maxSize = Math.max(0, maxSize);
+		this.clock = clock;
+		planIds.forEach(p -> pools.put(p, new PlanPool(p)));
+	}
+
+	/**
+	 * Pick up whatever copies and refills survived the last restart and top
+	 * the pools up.
+	 */
+	@PostConstruct
+	public void start() {
+		if (isEnabled()) {
+			pools.values().forEach(
+					p -> p.ready.addAll(repo
+							.findByPlanIdOrderByCreatedAtAsc(p.planId)));
+		}
+		for (PoolBuild build : buildRepo.findAll()) {
+			PlanPool pool = pools.get(build.getPlanId());
+			if (!isEnabled() || null == pool) {
+				log.info("Dropping refill " + build.getId() + " of the "
+						+ build.getPlanId() + " pool, it isn't pooled any more");
+				buildRepo.delete(build.getId());
+				discard(build.getProgress());
+			} else {
+				log.info("Resuming refill " + build.getId() + " of the "
+						+ pool.planId + " pool from " + build.getProgress());
+				pool.refilling.incrementAndGet();
+				build(pool, build);
+			}
+		}
+		if (isEnabled()) {
+			refill();
+		}
+	}
+
+	public boolean isEnabled() {
+		return 0 < maxSize;
+	}
+
+	/**
+	 * Hand out a ready copy for the plan. The copy is removed from the pool
+	 * and belongs to the caller from here on.
+	 *
+	 * @param planId
+	 *            to get a copy for
+	 * @return the copy id, or null if the pool for the plan is empty.
+	 */
+	public String take(String planId) {
+		PlanPool pool = pools.get(planId);
+		if (!isEnabled() || null == pool) {
+			return null;
+		}
+		pool.recordDemand(clock.millis());
+
+		String digest = dataProviderService.getScriptDigestForPlan(planId);
+		PooledCopy copy;
+		while (null != (copy = pool.ready.pollFirst())) {
+			repo.delete(copy.getCopyId());
+			if (Objects.equals(digest, copy.getScriptDigest())) {
+				break;
+			}
+			log.info("Discarding pooled copy " + copy.getCopyId()
+					+ ", it was sanitized with an old script");
+			discard(copy.getCopyId());
+		}
+
+		counterService.increment(metric(planId, null == copy ? "miss"
+				: "hit"));
+		refill(pool);
+		return null == copy ? null : copy.getCopyId();
+	}
+
+	/**
+	 * Bring every pool in line with its target size. Runs periodically so
+	 * pools shrink again once demand drops off.
+	 */
+	@Scheduled(fixedDelay = 60000)
+	public void refill() {
+		if (isEnabled()) {
+			pools.values().forEach(this::refill);
+		}
+	}
+
+	/**
+	 * @return the number of copies the plan's pool is aiming to hold.
+	 */
+	public int getTargetSize(String planId) {
+		PlanPool pool = pools.get(planId);
+		return null == pool ? 0 : targetSize(pool);
+	}
+
+	/**
+	 * @return the number of ready copies in the plan's pool.
+	 */
+	public int getDepth(String planId) {
+		PlanPool pool = pools.get(planId);
+		return null == pool ? 0 : pool.ready.size();
+	}
+
+	private synchronized void refill(PlanPool pool) {
+		int target = targetSize(pool);
+		while (pool.ready.size() > target) {
+			PooledCopy surplus = pool.ready.pollFirst();
+			if (null == surplus) {
+				break;
+			}
+			log.info("Trimming pooled copy " + surplus.getCopyId());
+			repo.delete(surplus.getCopyId());
+			discard(surplus.getCopyId());
+		}
+		int deficit = target - pool.ready.size() - pool.refilling.get();
+		for (int i = 0; i < deficit; ++i) {
+			pool.refilling.incrementAndGet();
+			build(pool);
+		}
+		publish(pool, target);
+	}
+
+	private void build(PlanPool pool) {
+		// Read before we start, a copy that's tagged with an older script than
+		// it was sanitized with is only thrown away early.
+		String digest = dataProviderService
+				.getScriptDigestForPlan(pool.planId);
+		PoolBuild build = new PoolBuild(UUID.randomUUID().toString(),
+				pool.planId, clock.millis(), CopyProgress.start(
+						sourceInstanceId).withScriptDigest(digest));
+		buildRepo.save(build);
+		build(pool, build);
+	}
+
+	private void build(PlanPool pool, PoolBuild build) {
+		stateMachine.build(build.getProgress(), p -> {
+			build.setProgress(p);
+			buildRepo.save(build);
+		}).whenComplete((ready, e) -> {
+			try {
+				if (null == e) {
+					PooledCopy copy = new PooledCopy(ready.getCopyId(),
+							pool.planId, ready.getScriptDigest(), clock.millis());
+					repo.save(copy);
+					buildRepo.delete(build.getId());
+					pool.ready.addLast(copy);
+					pool.recordRefill(clock.millis() - build.getStartedAt());
+					log.info("Added copy " + copy.getCopyId() + " to the "
+							+ pool.planId + " pool");
+				} else {
+					log.error("Failed to refill the " + pool.planId
+							+ " pool: " + e.getMessage());
+					buildRepo.delete(build.getId());
+					discard(build.getProgress());
+				}
+			} finally {
+				pool.refilling.decrementAndGet();
+				publish(pool, targetSize(pool));
+			}
+		});
+	}
+
+	/**
+	 * Delete whatever a refill that won't finish made.
+	 */
+	private void discard(CopyProgress progress) {
+		if (null != progress.getCopyId()) {
+			discard(progress.getCopyId());
+			return;
+		}
+		String image = progress.getImageId();
+		if (null == image) {
+			return;
+		}
+		executor.execute(() -> {
+			try {
+				copyProvider.deleteImage(image).exceptionally(e -> {
+					log.error("Failed to delete pool image " + image + ": "
+							+ e.getMessage());
+					return null;
+				});
+			} catch (ServiceBrokerException e) {
+				log.error("Failed to delete pool image " + image + ": "
+						+ e.getMessage());
+			}
+		});
+	}
+
+	private void discard(String copyId) {
+		executor.execute(() -> {
+			try {
+				copyProvider.deleteCopy(copyId).exceptionally(e -> {
+					log.error("Failed to delete pooled copy " + copyId + ": "
+							+ e.getMessage());
+					return null;
+				});
+			} catch (ServiceBrokerException e) {
+				log.error("Failed to delete pooled copy " + copyId + ": "
+						+ e.getMessage());
+			}
+		});
+	}
+
+	private int targetSize(PlanPool pool) {
+		double expected = pool.demandRate(clock.millis())
+				* pool.refillLatency();
+		int target = (int) Math.ceil(expected);
+		return Math.max(minSize, Math.min(maxSize, target));
+	}
+
+	private void publish(PlanPool pool, int target) {
+		gaugeService.submit(metric(pool.planId, "depth"), pool.ready.size());
+		gaugeService.submit(metric(pool.planId, "target"), target);
+		gaugeService.submit(metric(pool.planId, "refilling"),
+				pool.refilling.get());
+	}
+
+	private String metric(String planId, String name) {
+		return "copypool." + planId + "." + name;
+	}
+
+	private class PlanPool {
+
+		private final String planId;
+
+		private final ConcurrentLinkedDeque<PooledCopy> ready = new ConcurrentLinkedDeque<>();
+
+		private final AtomicInteger refilling = new AtomicInteger();
+
+		private final Deque<Long> demand = new ArrayDeque<>();
+
+		private double refillLatency = DEFAULT_REFILL_LATENCY;
+
+		PlanPool(String planId) {
+			this.planId = planId;
+		}
+
+		synchronized void recordDemand(long now) {
+			demand.addLast(now);
+			expireDemand(now);
+		}
+
+		/**
+		 * @return provisions per millisecond over the demand window.
+		 */
+		synchronized double demandRate(long now) {
+			expireDemand(now);
+			return (double) demand.size() / DEMAND_WINDOW;
+		}
+
+		synchronized void recordRefill(long latency) {
+			refillLatency = LATENCY_WEIGHT * latency + (1 - LATENCY_WEIGHT)
+					* refillLatency;
+			gaugeService.submit(metric(planId, "refill.latency"), latency);
+		}
+
+		synchronized double refillLatency() {
+			return refillLatency;
+		}
+
+		private void expireDemand(long now) {
+			while (!demand.isEmpty()
+					&& now - demand.peekFirst() > DEMAND_WINDOW) {
+				demand.removeFirst();
+			}
+		}
+	}
+}
@@ -1,32 +1,216 @@
 package org.cloudfoundry.community.servicebroker.datalifecycle.service;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.NamedScript;
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.PlanScript;
 import org.cloudfoundry.community.servicebroker.datalifecycle.model.SanitizationScript;
+import org.cloudfoundry.community.servicebroker.datalifecycle.repo.NamedScriptRepo;
+import org.cloudfoundry.community.servicebroker.datalifecycle.repo.PlanScriptRepo;
 import org.cloudfoundry.community.servicebroker.datalifecycle.repo.ScriptRepo;
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+/**
+ * Holds the sanitization scripts. Scripts are saved under a name and stored
+ * by the digest of their content, a plan can be assigned a script by name and
+ * plans that aren't use the {@value #DEFAULT} script.
+ *
+ * Everything is read from the repos once and kept in memory until it's
+ * changed through here. Names and plans are read under the same lock that
+ * changes them, so a read that started before a change can't put back what
+ * it replaced. Content is never changed or removed once it's
+ * stored, so a copy that's given the digest of its script when it starts is
+ * sanitized with that version of it even if the name is pointed at a new one
+ * meanwhile.
+ */
 @Service
 public class DataProviderService {
 
+	public static final String DEFAULT = "default";
+
 	private ScriptRepo scriptRepo;
 
+	private NamedScriptRepo namedScriptRepo;
+
+	private PlanScriptRepo planScriptRepo;
+
+	/**
+	 * Name to the digest of its content, empty if there's no such script.
+	 */
+	private Map<String, Optional<String>> digests = new ConcurrentHashMap<>();
+
+	/**
+	 * Digest to content.
+	 */
+	private Map<String, Optional<String>> scripts = new ConcurrentHashMap<>();
+
+	/**
+	 * Plan to the name of its script.
+	 */
+	private Map<String, String> planScripts = new ConcurrentHashMap<>();
+
 	@Autowired
-	public DataProviderService(ScriptRepo scriptRepo) {
+	public DataProviderService(ScriptRepo scriptRepo,
+			NamedScriptRepo namedScriptRepo, PlanScriptRepo planScriptRepo) {
 		this.scriptRepo = scriptRepo;
+		this.namedScriptRepo = namedScriptRepo;
+		this.planScriptRepo = planScriptRepo;
 	}
 
+	/**
+	 * Save the {@value #DEFAULT} script.
+	 */
 	public void saveScript(String script) {
-		scriptRepo.save(new SanitizationScript(script));
+		saveScript(DEFAULT, script);
 	}
 
 	/**
-	 * Retrieve the sanitization script from the repo
-	 * 
+	 * Save a script under a name, replacing whatever was saved under it.
+	 */
+	public synchronized void saveScript(String name, String script) {
+		SanitizationScript content = new SanitizationScript(script);
+		if (!scriptRepo.exists(content.getDigest())) {
+			scriptRepo.save(content);
+		}
+		namedScriptRepo.save(new NamedScript(name, content.getDigest()));
+		digests.put(name, Optional.of(content.getDigest()));
+		scripts.put(content.getDigest(), Optional.of(script));
+	}
+
+	/**
+	 * Delete a named script. Plans it was assigned to go back to the
+	 * {@value #DEFAULT} script.
+	 *
+	 * @return false if there was no such script.
+	 */
+	public synchronized boolean deleteScript(String name) {
+		if (null == getScriptDigest(name)) {
+			return false;
+		}
+		planScriptRepo.findByScriptName(name).forEach(p -> {
+			planScriptRepo.delete(p);
+			planScripts.remove(p.getPlanId());
+		});
+		namedScriptRepo.delete(name);
+		digests.put(name, Optional.empty());
+		return true;
+	}
+
+	/**
+	 * @return the names of every script.
+	 */
+	public List<String> getScriptNames() {
+		List<String> names = new ArrayList<>();
+		namedScriptRepo.findAll().forEach(n -> names.add(n.getName()));
+		return names;
+	}
+
+	/**
+	 * Retrieve the {@value #DEFAULT} sanitization script
+	 *
 	 * @return the script if one has been set, null otherwise.
 	 */
 	public String getScript() {
-		SanitizationScript result = scriptRepo.findOne(SanitizationScript.ID);
+		return getScript(DEFAULT);
+	}
+
+	/**
+	 * @return the script saved under the name, null if there isn't one.
+	 */
+	public String getScript(String name) {
+		return getScriptByDigest(getScriptDigest(name));
+	}
+
+	/**
+	 * @return a digest of the {@value #DEFAULT} script that changes whenever
+	 *         the script does, null if there's no script.
+	 */
+	public String getScriptDigest() {
+		return getScriptDigest(DEFAULT);
+	}
+
+	/**
+	 * @return a digest of the script saved under the name, null if there
+	 *         isn't one.
+	 */
+	public String getScriptDigest(String name) {
+		Optional<String> digest = digests.get(name);
+		return (null == digest ? loadScriptDigest(name) : digest)
+				.orElse(null);
+	}
+
+	/**
+	 * @return the script with the digest, null if the digest is null or the
+	 *         script is gone.
+	 */
+	public String getScriptByDigest(String digest) {
+		if (null == digest) {
+			return null;
+		}
+		return scripts.computeIfAbsent(
+				digest,
+				d -> Optional.ofNullable(scriptRepo.findOne(d)).map(
+						SanitizationScript::getScript)).orElse(null);
+	}
+
+	/**
+	 * Sanitize copies provisioned with the plan with a named script.
+	 *
+	 * @throws ServiceBrokerException
+	 *             if there's no such script.
+	 */
+	public synchronized void assignScript(String planId, String name)
+			throws ServiceBrokerException {
+		if (null == getScriptDigest(name)) {
+			throw new ServiceBrokerException("No script named " + name);
+		}
+		planScriptRepo.save(new PlanScript(planId, name));
+		planScripts.put(planId, name);
+	}
+
+	/**
+	 * Go back to sanitizing the plan's copies with the {@value #DEFAULT}
+	 * script.
+	 */
+	public synchronized void unassignScript(String planId) {
+		if (planScriptRepo.exists(planId)) {
+			planScriptRepo.delete(planId);
+		}
+		planScripts.put(planId, DEFAULT);
+	}
+
+	/**
+	 * @return the name of the script the plan's copies are sanitized with.
+	 */
+	public String getScriptNameForPlan(String planId) {
+		String name = planScripts.get(planId);
+		return null == name ? loadScriptNameForPlan(planId) : name;
+	}
+
+	/**
+	 * @return the digest of the script the plan's copies are sanitized with,
+	 *         null if there isn't one.
+	 */
+	public String getScriptDigestForPlan(String planId) {
+		return getScriptDigest(getScriptNameForPlan(planId));
+	}
+
+	private synchronized Optional<String> loadScriptDigest(String name) {
+		return digests.computeIfAbsent(
+				name,
+				n -> Optional.ofNullable(namedScriptRepo.findOne(n)).map(
+						NamedScript::getDigest));
+	}
 
-		return result == null ? null : result.getScript();
+	private synchronized String loadScriptNameForPlan(String planId) {
+		return planScripts.computeIfAbsent(planId, p -> Optional
+				.ofNullable(planScriptRepo.findOne(p))
+				.map(PlanScript::getScriptName).orElse(DEFAULT));
 	}
 }
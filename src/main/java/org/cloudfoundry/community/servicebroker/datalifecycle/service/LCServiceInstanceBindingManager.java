@@ -2,11 +2,16 @@ package org.cloudfoundry.community.servicebroker.datalifecycle.service;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.function.Consumer;
 
+import org.cloudfoundry.community.servicebroker.datalifecycle.dto.InstancePair;
 import org.cloudfoundry.community.servicebroker.datalifecycle.model.BindingEntity;
 import org.cloudfoundry.community.servicebroker.datalifecycle.repo.BindingRepository;
+import org.cloudfoundry.community.servicebroker.datalifecycle.utils.Pages;
 import org.cloudfoundry.community.servicebroker.model.ServiceInstanceBinding;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
 
 public class LCServiceInstanceBindingManager {
 
@@ -23,10 +28,35 @@ public class LCServiceInstanceBindingManager {
 		return bindings;
 	}
 
+	/**
+	 * Hand each app to copy pair to the consumer, a page at a time so only
+	 * one page is ever held in memory.
+	 */
+	public void forEachAppToCopyPair(
+			Consumer<? super InstancePair> consumer) {
+		Pages.forEach("", repo::findAppToCopyPairsAfter,
+				row -> (String) row[0], row -> consumer.accept(new InstancePair(
+						(String) row[1], (String) row[2])));
+	}
+
+	public Slice<InstancePair> getAppToCopyPairs(Pageable page) {
+		return repo.findAppToCopyPairs(page);
+	}
+
 	public ServiceInstanceBinding getBinding(String bindingId) {
 		return convert(repo.findOne(bindingId));
 	}
 
+	/**
+	 * @return the app's binding to the service instance, null if it isn't
+	 *         bound.
+	 */
+	public ServiceInstanceBinding getBinding(String appGuid,
+			String serviceInstanceId) {
+		return convert(repo.findFirstByAppGuidAndServiceInstanceId(appGuid,
+				serviceInstanceId));
+	}
+
 	public ServiceInstanceBinding removeBinding(String bindingId) {
 		BindingEntity binding = repo.findOne(bindingId);
 		if (null != binding) {
@@ -4,15 +4,13 @@ import static org.cloudfoundry.community.servicebroker.datalifecycle.model.Broke
 import static org.cloudfoundry.community.servicebroker.datalifecycle.model.BrokerActionState.FAILED;
 import static org.cloudfoundry.community.servicebroker.datalifecycle.model.BrokerActionState.IN_PROGRESS;
 
-import java.util.List;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
 
 import org.apache.log4j.Logger;
 import org.cloudfoundry.community.servicebroker.datalifecycle.dto.InstancePair;
 import org.cloudfoundry.community.servicebroker.datalifecycle.model.BrokerAction;
 import org.cloudfoundry.community.servicebroker.datalifecycle.model.BrokerActionState;
 import org.cloudfoundry.community.servicebroker.datalifecycle.provider.CopyProvider;
-import org.cloudfoundry.community.servicebroker.datalifecycle.repo.BrokerActionRepository;
 import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
 import org.cloudfoundry.community.servicebroker.exception.ServiceInstanceBindingExistsException;
 import org.cloudfoundry.community.servicebroker.model.CreateServiceInstanceBindingRequest;
@@ -20,6 +18,9 @@ import org.cloudfoundry.community.servicebroker.model.DeleteServiceInstanceBindi
 import org.cloudfoundry.community.servicebroker.model.ServiceInstanceBinding;
 import org.cloudfoundry.community.servicebroker.service.ServiceInstanceBindingService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
 import org.springframework.stereotype.Service;
 
 @Service
@@ -35,7 +36,7 @@ public class LCServiceInstanceBindingService implements
 
 	private LCServiceInstanceService instanceService;
 
-	private BrokerActionRepository brokerRepo;
+	private BrokerActionLog actionLog;
 
 	/**
 	 * Build a new binding service.
@@ -44,7 +45,7 @@ public class LCServiceInstanceBindingService implements
 	 *            to gather credentials from
 	 * @param instanceService
 	 *            to get instance information from
-	 * @param brokerRepo
+	 * @param actionLog
 	 *            to save current action states to
 	 * @param bindings
 	 *            manager to save bindings
@@ -54,11 +55,11 @@ public class LCServiceInstanceBindingService implements
 	@Autowired
 	public LCServiceInstanceBindingService(CopyProvider provider,
 			LCServiceInstanceService instanceService,
-			BrokerActionRepository brokerRepo,
+			BrokerActionLog actionLog,
 			LCServiceInstanceBindingManager bindings) {
 		this.provider = provider;
 		this.instanceService = instanceService;
-		this.brokerRepo = brokerRepo;
+		this.actionLog = actionLog;
 		this.bindings = bindings;
 	}
 
@@ -80,12 +81,16 @@ public class LCServiceInstanceBindingService implements
 			String instance = instanceService
 					.getInstanceIdForServiceInstance(request
 							.getServiceInstanceId());
+			if (null == instance) {
+				throw new ServiceBrokerException("No service instance "
+						+ request.getServiceInstanceId());
+			}
 
 			ServiceInstanceBinding binding = new ServiceInstanceBinding(
 					bindingId, request.getServiceInstanceId(),
 					provider.getCreds(instance), null, appGuid);
 
-			bindings.saveBinding(binding);
+			saveBinding(binding);
 			log(bindingId, "Created service binding for app " + appGuid,
 					COMPLETE);
 			return binding;
@@ -98,15 +103,23 @@ public class LCServiceInstanceBindingService implements
 	private void throwIfCopyAlreadyBoundToApp(String appGuid,
 			String serviceInstanceId)
 			throws ServiceInstanceBindingExistsException {
-		List<ServiceInstanceBinding> boundInstances = bindings
-				.getBindings()
-				.stream()
-				.filter(s -> appGuid.equals(s.getAppGuid())
-						&& serviceInstanceId.equals(s.getServiceInstanceId()))
-				.collect(Collectors.toList());
-		if (0 < boundInstances.size()) {
-			throw new ServiceInstanceBindingExistsException(
-					boundInstances.get(0));
+		ServiceInstanceBinding existing = bindings.getBinding(appGuid,
+				serviceInstanceId);
+		if (null != existing) {
+			throw new ServiceInstanceBindingExistsException(existing);
+		}
+	}
+
+	/**
+	 * The check above can race with a concurrent bind of the same app, the
+	 * unique constraint catches whoever loses.
+	 */
+	private void saveBinding(ServiceInstanceBinding binding)
+			throws ServiceInstanceBindingExistsException {
+		try {
+			bindings.saveBinding(binding);
+		} catch (DataIntegrityViolationException e) {
+			throw new ServiceInstanceBindingExistsException(binding);
 		}
 	}
 
@@ -127,16 +140,20 @@ public class LCServiceInstanceBindingService implements
 		}
 	}
 
-	public List<InstancePair> getAppToCopyBinding() {
-		//@formatter:off
-		return bindings.getBindings()
-				.stream()
-				.map(v -> new InstancePair(
-						v.getAppGuid(),
-						instanceService.getInstanceIdForServiceInstance(
-								v.getServiceInstanceId())))
-				.collect(Collectors.toList());
-		//@formatter:on
+	/**
+	 * Hand each app guid to copy id pair to the consumer without holding them
+	 * all in memory.
+	 */
+	public void forEachAppToCopyBinding(
+			Consumer<? super InstancePair> consumer) {
+		bindings.forEachAppToCopyPair(consumer);
+	}
+
+	/**
+	 * @return a page of app guid to copy id pairs, ordered by binding.
+	 */
+	public Slice<InstancePair> getAppToCopyBindings(Pageable page) {
+		return bindings.getAppToCopyPairs(page);
 	}
 
 	private void log(String id, String msg, BrokerActionState state) {
@@ -147,7 +164,7 @@ public class LCServiceInstanceBindingService implements
 		} else {
 			logger.info(logMsg);
 		}
-		brokerRepo.save(new BrokerAction(id, state, msg));
+		actionLog.record(new BrokerAction(id, state, msg));
 	}
 
 	private void throwIfDuplicateBinding(String bindingId)
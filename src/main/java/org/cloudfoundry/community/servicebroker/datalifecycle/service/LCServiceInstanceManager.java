@@ -3,15 +3,22 @@ package org.cloudfoundry.community.servicebroker.datalifecycle.service;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
+import org.cloudfoundry.community.servicebroker.datalifecycle.dto.CopyProgress;
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState;
 import org.cloudfoundry.community.servicebroker.datalifecycle.model.ServiceInstanceEntity;
 import org.cloudfoundry.community.servicebroker.datalifecycle.repo.ServiceInstanceRepo;
+import org.cloudfoundry.community.servicebroker.datalifecycle.utils.Pages;
 import org.cloudfoundry.community.servicebroker.model.CreateServiceInstanceRequest;
 import org.cloudfoundry.community.servicebroker.model.OperationState;
 import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
 import org.cloudfoundry.community.servicebroker.model.ServiceInstanceLastOperation;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
 
 public class LCServiceInstanceManager {
 	private ServiceInstanceRepo repo;
@@ -25,6 +32,11 @@ public class LCServiceInstanceManager {
 		return convert(entity);
 	}
 
+	/**
+	 * @return the id of the copy backing the instance, null if there's no
+	 *         such instance. A primary key lookup, the instance id is the
+	 *         service instance id.
+	 */
 	public String getCopyIdForInstance(String id) {
 		ServiceInstanceEntity entity = repo.findOne(id);
 		return null == entity ? null : entity.getCopyId();
@@ -40,10 +52,57 @@ public class LCServiceInstanceManager {
 		return instancePairs;
 	}
 
+	/**
+	 * @return a page of the copy ids backing each instance, ordered by
+	 *         instance.
+	 */
+	public Slice<String> getCopyIds(Pageable page) {
+		return repo.findCopyIds(page);
+	}
+
+	/**
+	 * Hand the copy id backing each instance to the consumer, ordered by
+	 * instance, a page at a time.
+	 */
+	public void forEachCopyId(Consumer<String> consumer) {
+		Pages.forEach("", repo::findAfter, ServiceInstanceEntity::getId,
+				e -> consumer.accept(e.getCopyId()));
+	}
+
 	public void saveInstance(ServiceInstance instance, String copyId) {
 		repo.save(new ServiceInstanceEntity(instance, copyId));
 	}
 
+	/**
+	 * Save the instance along with how far along its copy is. The progress's
+	 * copy id becomes the instance's copy id.
+	 */
+	public void saveProgress(ServiceInstance instance, CopyProgress progress) {
+		ServiceInstanceEntity entity = new ServiceInstanceEntity(instance,
+				progress.getCopyId());
+		entity.setProgress(progress);
+		repo.save(entity);
+	}
+
+	/**
+	 * @return how far along the instance's copy is, null if the instance
+	 *         doesn't exist or its copy isn't tracked.
+	 */
+	public CopyProgress getProgress(String id) {
+		ServiceInstanceEntity entity = repo.findOne(id);
+		return null == entity ? null : entity.getProgress();
+	}
+
+	/**
+	 * @return ids of the instances whose copies are still being built or torn
+	 *         down.
+	 */
+	public List<String> getInFlightInstanceIds() {
+		return repo.findByProvisioningStateIn(ProvisioningState.inFlight())
+				.stream().map(ServiceInstanceEntity::getId)
+				.collect(Collectors.toList());
+	}
+
 	public ServiceInstance removeInstance(String id) {
 		ServiceInstanceEntity entity = repo.findOne(id);
 		if (null != entity) {
@@ -1,22 +1,17 @@
 package org.cloudfoundry.community.servicebroker.datalifecycle.service;
 
-import static org.cloudfoundry.community.servicebroker.datalifecycle.config.LCCatalogConfig.COPY;
 import static org.cloudfoundry.community.servicebroker.datalifecycle.config.LCCatalogConfig.PRODUCTION;
 import static org.cloudfoundry.community.servicebroker.datalifecycle.model.BrokerActionState.COMPLETE;
 import static org.cloudfoundry.community.servicebroker.datalifecycle.model.BrokerActionState.FAILED;
 import static org.cloudfoundry.community.servicebroker.datalifecycle.model.BrokerActionState.IN_PROGRESS;
 
-import java.util.List;
-import java.util.Map;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import org.apache.log4j.Logger;
 import org.cloudfoundry.community.servicebroker.datalifecycle.dto.InstancePair;
 import org.cloudfoundry.community.servicebroker.datalifecycle.model.BrokerAction;
 import org.cloudfoundry.community.servicebroker.datalifecycle.model.BrokerActionState;
-import org.cloudfoundry.community.servicebroker.datalifecycle.provider.CopyProvider;
-import org.cloudfoundry.community.servicebroker.datalifecycle.provider.DataProvider;
-import org.cloudfoundry.community.servicebroker.datalifecycle.repo.BrokerActionRepository;
 import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerAsyncRequiredException;
 import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
 import org.cloudfoundry.community.servicebroker.exception.ServiceInstanceDoesNotExistException;
@@ -31,7 +26,9 @@ import org.cloudfoundry.community.servicebroker.model.UpdateServiceInstanceReque
 import org.cloudfoundry.community.servicebroker.service.ServiceInstanceService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.task.TaskExecutor;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.SliceImpl;
 import org.springframework.stereotype.Service;
 
 /**
@@ -47,34 +44,26 @@ public class LCServiceInstanceService implements ServiceInstanceService {
 
 	private LCServiceInstanceManager instanceManager;
 
-	private CopyProvider copyProvider;
-
 	private String sourceInstanceId;
 
-	private BrokerActionRepository brokerRepo;
-
-	private TaskExecutor executor;
+	private BrokerActionLog actionLog;
 
-	private DataProvider dataProvider;
+	private ProvisioningStateMachine stateMachine;
 
-	private DataProviderService dataProviderService;
+	private CopyPoolManager copyPool;
 
 	@Autowired
 	public LCServiceInstanceService(
-			final CopyProvider copyProvider,
-			final DataProvider dataProvider,
 			@Value("#{environment.SOURCE_INSTANCE_ID}") final String sourceInstanceId,
-			final BrokerActionRepository brokerRepo,
+			final BrokerActionLog actionLog,
 			final LCServiceInstanceManager instanceManager,
-			final TaskExecutor executor,
-			final DataProviderService dataProviderService) {
-		this.copyProvider = copyProvider;
-		this.dataProvider = dataProvider;
+			final ProvisioningStateMachine stateMachine,
+			final CopyPoolManager copyPool) {
 		this.sourceInstanceId = sourceInstanceId;
-		this.brokerRepo = brokerRepo;
+		this.actionLog = actionLog;
 		this.instanceManager = instanceManager;
-		this.executor = executor;
-		this.dataProviderService = dataProviderService;
+		this.stateMachine = stateMachine;
+		this.copyPool = copyPool;
 	}
 
 	@Override
@@ -89,6 +78,11 @@ public class LCServiceInstanceService implements ServiceInstanceService {
 		throwIfSync(request);
 
 		ServiceInstance instance = null;
+		String pooledCopy = null;
+
+		if (!PRODUCTION.equals(request.getPlanId())) {
+			pooledCopy = copyPool.take(request.getPlanId());
+		}
 
 		if (PRODUCTION.equals(request.getPlanId())) {
 			instance = new ServiceInstance(request).isAsync(false)
@@ -96,49 +90,25 @@ public class LCServiceInstanceService implements ServiceInstanceService {
 							new ServiceInstanceLastOperation("Provisioned",
 									OperationState.SUCCEEDED));
 			instanceManager.saveInstance(instance, sourceInstanceId);
+		} else if (null != pooledCopy) {
+			instance = new ServiceInstance(request).isAsync(false)
+					.withLastOperation(
+							new ServiceInstanceLastOperation("Provisioned",
+									OperationState.SUCCEEDED));
+			instanceManager.saveInstance(instance, pooledCopy);
+			log(id, "Created service instance from pooled copy "
+					+ pooledCopy, COMPLETE);
 		} else {
 			instance = new ServiceInstance(request).isAsync(true)
 					.withLastOperation(
 							new ServiceInstanceLastOperation(
 									"Creating instance",
 									OperationState.IN_PROGRESS));
-			instanceManager.saveInstance(instance, null);
-			provision(request, id, instance);
+			stateMachine.provision(instance);
 		}
 		return instance;
 	}
 
-	private void provision(CreateServiceInstanceRequest request, String id,
-			ServiceInstance instance) {
-		executor.execute(new Runnable() {
-			@Override
-			public void run() {
-				try {
-
-					String copyId = sourceInstanceId;
-					copyId = copyProvider.createCopy(sourceInstanceId);
-					logger.info("Sanitizing copy " + copyId);
-					String script = dataProviderService.getScript();
-					Map<String, Object> creds = copyProvider.getCreds(copyId);
-					dataProvider.sanitize(script, creds);
-
-					instance.withLastOperation(new ServiceInstanceLastOperation(
-							"Provisioned", OperationState.SUCCEEDED));
-					instanceManager.saveInstance(instance, copyId);
-
-					log(id, "Created service instance", COMPLETE);
-				} catch (Exception e) {
-					instance.withLastOperation(new ServiceInstanceLastOperation(
-							e.getMessage(), OperationState.FAILED));
-					instanceManager.saveInstance(instance, null);
-					log(id,
-							"Failed to create service instance: "
-									+ e.getMessage(), FAILED);
-				}
-			}
-		});
-	}
-
 	@Override
 	public ServiceInstance deleteServiceInstance(
 			DeleteServiceInstanceRequest request)
@@ -151,45 +121,14 @@ public class LCServiceInstanceService implements ServiceInstanceService {
 			log(id, "Service instance not found", FAILED);
 			return null;
 		}
-		String copyId = instanceManager.getCopyIdForInstance(id);
-
-		instanceManager.saveInstance(
-				instance.withLastOperation(
-						new ServiceInstanceLastOperation("deprovisioning",
-								OperationState.IN_PROGRESS)).isAsync(true),
-				copyId);
-
-		deProvision(request, id, instance);
+		stateMachine.deprovision(instance.withLastOperation(
+				new ServiceInstanceLastOperation("deprovisioning",
+						OperationState.IN_PROGRESS)).isAsync(true));
 
 		return instance;
 
 	}
 
-	private void deProvision(DeleteServiceInstanceRequest request, String id,
-			ServiceInstance instance) {
-		executor.execute(new Runnable() {
-			@Override
-			public void run() {
-				try {
-					if (COPY.equals(request.getPlanId())) {
-						copyProvider.deleteCopy(instanceManager
-								.getCopyIdForInstance(id));
-					}
-					log(id, "Deleted service instance", COMPLETE);
-					instanceManager.removeInstance(id);
-				} catch (ServiceBrokerException e) {
-					log(id,
-							"Failed to delete service instance: "
-									+ e.getMessage(), FAILED);
-					instance.withLastOperation(new ServiceInstanceLastOperation(
-							"failed to delete", OperationState.FAILED));
-					String copyId = instanceManager.getCopyIdForInstance(id);
-					instanceManager.saveInstance(instance, copyId);
-				}
-			}
-		});
-	}
-
 	@Override
 	public ServiceInstance getServiceInstance(String id) {
 		return instanceManager.getInstance(id);
@@ -207,22 +146,36 @@ public class LCServiceInstanceService implements ServiceInstanceService {
 				"Cannot update plan " + request.getPlanId());
 	}
 
+	/**
+	 * @return the id of the copy (or source) backing the service instance,
+	 *         null if there's no such service instance.
+	 */
 	public String getInstanceIdForServiceInstance(String serviceInstanceId) {
-		// @formatter:off
-		return instanceManager
-				.getInstances()
-				.stream()
-				.filter(s -> s.getRight().getServiceInstanceId()
-						.equals(serviceInstanceId)).findFirst().get().getLeft();
-		// @formatter:on
+		return instanceManager.getCopyIdForInstance(serviceInstanceId);
+	}
+
+	/**
+	 * Hand each source to copy pair to the consumer without holding them all
+	 * in memory.
+	 */
+	public void forEachProvisionedInstance(
+			Consumer<? super InstancePair> consumer) {
+		instanceManager.forEachCopyId(copyId -> consumer
+				.accept(pairFor(copyId)));
+	}
+
+	/**
+	 * @return a page of source to copy pairs, ordered by service instance.
+	 */
+	public Slice<InstancePair> getProvisionedInstances(Pageable page) {
+		Slice<String> copyIds = instanceManager.getCopyIds(page);
+		return new SliceImpl<>(copyIds.getContent().stream()
+				.map(this::pairFor).collect(Collectors.toList()), page,
+				copyIds.hasNext());
 	}
 
-	public List<InstancePair> getProvisionedInstances() {
-		// @formatter:off
-		return instanceManager.getInstances().stream()
-				.map(i -> new InstancePair(sourceInstanceId, i.getLeft()))
-				.collect(Collectors.toList());
-		// @formatter:on
+	private InstancePair pairFor(String copyId) {
+		return new InstancePair(sourceInstanceId, copyId);
 	}
 
 	public String getSourceInstanceId() {
@@ -237,7 +190,7 @@ public class LCServiceInstanceService implements ServiceInstanceService {
 		} else {
 			logger.info(logMsg);
 		}
-		brokerRepo.save(new BrokerAction(id, state, msg));
+		actionLog.record(new BrokerAction(id, state, msg));
 	}
 
 	private void throwIfDuplicate(String id)
@@ -0,0 +1,388 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.service;
+
+import static org.cloudfoundry.community.servicebroker.datalifecycle.config.LCCatalogConfig.COPY;
+import static org.cloudfoundry.community.servicebroker.datalifecycle.model.BrokerActionState.COMPLETE;
+import static org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState.DEPROVISIONING;
+import static org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState.READY;
+
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.log4j.Logger;
+import org.cloudfoundry.community.servicebroker.datalifecycle.dto.CopyProgress;
+import org.cloudfoundry.community.servicebroker.datalifecycle.exception.DataProviderSanitizationFailedException;
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.BrokerAction;
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.BrokerActionState;
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState;
+import org.cloudfoundry.community.servicebroker.datalifecycle.provider.CopyProvider;
+import org.cloudfoundry.community.servicebroker.datalifecycle.provider.DataProvider;
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.cloudfoundry.community.servicebroker.model.OperationState;
+import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
+import org.cloudfoundry.community.servicebroker.model.ServiceInstanceLastOperation;
+import org.springframework.core.task.TaskExecutor;
+
+/**
+ * Moves copies through their {@link ProvisioningState}s, persisting each step
+ * with the service instance so in flight copies survive a restart.
+ *
+ * Nothing here waits on the iaas. The copy provider hands back futures that
+ * complete on the shared scheduler, and each transition (and the sanitize
+ * step, which does real work) is picked up on the task executor. A copy only
+ * holds a thread while it's actually doing something.
+ *
+ * An instance deprovisioned while its copy is being built isn't torn down
+ * straight away, the step that's running could still create something. The
+ * build is marked instead, and once that step is done it stops advancing and
+ * tears down everything it made. A copy given up on before it was started
+ * has its image deleted.
+ */
+public class ProvisioningStateMachine {
+
+	private Logger log = Logger.getLogger(ProvisioningStateMachine.class);
+
+	private CopyProvider copyProvider;
+
+	private DataProvider dataProvider;
+
+	private DataProviderService dataProviderService;
+
+	private LCServiceInstanceManager instanceManager;
+
+	private BrokerActionLog actionLog;
+
+	private TaskExecutor executor;
+
+	private String sourceInstanceId;
+
+	/**
+	 * Instance id to the build of its copy, while it's in flight.
+	 */
+	private Map<String, Build> building = new ConcurrentHashMap<>();
+
+	public ProvisioningStateMachine(CopyProvider copyProvider,
+			DataProvider dataProvider,
+			DataProviderService dataProviderService,
+			LCServiceInstanceManager instanceManager,
+			BrokerActionLog actionLog, TaskExecutor executor,
+			String sourceInstanceId) {
+		this.copyProvider = copyProvider;
+		this.dataProvider = dataProvider;
+		this.dataProviderService = dataProviderService;
+		this.instanceManager = instanceManager;
+		this.actionLog = actionLog;
+		this.executor = executor;
+		this.sourceInstanceId = sourceInstanceId;
+	}
+
+	/**
+	 * Pick up the instances that were in flight when we last stopped.
+	 */
+	@PostConstruct
+	public void resume() {
+		for (String id : instanceManager.getInFlightInstanceIds()) {
+			ServiceInstance instance = instanceManager.getInstance(id);
+			CopyProgress progress = instanceManager.getProgress(id);
+			log.info("Resuming " + id + " from " + progress);
+			if (DEPROVISIONING == progress.getState()) {
+				tearDown(instance, progress);
+			} else {
+				bringUp(instance, progress);
+			}
+		}
+	}
+
+	/**
+	 * Start building and sanitizing a copy for the instance with its plan's
+	 * script. The instance's last operation is updated once the copy is ready
+	 * or has failed.
+	 */
+	public void provision(ServiceInstance instance) {
+		CopyProgress progress = CopyProgress.start(sourceInstanceId)
+				.withScriptDigest(
+						dataProviderService.getScriptDigestForPlan(instance
+								.getPlanId()));
+		instanceManager.saveProgress(instance, progress);
+		bringUp(instance, progress);
+	}
+
+	/**
+	 * Start deleting the instance's copy. The instance is removed once the
+	 * copy is gone, instances that aren't copies are removed without touching
+	 * the source.
+	 */
+	public void deprovision(ServiceInstance instance) {
+		String id = instance.getServiceInstanceId();
+		Build running = building.get(id);
+		if (null != running) {
+			synchronized (running) {
+				if (running == building.get(id)) {
+					running.cancelled = true;
+					instanceManager.saveProgress(instance,
+							running.last.next(DEPROVISIONING));
+					log.info("Deprovisioning " + id
+							+ " once the step its copy is on is done");
+					return;
+				}
+			}
+		}
+		CopyProgress progress = instanceManager.getProgress(id);
+		if (null == progress) {
+			// Handed out of the pool or production, nothing was tracked.
+			progress = new CopyProgress(READY, sourceInstanceId, null,
+					instanceManager.getCopyIdForInstance(id), null);
+		}
+		progress = progress.next(DEPROVISIONING);
+		instanceManager.saveProgress(instance, progress);
+		tearDown(instance, progress);
+	}
+
+	/**
+	 * Take a copy the rest of the way to READY.
+	 *
+	 * @param progress
+	 *            to start from
+	 * @param listener
+	 *            called with the progress after every step short of READY,
+	 *            typically to persist it
+	 * @return a future for the ready copy's progress, completes exceptionally
+	 *         if any step fails.
+	 */
+	public CompletableFuture<CopyProgress> build(CopyProgress progress,
+			Consumer<CopyProgress> listener) {
+		return build(progress, listener, status -> {
+		});
+	}
+
+	/**
+	 * Take a copy the rest of the way to READY, telling the status listener
+	 * how sanitizing is going while it runs.
+	 *
+	 * @param status
+	 *            called with descriptions of the copy's status between steps
+	 */
+	public CompletableFuture<CopyProgress> build(CopyProgress progress,
+			Consumer<CopyProgress> listener, Consumer<String> status) {
+		CompletableFuture<CopyProgress> result = new CompletableFuture<>();
+		executor.execute(() -> advance(progress, listener, status, result));
+		return result;
+	}
+
+	private void advance(CopyProgress progress,
+			Consumer<CopyProgress> listener, Consumer<String> status,
+			CompletableFuture<CopyProgress> result) {
+		if (READY == progress.getState()) {
+			result.complete(progress);
+			return;
+		}
+		step(progress, status).whenCompleteAsync((next, e) -> {
+			if (null != e) {
+				result.completeExceptionally(unwrap(e));
+				return;
+			}
+			log.info("Copy of " + next.getSourceId() + " is " + next);
+			if (READY != next.getState()) {
+				try {
+					listener.accept(next);
+				} catch (RuntimeException le) {
+					result.completeExceptionally(le);
+					return;
+				}
+			}
+			advance(next, listener, status, result);
+		}, executor);
+	}
+
+	private CompletableFuture<CopyProgress> step(CopyProgress progress,
+			Consumer<String> status) {
+		if (ProvisioningState.SANITIZING == progress.getState()) {
+			return CompletableFuture.supplyAsync(
+					() -> sanitize(progress, status), executor);
+		}
+		try {
+			return copyProvider.advanceCopy(progress);
+		} catch (ServiceBrokerException e) {
+			return failed(e);
+		}
+	}
+
+	private CopyProgress sanitize(CopyProgress progress,
+			Consumer<String> status) {
+		try {
+			log.info("Sanitizing copy " + progress.getCopyId());
+			String script = scriptFor(progress);
+			Map<String, Object> creds = copyProvider.getCreds(progress
+					.getCopyId());
+			dataProvider.sanitize(script, progress.getScriptDigest(), creds,
+					status);
+			return progress.next(READY);
+		} catch (Exception e) {
+			throw new CompletionException(e);
+		}
+	}
+
+	/**
+	 * Copies started before scripts were tracked by digest get the default
+	 * script.
+	 */
+	private String scriptFor(CopyProgress progress)
+			throws DataProviderSanitizationFailedException {
+		String digest = progress.getScriptDigest();
+		if (null == digest) {
+			return dataProviderService.getScript();
+		}
+		String script = dataProviderService.getScriptByDigest(digest);
+		if (null == script) {
+			throw new DataProviderSanitizationFailedException("Script "
+					+ digest + " is gone");
+		}
+		return script;
+	}
+
+	private void bringUp(ServiceInstance instance, CopyProgress progress) {
+		String id = instance.getServiceInstanceId();
+		Build running = new Build(progress);
+		building.put(id, running);
+		build(progress, p -> {
+			synchronized (running) {
+				running.last = p;
+				if (running.cancelled) {
+					throw new CancellationException(id + " was deprovisioned");
+				}
+				instanceManager.saveProgress(instance, p);
+			}
+		}, status -> {
+			synchronized (running) {
+				if (running.cancelled) {
+					return;
+				}
+				// Shows up as the description of the instance's last
+				// operation.
+				instance.withLastOperation(new ServiceInstanceLastOperation(
+						status, OperationState.IN_PROGRESS));
+				instanceManager.saveProgress(instance, running.last);
+			}
+		}).whenComplete(
+				(ready, e) -> {
+					CopyProgress built;
+					synchronized (running) {
+						building.remove(id, running);
+						built = running.cancelled ? (null == ready ? running.last
+								: ready).next(DEPROVISIONING) : null;
+						if (null != built) {
+							instanceManager.saveProgress(instance, built);
+						}
+					}
+					if (null != built) {
+						tearDown(instance, built);
+					} else if (null == e) {
+						instance.withLastOperation(new ServiceInstanceLastOperation(
+								"Provisioned", OperationState.SUCCEEDED));
+						instanceManager.saveProgress(instance, ready);
+						log(id, "Created service instance", COMPLETE);
+					} else {
+						instance.withLastOperation(new ServiceInstanceLastOperation(
+								e.getMessage(), OperationState.FAILED));
+						instanceManager.saveProgress(instance, running.last
+								.next(ProvisioningState.FAILED));
+						log(id,
+								"Failed to create service instance: "
+										+ e.getMessage(),
+								BrokerActionState.FAILED);
+					}
+				});
+	}
+
+	private void tearDown(ServiceInstance instance, CopyProgress progress) {
+		String id = instance.getServiceInstanceId();
+		deleteCopy(instance, progress).whenCompleteAsync(
+				(v, e) -> {
+					if (null == e) {
+						log(id, "Deleted service instance", COMPLETE);
+						instanceManager.removeInstance(id);
+					} else {
+						Throwable cause = unwrap(e);
+						log(id,
+								"Failed to delete service instance: "
+										+ cause.getMessage(),
+								BrokerActionState.FAILED);
+						instance.withLastOperation(new ServiceInstanceLastOperation(
+								"failed to delete", OperationState.FAILED));
+						instanceManager.saveProgress(instance,
+								progress.next(ProvisioningState.FAILED));
+					}
+				}, executor);
+	}
+
+	private CompletableFuture<Void> deleteCopy(ServiceInstance instance,
+			CopyProgress progress) {
+		if (!COPY.equals(instance.getPlanId())) {
+			return CompletableFuture.completedFuture(null);
+		}
+		if (null == progress.getCopyId()) {
+			if (null == progress.getImageId()) {
+				return CompletableFuture.completedFuture(null);
+			}
+			try {
+				return copyProvider.deleteImage(progress.getImageId());
+			} catch (ServiceBrokerException e) {
+				return failed(e);
+			}
+		}
+		try {
+			dataProvider.release(copyProvider.getCreds(progress.getCopyId()));
+		} catch (Exception e) {
+			// It'll be torn down when it goes idle.
+			log.warn("Failed to release connections to "
+					+ progress.getCopyId() + ": " + e.getMessage());
+		}
+		try {
+			return copyProvider.deleteCopy(progress.getCopyId());
+		} catch (ServiceBrokerException e) {
+			return failed(e);
+		}
+	}
+
+	private <T> CompletableFuture<T> failed(Throwable e) {
+		CompletableFuture<T> failed = new CompletableFuture<>();
+		failed.completeExceptionally(e);
+		return failed;
+	}
+
+	private Throwable unwrap(Throwable e) {
+		return e instanceof CompletionException && null != e.getCause() ? e
+				.getCause() : e;
+	}
+
+	private void log(String id, String msg, BrokerActionState state) {
+		String logMsg = msg + " " + id;
+
+		if (BrokerActionState.FAILED == state) {
+			log.error(logMsg);
+		} else {
+			log.info(logMsg);
+		}
+		actionLog.record(new BrokerAction(id, state, msg));
+	}
+
+	/**
+	 * How far an instance's copy has got, and whether it's been given up on.
+	 * Both are read and changed holding the build.
+	 */
+	private static class Build {
+
+		private CopyProgress last;
+
+		private boolean cancelled;
+
+		private Build(CopyProgress last) {
+			this.last = last;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.service;
+
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.log4j.Logger;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * The broker used to keep a single script in {@value #OLD_TABLE}. On startup
+ * it's saved as the {@value DataProviderService#DEFAULT} script, unless
+ * there already is one, and the old table is dropped. Copies must never be
+ * handed out unsanitized because the script was left behind on upgrade.
+ */
+public class ScriptMigration {
+
+	static final String OLD_TABLE = "sanitization_script";
+
+	private Logger log = Logger.getLogger(ScriptMigration.class);
+
+	private JdbcTemplate jdbc;
+
+	private TransactionTemplate transaction;
+
+	private DataProviderService dataProviderService;
+
+	public ScriptMigration(JdbcTemplate jdbc, TransactionTemplate transaction,
+			DataProviderService dataProviderService) {
+		this.jdbc = jdbc;
+		this.transaction = transaction;
+		this.dataProviderService = dataProviderService;
+	}
+
+	@PostConstruct
+	public void migrate() {
+		if (!Tables.exists(jdbc, OLD_TABLE)) {
+			return;
+		}
+		transaction.execute(status -> {
+			List<String> scripts = jdbc.queryForList("select script from "
+					+ OLD_TABLE + " order by id desc", String.class);
+			if (scripts.isEmpty() || null == scripts.get(0)) {
+				log.info("No script to carry over from " + OLD_TABLE);
+			} else if (null != dataProviderService.getScriptDigest()) {
+				log.warn("Not carrying the script over from " + OLD_TABLE
+						+ ", there's already a default script");
+			} else {
+				dataProviderService.saveScript(scripts.get(0));
+				log.info("Carried the script over from " + OLD_TABLE
+						+ " as the default script");
+			}
+			jdbc.execute("drop table " + OLD_TABLE);
+			return null;
+		});
+	}
+}
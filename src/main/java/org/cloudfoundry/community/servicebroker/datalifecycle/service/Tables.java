@@ -0,0 +1,36 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.service;
+
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Looks up tables left behind by older versions of the broker.
+ */
+final class Tables {
+
+	private Tables() {
+	}
+
+	/**
+	 * @return true if there's a table with the name, in whichever case the
+	 *         database folds names to.
+	 */
+	static boolean exists(JdbcTemplate jdbc, String name) {
+		return jdbc.execute((ConnectionCallback<Boolean>) connection -> {
+			DatabaseMetaData metaData = connection.getMetaData();
+			for (String folded : new String[] { name.toLowerCase(),
+					name.toUpperCase() }) {
+				try (ResultSet tables = metaData.getTables(null, null, folded,
+						new String[] { "TABLE" })) {
+					if (tables.next()) {
+						return true;
+					}
+				}
+			}
+			return false;
+		});
+	}
+}
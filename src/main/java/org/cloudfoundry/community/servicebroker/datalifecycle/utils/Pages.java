@@ -0,0 +1,49 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.utils;
+
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+
+/**
+ * Walks a paged query so only one page is ever held in memory.
+ */
+public class Pages {
+
+	public static final int PAGE_SIZE = 500;
+
+	private Pages() {
+	}
+
+	/**
+	 * Hand every row the query returns to the consumer, a page at a time.
+	 * Each page is asked for as the rows after the last key seen rather than
+	 * by offset, so later pages don't get slower to read and rows added or
+	 * removed along the way don't shift rows between pages.
+	 *
+	 * @param first
+	 *            key, lower than any row's
+	 * @param query
+	 *            for the first page of rows with keys after the given one,
+	 *            ordered by key
+	 * @param keyOf
+	 *            a row
+	 */
+	public static <K, T> void forEach(K first,
+			BiFunction<K, Pageable, List<T>> query, Function<T, K> keyOf,
+			Consumer<? super T> consumer) {
+		Pageable page = new PageRequest(0, PAGE_SIZE);
+		K last = first;
+		List<T> rows;
+		do {
+			rows = query.apply(last, page);
+			rows.forEach(consumer);
+			if (!rows.isEmpty()) {
+				last = keyOf.apply(rows.get(rows.size() - 1));
+			}
+		} while (rows.size() == PAGE_SIZE);
+	}
+}
@@ -0,0 +1,66 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How often, and for how long, a {@link Waiter} polls for something.
+ *
+ * Delays start at initialDelay and double on every attempt up to maxDelay.
+ * Each delay is jittered down by up to half so that many waiters started at
+ * the same moment don't all poll in lock step. Once the deadline has passed
+ * the wait fails.
+ */
+public class WaitPolicy {
+
+	private final long initialDelay;
+
+	private final long maxDelay;
+
+	private final long deadline;
+
+	/**
+	 * @param initialDelay
+	 *            before the second attempt, the first one is immediate
+	 * @param maxDelay
+	 *            cap on the delay between attempts
+	 * @param deadline
+	 *            how long to wait in total before giving up
+	 * @param unit
+	 *            of all of the above
+	 */
+	public WaitPolicy(long initialDelay, long maxDelay, long deadline,
+			TimeUnit unit) {
+		if (initialDelay <= 0 || maxDelay < initialDelay || deadline <= 0) {
+			throw new IllegalArgumentException("Bad wait policy: "
+					+ initialDelay + "/" + maxDelay + "/" + deadline);
+		}
+		this.initialDelay = unit.toMillis(initialDelay);
+		this.maxDelay = unit.toMillis(maxDelay);
+		this.deadline = unit.toMillis(deadline);
+	}
+
+	/**
+	 * @return the un-jittered delay in ms to sleep after the given attempt.
+	 */
+	public long getDelay(int attempt) {
+		// Avoid overflowing the shift for long running waits.
+		int doublings = Math.min(attempt, 30);
+		return Math.min(maxDelay, initialDelay << doublings);
+	}
+
+	/**
+	 * @return the delay after the given attempt, jittered with the given
+	 *         random value in [0, 1).
+	 */
+	public long getDelay(int attempt, double random) {
+		long delay = getDelay(attempt);
+		return delay - (long) (delay / 2 * random);
+	}
+
+	/**
+	 * @return total time in ms to wait before giving up.
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+}
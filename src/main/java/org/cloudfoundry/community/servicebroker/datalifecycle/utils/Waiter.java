@@ -0,0 +1,101 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.utils;
+
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Polls for something to happen without parking a thread while it waits.
+ * Attempts are timed by a shared scheduler, so any number of waits in flight
+ * cost only the scheduler's threads. Probes that block (on the network, say)
+ * should be given an executor to run on, so they don't hold up the scheduler
+ * and every other wait with it.
+ */
+public class Waiter {
+
+	private Logger log = Logger.getLogger(Waiter.class);
+
+	private ScheduledExecutorService scheduler;
+
+	private Executor executor;
+
+	/**
+	 * Probes run on the scheduler.
+	 */
+	public Waiter(ScheduledExecutorService scheduler) {
+		this(scheduler, scheduler);
+	}
+
+	/**
+	 * @param executor
+	 *            to run the probes on
+	 */
+	public Waiter(ScheduledExecutorService scheduler, Executor executor) {
+		this.scheduler = scheduler;
+		this.executor = executor;
+	}
+
+	/**
+	 * Poll the probe until it returns a value, throws, or the policy's
+	 * deadline passes. The first attempt is made right away.
+	 *
+	 * @param what
+	 *            we're waiting for, for the logs and the timeout message
+	 * @param probe
+	 *            returns a value once the wait is over, empty to keep waiting
+	 * @param policy
+	 *            to space out the attempts with
+	 * @return a future that completes with the probe's value, or
+	 *         exceptionally with a {@link TimeoutException} or whatever the
+	 *         probe threw.
+	 */
+	public <T> CompletableFuture<T> waitFor(String what,
+			Callable<Optional<T>> probe, WaitPolicy policy) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		long deadline = System.currentTimeMillis() + policy.getDeadline();
+		executor.execute(() -> attempt(what, probe, policy, result, deadline,
+				0));
+		return result;
+	}
+
+	private <T> void attempt(String what, Callable<Optional<T>> probe,
+			WaitPolicy policy, CompletableFuture<T> result, long deadline,
+			int attempt) {
+		if (result.isDone()) {
+			// Someone gave up on us.
+			return;
+		}
+		try {
+			Optional<T> value = probe.call();
+			if (value.isPresent()) {
+				result.complete(value.get());
+				return;
+			}
+		} catch (Exception e) {
+			result.completeExceptionally(e);
+			return;
+		}
+
+		long remaining = deadline - System.currentTimeMillis();
+		if (remaining <= 0) {
+			result.completeExceptionally(new TimeoutException(
+					"Timed out waiting for " + what));
+			return;
+		}
+		long delay = Math.min(remaining, policy.getDelay(attempt,
+				ThreadLocalRandom.current().nextDouble()));
+		log.debug("Waiting " + delay + "ms for " + what + " (attempt "
+				+ (attempt + 1) + ")");
+		scheduler.schedule(
+				() -> executor.execute(() -> attempt(what, probe, policy,
+						result, deadline, attempt + 1)), delay,
+				TimeUnit.MILLISECONDS);
+	}
+}
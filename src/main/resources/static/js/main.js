@@ -52,7 +52,7 @@ serviceBrokerApp.controller("SearchController", function($scope, $http) {
     $scope.complete = {};
 
     $scope.baseFunc = function(searchParam, receiver, failTxt) {
-        $http.get("/actions/search/findByState?state=" + searchParam ).success(function(data) {
+        $http.get("/actions/search/findLatestByState?state=" + searchParam ).success(function(data) {
             if (data._embedded) {
                 receiver(data._embedded.actions);
             }
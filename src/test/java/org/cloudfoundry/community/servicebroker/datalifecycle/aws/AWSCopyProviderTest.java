@@ -1,16 +1,32 @@
 package org.cloudfoundry.community.servicebroker.datalifecycle.aws;
 
+import static org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState.AMI_PENDING;
+import static org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState.BOOTING;
+import static org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState.INSTANCE_PENDING;
+import static org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState.IP_ASSOCIATED;
+import static org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState.SANITIZING;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
+import org.cloudfoundry.community.servicebroker.datalifecycle.dto.CopyProgress;
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.CopyArtifact;
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState;
+import org.cloudfoundry.community.servicebroker.datalifecycle.repo.CopyArtifactRepo;
 import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
 import org.junit.Before;
 import org.junit.Test;
@@ -29,26 +45,74 @@ public class AWSCopyProviderTest {
 	@Mock
 	private AmazonEC2Client ec2Client;
 
+	@Mock
+	private CopyArtifactRepo repo;
+
 	private String pgURI = "postgres://10.10.10.10:5432/testdb";
 
 	@Before
-	public void setUp() throws ServiceBrokerException, TimeoutException {
+	public void setUp() throws Exception {
 		MockitoAnnotations.initMocks(this);
 		// TODO, need to get the aws helper in there.
 		String pgUser = "pgUser";
 		String pgPass = "pgPass";
-		provider = new AWSCopyProvider(aws, pgUser, pgPass, pgURI,
-				"sourceInstance");
+		provider = new AWSCopyProvider(aws, new CopyArtifactRegistry(repo),
+				pgUser, pgPass, pgURI, "sourceInstance", Runnable::run);
 		// TODO remove the description.......
 		when(
 				aws.createAMI("sourceInstance",
 						"CF Service Broker Snapshot Image")).thenReturn(
 				"test_ami");
+		when(aws.waitForAMI("test_ami")).thenReturn(
+				CompletableFuture.completedFuture("test_ami"));
 
 		when(aws.startEC2Instance("test_ami")).thenReturn("test_instance");
+		when(aws.waitForInstance("test_instance")).thenReturn(
+				CompletableFuture.completedFuture(true));
+		when(aws.addElasticIp("test_instance")).thenReturn("10.10.10.10");
+		when(aws.waitForBoot("10.10.10.10")).thenReturn(
+				CompletableFuture.completedFuture(true));
 
-		assertThat("test_instance",
-				is(equalTo(provider.createCopy("sourceInstance"))));
+		when(aws.deleteStorageArtifacts(any())).thenReturn(
+				CompletableFuture.completedFuture(null));
+
+		assertThat("test_instance", is(equalTo(createCopy().getCopyId())));
+	}
+
+	private List<ProvisioningState> states = new ArrayList<>();
+
+	private CopyProgress createCopy() throws Exception {
+		CopyProgress progress = CopyProgress.start("sourceInstance");
+		while (SANITIZING != progress.getState()) {
+			progress = provider.advanceCopy(progress).get();
+			states.add(progress.getState());
+		}
+		return progress;
+	}
+
+	@Test
+	public void itShouldStepThroughTheProvisioningStates() {
+		assertThat(states, contains(AMI_PENDING, INSTANCE_PENDING,
+				INSTANCE_PENDING, IP_ASSOCIATED, BOOTING, SANITIZING));
+	}
+
+	@Test
+	public void itShouldPickUpWhereItLeftOff() throws Exception {
+		provider = new AWSCopyProvider(aws, new CopyArtifactRegistry(repo),
+				"pgUser", "pgPass", pgURI, "sourceInstance", Runnable::run);
+		CopyProgress booting = new CopyProgress(BOOTING, "sourceInstance",
+				"test_ami", "test_instance", "10.10.10.10");
+
+		assertThat(provider.advanceCopy(booting).get().getState(),
+				is(equalTo(SANITIZING)));
+		// Only the ones from setUp, nothing new was started.
+		verify(aws, times(1)).createAMI(any(), any());
+		verify(aws, times(1)).startEC2Instance(any());
+		verify(aws, times(2)).waitForBoot("10.10.10.10");
+		when(aws.getEC2InstancePublicIp("test_instance")).thenReturn(
+				"10.10.10.10");
+		assertThat(provider.getCreds("test_instance").get("uri"),
+				is(equalTo(pgURI)));
 	}
 
 	@Test
@@ -68,8 +132,21 @@ public class AWSCopyProviderTest {
 			throws ServiceBrokerException {
 		when(aws.getEC2InstancePublicIp("test_instance")).thenReturn("2.2.2.2");
 		Map<String, Object> creds = provider.getCreds("test_instance");
-		assertThat("postgres://2.2.2.2:5432/testdb",
+		// Recorded when the address was associated.
+		assertThat("postgres://10.10.10.10:5432/testdb",
 				is(equalTo(creds.get("uri"))));
+		verify(aws, never()).getEC2InstancePublicIp(any());
+	}
+
+	@Test
+	public void itShouldOnlyLookUpTheSourceEndpointOnce()
+			throws ServiceBrokerException {
+		when(aws.getEC2InstancePublicIp("sourceInstance")).thenReturn(
+				"2.2.2.2");
+		provider.getCreds("sourceInstance");
+		assertThat(provider.getCreds("sourceInstance").get("uri"),
+				is(equalTo("postgres://2.2.2.2:5432/testdb")));
+		verify(aws, times(1)).getEC2InstancePublicIp("sourceInstance");
 	}
 
 	@Test
@@ -80,6 +157,35 @@ public class AWSCopyProviderTest {
 		verify(aws).terminateEc2Instance("test_instance");
 		verify(aws).deregisterAMI("test_ami");
 		verify(aws).deleteStorageArtifacts("test_ami");
+		verify(aws).releaseElasticIp("test_instance");
+		verify(repo).delete("test_instance");
+	}
+
+	@Test
+	public void itShouldRememberCopiesAcrossRestarts() throws Exception {
+		when(repo.findAll()).thenReturn(
+				Collections.singletonList(new CopyArtifact("old_instance",
+						"old_ami", 0)));
+		CopyArtifactRegistry registry = new CopyArtifactRegistry(repo);
+		registry.load();
+		provider = new AWSCopyProvider(aws, registry, "pgUser", "pgPass",
+				pgURI, "sourceInstance", Runnable::run);
+
+		when(aws.getEC2InstancePublicIp("old_instance")).thenReturn(
+				"10.10.10.10");
+		assertThat(provider.getCreds("old_instance").get("uri"),
+				is(equalTo(pgURI)));
+		provider.deleteCopy("old_instance").get();
+		verify(aws).deregisterAMI("old_ami");
+		verify(repo).delete("old_instance");
+	}
+
+	@Test
+	public void itShouldStillTerminateCopiesItKnowsNothingAbout()
+			throws Exception {
+		provider.deleteCopy("wut").get();
+		verify(aws).terminateEc2Instance("wut");
+		verify(aws, never()).deregisterAMI(any());
 	}
 
 	@Test
@@ -97,9 +203,15 @@ public class AWSCopyProviderTest {
 	}
 
 	@Test(expected = ServiceBrokerException.class)
-	public void itWrapsAWSHelperExceptions() throws TimeoutException,
-			ServiceBrokerException {
-		when(aws.createAMI(any(), any())).thenThrow(new TimeoutException());
-		provider.createCopy("sourceInstance");
+	public void itWrapsAWSHelperExceptions() throws Throwable {
+		when(aws.addElasticIp(any())).thenThrow(
+				new ServiceBrokerException("No elastic IP's avaliable!"));
+		try {
+			provider.advanceCopy(
+					new CopyProgress(INSTANCE_PENDING, "sourceInstance",
+							"test_ami", "test_instance", null)).get();
+		} catch (ExecutionException e) {
+			throw e.getCause();
+		}
 	}
 }
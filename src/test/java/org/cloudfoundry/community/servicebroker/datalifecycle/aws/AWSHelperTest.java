@@ -15,35 +15,44 @@ import static org.mockito.Mockito.when;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.function.Predicate;
 
 import org.cloudfoundry.community.servicebroker.datalifecycle.utils.HostUtils;
+import org.cloudfoundry.community.servicebroker.datalifecycle.utils.Waiter;
 import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
 import org.cloudfoundry.community.servicebroker.exception.ServiceInstanceBindingExistsException;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
 
 import com.amazonaws.services.ec2.AmazonEC2Client;
 import com.amazonaws.services.ec2.model.Address;
+import com.amazonaws.services.ec2.model.BlockDeviceMapping;
 import com.amazonaws.services.ec2.model.CreateImageResult;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
 import com.amazonaws.services.ec2.model.DescribeAddressesResult;
 import com.amazonaws.services.ec2.model.DescribeImagesResult;
-import com.amazonaws.services.ec2.model.DescribeInstanceStatusResult;
 import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.DescribeSnapshotsRequest;
 import com.amazonaws.services.ec2.model.DescribeSnapshotsResult;
 import com.amazonaws.services.ec2.model.DescribeVolumesRequest;
 import com.amazonaws.services.ec2.model.DescribeVolumesResult;
+import com.amazonaws.services.ec2.model.EbsBlockDevice;
 import com.amazonaws.services.ec2.model.Filter;
 import com.amazonaws.services.ec2.model.Image;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.InstanceState;
-import com.amazonaws.services.ec2.model.InstanceStatus;
 import com.amazonaws.services.ec2.model.Reservation;
 import com.amazonaws.services.ec2.model.RunInstancesResult;
 import com.amazonaws.services.ec2.model.Snapshot;
+import com.amazonaws.services.ec2.model.Tag;
 import com.amazonaws.services.ec2.model.Volume;
 
 public class AWSHelperTest {
@@ -54,7 +63,8 @@ public class AWSHelperTest {
 	private AWSHelper aws;
 
 	private DescribeImagesResult describeImagesResult = new DescribeImagesResult()
-			.withImages(new Image().withState("available"));
+			.withImages(new Image().withImageId("test_image").withState(
+					"available"));
 
 	private Instance instance = new Instance().withInstanceId("test_instance");
 
@@ -65,11 +75,29 @@ public class AWSHelperTest {
 	@Mock
 	private HostUtils hostUtils;
 
+	@Mock
+	private CounterService counterService;
+
+	@Mock
+	private GaugeService gaugeService;
+
+	private ScheduledExecutorService scheduler = Executors
+			.newSingleThreadScheduledExecutor();
+
 	@Before
 	public void setUp() {
 		MockitoAnnotations.initMocks(this);
+		EC2Watcher watcher = new EC2Watcher(ec2Client, scheduler,
+				counterService, 10);
+		watcher.start();
 		aws = new AWSHelper(ec2Client, "test_subnet", "source_instance",
-				hostUtils, 5432);
+				hostUtils, 5432, new Waiter(scheduler), watcher,
+				new ElasticIpPool(ec2Client, gaugeService, 0));
+	}
+
+	@After
+	public void tearDown() {
+		scheduler.shutdownNow();
 	}
 
 	@Test
@@ -81,18 +109,18 @@ public class AWSHelperTest {
 				new CreateImageResult().withImageId("test_image"));
 
 		when(
-				ec2Client.describeImages(awsRqst(r -> r.getImageIds().get(0)
-						.equals("test_image")))).thenReturn(
+				ec2Client.describeImages(awsRqst(r -> r.getFilters().get(0)
+						.getValues().contains("test_image")))).thenReturn(
 				describeImagesResult);
 
-		String amiId = aws
-				.createAMI("test_source_instance", "test_description");
+		String amiId = aws.createAMI("test_source_instance",
+				"test_description");
 		assertThat(amiId, is(equalTo("test_image")));
+		assertThat(aws.waitForAMI(amiId).get(), is(equalTo("test_image")));
 	}
 
 	@Test
-	public void itShouldStartAnEC2InstanceFromAnAMI()
-			throws ServiceBrokerException {
+	public void itShouldStartAnEC2InstanceFromAnAMI() throws Exception {
 
 		when(
 				ec2Client.runInstances(awsRqst(r -> r.getImageId().equals(
@@ -102,28 +130,40 @@ public class AWSHelperTest {
 				new DescribeAddressesResult().withAddresses(Collections
 						.singleton(new Address().withPublicIp("10.10.10.10"))));
 
-		when(ec2Client.describeInstanceStatus(any())).thenReturn(
-				new DescribeInstanceStatusResult()
-						.withInstanceStatuses(Collections
-								.singleton(new InstanceStatus()
-										.withInstanceState(new InstanceState()
-												.withName("running")))));
+		when(ec2Client.describeInstances(any())).thenReturn(
+				new DescribeInstancesResult()
+						.withReservations(new Reservation()
+								.withInstances(new Instance().withInstanceId(
+										"test_instance").withState(
+										new InstanceState().withName("running")))));
 
-		when(hostUtils.waitForBoot(anyString(), anyInt())).thenReturn(true);
+		when(hostUtils.isResponding(anyString(), anyInt())).thenReturn(true);
 		assertThat(aws.startEC2Instance("test_image"),
 				is(equalTo("test_instance")));
+		assertThat(aws.waitForInstance("test_instance").get(), is(true));
+		assertThat(aws.addElasticIp("test_instance"),
+				is(equalTo("10.10.10.10")));
+		verify(ec2Client).associateAddress(
+				awsRqst(r -> r.getInstanceId().equals("test_instance")
+						&& r.getPublicIp().equals("10.10.10.10")));
+		assertThat(aws.waitForBoot("10.10.10.10").get(), is(true));
 	}
 
-	// TODO this should not throw a service broker exception.
-	@Test(expected = TimeoutException.class)
-	public void itShouldFailWhenImageStateIsFailed() throws TimeoutException {
+	@Test(expected = ServiceBrokerException.class)
+	public void itShouldFailWhenImageStateIsFailed() throws Throwable {
 		when(ec2Client.createImage(any())).thenReturn(
 				new CreateImageResult().withImageId("test_image"));
 
 		describeImagesResult.getImages().get(0).setState("failed");
 		when(ec2Client.describeImages(any())).thenReturn(describeImagesResult);
 
-		aws.createAMI("test_source_instance", "it's not gonna work");
+		try {
+			aws.waitForAMI(
+					aws.createAMI("test_source_instance", "it's not gonna work"))
+					.get();
+		} catch (ExecutionException e) {
+			throw e.getCause();
+		}
 	}
 
 	@Test
@@ -146,11 +186,30 @@ public class AWSHelperTest {
 	}
 
 	@Test
-	public void itShouldDeleteTheStorageArtifacts()
-			throws ServiceInstanceBindingExistsException,
-			ServiceBrokerException {
+	public void itShouldDeleteTheStorageArtifacts() throws Exception {
+
+		when(ec2Client.describeSnapshots(snapsFilteredBy("tag:" + AWSHelper.AMI_TAG,
+				"test_image"))).thenReturn(
+				new DescribeSnapshotsResult().withSnapshots(new Snapshot()
+						.withSnapshotId("test_snapshot")));
+		givenTheVolumeForTheSnapshot();
 
-		when(ec2Client.describeSnapshots())
+		aws.deleteStorageArtifacts("test_image").get();
+
+		verify(ec2Client).deleteSnapshot(
+				awsRqst(r -> r.getSnapshotId().equals("test_snapshot")));
+
+		verify(ec2Client).deleteVolume(
+				awsRqst(r -> r.getVolumeId().equals("test_volume")));
+
+	}
+
+	@Test
+	public void itShouldFallBackToTheDescriptionForUntaggedSnapshots()
+			throws Exception {
+		givenNoTaggedSnapshots();
+		when(ec2Client.describeSnapshots(snapsFilteredBy("description",
+				"Created by CreateImage(source_instance) for test_image from vol*")))
 				.thenReturn(
 						new DescribeSnapshotsResult().withSnapshots(Arrays.asList(
 								new Snapshot()
@@ -162,7 +221,55 @@ public class AWSHelperTest {
 								new Snapshot()
 										.withDescription("Created by CreateImage(i-bf72d345) for ami-xx from vol-e7526fac"),
 								new Snapshot())));
+		givenTheVolumeForTheSnapshot();
+
+		aws.deleteStorageArtifacts("test_image").get();
+
+		verify(ec2Client).deleteSnapshot(
+				awsRqst(r -> r.getSnapshotId().equals("test_snapshot")));
+		verify(ec2Client).deleteVolume(
+				awsRqst(r -> r.getVolumeId().equals("test_volume")));
+	}
+
+	@Test
+	public void itShouldTagWhatItCreates() throws Exception {
+		when(ec2Client.createImage(any())).thenReturn(
+				new CreateImageResult().withImageId("test_image"));
+		describeImagesResult.getImages().get(0)
+				.withBlockDeviceMappings(new BlockDeviceMapping()
+						.withEbs(new EbsBlockDevice()
+								.withSnapshotId("test_snapshot")));
+		when(ec2Client.describeImages(any())).thenReturn(describeImagesResult);
+
+		aws.waitForAMI(aws.createAMI("source_instance", "tagged")).get();
 
+		verify(ec2Client).createTags(
+				awsRqst(r -> r.getResources().contains("test_image")
+						&& isTaggedWith(r, "test_image")));
+		verify(ec2Client).createTags(
+				awsRqst(r -> r.getResources().contains("test_snapshot")
+						&& isTaggedWith(r, "test_image")));
+	}
+
+	private boolean isTaggedWith(CreateTagsRequest r, String ami) {
+		return r.getTags().contains(new Tag(AWSHelper.AMI_TAG, ami))
+				&& r.getTags().contains(
+						new Tag(AWSHelper.SOURCE_TAG, "source_instance"));
+	}
+
+	private void givenNoTaggedSnapshots() {
+		when(ec2Client.describeSnapshots(snapsFilteredBy("tag:" + AWSHelper.AMI_TAG,
+				"test_image"))).thenReturn(new DescribeSnapshotsResult());
+	}
+
+	private DescribeSnapshotsRequest snapsFilteredBy(String name, String value) {
+		return awsRqst(r -> r.getOwnerIds().equals(
+				Collections.singletonList("self"))
+				&& r.getFilters().get(0).getName().equals(name)
+				&& r.getFilters().get(0).getValues().contains(value));
+	}
+
+	private void givenTheVolumeForTheSnapshot() {
 		Predicate<DescribeVolumesRequest> pred = new Predicate<DescribeVolumesRequest>() {
 			@Override
 			public boolean test(DescribeVolumesRequest r) {
@@ -175,19 +282,11 @@ public class AWSHelperTest {
 
 		DescribeVolumesResult volumesResult = new DescribeVolumesResult()
 				.withVolumes(Collections.singletonList(new Volume()
-						.withVolumeId("test_volume")));
+						.withVolumeId("test_volume")
+						.withSnapshotId("test_snapshot").withState("available")));
 
 		when(ec2Client.describeVolumes(awsRqst(pred)))
 				.thenReturn(volumesResult);
-
-		aws.deleteStorageArtifacts("test_image");
-
-		verify(ec2Client).deleteSnapshot(
-				awsRqst(r -> r.getSnapshotId().equals("test_snapshot")));
-
-		verify(ec2Client).deleteVolume(
-				awsRqst(r -> r.getVolumeId().equals("test_volume")));
-
 	}
 
 	@Test(expected = ServiceBrokerException.class)
@@ -195,7 +294,9 @@ public class AWSHelperTest {
 			throws ServiceBrokerException,
 			ServiceInstanceBindingExistsException {
 
-		when(ec2Client.describeSnapshots())
+		givenNoTaggedSnapshots();
+		when(ec2Client.describeSnapshots(snapsFilteredBy("description",
+				"Created by CreateImage(source_instance) for test_image from vol*")))
 				.thenReturn(
 						new DescribeSnapshotsResult().withSnapshots(Arrays.asList(
 								new Snapshot()
@@ -222,44 +323,4 @@ public class AWSHelperTest {
 		assertThat(aws.getEC2InstancePublicIp(instance.getInstanceId()),
 				is(equalTo("0.0.0.0")));
 	}
-
-	@Test
-	public void itShouldReturnAFreeElasticIp() throws ServiceBrokerException {
-		when(ec2Client.describeAddresses()).thenReturn(
-				new DescribeAddressesResult().withAddresses(Collections
-						.singleton(new Address().withPublicIp("10.10.10.10"))));
-		assertThat("10.10.10.10", is(aws.getAvaliableElasticIp()));
-	}
-
-	@Test
-	public void itShouldReturnOnlyOneFreeElasticIp()
-			throws ServiceBrokerException {
-		when(ec2Client.describeAddresses()).thenReturn(
-				new DescribeAddressesResult().withAddresses(Arrays.asList(
-						new Address().withPublicIp("10.10.10.10")
-								.withInstanceId(null),
-						new Address().withPublicIp("10.10.10.11")
-								.withInstanceId(null))));
-		assertThat("10.10.10.10", is(aws.getAvaliableElasticIp()));
-	}
-
-	@Test(expected = ServiceBrokerException.class)
-	public void itShouldReturnNullIfNoElasticIpIsAvaliable()
-			throws ServiceBrokerException {
-		when(ec2Client.describeAddresses()).thenReturn(
-				new DescribeAddressesResult().withAddresses(new ArrayList<>()));
-		assertNull(aws.getAvaliableElasticIp());
-	}
-
-	@Test
-	public void itShouldFilterOutAttachedElasticIPs()
-			throws ServiceBrokerException {
-		when(ec2Client.describeAddresses()).thenReturn(
-				new DescribeAddressesResult().withAddresses(Arrays.asList(
-						new Address().withPublicIp("10.10.10.10")
-								.withInstanceId("the-instance"),
-						new Address().withPublicIp("10.10.10.11")
-								.withInstanceId(null))));
-		assertThat("10.10.10.11", is(aws.getAvaliableElasticIp()));
-	}
 }
@@ -0,0 +1,175 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.aws;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.boot.actuate.metrics.CounterService;
+
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.DescribeImagesRequest;
+import com.amazonaws.services.ec2.model.DescribeImagesResult;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.DescribeVolumesResult;
+import com.amazonaws.services.ec2.model.Image;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+
+public class EC2WatcherTest {
+
+	private static final long DEADLINE = TimeUnit.MINUTES.toMillis(1);
+
+	@Mock
+	private AmazonEC2Client ec2Client;
+
+	@Mock
+	private CounterService counterService;
+
+	private ScheduledExecutorService scheduler = Executors
+			.newSingleThreadScheduledExecutor();
+
+	private EC2Watcher watcher;
+
+	@Before
+	public void setUp() {
+		MockitoAnnotations.initMocks(this);
+		// Not started, the tests poll by hand.
+		watcher = new EC2Watcher(ec2Client, scheduler, counterService, 10);
+		when(ec2Client.describeImages(any())).thenAnswer(
+				i -> {
+					List<Image> images = new ArrayList<>();
+					((DescribeImagesRequest) i.getArguments()[0])
+							.getFilters()
+							.get(0)
+							.getValues()
+							.forEach(
+									id -> images.add(new Image()
+											.withImageId(id).withState(
+													"available")));
+					return new DescribeImagesResult().withImages(images);
+				});
+	}
+
+	@After
+	public void tearDown() {
+		scheduler.shutdownNow();
+	}
+
+	@Test
+	public void itShouldMakeOneCallForAllTheImagesBeingWatched()
+			throws Exception {
+		List<CompletableFuture<String>> waits = new ArrayList<>();
+		for (int i = 0; i < 10; ++i) {
+			waits.add(watcher.watchImage("ami-" + i, available(), DEADLINE));
+		}
+		watcher.poll();
+
+		for (int i = 0; i < 10; ++i) {
+			assertThat(waits.get(i).get(), is(equalTo("ami-" + i)));
+		}
+		verify(ec2Client, times(1)).describeImages(any());
+		verify(counterService, times(9)).increment("ec2watcher.calls.saved");
+	}
+
+	@Test
+	public void itShouldBatchLargeNumbersOfIds() throws Exception {
+		for (int i = 0; i < EC2Watcher.BATCH_SIZE + 1; ++i) {
+			watcher.watchImage("ami-" + i, available(), DEADLINE);
+		}
+		watcher.poll();
+
+		verify(ec2Client, times(2)).describeImages(any());
+	}
+
+	@Test
+	public void itShouldKeepWatchingUntilTheCheckPasses() throws Exception {
+		when(ec2Client.describeInstances(any())).thenReturn(
+				new DescribeInstancesResult());
+		CompletableFuture<Boolean> wait = watcher.watchInstance("i-1",
+				latest -> latest.map(i -> true), DEADLINE);
+		watcher.poll();
+		assertFalse(wait.isDone());
+
+		when(ec2Client.describeInstances(any())).thenReturn(
+				new DescribeInstancesResult()
+						.withReservations(new Reservation()
+								.withInstances(new Instance()
+										.withInstanceId("i-1"))));
+		watcher.poll();
+		assertThat(wait.get(), is(true));
+
+		// Nothing left to watch.
+		watcher.poll();
+		verify(ec2Client, times(2)).describeInstances(any());
+	}
+
+	@Test
+	public void itShouldFailTheWaitWhenTheCheckThrows() throws Exception {
+		CompletableFuture<String> wait = watcher.watchImage("ami-1",
+				latest -> {
+					throw new ServiceBrokerException("failed");
+				}, DEADLINE);
+		watcher.poll();
+
+		try {
+			wait.get();
+			fail("Expected the wait to fail");
+		} catch (ExecutionException e) {
+			assertThat(e.getCause(), is(instanceOf(ServiceBrokerException.class)));
+		}
+	}
+
+	@Test
+	public void itShouldTimeOutAtTheDeadline() throws Exception {
+		CompletableFuture<String> wait = watcher.watchImage("ami-1",
+				latest -> Optional.empty(), 10);
+		try {
+			wait.get(1, TimeUnit.SECONDS);
+			fail("Expected the wait to time out");
+		} catch (ExecutionException e) {
+			assertThat(e.getCause(), is(instanceOf(TimeoutException.class)));
+		}
+		watcher.poll();
+		verify(ec2Client, never()).describeImages(any());
+	}
+
+	@Test
+	public void itShouldTellTheCheckWhenAVolumeIsGone() throws Exception {
+		when(ec2Client.describeVolumes(any())).thenReturn(
+				new DescribeVolumesResult());
+		CompletableFuture<Boolean> wait = watcher.watchVolumeForSnapshot(
+				"snap-1", latest -> Optional.of(latest.isPresent()), DEADLINE);
+		watcher.poll();
+
+		assertFalse(wait.get());
+	}
+
+	private EC2Watcher.Check<Image, String> available() {
+		return latest -> latest.filter(i -> "available".equals(i.getState()))
+				.map(Image::getImageId);
+	}
+}
@@ -0,0 +1,146 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.aws;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.boot.actuate.metrics.GaugeService;
+
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.Address;
+import com.amazonaws.services.ec2.model.AllocateAddressResult;
+import com.amazonaws.services.ec2.model.DescribeAddressesResult;
+
+public class ElasticIpPoolTest {
+
+	@Mock
+	private AmazonEC2Client ec2Client;
+
+	@Mock
+	private GaugeService gaugeService;
+
+	private ElasticIpPool pool;
+
+	@Before
+	public void setUp() {
+		MockitoAnnotations.initMocks(this);
+		pool = new ElasticIpPool(ec2Client, gaugeService, 0);
+	}
+
+	@Test
+	public void itShouldLeaseAFreeElasticIp() throws ServiceBrokerException {
+		givenAddresses(new Address().withPublicIp("10.10.10.10"));
+		assertThat(pool.lease("i-1"), is(equalTo("10.10.10.10")));
+	}
+
+	@Test
+	public void itShouldFilterOutAttachedElasticIPs()
+			throws ServiceBrokerException {
+		givenAddresses(new Address().withPublicIp("10.10.10.10")
+				.withInstanceId("the-instance"),
+				new Address().withPublicIp("10.10.10.11").withInstanceId(null));
+		assertThat(pool.lease("i-1"), is(equalTo("10.10.10.11")));
+	}
+
+	@Test(expected = ServiceBrokerException.class)
+	public void itShouldThrowIfNoElasticIpIsAvaliable()
+			throws ServiceBrokerException {
+		when(ec2Client.describeAddresses()).thenReturn(
+				new DescribeAddressesResult().withAddresses(new ArrayList<>()));
+		pool.lease("i-1");
+	}
+
+	@Test
+	public void itShouldNeverLeaseTheSameIpTwice()
+			throws ServiceBrokerException {
+		givenAddresses(new Address().withPublicIp("10.10.10.10"),
+				new Address().withPublicIp("10.10.10.11"));
+		pool.refresh();
+
+		String first = pool.lease("i-1");
+		// Still unattached as far as EC2 is concerned.
+		pool.refresh();
+		assertThat(pool.lease("i-2"), is(not(equalTo(first))));
+		verify(ec2Client, times(2)).describeAddresses();
+	}
+
+	@Test
+	public void itShouldLeaseAReleasedIpWithoutAskingEC2()
+			throws ServiceBrokerException {
+		givenAddresses(new Address().withPublicIp("10.10.10.10"));
+		pool.refresh();
+		pool.lease("i-1");
+		pool.release("i-1");
+
+		assertThat(pool.lease("i-2"), is(equalTo("10.10.10.10")));
+		verify(ec2Client, times(1)).describeAddresses();
+	}
+
+	@Test
+	public void itShouldAllocateWhenRunningLow() throws ServiceBrokerException {
+		pool = new ElasticIpPool(ec2Client, gaugeService, 1);
+		givenAddresses(new Address().withPublicIp("10.10.10.10"));
+		when(ec2Client.allocateAddress(any())).thenReturn(
+				new AllocateAddressResult().withPublicIp("10.10.10.11"));
+		pool.refresh();
+		verify(ec2Client, never()).allocateAddress(any());
+
+		pool.lease("i-1");
+		assertThat(pool.lease("i-2"), is(equalTo("10.10.10.11")));
+		verify(ec2Client, times(2)).allocateAddress(any());
+		verify(gaugeService).submit("elasticip.pool.leased", 2.0);
+	}
+
+	@Test
+	public void itShouldntHoldUpReleasesWhileALeaseAsksEC2() throws Exception {
+		givenAddresses(new Address().withPublicIp("10.10.10.10"));
+		pool.refresh();
+		pool.lease("i-1");
+
+		CountDownLatch asking = new CountDownLatch(1);
+		CountDownLatch answer = new CountDownLatch(1);
+		when(ec2Client.describeAddresses()).thenAnswer(i -> {
+			asking.countDown();
+			answer.await();
+			return new DescribeAddressesResult().withAddresses(new Address()
+					.withPublicIp("10.10.10.11"));
+		});
+		CompletableFuture<String> leased = CompletableFuture.supplyAsync(() -> {
+			try {
+				return pool.lease("i-2");
+			} catch (ServiceBrokerException e) {
+				throw new CompletionException(e);
+			}
+		});
+		asking.await(1, TimeUnit.SECONDS);
+
+		CompletableFuture.runAsync(() -> pool.release("i-1")).get(1,
+				TimeUnit.SECONDS);
+		answer.countDown();
+		assertThat(leased.get(1, TimeUnit.SECONDS), is(equalTo("10.10.10.11")));
+	}
+
+	private void givenAddresses(Address... addresses) {
+		when(ec2Client.describeAddresses()).thenReturn(
+				new DescribeAddressesResult().withAddresses(Arrays
+						.asList(addresses)));
+	}
+}
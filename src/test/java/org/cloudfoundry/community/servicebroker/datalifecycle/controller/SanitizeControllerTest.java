@@ -2,19 +2,27 @@ package org.cloudfoundry.community.servicebroker.datalifecycle.controller;
 
 import static org.hamcrest.Matchers.is;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.util.Arrays;
+
 import net.minidev.json.JSONObject;
 
 import org.cloudfoundry.community.servicebroker.datalifecycle.controller.SanitizeController;
 import org.cloudfoundry.community.servicebroker.datalifecycle.service.DataProviderService;
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.InjectMocks;
@@ -66,7 +74,7 @@ public class SanitizeControllerTest {
 
 	@Test
 	public void itGetsTheScript() throws Exception {
-		when(service.getScript()).thenReturn(script);
+		givenScript(DataProviderService.DEFAULT, "abc");
 
 		mockMvc.perform(get(location).accept(MediaType.APPLICATION_JSON))
 				.andExpect(status().isOk())
@@ -76,9 +84,168 @@ public class SanitizeControllerTest {
 	@Test
 	public void itReturnsEmptyResponseWithNoScript() throws Exception {
 
-		when(service.getScript()).thenReturn(null);
+		when(service.getScriptDigest(DataProviderService.DEFAULT)).thenReturn(
+				null);
 
 		mockMvc.perform(get(location).accept(MediaType.APPLICATION_JSON))
 				.andExpect(status().isOk()).andExpect(content().string("{}"));
 	}
+
+	@Test
+	public void itTagsTheScriptWithItsDigest() throws Exception {
+		givenScript(DataProviderService.DEFAULT, "abc");
+
+		mockMvc.perform(get(location).accept(MediaType.APPLICATION_JSON))
+				.andExpect(status().isOk())
+				.andExpect(header().string("ETag", "\"abc\""));
+	}
+
+	@Test
+	public void itDoesntResendAnUnchangedScript() throws Exception {
+		givenScript(DataProviderService.DEFAULT, "abc");
+
+		mockMvc.perform(
+				get(location).accept(MediaType.APPLICATION_JSON).header(
+						"If-None-Match", "\"abc\""))
+				.andExpect(status().isNotModified())
+				.andExpect(content().string(""));
+	}
+
+	@Test
+	public void itResendsAChangedScript() throws Exception {
+		givenScript(DataProviderService.DEFAULT, "def");
+
+		mockMvc.perform(
+				get(location).accept(MediaType.APPLICATION_JSON).header(
+						"If-None-Match", "\"abc\""))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.script", is(script)));
+	}
+
+	@Test
+	public void itListsTheNamedScripts() throws Exception {
+		when(service.getScriptNames()).thenReturn(
+				Arrays.asList("default", "emails-only"));
+		when(service.getScriptDigest("emails-only")).thenReturn("abc");
+
+		mockMvc.perform(get("/api/scripts").accept(MediaType.APPLICATION_JSON))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$[1].name", is("emails-only")))
+				.andExpect(jsonPath("$[1].digest", is("abc")));
+	}
+
+	@Test
+	public void itGetsANamedScript() throws Exception {
+		givenScript("emails-only", "abc");
+
+		mockMvc.perform(
+				get("/api/scripts/emails-only").accept(
+						MediaType.APPLICATION_JSON))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.script", is(script)))
+				.andExpect(header().string("ETag", "\"abc\""));
+	}
+
+	@Test
+	public void itDoesntFindAMissingScript() throws Exception {
+		mockMvc.perform(
+				get("/api/scripts/nope").accept(MediaType.APPLICATION_JSON))
+				.andExpect(status().isNotFound());
+	}
+
+	@Test
+	public void itCompilesMaskingRulesIntoANamedScript() throws Exception {
+		JSONObject input = new JSONObject();
+		input.put("users.email", "fake-email");
+		input.put("audit", "truncate-table");
+		String compiled = "truncate table \"audit\";\n"
+				+ "update \"users\" set \"email\" = 'user_'"
+				+ " || substr(md5(\"email\"::text), 1, 16)"
+				+ " || '@example.invalid';\n";
+		mockMvc.perform(
+				put("/api/masks/emails-only")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content(input.toJSONString())
+						.accept(MediaType.APPLICATION_JSON))
+				.andExpect(status().isCreated())
+				.andExpect(header().string("Location", "/api/scripts/emails-only"))
+				.andExpect(jsonPath("$.script", is(compiled)));
+
+		verify(service).saveScript("emails-only", compiled);
+	}
+
+	@Test
+	public void itRejectsUnknownMaskingRules() throws Exception {
+		JSONObject input = new JSONObject();
+		input.put("users.email", "scramble");
+		mockMvc.perform(
+				put("/api/masks/emails-only")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content(input.toJSONString())
+						.accept(MediaType.APPLICATION_JSON))
+				.andExpect(status().isBadRequest());
+
+		verify(service, never()).saveScript(any(), any());
+	}
+
+	@Test
+	public void itSavesANamedScript() throws Exception {
+		JSONObject input = new JSONObject();
+		input.put("script", script);
+		mockMvc.perform(
+				put("/api/scripts/emails-only")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content(input.toJSONString())
+						.accept(MediaType.APPLICATION_JSON))
+				.andExpect(status().isCreated())
+				.andExpect(header().string("Location", "/api/scripts/emails-only"));
+
+		verify(service).saveScript("emails-only", script);
+	}
+
+	@Test
+	public void itDeletesANamedScript() throws Exception {
+		when(service.deleteScript("emails-only")).thenReturn(true);
+
+		mockMvc.perform(
+				delete("/api/scripts/emails-only").accept(
+						MediaType.APPLICATION_JSON)).andExpect(status().isOk());
+		mockMvc.perform(
+				delete("/api/scripts/nope").accept(MediaType.APPLICATION_JSON))
+				.andExpect(status().isNotFound());
+	}
+
+	@Test
+	public void itAssignsAScriptToAPlan() throws Exception {
+		JSONObject input = new JSONObject();
+		input.put("name", "emails-only");
+		mockMvc.perform(
+				put("/api/plans/copy/script")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content(input.toJSONString())
+						.accept(MediaType.APPLICATION_JSON))
+				.andExpect(status().isOk());
+
+		verify(service).assignScript("copy", "emails-only");
+	}
+
+	@Test
+	public void itWontAssignAMissingScript() throws Exception {
+		doThrow(new ServiceBrokerException("No script named nope")).when(
+				service).assignScript("copy", "nope");
+		JSONObject input = new JSONObject();
+		input.put("name", "nope");
+		mockMvc.perform(
+				put("/api/plans/copy/script")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content(input.toJSONString())
+						.accept(MediaType.APPLICATION_JSON))
+				.andExpect(status().isBadRequest())
+				.andExpect(jsonPath("$.description", is("No script named nope")));
+	}
+
+	private void givenScript(String name, String digest) {
+		when(service.getScriptDigest(name)).thenReturn(digest);
+		when(service.getScriptByDigest(digest)).thenReturn(script);
+	}
 }
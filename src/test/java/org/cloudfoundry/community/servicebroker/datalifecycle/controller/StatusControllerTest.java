@@ -0,0 +1,77 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.controller;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.util.function.Consumer;
+
+import org.cloudfoundry.community.servicebroker.datalifecycle.dto.InstancePair;
+import org.cloudfoundry.community.servicebroker.datalifecycle.service.LCServiceInstanceService;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class StatusControllerTest {
+
+	private MockMvc mockMvc;
+
+	@InjectMocks
+	StatusController statusController;
+
+	@Mock
+	LCServiceInstanceService instanceService;
+
+	@Spy
+	ObjectMapper mapper = new ObjectMapper();
+
+	@Before
+	public void setUp() {
+		MockitoAnnotations.initMocks(this);
+		doAnswer(i -> {
+			@SuppressWarnings("unchecked")
+			Consumer<InstancePair> consumer = (Consumer<InstancePair>) i
+					.getArguments()[0];
+			consumer.accept(new InstancePair("source", "copy1"));
+			consumer.accept(new InstancePair("source", "copy2"));
+			return null;
+		}).when(instanceService).forEachProvisionedInstance(any());
+
+		mockMvc = MockMvcBuilders.standaloneSetup(statusController).build();
+	}
+
+	@Test
+	public void itShouldSendJSONToClientsThatTakeAnything() throws Exception {
+		mockMvc.perform(get("/api/instances").accept(MediaType.ALL))
+				.andExpect(status().isOk())
+				.andExpect(
+						content().contentType(MediaType.APPLICATION_JSON))
+				.andExpect(
+						content().string(
+								"[{\"source\":\"source\",\"copy\":\"copy1\"},"
+										+ "{\"source\":\"source\",\"copy\":\"copy2\"}]"));
+	}
+
+	@Test
+	public void itShouldSendOneInstancePerLineWhenAskedFor() throws Exception {
+		mockMvc.perform(
+				get("/api/instances").header("Accept",
+						StatusController.NDJSON + ", */*;q=0.5"))
+				.andExpect(status().isOk())
+				.andExpect(content().contentType(StatusController.NDJSON))
+				.andExpect(
+						content().string(
+								"{\"source\":\"source\",\"copy\":\"copy1\"}\n"
+										+ "{\"source\":\"source\",\"copy\":\"copy2\"}\n"));
+	}
+}
@@ -0,0 +1,62 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.model;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.orm.jpa.vendor.HibernateJpaVendorAdapter;
+
+public class SanitizationScriptTest {
+
+	private EntityManagerFactory factory;
+
+	@Before
+	public void setUp() {
+		HibernateJpaVendorAdapter vendor = new HibernateJpaVendorAdapter();
+		vendor.setGenerateDdl(true);
+		LocalContainerEntityManagerFactoryBean bean = new LocalContainerEntityManagerFactoryBean();
+		bean.setDataSource(new DriverManagerDataSource(
+				"jdbc:h2:mem:script_content;MODE=PostgreSQL;DB_CLOSE_DELAY=-1",
+				"sa", ""));
+		bean.setJpaVendorAdapter(vendor);
+		bean.setPackagesToScan(SanitizationScript.class.getPackage().getName());
+		bean.afterPropertiesSet();
+		factory = bean.getObject();
+	}
+
+	@After
+	public void tearDown() {
+		EntityManager em = factory.createEntityManager();
+		em.getTransaction().begin();
+		em.createNativeQuery("drop all objects").executeUpdate();
+		em.getTransaction().commit();
+		factory.close();
+	}
+
+	@Test
+	public void itShouldSaveAScriptLongerThanAVarchar() {
+		String script = StringUtils.repeat(
+				"update users set email = null where id = 1;\n", 20);
+		SanitizationScript saved = new SanitizationScript(script);
+
+		EntityManager em = factory.createEntityManager();
+		em.getTransaction().begin();
+		em.persist(saved);
+		em.getTransaction().commit();
+		em.close();
+
+		em = factory.createEntityManager();
+		assertThat(em.find(SanitizationScript.class, saved.getDigest())
+				.getScript(), is(equalTo(script)));
+		em.close();
+	}
+}
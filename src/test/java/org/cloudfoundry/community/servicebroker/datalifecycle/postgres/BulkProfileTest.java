@@ -0,0 +1,155 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.postgres;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public class BulkProfileTest {
+
+	@Mock
+	private Connection connection;
+
+	@Mock
+	private Statement statement;
+
+	@Mock
+	private PreparedStatement query;
+
+	@Mock
+	private PreparedStatement remember;
+
+	@Mock
+	private ResultSet table;
+
+	@Mock
+	private ResultSet triggers;
+
+	@Mock
+	private ResultSet indexes;
+
+	@Mock
+	private ResultSet result;
+
+	@Before
+	public void setUp() throws SQLException {
+		MockitoAnnotations.initMocks(this);
+		when(connection.createStatement()).thenReturn(statement);
+		when(connection.getAutoCommit()).thenReturn(true);
+		when(connection.prepareStatement(startsWith("select"))).thenReturn(
+				query);
+		when(connection.prepareStatement(startsWith("insert"))).thenReturn(
+				remember);
+		when(query.executeQuery()).thenReturn(table, triggers, indexes);
+		when(table.next()).thenReturn(true, false);
+		when(table.getString(1)).thenReturn("app.\"Users\"");
+		when(triggers.next()).thenReturn(true, false);
+		when(triggers.getString(1)).thenReturn("audit");
+		when(indexes.next()).thenReturn(true, false);
+		when(indexes.getString(1)).thenReturn(
+				"CREATE INDEX users_email ON users USING btree (email)");
+		when(indexes.getString(2)).thenReturn("users_email");
+	}
+
+	@Test
+	public void itShouldSetAndResetTheSession() throws SQLException {
+		BulkProfile profile = new BulkProfile("256MB", "1GB", false, false);
+		profile.apply(connection);
+		profile.reset(connection);
+
+		verify(statement).execute("set work_mem = '256MB'");
+		verify(statement).execute("set maintenance_work_mem = '1GB'");
+		verify(statement).execute("set synchronous_commit = off");
+		verify(statement).execute("reset work_mem");
+		verify(statement).execute("reset maintenance_work_mem");
+		verify(statement).execute("reset synchronous_commit");
+	}
+
+	@Test
+	public void itShouldRememberHowToPutBackWhatItChanges()
+			throws SQLException {
+		new BulkProfile("256MB", "1GB", true, true).prepare(connection,
+				Collections.singleton("app.\"Users\""));
+
+		InOrder order = inOrder(query, remember, statement, connection);
+		order.verify(query).setString(1, "app.\"Users\"");
+		order.verify(remember).setString(1,
+				"alter table app.\"Users\" enable trigger \"audit\"");
+		order.verify(remember).setString(1,
+				"CREATE INDEX users_email ON users USING btree (email)");
+		order.verify(statement).execute(
+				"alter table app.\"Users\" disable trigger \"audit\"");
+		order.verify(statement).execute("drop index users_email");
+		order.verify(connection).commit();
+		verify(connection).setAutoCommit(true);
+	}
+
+	@Test
+	public void itShouldSkipTablesThatArentThere() throws SQLException {
+		when(table.getString(1)).thenReturn(null);
+		new BulkProfile("256MB", "1GB", true, true).prepare(connection,
+				Collections.singleton("gone"));
+
+		verify(statement, never()).execute(startsWith("alter table"));
+		verify(statement, never()).execute(startsWith("drop index"));
+	}
+
+	@Test
+	public void itShouldChangeNothingIfItCantRememberIt() throws SQLException {
+		when(remember.executeUpdate()).thenThrow(new SQLException("nope"));
+		try {
+			new BulkProfile("256MB", "1GB", true, true).prepare(connection,
+					Collections.singleton("users"));
+			fail("Should have thrown");
+		} catch (SQLException e) {
+			verify(statement, never()).execute(startsWith("drop index"));
+			verify(connection).rollback();
+		}
+	}
+
+	@Test
+	public void itShouldHaveNothingToPutBackWithoutState() throws SQLException {
+		when(statement.executeQuery(anyString())).thenReturn(result);
+		when(result.next()).thenReturn(true);
+		when(result.getBoolean(1)).thenReturn(false);
+
+		assertThat(new BulkProfile("256MB", "1GB", true, true)
+				.undoStatements(connection), empty());
+	}
+
+	@Test
+	public void itShouldReadBackWhatToPutBack() throws SQLException {
+		when(statement.executeQuery(anyString())).thenReturn(result);
+		when(result.next()).thenReturn(true, true, false);
+		when(result.getBoolean(1)).thenReturn(true);
+		when(result.getString(1)).thenReturn("create index i on a (x)");
+
+		assertThat(new BulkProfile("256MB", "1GB", true, true)
+				.undoStatements(connection),
+				contains("create index i on a (x)"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void itShouldRefuseMemoryThatIsntMemory() {
+		new BulkProfile("256MB'; drop table users; --", "1GB", false, false);
+	}
+}
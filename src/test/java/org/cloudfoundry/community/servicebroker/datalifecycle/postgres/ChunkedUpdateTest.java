@@ -0,0 +1,161 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.postgres;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public class ChunkedUpdateTest {
+
+	private static final String MASK = "update users set email = 'x'";
+
+	@Mock
+	private Connection connection;
+
+	@Mock
+	private Statement statement;
+
+	@Mock
+	private PreparedStatement progressQuery;
+
+	@Mock
+	private ResultSet progress;
+
+	@Mock
+	private PreparedStatement keyQuery;
+
+	@Mock
+	private ResultSet key;
+
+	@Mock
+	private ResultSet bounds;
+
+	@Mock
+	private PreparedStatement insertProgress;
+
+	@Mock
+	private PreparedStatement updateProgress;
+
+	@Before
+	public void setUp() throws SQLException {
+		MockitoAnnotations.initMocks(this);
+		when(connection.createStatement()).thenReturn(statement);
+		when(connection.getAutoCommit()).thenReturn(true);
+		when(connection.prepareStatement(startsWith("select next_key")))
+				.thenReturn(progressQuery);
+		when(progressQuery.executeQuery()).thenReturn(progress);
+		when(connection.prepareStatement(contains("indisprimary")))
+				.thenReturn(keyQuery);
+		when(keyQuery.executeQuery()).thenReturn(key);
+		when(key.next()).thenReturn(true);
+		when(key.getString(1)).thenReturn("id");
+		when(statement.executeQuery("select min(id), max(id) from users"))
+				.thenReturn(bounds);
+		when(bounds.next()).thenReturn(true);
+		when(bounds.getLong(1)).thenReturn(1L);
+		when(bounds.getLong(2)).thenReturn(25L);
+		when(connection.prepareStatement(startsWith("insert"))).thenReturn(
+				insertProgress);
+		when(connection.prepareStatement(startsWith("update "
+				+ ChunkedUpdate.PROGRESS_TABLE))).thenReturn(updateProgress);
+		when(statement.executeUpdate(anyString())).thenReturn(10);
+	}
+
+	@Test
+	public void itShouldUpdateAKeyRangeAtATime() throws SQLException {
+		assertThat(ChunkedUpdate.run(connection, MASK, 10), is(equalTo(30L)));
+
+		verify(statement).executeUpdate(
+				MASK + " where users.id >= 1 and users.id < 11");
+		verify(statement).executeUpdate(
+				MASK + " where users.id >= 11 and users.id < 21");
+		verify(statement).executeUpdate(
+				MASK + " where users.id >= 21 and users.id < 26");
+		verify(connection, times(3)).commit();
+		verify(insertProgress).setLong(1, 11);
+		verify(updateProgress).setLong(1, 26);
+		verify(connection).setAutoCommit(true);
+	}
+
+	@Test
+	public void itShouldResumeAfterTheLastCommittedRange() throws SQLException {
+		when(progress.next()).thenReturn(true);
+		when(progress.getLong(1)).thenReturn(21L);
+
+		assertThat(ChunkedUpdate.run(connection, MASK, 10), is(equalTo(10L)));
+		verify(statement).executeUpdate(
+				MASK + " where users.id >= 21 and users.id < 26");
+		verify(statement, times(1)).executeUpdate(startsWith(MASK));
+		verify(insertProgress, never()).executeUpdate();
+	}
+
+	@Test
+	public void itShouldRollBackTheRangeThatFailed() throws SQLException {
+		SQLException failure = new SQLException("nope");
+		when(statement.executeUpdate(contains(">= 11"))).thenThrow(failure);
+		try {
+			ChunkedUpdate.run(connection, MASK, 10);
+			fail("Should have thrown");
+		} catch (SQLException e) {
+			assertThat(e, is(failure));
+		}
+		verify(connection, times(1)).commit();
+		verify(connection).rollback();
+	}
+
+	@Test
+	public void itShouldRunTheUpdateWholeWithoutAKey() throws SQLException {
+		when(key.next()).thenReturn(false);
+		when(statement.executeUpdate(MASK)).thenReturn(25);
+
+		assertThat(ChunkedUpdate.run(connection, MASK, 10), is(equalTo(25L)));
+		verify(statement, times(1)).executeUpdate(anyString());
+		verify(connection, never()).commit();
+	}
+
+	@Test
+	public void itShouldRunAnUpdateOfTheKeyWhole() throws SQLException {
+		String sql = "update users set email = 'x', \"ID\" = id + 100 where id > 0";
+		ChunkedUpdate.run(connection, sql, 10);
+
+		verify(statement).executeUpdate(sql);
+		verify(statement, times(1)).executeUpdate(anyString());
+	}
+
+	@Test
+	public void itShouldKeepTheUpdatesOwnConditions() {
+		assertThat(ChunkedUpdate.restrict(
+				"update users u set email = (select 'x' where true)"
+						+ " where u.kind = 'a' or u.kind = 'where'",
+				"u.id < 10"),
+				is(equalTo("update users u set email = (select 'x' where true)"
+						+ " where (u.kind = 'a' or u.kind = 'where') and u.id < 10")));
+	}
+
+	@Test
+	public void itShouldOnlyChunkUpdates() {
+		assertTrue(ChunkedUpdate.isChunkable(MASK));
+		assertTrue(ChunkedUpdate.isChunkable("UPDATE public.users AS u SET x = 1"));
+		assertFalse(ChunkedUpdate.isChunkable("delete from users"));
+	}
+}
@@ -0,0 +1,103 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.postgres;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.springframework.util.DigestUtils;
+
+public class CopyRowMaskerTest {
+
+	private Map<String, Object> rules = new HashMap<>();
+
+	@Test
+	public void itShouldMaskColumnsLikeTheCompiledScriptWould() {
+		rules.put("email", "fake-email");
+		rules.put("ssn", "null");
+		rules.put("name", "hash");
+		rules.put("country", Collections.singletonMap("constant", "a\tb"));
+		CopyRowMasker masker = masker("id", "email", "ssn", "name", "country");
+
+		masker.add(bytes("1\tbob@example.com\t123\tBob\\tSmith\tUS\n"));
+
+		assertThat(text(masker), is(equalTo("1\tuser_"
+				+ md5("bob@example.com").substring(0, 16)
+				+ "@example.invalid\t\\N\t" + md5("Bob\tSmith")
+				+ "\ta\\tb\n")));
+	}
+
+	@Test
+	public void itShouldKeepNullsNull() {
+		rules.put("email", "hash");
+		CopyRowMasker masker = masker("id", "email");
+
+		masker.add(bytes("1\t\\N\n"));
+
+		assertThat(text(masker), is(equalTo("1\t\\N\n")));
+	}
+
+	@Test
+	public void itShouldPassUnmaskedRowsThrough() {
+		CopyRowMasker masker = masker("id", "note");
+		assertFalse(masker.masks());
+
+		masker.add(bytes("1\ta\\nb\n"));
+		masker.add(bytes("2\t\n"));
+
+		assertThat(text(masker), is(equalTo("1\ta\\nb\n2\t\n")));
+	}
+
+	@Test
+	public void itShouldReuseItsBuffer() {
+		CopyRowMasker masker = masker("id");
+		masker.add(bytes("1\n"));
+		byte[] buffer = masker.buffer();
+		masker.clear();
+		masker.add(bytes("2\n"));
+
+		assertThat(masker.buffer(), is(sameInstance(buffer)));
+		assertThat(text(masker), is(equalTo("2\n")));
+	}
+
+	@Test
+	public void itShouldGrowForRowsBiggerThanTheBuffer() {
+		CopyRowMasker masker = masker("note");
+		char[] big = new char[1000];
+		Arrays.fill(big, 'x');
+		masker.add(bytes(new String(big) + "\n"));
+
+		assertThat(masker.length(), is(1001));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void itShouldRejectUnknownRules() {
+		rules.put("email", "scramble");
+		masker("email");
+	}
+
+	private CopyRowMasker masker(String... columns) {
+		return new CopyRowMasker(Arrays.asList(columns), rules, 64);
+	}
+
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String text(CopyRowMasker masker) {
+		return new String(masker.buffer(), 0, masker.length(),
+				StandardCharsets.UTF_8);
+	}
+
+	private static String md5(String value) {
+		return DigestUtils.md5DigestAsHex(bytes(value));
+	}
+}
@@ -0,0 +1,157 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.postgres;
+
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.boot.actuate.metrics.GaugeService;
+
+public class CopyWarmupTest {
+
+	@Mock
+	private PostgresConnectionPools pools;
+
+	@Mock
+	private GaugeService gaugeService;
+
+	@Mock
+	private Connection connection;
+
+	@Mock
+	private Statement statement;
+
+	@Mock
+	private ResultSet tables;
+
+	@Mock
+	private ResultSet sharedBuffers;
+
+	@Mock
+	private PreparedStatement hottest;
+
+	@Mock
+	private ResultSet hottestTables;
+
+	@Mock
+	private PreparedStatement indexes;
+
+	@Mock
+	private ResultSet tableIndexes;
+
+	@Mock
+	private PreparedStatement read;
+
+	@Mock
+	private ResultSet blocks;
+
+	private ExecutorService threads = Executors.newFixedThreadPool(2);
+
+	@Before
+	public void setUp() throws SQLException {
+		MockitoAnnotations.initMocks(this);
+		when(pools.getConnection(any())).thenReturn(connection);
+		when(connection.createStatement()).thenReturn(statement);
+		when(statement.executeQuery(CopyWarmup.TABLES)).thenReturn(tables);
+		when(tables.next()).thenReturn(true, true, false);
+		when(tables.getString(1)).thenReturn("users", "audit");
+	}
+
+	@After
+	public void tearDown() {
+		threads.shutdownNow();
+	}
+
+	@Test
+	public void itShouldAnalyzeEveryTable() throws SQLException {
+		assertThat(warmup(true, false, 0).run(Collections.emptyMap())
+				.keySet(), contains(CopyWarmup.ANALYZE));
+
+		verify(statement).execute("analyze users");
+		verify(statement).execute("analyze audit");
+		verify(gaugeService).submit(eq("copy.warmup.analyze.ms"), anyLong());
+	}
+
+	@Test
+	public void itShouldVacuumAsItAnalyzes() throws SQLException {
+		warmup(true, true, 0).run(Collections.emptyMap());
+
+		verify(statement).execute("vacuum analyze users");
+		verify(statement).execute("vacuum analyze audit");
+		verify(statement, never()).execute("analyze users");
+	}
+
+	@Test
+	public void itShouldCarryOnPastATableThatFails() throws SQLException {
+		when(statement.execute("analyze users")).thenThrow(
+				new SQLException("gone"));
+		warmup(true, false, 0).run(Collections.emptyMap());
+
+		verify(statement).execute("analyze audit");
+	}
+
+	@Test
+	public void itShouldPrewarmTheHottestTablesUntilTheBuffersAreFull()
+			throws SQLException {
+		when(statement.executeQuery(anyString())).thenReturn(sharedBuffers);
+		when(sharedBuffers.next()).thenReturn(true);
+		when(sharedBuffers.getLong(1)).thenReturn(100L);
+		when(connection.prepareStatement(CopyWarmup.HOTTEST)).thenReturn(
+				hottest);
+		when(hottest.executeQuery()).thenReturn(hottestTables);
+		when(hottestTables.next()).thenReturn(true, true, false);
+		when(hottestTables.getString(1)).thenReturn("users", "audit");
+		when(connection.prepareStatement(CopyWarmup.INDEXES)).thenReturn(
+				indexes);
+		when(indexes.executeQuery()).thenReturn(tableIndexes);
+		when(tableIndexes.next()).thenReturn(true, false, false);
+		when(tableIndexes.getString(1)).thenReturn("users_pkey");
+		when(connection.prepareStatement("select pg_prewarm(to_regclass(?))"))
+				.thenReturn(read);
+		when(read.executeQuery()).thenReturn(blocks);
+		when(blocks.next()).thenReturn(true);
+		when(blocks.getLong(1)).thenReturn(60L);
+
+		assertThat(warmup(false, false, 2).run(Collections.emptyMap())
+				.keySet(), contains(CopyWarmup.PREWARM));
+
+		verify(statement).execute("create extension if not exists pg_prewarm");
+		verify(hottest).setObject(1, 2);
+		verify(read).setString(1, "users");
+		verify(read).setString(1, "users_pkey");
+		verify(read, never()).setString(1, "audit");
+	}
+
+	@Test
+	public void itShouldntFailWithoutPrewarm() throws SQLException {
+		when(statement.execute("create extension if not exists pg_prewarm"))
+				.thenThrow(new SQLException("not available"));
+
+		assertThat(warmup(false, false, 2).run(Collections.emptyMap())
+				.keySet(), contains(CopyWarmup.PREWARM));
+	}
+
+	private CopyWarmup warmup(boolean analyze, boolean vacuum, int prewarm) {
+		return new CopyWarmup(pools, threads, gaugeService, 2, analyze,
+				vacuum, prewarm);
+	}
+}
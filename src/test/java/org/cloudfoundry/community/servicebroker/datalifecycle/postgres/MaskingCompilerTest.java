@@ -0,0 +1,80 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.postgres;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class MaskingCompilerTest {
+
+	@Test
+	public void itShouldUpdateEachTableOnce() {
+		Map<String, Object> rules = new HashMap<>();
+		rules.put("users.ssn", "null");
+		rules.put("users.name", "hash");
+		rules.put("public.accounts.country",
+				Collections.singletonMap("constant", "O'Brien"));
+
+		assertThat(MaskingCompiler.compile(rules), is(equalTo(
+				"update \"public\".\"accounts\" set \"country\" = 'O''Brien';\n"
+						+ "update \"users\" set \"name\" = md5(\"name\"::text),"
+						+ " \"ssn\" = null;\n")));
+	}
+
+	@Test
+	public void itShouldTruncateExcludedTablesTogetherFirst() {
+		Map<String, Object> rules = new HashMap<>();
+		rules.put("orders", "truncate-table");
+		rules.put("audit", "truncate-table");
+		rules.put("orders.note", "null");
+		rules.put("users.email", "fake-email");
+
+		assertThat(MaskingCompiler.compile(rules), is(equalTo(
+				"truncate table \"audit\", \"orders\";\n"
+						+ "update \"users\" set \"email\" = 'user_'"
+						+ " || substr(md5(\"email\"::text), 1, 16)"
+						+ " || '@example.invalid';\n")));
+	}
+
+	@Test
+	public void itShouldMarkTablesToRewrite() {
+		Map<String, Object> rules = new HashMap<>();
+		rules.put("users", "rewrite-unlogged");
+		rules.put("users.ssn", "null");
+
+		assertThat(MaskingCompiler.compile(rules), is(equalTo(
+				"-- rewrite: unlogged\nupdate \"users\" set \"ssn\" = null;\n")));
+		assertTrue(TableRewrite.isRewritable("update \"users\" set \"ssn\" = null"));
+	}
+
+	@Test
+	public void itShouldQuoteNamesSoKeywordsWork() {
+		Map<String, Object> rules = new HashMap<>();
+		rules.put("Order.user", "null");
+
+		assertThat(MaskingCompiler.compile(rules), is(equalTo(
+				"update \"Order\" set \"user\" = null;\n")));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void itShouldRejectARewriteWithNothingToMask() {
+		MaskingCompiler.compile(Collections.singletonMap("users", "rewrite"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void itShouldRejectNamesThatArentNames() {
+		MaskingCompiler.compile(Collections.singletonMap(
+				"users; drop table users.email", "null"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void itShouldRejectAColumnRuleWithoutAColumn() {
+		MaskingCompiler.compile(Collections.singletonMap("users", "hash"));
+	}
+}
@@ -0,0 +1,86 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.postgres;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PostgresConnectionPoolsTest {
+
+	private PostgresConnectionPools pools = new PostgresConnectionPools(2,
+			60000, 30, 30);
+
+	private Map<String, Object> creds;
+
+	@Before
+	public void setUp() {
+		creds = credsFor("postgresql://localhost:1/copy");
+	}
+
+	@After
+	public void tearDown() {
+		pools.closeAll();
+	}
+
+	@Test
+	public void itShouldMakeOnePoolPerCopy() {
+		connect(creds);
+		connect(credsFor("postgresql://localhost:1/copy"));
+		assertThat(pools.size(), is(equalTo(1)));
+
+		connect(credsFor("postgresql://localhost:1/other"));
+		assertThat(pools.size(), is(equalTo(2)));
+	}
+
+	@Test
+	public void itShouldCloseTheCopysPoolWhenItsReleased() {
+		connect(creds);
+		pools.release(creds);
+		assertThat(pools.size(), is(equalTo(0)));
+	}
+
+	@Test
+	public void itShouldCloseIdlePools() {
+		connect(creds);
+		pools.evictIdle(System.currentTimeMillis());
+		assertThat(pools.size(), is(equalTo(1)));
+
+		pools.evictIdle(System.currentTimeMillis()
+				+ PostgresConnectionPools.IDLE_POOL_TIMEOUT + 1);
+		assertThat(pools.size(), is(equalTo(0)));
+	}
+
+	@Test
+	public void itShouldHaveNoSpareConnectionWhenItCantGetOne() {
+		assertThat(pools.getSpareConnection(creds), is(nullValue()));
+
+		connect(creds);
+		assertThat(pools.getSpareConnection(creds), is(nullValue()));
+	}
+
+	/**
+	 * Nothing's listening, we only care that the pool was made.
+	 */
+	private void connect(Map<String, Object> creds) {
+		try {
+			pools.getConnection(creds).close();
+		} catch (SQLException e) {
+		}
+	}
+
+	private Map<String, Object> credsFor(String uri) {
+		Map<String, Object> creds = new HashMap<>();
+		creds.put("uri", uri);
+		creds.put("username", "user");
+		creds.put("password", "password");
+		return creds;
+	}
+}
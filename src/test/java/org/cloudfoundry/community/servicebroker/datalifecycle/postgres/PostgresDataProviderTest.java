@@ -1,14 +1,22 @@
 package org.cloudfoundry.community.servicebroker.datalifecycle.postgres;
 
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyDouble;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -17,8 +25,10 @@ import org.cloudfoundry.community.servicebroker.datalifecycle.postgres.PostgresD
 import org.cloudfoundry.community.servicebroker.datalifecycle.postgres.PostgresScriptExecutor;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.boot.actuate.metrics.GaugeService;
 
 public class PostgresDataProviderTest {
 
@@ -30,6 +40,9 @@ public class PostgresDataProviderTest {
 	@Mock
 	PostgresScriptExecutor executor;
 
+	@Mock
+	CopyWarmup warmup;
+
 	String script = "This is the script;";
 
 	private Map<String, Object> creds;
@@ -61,16 +74,67 @@ public class PostgresDataProviderTest {
 	public void itShouldExecuteTheScript() throws SQLException,
 			DataProviderSanitizationFailedException {
 		dataProvider.sanitize(script, creds);
-		verify(executor, times(1)).execute(anyString(), any());
+		verify(executor, times(1)).execute(anyString(), any(), any(), any());
 	}
 
 	@Test(expected = DataProviderSanitizationFailedException.class)
 	public void itShouldThrowASanitizeFailedExceptionIfTheScriptBarfs()
 			throws Exception {
 		doThrow(new SQLException("Broken")).when(executor)
-				.execute(any(), any());
+				.execute(any(), any(), any(), any());
+
+		dataProvider.sanitize(script, creds);
+	}
+
+	@Test
+	public void itShouldWarmUpTheCopyOnceItsSanitized() throws Exception {
+		dataProvider = new PostgresDataProvider(executor, warmup);
+		dataProvider.sanitize(script, creds);
+
+		InOrder order = inOrder(executor, warmup);
+		order.verify(executor).execute(script, null, creds, null);
+		order.verify(warmup).run(creds);
+	}
+
+	@Test
+	public void itShouldWarmUpTheCopyWithoutAScript() throws Exception {
+		dataProvider = new PostgresDataProvider(executor, warmup);
+		dataProvider.sanitize("", creds);
+
+		verify(warmup).run(creds);
+		verifyZeroInteractions(executor);
+	}
+
+	@Test
+	public void itShouldntWarmUpACopyThatFailedSanitizing() throws Exception {
+		dataProvider = new PostgresDataProvider(executor, warmup);
+		doThrow(new SQLException("Broken")).when(executor)
+				.execute(any(), any(), any(), any());
+		try {
+			dataProvider.sanitize(script, creds);
+		} catch (DataProviderSanitizationFailedException e) {
+			verifyZeroInteractions(warmup);
+			return;
+		}
+		fail("Should have thrown");
+	}
 
+	@Test
+	public void itShouldReportEachStatementsTimeAndRows() throws Exception {
+		GaugeService gaugeService = mock(GaugeService.class);
+		when(executor.execute(any(), any(), any(), any())).thenReturn(
+				Arrays.asList(new StatementTiming(
+						"update users set email = null", 120, 40),
+						new StatementTiming("select scrub()", 30, -1)));
+		dataProvider = new PostgresDataProvider(executor, null, gaugeService);
 		dataProvider.sanitize(script, creds);
+
+		verify(gaugeService).submit("sanitize.statement.update.users.ms", 120);
+		verify(gaugeService)
+				.submit("sanitize.statement.update.users.rows", 40);
+		verify(gaugeService).submit("sanitize.statement.select.ms", 30);
+		verify(gaugeService, never()).submit(
+				eq("sanitize.statement.select.rows"), anyDouble());
 	}
 
 	@Test
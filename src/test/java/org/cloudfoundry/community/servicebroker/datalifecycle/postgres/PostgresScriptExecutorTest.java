@@ -0,0 +1,330 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.postgres;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.endsWith;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public class PostgresScriptExecutorTest {
+
+	@Mock
+	private PostgresConnectionPools pools;
+
+	@Mock
+	private Connection connection;
+
+	@Mock
+	private Statement statement;
+
+	@Mock
+	private ResultSet foreignKeys;
+
+	private PostgresScriptExecutor executor;
+
+	private ExecutorService threads = Executors.newFixedThreadPool(4);
+
+	@Before
+	public void setUp() throws SQLException {
+		MockitoAnnotations.initMocks(this);
+		executor = new PostgresScriptExecutor(pools);
+		when(pools.getConnection(any())).thenReturn(connection);
+		when(connection.createStatement()).thenReturn(statement);
+		when(statement.executeQuery(anyString())).thenReturn(foreignKeys);
+	}
+
+	@After
+	public void tearDown() {
+		threads.shutdownNow();
+	}
+
+	@Test
+	public void itShouldRunTheScriptOnAPooledConnectionAndHandItBack()
+			throws SQLException {
+		executor.execute("delete from a;\ndelete from b;",
+				Collections.emptyMap());
+
+		verify(statement).execute("delete from a");
+		verify(statement).execute("delete from b");
+		verify(connection).close();
+	}
+
+	@Test
+	public void itShouldSplitTheScriptIntoStatements() {
+		assertThat(sqlOf("-- scrub emails\n"
+				+ "update users set email = 'x';\ndelete from audit;"),
+				contains("update users set email = 'x'", "delete from audit"));
+	}
+
+	@Test
+	public void itShouldSplitOnNewLinesWithoutSemicolons() {
+		assertThat(sqlOf("delete from a\ndelete from b"),
+				contains("delete from a", "delete from b"));
+	}
+
+	@Test
+	public void itShouldReuseTheStatementsForTheSameDigest() {
+		List<ScriptStatement> first = executor.statementsOf("delete from a;",
+				"a");
+		executor.statementsOf("delete from b;", "b");
+		assertThat(executor.statementsOf("delete from a;", "a"),
+				is(sameInstance(first)));
+		assertThat(executor.statementsOf("delete from a;", null),
+				is(not(sameInstance(first))));
+	}
+
+	@Test
+	public void itShouldForgetTheLeastRecentlyUsedScripts() {
+		List<ScriptStatement> first = executor.statementsOf("delete from a;",
+				"a");
+		List<ScriptStatement> second = executor.statementsOf(
+				"delete from b;", "b");
+		for (int i = 0; i < PostgresScriptExecutor.PARSED_SCRIPTS - 1; ++i) {
+			executor.statementsOf("delete from a;", "a");
+			executor.statementsOf("delete from c" + i + ";", "c" + i);
+		}
+		assertThat(executor.statementsOf("delete from a;", "a"),
+				is(sameInstance(first)));
+		assertThat(executor.statementsOf("delete from b;", "b"),
+				is(not(sameInstance(second))));
+	}
+
+	@Test
+	public void itShouldReadGroupMarkers() {
+		List<ScriptStatement> statements = executor
+				.statementsOf("delete from a;\n-- group: users\n"
+						+ "update users set email = 'x';\n"
+						+ "update accounts set name = 'y';\n-- end group\n"
+						+ "delete from b;", null);
+
+		assertThat(sqlOf(statements), contains("delete from a",
+				"update users set email = 'x'",
+				"update accounts set name = 'y'", "delete from b"));
+		assertThat(statements.get(0).getGroup(), is(nullValue()));
+		assertThat(statements.get(1).getGroup(), is("users"));
+		assertThat(statements.get(2).getGroup(), is("users"));
+		assertThat(statements.get(3).getGroup(), is(nullValue()));
+	}
+
+	@Test
+	public void itShouldRunEveryStatementInParallel() throws SQLException {
+		executor = new PostgresScriptExecutor(pools, threads, 4, 10);
+		executor.execute("update a set x = 1;\nupdate b set x = 1;\n"
+				+ "select scrub();\nupdate c set x = 1;",
+				Collections.emptyMap());
+
+		verify(statement).execute("update a set x = 1");
+		verify(statement).execute("update b set x = 1");
+		verify(statement).execute("select scrub()");
+		verify(statement).execute("update c set x = 1");
+		verify(connection, atLeast(3)).close();
+	}
+
+	@Test
+	public void itShouldRunScriptsThatUseTheSessionOnOneConnection()
+			throws SQLException {
+		executor = new PostgresScriptExecutor(pools, threads, 4, 10);
+		executor.execute("begin;\nset work_mem = '1GB';\n"
+				+ "update a set x = 1;\nupdate b set x = 1;\ncommit;",
+				Collections.emptyMap());
+
+		InOrder order = inOrder(statement);
+		order.verify(statement).execute("begin");
+		order.verify(statement).execute("set work_mem = '1GB'");
+		order.verify(statement).execute("update a set x = 1");
+		order.verify(statement).execute("update b set x = 1");
+		order.verify(statement).execute("commit");
+		verify(pools).getConnection(any());
+	}
+
+	@Test
+	public void itShouldStopAtTheFirstFailure() throws SQLException {
+		executor = new PostgresScriptExecutor(pools, threads, 4, 10);
+		SQLException failure = new SQLException("nope");
+		when(statement.execute("update a set x = 1")).thenThrow(failure);
+		try {
+			executor.execute("update a set x = 1;\nupdate b set x = 1;\n"
+					+ "select scrub();", Collections.emptyMap());
+			fail("Should have thrown");
+		} catch (SQLException e) {
+			assertThat(e, is(sameInstance(failure)));
+		}
+		verify(statement, never()).execute("select scrub()");
+	}
+
+	@Test
+	public void itShouldReadChunkMarkers() {
+		List<ScriptStatement> statements = executor
+				.statementsOf("-- chunked\nupdate a set x = 1;\n"
+						+ "update b set x = 1;\n-- chunked: 10\n"
+						+ "update c set x = 1;\n-- chunked\ndelete from d;",
+						null);
+
+		assertThat(statements.get(0).getChunkSize(),
+				is(PostgresScriptExecutor.DEFAULT_CHUNK_SIZE));
+		assertThat(statements.get(1).getChunkSize(), is(0));
+		assertThat(statements.get(2).getChunkSize(), is(10));
+		assertThat(statements.get(3).getChunkSize(), is(0));
+	}
+
+	@Test
+	public void itShouldReadRewriteMarkers() {
+		List<ScriptStatement> statements = executor
+				.statementsOf("-- rewrite\nupdate a set x = 1;\n"
+						+ "-- rewrite: unlogged\n-- group: g\n"
+						+ "update b set x = 1;\n-- end group\n"
+						+ "-- rewrite\nupdate c set x = 1 where y;",
+						null);
+
+		assertThat(statements.get(0).getRewrite(),
+				is(ScriptStatement.Rewrite.LOGGED));
+		assertThat(statements.get(1).getRewrite(),
+				is(ScriptStatement.Rewrite.UNLOGGED));
+		assertThat(statements.get(1).getGroup(), is("g"));
+		assertThat(statements.get(2).getRewrite(),
+				is(ScriptStatement.Rewrite.NONE));
+	}
+
+	@Test
+	public void itShouldDropTheProgressOnceTheScriptIsDone()
+			throws SQLException {
+		PreparedStatement query = mock(PreparedStatement.class);
+		when(connection.prepareStatement(anyString())).thenReturn(query);
+		when(query.executeQuery()).thenReturn(mock(ResultSet.class));
+		executor.execute("-- chunked\nupdate a set x = 1 where false;\n"
+				+ "-- group: g\n-- chunked\nupdate b set x = 1;\n"
+				+ "-- end group", Collections.emptyMap());
+		verify(statement).execute(
+				startsWith("create table if not exists "
+						+ ChunkedUpdate.PROGRESS_TABLE));
+		verify(statement).execute(
+				"drop table if exists " + ChunkedUpdate.PROGRESS_TABLE);
+	}
+
+	@Test
+	public void itShouldTimeEachStatementAndSayHowFarAlongItIs()
+			throws SQLException {
+		when(statement.getUpdateCount()).thenReturn(3);
+		List<String> reports = new ArrayList<>();
+		List<StatementTiming> timings = executor.execute(
+				"update a set x = 1;\ndelete from b;",
+				Collections.emptyMap(), reports::add);
+
+		assertThat(timings.stream().map(StatementTiming::getSql)
+				.collect(Collectors.toList()), contains("update a set x = 1",
+				"delete from b"));
+		assertThat(timings.get(0).getRows(), is(3L));
+		assertThat(reports.get(0),
+				is("Sanitizing, 1 of 2 statements done (50%)"));
+	}
+
+	@Test
+	public void itShouldMeasureTheProgressViewsTheServerHas()
+			throws SQLException {
+		PreparedStatement exists = mock(PreparedStatement.class);
+		ResultSet yes = mock(ResultSet.class);
+		when(connection.prepareStatement(anyString())).thenReturn(exists);
+		when(exists.executeQuery()).thenReturn(yes);
+		when(yes.next()).thenReturn(true);
+		when(yes.getBoolean(1)).thenReturn(true, false, false, false);
+		when(foreignKeys.next()).thenReturn(true);
+		when(foreignKeys.getDouble(1)).thenReturn(0.25);
+
+		assertThat(PostgresScriptExecutor.measure(connection,
+				Arrays.asList(101, 102)), is(0.25));
+		verify(statement).executeQuery(
+				startsWith("select coalesce(sum(least(f, 1)), 0) from (select"
+						+ " heap_blks_scanned::float"));
+		verify(statement).executeQuery(endsWith("where pid in (101, 102)) p"));
+	}
+
+	@Test
+	public void itShouldntMeasureBeforeTheScriptHasABackend()
+			throws SQLException {
+		assertThat(PostgresScriptExecutor.measure(connection,
+				Collections.emptySet()), is(0.0));
+		verifyZeroInteractions(connection);
+	}
+
+	@Test
+	public void itShouldPutBackWhatTheBulkProfileChangedOnceItsDone()
+			throws SQLException {
+		BulkProfile bulk = mock(BulkProfile.class);
+		when(bulk.changesTables()).thenReturn(true);
+		when(bulk.undoStatements(connection)).thenReturn(
+				Collections.emptyList(),
+				Collections.singletonList("create index i on a (x)"));
+		executor = new PostgresScriptExecutor(pools, threads, 1, 10, bulk);
+		executor.execute("update a set x = 1;", Collections.emptyMap());
+
+		InOrder order = inOrder(bulk, statement);
+		order.verify(bulk).prepare(connection, Collections.singleton("a"));
+		order.verify(bulk).apply(connection);
+		order.verify(statement).execute("update a set x = 1");
+		order.verify(bulk).reset(connection);
+		order.verify(statement).execute("create index i on a (x)");
+		order.verify(bulk).forget(connection);
+	}
+
+	@Test
+	public void itShouldPutBackWhatTheBulkProfileChangedWhenTheScriptFails()
+			throws SQLException {
+		BulkProfile bulk = mock(BulkProfile.class);
+		when(bulk.changesTables()).thenReturn(true);
+		when(bulk.undoStatements(connection)).thenReturn(
+				Collections.emptyList(),
+				Collections.singletonList("create index i on a (x)"));
+		when(statement.execute("update a set x = 1")).thenThrow(
+				new SQLException("nope"));
+		executor = new PostgresScriptExecutor(pools, threads, 1, 10, bulk);
+		try {
+			executor.execute("update a set x = 1;", Collections.emptyMap());
+			fail("Should have thrown");
+		} catch (SQLException e) {
+			verify(statement).execute("create index i on a (x)");
+			verify(bulk).forget(connection);
+		}
+	}
+
+	private List<String> sqlOf(String script) {
+		return sqlOf(executor.statementsOf(script, null));
+	}
+
+	private List<String> sqlOf(List<ScriptStatement> statements) {
+		return statements.stream().map(ScriptStatement::getSql)
+				.collect(Collectors.toList());
+	}
+}
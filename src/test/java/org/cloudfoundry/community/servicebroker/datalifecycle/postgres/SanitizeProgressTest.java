@@ -0,0 +1,72 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.postgres;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SanitizeProgressTest {
+
+	private List<String> reports = new ArrayList<>();
+
+	private ScriptStatement users = new ScriptStatement(
+			"update users set email = null", null);
+
+	private ScriptStatement audit = new ScriptStatement("delete from audit",
+			null);
+
+	@Test
+	public void itShouldCountStatementsAndWhatTheServerSays() {
+		SanitizeProgress progress = new SanitizeProgress(4, reports::add, 0);
+		progress.started(users);
+		progress.finished(users, 10);
+		progress.started(audit);
+		assertThat(progress.percent(), is(equalTo(25)));
+
+		progress.measured(0.5);
+		assertThat(progress.percent(), is(equalTo(37)));
+		assertThat(reports.get(reports.size() - 1), startsWith(
+				"Sanitizing, 1 of 4 statements done (37%), running for 0s:"
+						+ " delete from audit"));
+	}
+
+	@Test
+	public void itShouldntCountMoreThanWhatsRunning() {
+		SanitizeProgress progress = new SanitizeProgress(4, reports::add, 0);
+		progress.measured(3);
+		assertThat(progress.percent(), is(equalTo(0)));
+	}
+
+	@Test
+	public void itShouldReportAtMostOncePerInterval() {
+		SanitizeProgress progress = new SanitizeProgress(2, reports::add,
+				60000);
+		progress.finished(users, 10);
+		progress.finished(audit, 2);
+		assertThat(reports, contains(
+				"Sanitizing, 1 of 2 statements done (50%)"));
+	}
+
+	@Test
+	public void itShouldStopReportingOnceClosed() {
+		SanitizeProgress progress = new SanitizeProgress(2, reports::add, 0);
+		progress.close();
+		progress.finished(users, 10);
+		assertThat(reports.isEmpty(), is(true));
+		assertThat(progress.getTimings().get(0).getRows(), is(equalTo(10L)));
+	}
+
+	@Test
+	public void itShouldNameTimingsByWhatTheyDo() {
+		assertThat(new StatementTiming("UPDATE users SET email = null", 1, 1)
+				.getName(), is(equalTo("update.users")));
+		assertThat(new StatementTiming("select scrub()", 1, -1).getName(),
+				is(equalTo("select")));
+	}
+}
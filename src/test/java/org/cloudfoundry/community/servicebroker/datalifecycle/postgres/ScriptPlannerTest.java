@@ -0,0 +1,143 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.postgres;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class ScriptPlannerTest {
+
+	private Map<String, Set<String>> noKeys = Collections.emptyMap();
+
+	@Test
+	public void itShouldRunUnrelatedTablesApart() {
+		List<List<List<String>>> phases = plan(
+				statements("update users set email = 'x'",
+						"delete from audit", "update users set name = 'y'"),
+				noKeys);
+
+		assertThat(phases, hasSize(1));
+		assertThat(phases.get(0), contains(
+				Arrays.asList("update users set email = 'x'",
+						"update users set name = 'y'"),
+				Arrays.asList("delete from audit")));
+	}
+
+	@Test
+	public void itShouldKeepTablesWithForeignKeysTogether() {
+		Map<String, Set<String>> keys = new HashMap<>();
+		keys.put("orders", Collections.singleton("users"));
+		List<List<List<String>>> phases = plan(
+				statements("delete from users", "delete from orders",
+						"delete from audit"), keys);
+
+		assertThat(phases.get(0), contains(
+				Arrays.asList("delete from users", "delete from orders"),
+				Arrays.asList("delete from audit")));
+	}
+
+	@Test
+	public void itShouldKeepStatementsThatReadATableWithItsWriters() {
+		List<List<List<String>>> phases = plan(
+				statements("update users set email = 'x'",
+						"insert into audit select * from users"), noKeys);
+
+		assertThat(phases.get(0), hasSize(1));
+	}
+
+	@Test
+	public void itShouldKeepMarkedGroupsTogether() {
+		List<List<List<String>>> phases = plan(Arrays.asList(
+				new ScriptStatement("update a set x = 1", "g"),
+				new ScriptStatement("update b set x = 1", "g"),
+				new ScriptStatement("update c set x = 1", null)), noKeys);
+
+		assertThat(phases.get(0), contains(
+				Arrays.asList("update a set x = 1", "update b set x = 1"),
+				Arrays.asList("update c set x = 1")));
+	}
+
+	@Test
+	public void itShouldRunAnythingElseAlone() {
+		List<List<List<String>>> phases = plan(
+				statements("update a set x = 1", "update b set x = 1",
+						"select scrub()", "update c set x = 1"), noKeys);
+
+		assertThat(phases, hasSize(3));
+		assertThat(phases.get(0), hasSize(2));
+		assertThat(phases.get(1),
+				contains(Collections.singletonList("select scrub()")));
+		assertThat(phases.get(2), hasSize(1));
+	}
+
+	@Test
+	public void itShouldNameTablesWithoutSchemaOrQuotes() {
+		assertThat(ScriptPlanner.tablesOf("UPDATE public.\"Users\" SET x = 1"),
+				contains("users"));
+		assertThat(ScriptPlanner.tablesOf("truncate a, b.c"),
+				containsInAnyOrder("a", "c"));
+		assertThat(ScriptPlanner.tablesOf("select * from a"), is(empty()));
+	}
+
+	@Test
+	public void itShouldOnlyTargetTheTablesAStatementChanges() {
+		assertThat(ScriptPlanner.targetsOf("update users u set country ="
+				+ " c.name from countries c join regions r on true"),
+				contains("users"));
+		assertThat(ScriptPlanner.targetsOf("DELETE FROM ONLY public.\"Orders\""
+				+ " where id in (select id from old_orders)"),
+				contains("public.\"Orders\""));
+		assertThat(ScriptPlanner.targetsOf("insert into log select * from audit"),
+				contains("log"));
+		assertThat(ScriptPlanner.targetsOf("alter table if exists a drop column b"),
+				contains("a"));
+		assertThat(ScriptPlanner.targetsOf("truncate a, b.c"),
+				containsInAnyOrder("a", "b.c"));
+		assertThat(ScriptPlanner.targetsOf("select * from a"), is(empty()));
+	}
+
+	@Test
+	public void itShouldNeedOneSessionForStatementsThatLeaveStateBehind() {
+		assertThat(ScriptPlanner.needsOneSession(statements(
+				"update a set x = 1", "update b set x = 1")), is(false));
+		for (String sql : Arrays.asList("BEGIN", "commit",
+				"set search_path = app", "create temp table t (x int)",
+				"create temporary table t as select 1",
+				"select set_config('app.mask', 'on', false)",
+				"lock table a in exclusive mode")) {
+			assertThat(sql, ScriptPlanner.needsOneSession(statements(
+					"update a set x = 1", sql)), is(true));
+		}
+	}
+
+	private List<ScriptStatement> statements(String... sql) {
+		return Arrays.stream(sql).map(s -> new ScriptStatement(s, null))
+				.collect(Collectors.toList());
+	}
+
+	private List<List<List<String>>> plan(List<ScriptStatement> statements,
+			Map<String, Set<String>> foreignKeys) {
+		return ScriptPlanner
+				.plan(statements, foreignKeys)
+				.stream()
+				.map(phase -> phase
+						.stream()
+						.map(group -> group.stream()
+								.map(ScriptStatement::getSql)
+								.collect(Collectors.toList()))
+						.collect(Collectors.toList()))
+				.collect(Collectors.toList());
+	}
+}
@@ -0,0 +1,105 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.postgres;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.cloudfoundry.community.servicebroker.datalifecycle.dto.CopyProgress;
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState;
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.boot.actuate.metrics.GaugeService;
+
+public class StreamingCopyProviderTest {
+
+	private static final String COPY = "copy_0123456789abcdef0123456789abcdef";
+
+	@Mock
+	private GaugeService gaugeService;
+
+	private StreamingCopyProvider provider;
+
+	@Before
+	public void setUp() {
+		MockitoAnnotations.initMocks(this);
+		provider = new StreamingCopyProvider(creds(
+				"postgresql://prod:5432/app", "prod"), "source",
+				creds("postgresql://copies:5432/postgres", "copier"),
+				"app_schema", Arrays.asList("users", "orders"),
+				Collections.emptyMap(), null, gaugeService, 4);
+	}
+
+	@Test
+	public void itShouldHandOutTheCopysDatabase() throws ServiceBrokerException {
+		Map<String, Object> creds = provider.getCreds(COPY);
+		assertThat(creds.get("uri"), is(equalTo("postgresql://copies:5432/"
+				+ COPY)));
+		assertThat(creds.get("username"), is(equalTo("copier")));
+	}
+
+	@Test
+	public void itShouldHandOutTheSource() throws ServiceBrokerException {
+		assertThat(provider.getCreds("source").get("uri"),
+				is(equalTo("postgresql://prod:5432/app")));
+	}
+
+	@Test
+	public void itShouldntKnowOtherDatabases() throws ServiceBrokerException {
+		assertThat(provider.getCreds("postgres"), is(nullValue()));
+	}
+
+	@Test(expected = ServiceBrokerException.class)
+	public void itShouldOnlyDropItsOwnCopies() throws ServiceBrokerException {
+		provider.deleteCopy("postgres");
+	}
+
+	@Test(expected = ServiceBrokerException.class)
+	public void itShouldntAdvanceACopyPastStreaming()
+			throws ServiceBrokerException {
+		provider.advanceCopy(new CopyProgress(ProvisioningState.BOOTING,
+				"source", null, COPY, null));
+	}
+
+	@Test
+	public void itShouldLoadParentsBeforeChildren() {
+		Map<String, Set<String>> keys = new HashMap<>();
+		keys.put("orders", Collections.singleton("users"));
+		keys.put("order_lines", Collections.singleton("orders"));
+
+		assertThat(StreamingCopyProvider.loadOrder(Arrays.asList(
+				"order_lines", "public.orders", "users", "audit"), keys),
+				contains(Arrays.asList("users", "audit"),
+						Arrays.asList("public.orders"),
+						Arrays.asList("order_lines")));
+	}
+
+	@Test
+	public void itShouldLoadCyclesLast() {
+		Map<String, Set<String>> keys = new HashMap<>();
+		keys.put("a", Collections.singleton("b"));
+		keys.put("b", Collections.singleton("a"));
+
+		assertThat(StreamingCopyProvider.loadOrder(
+				Arrays.asList("a", "b", "c"), keys),
+				contains(Arrays.asList("c"), Arrays.asList("a", "b")));
+	}
+
+	private Map<String, Object> creds(String uri, String username) {
+		Map<String, Object> creds = new HashMap<>();
+		creds.put("uri", uri);
+		creds.put("username", username);
+		creds.put("password", "secret");
+		return creds;
+	}
+}
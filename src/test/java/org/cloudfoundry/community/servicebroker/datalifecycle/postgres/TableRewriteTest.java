@@ -0,0 +1,185 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.postgres;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public class TableRewriteTest {
+
+	private static final String MASK = "update users set email = md5(email), ssn = null";
+
+	@Mock
+	private Connection connection;
+
+	@Mock
+	private Statement statement;
+
+	private List<String> executed = new ArrayList<>();
+
+	/**
+	 * Catalog query (by a bit of its text) to the rows it returns.
+	 */
+	private Map<String, String[][]> catalog = new HashMap<>();
+
+	@Before
+	public void setUp() throws SQLException {
+		MockitoAnnotations.initMocks(this);
+		when(connection.createStatement()).thenReturn(statement);
+		when(connection.getAutoCommit()).thenReturn(true);
+		when(statement.execute(anyString())).thenAnswer(i -> {
+			executed.add((String) i.getArguments()[0]);
+			return false;
+		});
+		when(connection.prepareStatement(anyString())).thenAnswer(
+				i -> query((String) i.getArguments()[0]));
+		catalog.put("pg_namespace n on n.oid = c.relnamespace",
+				new String[][] { { "public", "users" } });
+		catalog.put("attname from pg_attribute", new String[][] { { "id" },
+				{ "email" }, { "ssn" }, { "name" } });
+		catalog.put("pg_get_indexdef", new String[][] {
+				{ "users_pkey",
+						"CREATE UNIQUE INDEX users_pkey ON public.users USING btree (id)",
+						"users_pkey", "p" },
+				{ "users_email",
+						"CREATE INDEX users_email ON public.users USING btree (email)",
+						null, null } });
+		catalog.put("relkind = 'S'", new String[][] { { "users_id_seq", "id" } });
+		catalog.put("server_version_num", new String[][] { { "t" } });
+	}
+
+	@Test
+	public void itShouldWriteAMaskedTableAndSwapItIn() throws SQLException {
+		TableRewrite.run(connection, MASK, true, null, null, 1);
+
+		assertThat(
+				executed,
+				contains(
+						"drop table if exists \"public\".\"users_masked\"",
+						"create unlogged table \"public\".\"users_masked\" (like users"
+								+ " including defaults including constraints"
+								+ " including storage including comments)",
+						"insert into \"public\".\"users_masked\" select \"id\","
+								+ " md5(email) as \"email\", null as \"ssn\", \"name\""
+								+ " from users",
+						"alter table \"public\".\"users_masked\" set logged",
+						"CREATE UNIQUE INDEX \"users_pkey_masked\" ON"
+								+ " \"public\".\"users_masked\" USING btree (id)",
+						"CREATE INDEX \"users_email_masked\" ON"
+								+ " \"public\".\"users_masked\" USING btree (email)",
+						"alter sequence users_id_seq owned by"
+								+ " \"public\".\"users_masked\".\"id\"",
+						"drop table users",
+						"alter table \"public\".\"users_masked\" rename to \"users\"",
+						"alter table \"public\".\"users\" add constraint \"users_pkey\""
+								+ " primary key using index \"users_pkey_masked\"",
+						"alter index \"public\".\"users_email_masked\" rename to"
+								+ " \"users_email\""));
+		verify(connection).commit();
+	}
+
+	@Test
+	public void itShouldWriteTheTableLoggedBeforePostgres95()
+			throws SQLException {
+		catalog.put("server_version_num", new String[][] { { "f" } });
+		TableRewrite.run(connection, MASK, true, null, null, 1);
+
+		assertThat(executed.get(1), is(equalTo("create table"
+				+ " \"public\".\"users_masked\" (like users"
+				+ " including defaults including constraints"
+				+ " including storage including comments)")));
+		assertFalse(executed.stream().anyMatch(s -> s.endsWith("set logged")));
+		verify(connection).commit();
+	}
+
+	@Test
+	public void itShouldUpdateInPlaceWhenTheTableCantBeSwapped()
+			throws SQLException {
+		catalog.put("pg_trigger", new String[][] { { "t" } });
+		TableRewrite.run(connection, MASK, false, null, null, 1);
+
+		assertThat(executed, contains(MASK));
+		verify(connection, never()).commit();
+	}
+
+	@Test
+	public void itShouldUpdateInPlaceWhenTheSwapWouldLoseTableSettings()
+			throws SQLException {
+		for (String setting : new String[] { "attacl", "relowner",
+				"reloptions", "relreplident", "pg_policy" }) {
+			executed.clear();
+			catalog.put(setting, new String[][] { { "t" } });
+			TableRewrite.run(connection, MASK, false, null, null, 1);
+
+			assertThat(setting, executed, contains(MASK));
+			catalog.remove(setting);
+		}
+		verify(connection, never()).commit();
+	}
+
+	@Test
+	public void itShouldOnlyRewriteUpdatesOfWholeTables() {
+		assertTrue(TableRewrite.isRewritable(MASK));
+		assertFalse(TableRewrite.isRewritable(MASK + " where id > 10"));
+		assertFalse(TableRewrite.isRewritable("update users set (a, b) = (1, 2)"));
+		assertFalse(TableRewrite.isRewritable("delete from users"));
+	}
+
+	@Test
+	public void itShouldMapAssignmentsToColumns() {
+		Map<String, String> assignments = TableRewrite
+				.assignmentsOf(" Email = lower(concat(a, ',', b)), \"Name\" = 'x'");
+		assertThat(assignments.get("email"),
+				is(equalTo("lower(concat(a, ',', b))")));
+		assertThat(assignments.get("Name"), is(equalTo("'x'")));
+		assertThat(TableRewrite.assignmentsOf(" (a, b) = (1, 2)"),
+				is(nullValue()));
+	}
+
+	private PreparedStatement query(String sql) throws SQLException {
+		String[][] rows = new String[0][];
+		for (Map.Entry<String, String[][]> entry : catalog.entrySet()) {
+			if (sql.contains(entry.getKey())) {
+				rows = entry.getValue();
+			}
+		}
+		PreparedStatement query = mock(PreparedStatement.class);
+		ResultSet result = resultSet(rows);
+		when(query.executeQuery()).thenReturn(result);
+		return query;
+	}
+
+	private ResultSet resultSet(String[][] rows) throws SQLException {
+		ResultSet result = mock(ResultSet.class);
+		int[] row = { -1 };
+		when(result.next()).thenAnswer(i -> ++row[0] < rows.length);
+		when(result.getString(anyInt())).thenAnswer(
+				i -> rows[row[0]][(Integer) i.getArguments()[0] - 1]);
+		when(result.getBoolean(1)).thenAnswer(i -> "t".equals(rows[row[0]][0]));
+		return result;
+	}
+}
@@ -0,0 +1,216 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.service;
+
+import static org.cloudfoundry.community.servicebroker.datalifecycle.model.BrokerActionState.COMPLETE;
+import static org.cloudfoundry.community.servicebroker.datalifecycle.model.BrokerActionState.IN_PROGRESS;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.BrokerAction;
+import org.cloudfoundry.community.servicebroker.datalifecycle.repo.BrokerActionRepository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.dao.DataAccessResourceFailureException;
+
+public class BrokerActionLogTest {
+
+	@Mock
+	private BrokerActionRepository repo;
+
+	@Mock
+	private CounterService counterService;
+
+	@Mock
+	private GaugeService gaugeService;
+
+	private ScheduledExecutorService scheduler = Executors
+			.newSingleThreadScheduledExecutor();
+
+	private BrokerActionLog actionLog;
+
+	@Before
+	public void setUp() {
+		MockitoAnnotations.initMocks(this);
+		// Not started, the tests flush by hand.
+		actionLog = new BrokerActionLog(repo, scheduler, counterService,
+				gaugeService, 3, 1000, 30);
+	}
+
+	@After
+	public void tearDown() {
+		scheduler.shutdownNow();
+	}
+
+	@Test
+	public void itShouldNotWriteOnTheCallersThread() {
+		actionLog.record(new BrokerAction("1", IN_PROGRESS, "Creating"));
+		verify(repo, never()).save(anyCollectionOf(BrokerAction.class));
+	}
+
+	@Test
+	public void itShouldWriteQueuedActionsInOneBatch() {
+		actionLog.record(new BrokerAction("1", IN_PROGRESS, "Creating"));
+		actionLog.record(new BrokerAction("2", IN_PROGRESS, "Creating"));
+		actionLog.flush();
+
+		assertThat(ids(saved()), contains("1", "2"));
+	}
+
+	@Test
+	public void itShouldKeepEveryActionForAnActor() {
+		actionLog.record(new BrokerAction("1", IN_PROGRESS, "Creating", 1000));
+		actionLog.record(new BrokerAction("1", IN_PROGRESS, "Sanitizing",
+				1500));
+		actionLog.record(new BrokerAction("1", COMPLETE, "Created", 4000));
+		actionLog.flush();
+
+		List<BrokerAction> saved = new ArrayList<>(saved());
+		assertThat(ids(saved), contains("1", "1", "1"));
+		assertThat(saved.get(0).getDuration(), is(equalTo(0L)));
+		assertThat(saved.get(1).getDuration(), is(equalTo(500L)));
+		assertThat(saved.get(2).getDuration(), is(equalTo(2500L)));
+	}
+
+	@Test
+	public void itShouldStartANewTimelineOnceAnOperationIsOver() {
+		actionLog.record(new BrokerAction("1", COMPLETE, "Created", 1000));
+		actionLog.record(new BrokerAction("1", IN_PROGRESS, "Deleting", 9000));
+		actionLog.flush();
+
+		List<BrokerAction> saved = new ArrayList<>(saved());
+		assertThat(saved.get(1).getDuration(), is(equalTo(0L)));
+	}
+
+	@Test
+	public void itShouldDropBucketsOlderThanTheRetentionPeriod() {
+		actionLog.expire();
+
+		verify(repo).deleteBucketsBefore(
+				BrokerAction.bucketOf(System.currentTimeMillis()) - 30);
+	}
+
+	@Test
+	public void itShouldKeepEverythingWithoutARetentionPeriod() {
+		new BrokerActionLog(repo, scheduler, counterService, gaugeService, 3,
+				1000, 0).expire();
+
+		verify(repo, never()).deleteBucketsBefore(anyLong());
+	}
+
+	@Test
+	public void itShouldForgetActorsThatWentQuiet() {
+		actionLog.record(new BrokerAction("1", IN_PROGRESS, "Creating", 1000));
+		actionLog.expire(1000 + BrokerActionLog.STALE + 1);
+		actionLog.record(new BrokerAction("1", COMPLETE, "Created",
+				2000 + BrokerActionLog.STALE));
+		actionLog.flush();
+
+		List<BrokerAction> saved = new ArrayList<>(saved());
+		assertThat(saved.get(1).getDuration(), is(equalTo(0L)));
+	}
+
+	@Test
+	public void itShouldWriteOnTheCallersThreadWhenTheQueueIsFull() {
+		for (int i = 0; i < 4; ++i) {
+			actionLog.record(new BrokerAction("" + i, IN_PROGRESS, "Creating"));
+		}
+		assertThat(ids(saved()), contains("0", "1", "2"));
+		verify(counterService).increment("audit.queue.full");
+	}
+
+	@Test
+	public void itShouldDrainTheQueueOnShutdown() {
+		actionLog.start();
+		actionLog.record(new BrokerAction("1", IN_PROGRESS, "Creating"));
+		actionLog.stop();
+
+		assertThat(ids(saved()), contains("1"));
+	}
+
+	@Test
+	public void itShouldCarryOnWhenAWriteFails() {
+		doThrow(new DataAccessResourceFailureException("down")).when(repo)
+				.save(anyCollectionOf(BrokerAction.class));
+		actionLog.record(new BrokerAction("1", IN_PROGRESS, "Creating"));
+		actionLog.flush();
+
+		verify(counterService).increment("audit.write.failed");
+		verify(repo, times(1)).save(any(Iterable.class));
+	}
+
+	@Test
+	public void itShouldWriteAFailedBatchOneAtATime() {
+		doThrow(new DataAccessResourceFailureException("bad")).when(repo)
+				.save(anyCollectionOf(BrokerAction.class));
+		BrokerAction bad = new BrokerAction("2", IN_PROGRESS, "Creating");
+		doThrow(new DataAccessResourceFailureException("bad")).when(repo)
+				.save(bad);
+		BrokerAction first = new BrokerAction("1", IN_PROGRESS, "Creating");
+		BrokerAction last = new BrokerAction("3", IN_PROGRESS, "Creating");
+		actionLog.record(first);
+		actionLog.record(bad);
+		actionLog.record(last);
+		actionLog.flush();
+
+		verify(repo).save(first);
+		verify(repo).save(last);
+		verify(counterService, never()).increment("audit.dropped");
+
+		actionLog.flush();
+		verify(repo, times(2)).save(bad);
+		verify(counterService).increment("audit.dropped");
+	}
+
+	@Test
+	public void itShouldHoldActionsWhileTheDatabaseIsDown() {
+		doThrow(new DataAccessResourceFailureException("down")).when(repo)
+				.save(anyCollectionOf(BrokerAction.class));
+		doThrow(new DataAccessResourceFailureException("down")).when(repo)
+				.save(any(BrokerAction.class));
+		actionLog.record(new BrokerAction("1", IN_PROGRESS, "Creating"));
+		actionLog.record(new BrokerAction("2", IN_PROGRESS, "Creating"));
+		actionLog.record(new BrokerAction("3", IN_PROGRESS, "Creating"));
+		actionLog.flush();
+
+		verify(repo, times(2)).save(any(BrokerAction.class));
+
+		reset(repo);
+		actionLog.flush();
+		assertThat(ids(saved()), contains("1", "2", "3"));
+	}
+
+	@SuppressWarnings("unchecked")
+	private Collection<BrokerAction> saved() {
+		ArgumentCaptor<Collection> saved = ArgumentCaptor
+				.forClass(Collection.class);
+		verify(repo).save(saved.capture());
+		return saved.getValue();
+	}
+
+	private List<String> ids(Collection<BrokerAction> actions) {
+		List<String> ids = new ArrayList<>();
+		actions.forEach(a -> ids.add(a.getActor()));
+		return ids;
+	}
+}
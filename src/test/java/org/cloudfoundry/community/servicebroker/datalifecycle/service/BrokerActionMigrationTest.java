@@ -0,0 +1,79 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.service;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.BrokerAction;
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.BrokerActionState;
+import org.cloudfoundry.community.servicebroker.datalifecycle.repo.BrokerActionRepository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+public class BrokerActionMigrationTest {
+
+	@Mock
+	private BrokerActionRepository repo;
+
+	private JdbcTemplate jdbc;
+
+	private BrokerActionMigration migration;
+
+	@Before
+	public void setUp() {
+		MockitoAnnotations.initMocks(this);
+		DataSource dataSource = new DriverManagerDataSource(
+				"jdbc:h2:mem:migration;DB_CLOSE_DELAY=-1", "sa", "");
+		jdbc = new JdbcTemplate(dataSource);
+		migration = new BrokerActionMigration(jdbc, new TransactionTemplate(
+				new DataSourceTransactionManager(dataSource)), repo);
+	}
+
+	@After
+	public void tearDown() {
+		jdbc.execute("drop table if exists broker_action");
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void itShouldCarryTheOldActionsOverAndDropTheTable() {
+		jdbc.execute("create table broker_action (id varchar(255) primary key,"
+				+ " action varchar(255), actor varchar(255), state integer)");
+		jdbc.update("insert into broker_action values ('1', 'Created service instance', '1', 1)");
+		migration.migrate();
+
+		ArgumentCaptor<List> saved = ArgumentCaptor.forClass(List.class);
+		verify(repo).save(saved.capture());
+		BrokerAction action = (BrokerAction) saved.getValue().get(0);
+		assertThat(action.getActor(), is(equalTo("1")));
+		assertThat(action.getState(),
+				is(equalTo(BrokerActionState.values()[1])));
+		assertThat(jdbc.queryForObject(
+				"select count(*) from information_schema.tables"
+						+ " where table_name = 'BROKER_ACTION'", Integer.class),
+				is(equalTo(0)));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void itShouldDoNothingWithoutTheOldTable() {
+		migration.migrate();
+
+		verify(repo, never()).save(any(Iterable.class));
+	}
+}
@@ -0,0 +1,287 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.service;
+
+import static org.cloudfoundry.community.servicebroker.datalifecycle.config.LCCatalogConfig.COPY;
+import static org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState.BOOTING;
+import static org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState.SANITIZING;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cloudfoundry.community.servicebroker.datalifecycle.dto.CopyProgress;
+import org.cloudfoundry.community.servicebroker.datalifecycle.exception.DataProviderSanitizationFailedException;
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.PoolBuild;
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.PooledCopy;
+import org.cloudfoundry.community.servicebroker.datalifecycle.provider.CopyProvider;
+import org.cloudfoundry.community.servicebroker.datalifecycle.provider.DataProvider;
+import org.cloudfoundry.community.servicebroker.datalifecycle.repo.PoolBuildRepo;
+import org.cloudfoundry.community.servicebroker.datalifecycle.repo.PooledCopyRepo;
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.util.DigestUtils;
+
+public class CopyPoolManagerTest {
+
+	@Mock
+	private CopyProvider copyProvider;
+
+	@Mock
+	private DataProvider dataProvider;
+
+	@Mock
+	private DataProviderService dataProviderService;
+
+	@Mock
+	private PooledCopyRepo repo;
+
+	@Mock
+	private PoolBuildRepo buildRepo;
+
+	@Mock
+	private LCServiceInstanceManager instanceManager;
+
+	@Mock
+	private BrokerActionLog actionLog;
+
+	@Mock
+	private CounterService counterService;
+
+	@Mock
+	private GaugeService gaugeService;
+
+	private TestClock clock = new TestClock();
+
+	private AtomicInteger copies = new AtomicInteger();
+
+	@Before
+	public void setUp() throws Exception {
+		MockitoAnnotations.initMocks(this);
+		when(dataProviderService.getScriptDigestForPlan(COPY)).thenReturn(
+				digest("the script"));
+		when(dataProviderService.getScriptByDigest(digest("the script")))
+				.thenReturn("the script");
+		when(copyProvider.advanceCopy(any())).thenAnswer(i -> {
+			clock.advance(TimeUnit.MINUTES.toMillis(10));
+			CopyProgress progress = (CopyProgress) i.getArguments()[0];
+			return CompletableFuture.completedFuture(progress.withCopyId(
+					"copy" + copies.incrementAndGet()).next(SANITIZING));
+		});
+		when(copyProvider.deleteCopy(anyString())).thenReturn(
+				CompletableFuture.completedFuture(null));
+	}
+
+	private CopyPoolManager newPool(int min, int max) {
+		SyncTaskExecutor executor = new SyncTaskExecutor();
+		CopyPoolManager pool = new CopyPoolManager(copyProvider,
+				new ProvisioningStateMachine(copyProvider, dataProvider,
+						dataProviderService, instanceManager, actionLog,
+						executor, "source_instance"), dataProviderService,
+				repo, buildRepo, executor, counterService, gaugeService,
+				"source_instance", Collections.singleton(COPY), min, max,
+				clock);
+		pool.start();
+		return pool;
+	}
+
+	@Test
+	public void itShouldDoNothingWhenDisabled() {
+		CopyPoolManager pool = newPool(0, 0);
+		assertNull(pool.take(COPY));
+		verifyZeroInteractions(copyProvider, repo, counterService);
+	}
+
+	@Test
+	public void itShouldFillToTheMinimumOnStart() throws Exception {
+		CopyPoolManager pool = newPool(2, 5);
+		assertThat(pool.getDepth(COPY), is(equalTo(2)));
+		verify(copyProvider, times(2)).advanceCopy(any());
+		verify(dataProvider, times(2)).sanitize(anyString(), any(), any(), any());
+		verify(repo, times(2)).save(any(PooledCopy.class));
+	}
+
+	@Test
+	public void itShouldHandOutAReadyCopyAndRefill() throws Exception {
+		CopyPoolManager pool = newPool(1, 5);
+		assertThat(pool.take(COPY), is(equalTo("copy1")));
+		verify(repo).delete("copy1");
+		verify(counterService).increment("copypool.copy.hit");
+		assertThat(pool.getDepth(COPY), is(equalTo(1)));
+		verify(copyProvider, times(2)).advanceCopy(any());
+	}
+
+	@Test
+	public void itShouldCountAMissForUnknownPlansOrEmptyPools() {
+		CopyPoolManager pool = newPool(0, 5);
+		assertNull(pool.take(COPY));
+		assertNull(pool.take("not-pooled"));
+		verify(counterService).increment("copypool.copy.miss");
+	}
+
+	@Test
+	public void itShouldPickUpCopiesFromBeforeARestart() throws Exception {
+		when(repo.findByPlanIdOrderByCreatedAtAsc(COPY)).thenReturn(
+				Arrays.asList(new PooledCopy("old_copy", COPY,
+						digest("the script"), 0)));
+		CopyPoolManager pool = newPool(1, 1);
+		verify(copyProvider, never()).advanceCopy(any());
+		assertThat(pool.take(COPY), is(equalTo("old_copy")));
+	}
+
+	@Test
+	public void itShouldSaveRefillsUntilTheyreReady() throws Exception {
+		newPool(1, 1);
+		ArgumentCaptor<PoolBuild> saved = ArgumentCaptor
+				.forClass(PoolBuild.class);
+		verify(buildRepo, times(2)).save(saved.capture());
+		assertThat(saved.getValue().getProgress().getCopyId(),
+				is(equalTo("copy1")));
+		verify(buildRepo).delete(saved.getValue().getId());
+	}
+
+	@Test
+	public void itShouldResumeRefillsFromBeforeARestart() throws Exception {
+		CopyProgress booting = new CopyProgress(BOOTING, "source_instance",
+				"old_image", "old_copy", "10.10.10.10", digest("the script"));
+		when(buildRepo.findAll()).thenReturn(
+				Arrays.asList(new PoolBuild("old_build", COPY, 0, booting)));
+		CopyPoolManager pool = newPool(1, 1);
+
+		ArgumentCaptor<CopyProgress> advanced = ArgumentCaptor
+				.forClass(CopyProgress.class);
+		verify(copyProvider, times(1)).advanceCopy(advanced.capture());
+		assertThat(advanced.getValue().getCopyId(), is(equalTo("old_copy")));
+		assertThat(advanced.getValue().getState(), is(equalTo(BOOTING)));
+		verify(buildRepo).delete("old_build");
+		assertThat(pool.getDepth(COPY), is(equalTo(1)));
+	}
+
+	@Test
+	public void itShouldDeleteWhatRefillsForPlansNoLongerPooledMade()
+			throws Exception {
+		when(copyProvider.deleteImage(anyString())).thenReturn(
+				CompletableFuture.completedFuture(null));
+		when(buildRepo.findAll()).thenReturn(
+				Arrays.asList(new PoolBuild("old_build", "gone", 0,
+						CopyProgress.start("source_instance").withImageId(
+								"old_image"))));
+		newPool(0, 1);
+
+		verify(buildRepo).delete("old_build");
+		verify(copyProvider).deleteImage("old_image");
+		verify(copyProvider, never()).advanceCopy(any());
+	}
+
+	@Test
+	public void itShouldDiscardCopiesSanitizedWithAnOldScript()
+			throws Exception {
+		when(repo.findByPlanIdOrderByCreatedAtAsc(COPY)).thenReturn(
+				Arrays.asList(new PooledCopy("stale_copy", COPY,
+						digest("old script"), 0)));
+		CopyPoolManager pool = newPool(1, 1);
+		assertThat(pool.take(COPY), is(equalTo(null)));
+		verify(copyProvider).deleteCopy("stale_copy");
+		verify(counterService).increment("copypool.copy.miss");
+	}
+
+	@Test
+	public void itShouldGrowWithDemand() {
+		CopyPoolManager pool = newPool(1, 10);
+		for (int i = 0; i < 12; ++i) {
+			pool.take(COPY);
+		}
+		// 12 an hour with copies taking ~10 minutes to build.
+		assertThat(pool.getTargetSize(COPY), is(greaterThan(1)));
+	}
+
+	@Test
+	public void itShouldShrinkWhenDemandDropsOff() throws Exception {
+		CopyPoolManager pool = newPool(1, 10);
+		for (int i = 0; i < 12; ++i) {
+			pool.take(COPY);
+		}
+		clock.advance(TimeUnit.HOURS.toMillis(2));
+		pool.refill();
+		assertThat(pool.getTargetSize(COPY), is(equalTo(1)));
+		assertThat(pool.getDepth(COPY), is(equalTo(1)));
+	}
+
+	@Test
+	public void itShouldNotGrowPastTheMaximum() throws Exception {
+		// Keep the clock still so all of the demand lands in the window.
+		doThrow(new ServiceBrokerException("no capacity")).when(copyProvider)
+				.advanceCopy(any());
+		CopyPoolManager pool = newPool(1, 2);
+		for (int i = 0; i < 100; ++i) {
+			pool.take(COPY);
+		}
+		assertThat(pool.getTargetSize(COPY), is(equalTo(2)));
+	}
+
+	@Test
+	public void itShouldDeleteTheCopyIfSanitizeFails() throws Exception {
+		doThrow(new DataProviderSanitizationFailedException("nope")).when(
+				dataProvider).sanitize(anyString(), any(), any(), any());
+		CopyPoolManager pool = newPool(1, 1);
+		assertThat(pool.getDepth(COPY), is(equalTo(0)));
+		verify(copyProvider).deleteCopy("copy1");
+	}
+
+	private String digest(String script) {
+		return DigestUtils.md5DigestAsHex(script.getBytes());
+	}
+
+	private static class TestClock extends Clock {
+
+		private long now = 0;
+
+		void advance(long millis) {
+			now += millis;
+		}
+
+		@Override
+		public long millis() {
+			return now;
+		}
+
+		@Override
+		public ZoneId getZone() {
+			return ZoneOffset.UTC;
+		}
+
+		@Override
+		public Clock withZone(ZoneId zone) {
+			return this;
+		}
+
+		@Override
+		public Instant instant() {
+			return Instant.ofEpochMilli(now);
+		}
+	}
+}
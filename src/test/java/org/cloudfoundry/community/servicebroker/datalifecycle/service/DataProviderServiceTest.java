@@ -1,17 +1,30 @@
 package org.cloudfoundry.community.servicebroker.datalifecycle.service;
 
+import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.NamedScript;
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.PlanScript;
 import org.cloudfoundry.community.servicebroker.datalifecycle.model.SanitizationScript;
+import org.cloudfoundry.community.servicebroker.datalifecycle.repo.NamedScriptRepo;
+import org.cloudfoundry.community.servicebroker.datalifecycle.repo.PlanScriptRepo;
 import org.cloudfoundry.community.servicebroker.datalifecycle.repo.ScriptRepo;
-import org.cloudfoundry.community.servicebroker.datalifecycle.service.DataProviderService;
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentMatcher;
@@ -23,12 +36,19 @@ public class DataProviderServiceTest {
 	@Mock
 	ScriptRepo scriptRepo;
 
+	@Mock
+	NamedScriptRepo namedScriptRepo;
+
+	@Mock
+	PlanScriptRepo planScriptRepo;
+
 	private DataProviderService service;
 
 	@Before
 	public void setUp() {
 		MockitoAnnotations.initMocks(this);
-		service = new DataProviderService(scriptRepo);
+		service = new DataProviderService(scriptRepo, namedScriptRepo,
+				planScriptRepo);
 	}
 
 	@Test
@@ -42,18 +62,157 @@ public class DataProviderServiceTest {
 								.equals("The Script");
 					}
 				}));
+		verify(namedScriptRepo).save(
+				argThat(new ArgumentMatcher<NamedScript>() {
+					@Override
+					public boolean matches(Object argument) {
+						return ((NamedScript) argument).getName().equals(
+								DataProviderService.DEFAULT);
+					}
+				}));
 	}
 
 	@Test
 	public void itShouldGetTheScript() {
-		when(scriptRepo.findOne(SanitizationScript.ID)).thenReturn(new
-				SanitizationScript("fake script"));
+		givenScript(DataProviderService.DEFAULT, "fake script");
 		assertThat(service.getScript(), is(notNullValue()));
 	}
 
 	@Test
 	public void itShouldReturnNullIfTheresNoScript() {
-		when(scriptRepo.findOne(SanitizationScript.ID)).thenReturn(null);
 		assertNull(service.getScript());
 	}
+
+	@Test
+	public void itShouldOnlyReadTheScriptOnce() {
+		givenScript(DataProviderService.DEFAULT, "fake script");
+		service.getScript();
+		service.getScriptDigest();
+		assertThat(service.getScript(), is(equalTo("fake script")));
+		verify(namedScriptRepo, times(1)).findOne(DataProviderService.DEFAULT);
+		verify(scriptRepo, times(1)).findOne(
+				SanitizationScript.digestOf("fake script"));
+	}
+
+	@Test
+	public void itShouldServeANewScriptOnceItsSaved() {
+		givenScript(DataProviderService.DEFAULT, "fake script");
+		String digest = service.getScriptDigest();
+		service.saveScript("The Script");
+
+		assertThat(service.getScript(), is(equalTo("The Script")));
+		assertThat(service.getScriptDigest(), is(not(equalTo(digest))));
+		verify(namedScriptRepo, times(1)).findOne(DataProviderService.DEFAULT);
+	}
+
+	@Test
+	public void itShouldntLetAnOldReadReplaceANewScript() throws Exception {
+		CountDownLatch reading = new CountDownLatch(1);
+		CountDownLatch saving = new CountDownLatch(1);
+		when(namedScriptRepo.findOne(DataProviderService.DEFAULT)).thenAnswer(
+				i -> {
+					reading.countDown();
+					saving.await(1, TimeUnit.SECONDS);
+					return new NamedScript(DataProviderService.DEFAULT,
+							SanitizationScript.digestOf("old script"));
+				});
+		Thread reader = new Thread(service::getScriptDigest);
+		reader.start();
+		reading.await(1, TimeUnit.SECONDS);
+		Thread saver = new Thread(() -> service.saveScript("new script"));
+		saver.start();
+		saving.countDown();
+		reader.join();
+		saver.join();
+
+		assertThat(service.getScriptDigest(),
+				is(equalTo(SanitizationScript.digestOf("new script"))));
+	}
+
+	@Test
+	public void itShouldHaveNoDigestWithoutAScript() {
+		assertNull(service.getScriptDigest());
+	}
+
+	@Test
+	public void itShouldStoreTheSameContentOnce() {
+		when(scriptRepo.exists(SanitizationScript.digestOf("The Script")))
+				.thenReturn(true);
+		service.saveScript("emails-only", "The Script");
+
+		verify(scriptRepo, never()).save(any(SanitizationScript.class));
+		assertThat(service.getScript("emails-only"),
+				is(equalTo("The Script")));
+	}
+
+	@Test
+	public void itShouldKeepOldVersionsForCopiesAlreadyUnderWay() {
+		service.saveScript("emails-only", "v1");
+		String v1 = service.getScriptDigest("emails-only");
+		service.saveScript("emails-only", "v2");
+
+		assertThat(service.getScriptByDigest(v1), is(equalTo("v1")));
+		verify(scriptRepo, never()).delete(any(String.class));
+	}
+
+	@Test
+	public void itShouldUseTheDefaultScriptForUnassignedPlans() {
+		givenScript(DataProviderService.DEFAULT, "fake script");
+		assertThat(service.getScriptDigestForPlan("copy"),
+				is(equalTo(SanitizationScript.digestOf("fake script"))));
+	}
+
+	@Test
+	public void itShouldUseThePlansScript() throws ServiceBrokerException {
+		givenScript("emails-only", "short script");
+		service.assignScript("copy", "emails-only");
+
+		assertThat(service.getScriptDigestForPlan("copy"),
+				is(equalTo(SanitizationScript.digestOf("short script"))));
+		verify(planScriptRepo).save(any(PlanScript.class));
+	}
+
+	@Test
+	public void itShouldReadThePlansScriptOnce() {
+		when(planScriptRepo.findOne("copy")).thenReturn(
+				new PlanScript("copy", "emails-only"));
+		service.getScriptNameForPlan("copy");
+
+		assertThat(service.getScriptNameForPlan("copy"),
+				is(equalTo("emails-only")));
+		verify(planScriptRepo, times(1)).findOne("copy");
+	}
+
+	@Test(expected = ServiceBrokerException.class)
+	public void itShouldntAssignAMissingScript() throws ServiceBrokerException {
+		service.assignScript("copy", "nope");
+	}
+
+	@Test
+	public void itShouldPutPlansBackOnTheDefaultWhenTheirScriptIsDeleted()
+			throws ServiceBrokerException {
+		givenScript("emails-only", "short script");
+		service.assignScript("copy", "emails-only");
+		when(planScriptRepo.findByScriptName("emails-only")).thenReturn(
+				Collections.singletonList(new PlanScript("copy", "emails-only")));
+
+		assertThat(service.deleteScript("emails-only"), is(true));
+		assertThat(service.getScriptNameForPlan("copy"),
+				is(equalTo(DataProviderService.DEFAULT)));
+		assertNull(service.getScript("emails-only"));
+		verify(namedScriptRepo).delete("emails-only");
+	}
+
+	@Test
+	public void itShouldntDeleteAMissingScript() {
+		assertFalse(service.deleteScript("nope"));
+	}
+
+	private void givenScript(String name, String script) {
+		String digest = SanitizationScript.digestOf(script);
+		when(namedScriptRepo.findOne(name)).thenReturn(
+				new NamedScript(name, digest));
+		when(scriptRepo.findOne(digest)).thenReturn(
+				new SanitizationScript(script));
+	}
 }
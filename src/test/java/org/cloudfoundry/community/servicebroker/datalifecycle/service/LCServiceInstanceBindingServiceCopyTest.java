@@ -6,9 +6,9 @@ import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
-import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -20,10 +20,8 @@ import java.util.Map;
 import java.util.function.IntConsumer;
 import java.util.stream.IntStream;
 
-import org.cloudfoundry.community.servicebroker.datalifecycle.dto.InstancePair;
 import org.cloudfoundry.community.servicebroker.datalifecycle.model.BrokerAction;
 import org.cloudfoundry.community.servicebroker.datalifecycle.provider.CopyProvider;
-import org.cloudfoundry.community.servicebroker.datalifecycle.repo.BrokerActionRepository;
 import org.cloudfoundry.community.servicebroker.datalifecycle.service.LCServiceInstanceBindingManager;
 import org.cloudfoundry.community.servicebroker.datalifecycle.service.LCServiceInstanceBindingService;
 import org.cloudfoundry.community.servicebroker.datalifecycle.service.LCServiceInstanceService;
@@ -38,6 +36,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.dao.DataIntegrityViolationException;
 
 import com.amazonaws.services.ec2.AmazonEC2Client;
 
@@ -64,7 +63,7 @@ public class LCServiceInstanceBindingServiceCopyTest {
 	private LCServiceInstanceService instanceService;
 
 	@Mock
-	private BrokerActionRepository actionRepo;
+	private BrokerActionLog actionLog;
 
 	@Mock
 	LCServiceInstanceBindingManager bindingManager;
@@ -77,7 +76,7 @@ public class LCServiceInstanceBindingServiceCopyTest {
 		MockitoAnnotations.initMocks(this);
 
 		bindingService = new LCServiceInstanceBindingService(provider,
-				instanceService, actionRepo, bindingManager);
+				instanceService, actionLog, bindingManager);
 
 		createServiceInstanceBindingRequest = new CreateServiceInstanceBindingRequest(
 				"postgrescdm", COPY, "test_app").withBindingId(bindingId).and()
@@ -130,13 +129,12 @@ public class LCServiceInstanceBindingServiceCopyTest {
 			throws ServiceInstanceBindingExistsException,
 			ServiceBrokerException {
 
-		ArrayList<ServiceInstanceBinding> list = new ArrayList<ServiceInstanceBinding>();
-		list.add(new ServiceInstanceBinding("foo", serviceInstance
-				.getServiceInstanceId(), null, null, "test_app"));
-		when(bindingManager.getBindings()).thenReturn(list);
+		when(
+				bindingManager.getBinding("test_app",
+						serviceInstance.getServiceInstanceId())).thenReturn(
+				new ServiceInstanceBinding("foo", serviceInstance
+						.getServiceInstanceId(), null, null, "test_app"));
 
-		bindResult = bindingService
-				.createServiceInstanceBinding(createServiceInstanceBindingRequest);
 		createServiceInstanceBindingRequest = new CreateServiceInstanceBindingRequest(
 				"postgrescdm", COPY, "test_app")
 				.withBindingId(bindingId + "foo").and()
@@ -160,7 +158,7 @@ public class LCServiceInstanceBindingServiceCopyTest {
 	}
 
 	@Test
-	public void itShouldReturnAppToInstancePairsAndBindToMutipleApps()
+	public void itShouldBindToMutipleApps()
 			throws ServiceInstanceBindingExistsException,
 			ServiceBrokerException {
 
@@ -168,13 +166,8 @@ public class LCServiceInstanceBindingServiceCopyTest {
 				instanceService.getInstanceIdForServiceInstance(serviceInstance
 						.getServiceInstanceId())).thenReturn("test_copy");
 
-		List<ServiceInstanceBinding> bindings = buildServiceInstanceBindings();
-		when(bindingManager.getBindings()).thenReturn(bindings);
-
-		List<InstancePair> appBindings = bindingService.getAppToCopyBinding();
-		assertThat(appBindings, hasSize(3));
-		assertTrue(appBindings.contains(new InstancePair("test_app2",
-				"test_copy")));
+		assertThat(buildServiceInstanceBindings(), hasSize(3));
+		verify(bindingManager, times(3)).saveBinding(any());
 	}
 
 	private List<ServiceInstanceBinding> buildServiceInstanceBindings() {
@@ -204,8 +197,34 @@ public class LCServiceInstanceBindingServiceCopyTest {
 			ServiceBrokerException {
 		when(bindingManager.getBindings()).thenReturn(
 				new ArrayList<ServiceInstanceBinding>());
+		when(
+				instanceService.getInstanceIdForServiceInstance(serviceInstance
+						.getServiceInstanceId())).thenReturn("test_instance");
+		bindingService
+				.createServiceInstanceBinding(createServiceInstanceBindingRequest);
+		verify(actionLog, times(2)).record(any(BrokerAction.class));
+	}
+
+	@Test(expected = ServiceInstanceBindingExistsException.class)
+	public void itShouldNotLetAConcurrentBindOfTheSameAppThrough()
+			throws ServiceInstanceBindingExistsException,
+			ServiceBrokerException {
+		when(
+				instanceService.getInstanceIdForServiceInstance(serviceInstance
+						.getServiceInstanceId())).thenReturn("test_instance");
+		doThrow(new DataIntegrityViolationException("uk_binding_app_instance"))
+				.when(bindingManager).saveBinding(any());
+		bindingService
+				.createServiceInstanceBinding(createServiceInstanceBindingRequest);
+	}
+
+	@Test(expected = ServiceBrokerException.class)
+	public void itShouldFailToBindToAnInstanceThatDoesNotExist()
+			throws ServiceInstanceBindingExistsException,
+			ServiceBrokerException {
+		when(bindingManager.getBindings()).thenReturn(
+				new ArrayList<ServiceInstanceBinding>());
 		bindingService
 				.createServiceInstanceBinding(createServiceInstanceBindingRequest);
-		verify(actionRepo, times(2)).save(any(BrokerAction.class));
 	}
 }
@@ -13,7 +13,6 @@ import java.util.HashMap;
 import java.util.Map;
 
 import org.cloudfoundry.community.servicebroker.datalifecycle.provider.CopyProvider;
-import org.cloudfoundry.community.servicebroker.datalifecycle.repo.BrokerActionRepository;
 import org.cloudfoundry.community.servicebroker.datalifecycle.service.LCServiceInstanceBindingManager;
 import org.cloudfoundry.community.servicebroker.datalifecycle.service.LCServiceInstanceBindingService;
 import org.cloudfoundry.community.servicebroker.datalifecycle.service.LCServiceInstanceService;
@@ -53,7 +52,7 @@ public class LCServiceInstanceBindingServiceProdTest {
 	LCServiceInstanceService instanceService;
 
 	@Mock
-	BrokerActionRepository repo;
+	BrokerActionLog actionLog;
 
 	@Mock
 	LCServiceInstanceBindingManager bindingManager;
@@ -63,7 +62,7 @@ public class LCServiceInstanceBindingServiceProdTest {
 			ServiceBrokerException {
 		MockitoAnnotations.initMocks(this);
 		bindingService = new LCServiceInstanceBindingService(provider,
-				instanceService, repo, bindingManager);
+				instanceService, actionLog, bindingManager);
 	}
 
 	@Test
@@ -73,6 +72,9 @@ public class LCServiceInstanceBindingServiceProdTest {
 		Map<String, Object> testCreds = new HashMap<String, Object>();
 		testCreds.put("uri", "prod_uri");
 		when(provider.getCreds("source_instance")).thenReturn(testCreds);
+		when(
+				instanceService.getInstanceIdForServiceInstance(serviceInstance
+						.getServiceInstanceId())).thenReturn("source_instance");
 
 		ServiceInstanceBinding bindResult = bindingService
 				.createServiceInstanceBinding(new CreateServiceInstanceBindingRequest(
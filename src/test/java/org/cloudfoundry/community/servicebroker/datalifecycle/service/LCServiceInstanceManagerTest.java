@@ -1,5 +1,7 @@
 package org.cloudfoundry.community.servicebroker.datalifecycle.service;
 
+import static org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState.BOOTING;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
@@ -13,12 +15,17 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.stream.IntStream;
 
+import org.cloudfoundry.community.servicebroker.datalifecycle.dto.CopyProgress;
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState;
 import org.cloudfoundry.community.servicebroker.datalifecycle.model.ServiceInstanceEntity;
 import org.cloudfoundry.community.servicebroker.datalifecycle.repo.ServiceInstanceRepo;
 import org.cloudfoundry.community.servicebroker.datalifecycle.service.LCServiceInstanceManager;
+import org.cloudfoundry.community.servicebroker.datalifecycle.utils.Pages;
 import org.cloudfoundry.community.servicebroker.model.CreateServiceInstanceRequest;
 import org.cloudfoundry.community.servicebroker.model.OperationState;
 import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
@@ -30,6 +37,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.data.domain.PageRequest;
 
 public class LCServiceInstanceManagerTest {
 
@@ -59,6 +67,25 @@ public class LCServiceInstanceManagerTest {
 		assertNotNull(instanceManager.getInstance("the_id"));
 	}
 
+	@Test
+	public void itShouldPageThroughCopyIdsAfterTheLastInstance() {
+		int size = Pages.PAGE_SIZE;
+		List<ServiceInstanceEntity> firstPage = new ArrayList<>();
+		for (int i = 0; i < size; ++i) {
+			firstPage.add(entity(String.format("id%04d", i), "copy" + i));
+		}
+		when(repo.findAfter("", new PageRequest(0, size))).thenReturn(
+				firstPage);
+		when(repo.findAfter(String.format("id%04d", size - 1),
+				new PageRequest(0, size))).thenReturn(
+				Collections.singletonList(entity("last_id", "last_copy")));
+
+		List<String> copyIds = new ArrayList<>();
+		instanceManager.forEachCopyId(copyIds::add);
+		assertThat(copyIds, hasSize(size + 1));
+		assertThat(copyIds.get(size), is(equalTo("last_copy")));
+	}
+
 	@Test
 	public void itShouldReturnNullForNonExistantInstance() {
 		when(repo.findOne(anyString())).thenReturn(null);
@@ -129,6 +156,35 @@ public class LCServiceInstanceManagerTest {
 		verify(repo).delete("the_id");
 	}
 
+	@Test
+	public void itShouldRoundTripTheProgress() {
+		ServiceInstanceEntity entity = makeSIEntity();
+		entity.setProgress(new CopyProgress(BOOTING, "source", "the_image",
+				"the_copy", "10.10.10.10"));
+		when(repo.findOne("the_id")).thenReturn(entity);
+
+		CopyProgress progress = instanceManager.getProgress("the_id");
+		assertThat(progress.getState(), is(equalTo(BOOTING)));
+		assertThat(progress.getImageId(), is(equalTo("the_image")));
+		assertThat(progress.getCopyId(), is(equalTo("the_copy")));
+		assertThat(progress.getAddress(), is(equalTo("10.10.10.10")));
+		assertNotNull(entity.getStateChangedAt());
+	}
+
+	@Test
+	public void itShouldNotHaveProgressForUntrackedInstances() {
+		when(repo.findOne("the_id")).thenReturn(makeSIEntity());
+		assertNull(instanceManager.getProgress("the_id"));
+	}
+
+	@Test
+	public void itShouldFindTheInFlightInstances() {
+		when(repo.findByProvisioningStateIn(ProvisioningState.inFlight()))
+				.thenReturn(Arrays.asList(makeSIEntity()));
+		assertThat(instanceManager.getInFlightInstanceIds(),
+				contains("the_id"));
+	}
+
 	private List<ServiceInstanceEntity> makeEntities(int size) {
 		List<ServiceInstanceEntity> entities = new ArrayList<ServiceInstanceEntity>();
 		IntStream.range(1, size + 1).forEach(i -> entities.add(makeSIEntity()));
@@ -147,6 +203,12 @@ public class LCServiceInstanceManagerTest {
 						.withServiceInstanceId("the_id")), "the_copy");
 	}
 
+	private ServiceInstanceEntity entity(String id, String copyId) {
+		return new ServiceInstanceEntity(new ServiceInstance(
+				new CreateServiceInstanceRequest(null, null, null, null, true)
+						.withServiceInstanceId(id)), copyId);
+	}
+
 	private Matcher<ServiceInstanceEntity> hasEntityWithId(String id) {
 
 		return new BaseMatcher<ServiceInstanceEntity>() {
@@ -2,6 +2,9 @@ package org.cloudfoundry.community.servicebroker.datalifecycle.service;
 
 import static org.cloudfoundry.community.servicebroker.datalifecycle.config.LCCatalogConfig.COPY;
 import static org.cloudfoundry.community.servicebroker.datalifecycle.config.LCCatalogConfig.PRODUCTION;
+import static org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState.READY;
+import static org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState.SANITIZING;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
@@ -9,24 +12,28 @@ import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 import java.util.stream.IntStream;
 
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.cloudfoundry.community.servicebroker.datalifecycle.config.LCCatalogConfig;
+import org.cloudfoundry.community.servicebroker.datalifecycle.dto.CopyProgress;
 import org.cloudfoundry.community.servicebroker.datalifecycle.dto.InstancePair;
 import org.cloudfoundry.community.servicebroker.datalifecycle.provider.CopyProvider;
 import org.cloudfoundry.community.servicebroker.datalifecycle.provider.DataProvider;
-import org.cloudfoundry.community.servicebroker.datalifecycle.repo.BrokerActionRepository;
 import org.cloudfoundry.community.servicebroker.datalifecycle.service.DataProviderService;
 import org.cloudfoundry.community.servicebroker.datalifecycle.service.LCServiceInstanceManager;
 import org.cloudfoundry.community.servicebroker.datalifecycle.service.LCServiceInstanceService;
@@ -41,9 +48,14 @@ import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
 import org.cloudfoundry.community.servicebroker.model.UpdateServiceInstanceRequest;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.SliceImpl;
 
 public class LCServiceInstanceServiceCopyTest {
 
@@ -57,7 +69,7 @@ public class LCServiceInstanceServiceCopyTest {
 	private DataProvider dataProvider;
 
 	@Mock
-	private BrokerActionRepository brokerRepo;
+	private BrokerActionLog actionLog;
 
 	private ServiceDefinition serviceDef = new LCCatalogConfig().catalog()
 			.getServiceDefinitions().get(0);
@@ -68,20 +80,27 @@ public class LCServiceInstanceServiceCopyTest {
 	@Mock
 	private DataProviderService dataProviderService;
 
+	@Mock
+	private CopyPoolManager copyPool;
+
 	@Before
 	public void setUp() throws ServiceInstanceExistsException,
 			ServiceBrokerException {
 		MockitoAnnotations.initMocks(this);
-		service = new LCServiceInstanceService(copyProvider, dataProvider,
-				"source_instance_id", brokerRepo, instanceManager,
-				new SyncTaskExecutor(), dataProviderService);
+		service = new LCServiceInstanceService("source_instance_id",
+				actionLog, instanceManager, new ProvisioningStateMachine(
+						copyProvider, dataProvider, dataProviderService,
+						instanceManager, actionLog, new SyncTaskExecutor(),
+						"source_instance_id"), copyPool);
 
 	}
 
 	private void createServiceInstance() throws ServiceInstanceExistsException,
 			ServiceBrokerException, ServiceBrokerAsyncRequiredException {
-		when(copyProvider.createCopy("source_instance_id")).thenReturn(
-				"copy_instance");
+		when(copyProvider.advanceCopy(any())).thenAnswer(
+				i -> CompletableFuture.completedFuture(((CopyProgress) i
+						.getArguments()[0]).withCopyId("copy_instance").next(
+						SANITIZING)));
 		CreateServiceInstanceRequest createServiceInstanceRequest = newCreateServiceInstanceRequest();
 
 		instance = service.createServiceInstance(createServiceInstanceRequest);
@@ -101,20 +120,43 @@ public class LCServiceInstanceServiceCopyTest {
 		createServiceInstance();
 		assertThat(instance.getServiceInstanceLastOperation().getState(),
 				is(equalTo("succeeded")));
-		verify(instanceManager).saveInstance(instance, "copy_instance");
+		ArgumentCaptor<CopyProgress> progress = ArgumentCaptor
+				.forClass(CopyProgress.class);
+		verify(instanceManager, times(3)).saveProgress(eq(instance),
+				progress.capture());
+		assertThat(progress.getValue().getState(), is(equalTo(READY)));
+		assertThat(progress.getValue().getCopyId(),
+				is(equalTo("copy_instance")));
 	}
 
 	@Test
 	public void itShouldCreateACopyWhenProvisionedWithACopyPlan()
 			throws Exception {
 		createServiceInstance();
-		verify(copyProvider).createCopy("source_instance_id");
+		ArgumentCaptor<CopyProgress> progress = ArgumentCaptor
+				.forClass(CopyProgress.class);
+		verify(copyProvider).advanceCopy(progress.capture());
+		assertThat(progress.getValue().getSourceId(),
+				is(equalTo("source_instance_id")));
 	}
 
 	@Test
 	public void itShouldSanitizeACopy() throws Exception {
 		createServiceInstance();
-		verify(dataProvider).sanitize(anyString(), any());
+		verify(dataProvider).sanitize(anyString(), any(), any(), any());
+	}
+
+	@Test
+	public void itShouldHandOutAPooledCopyWhenOneIsReady() throws Exception {
+		when(copyPool.take(COPY)).thenReturn("pooled_copy");
+		instance = service
+				.createServiceInstance(newCreateServiceInstanceRequest());
+
+		assertThat(instance.getServiceInstanceLastOperation().getState(),
+				is(equalTo("succeeded")));
+		verify(instanceManager).saveInstance(instance, "pooled_copy");
+		verify(copyProvider, never()).advanceCopy(any());
+		verify(dataProvider, never()).sanitize(anyString(), any(), any(), any());
 	}
 
 	@Test
@@ -125,6 +167,8 @@ public class LCServiceInstanceServiceCopyTest {
 		when(instanceManager.removeInstance(id)).thenReturn(instance);
 		when(instanceManager.getCopyIdForInstance(id)).thenReturn(
 				"copy_instance");
+		when(copyProvider.deleteCopy("copy_instance")).thenReturn(
+				CompletableFuture.completedFuture(null));
 		assertThat(
 				service.deleteServiceInstance(new DeleteServiceInstanceRequest(
 						id, instance.getServiceDefinitionId(), instance
@@ -137,10 +181,8 @@ public class LCServiceInstanceServiceCopyTest {
 	public void itReturnsTheCopyInstanceIdForServiceInstanceId()
 			throws Exception {
 		createServiceInstance();
-		Collection<Pair<String, ServiceInstance>> instances = Collections
-				.singletonList(new ImmutablePair<String, ServiceInstance>(
-						"copy_instance", instance));
-		when(instanceManager.getInstances()).thenReturn(instances);
+		when(instanceManager.getCopyIdForInstance("service_instance_id"))
+				.thenReturn("copy_instance");
 		assertThat(service.getInstanceIdForServiceInstance(instance
 				.getServiceInstanceId()), is(equalTo("copy_instance")));
 	}
@@ -149,12 +191,15 @@ public class LCServiceInstanceServiceCopyTest {
 	public void itReturnsTheCorrectListOfServices()
 			throws ServiceBrokerException, ServiceInstanceExistsException {
 
-		Collection<Pair<String, ServiceInstance>> instances = createInstances();
-
-		when(instanceManager.getInstances()).thenReturn(instances);
+		doAnswer(i -> {
+			@SuppressWarnings("unchecked")
+			Consumer<String> consumer = (Consumer<String>) i.getArguments()[0];
+			createCopyIds().forEach(consumer);
+			return null;
+		}).when(instanceManager).forEachCopyId(any());
 
-		List<InstancePair> provisionedInstances = service
-				.getProvisionedInstances();
+		List<InstancePair> provisionedInstances = new ArrayList<>();
+		service.forEachProvisionedInstance(provisionedInstances::add);
 		assertThat(provisionedInstances, hasSize(5));
 		assertTrue(provisionedInstances.contains(new InstancePair(
 				"source_instance_id", "copy_instance2")));
@@ -162,15 +207,25 @@ public class LCServiceInstanceServiceCopyTest {
 				"source_instance_id", "source_instance_id")));
 	}
 
-	private Collection<Pair<String, ServiceInstance>> createInstances()
-			throws ServiceInstanceExistsException, ServiceBrokerException {
-		Collection<Pair<String, ServiceInstance>> instances = new ArrayList<Pair<String, ServiceInstance>>();
-		IntStream.range(0, 4).forEach(
-				i -> instances.add(new ImmutablePair<String, ServiceInstance>(
-						"copy_instance" + i, null)));
-		instances.add(new ImmutablePair<String, ServiceInstance>(
-				"source_instance_id", null));
-		return instances;
+	@Test
+	public void itReturnsAPageOfServices() {
+		Pageable page = new PageRequest(1, 2);
+		when(instanceManager.getCopyIds(page)).thenReturn(
+				new SliceImpl<>(createCopyIds().subList(2, 4), page, true));
+
+		Slice<InstancePair> provisionedInstances = service
+				.getProvisionedInstances(page);
+		assertThat(provisionedInstances.getContent(), contains(
+				new InstancePair("source_instance_id", "copy_instance2"),
+				new InstancePair("source_instance_id", "copy_instance3")));
+		assertTrue(provisionedInstances.hasNext());
+	}
+
+	private List<String> createCopyIds() {
+		List<String> copyIds = new ArrayList<>();
+		IntStream.range(0, 4).forEach(i -> copyIds.add("copy_instance" + i));
+		copyIds.add("source_instance_id");
+		return copyIds;
 	}
 
 	@Test(expected = ServiceInstanceExistsException.class)
@@ -225,7 +280,7 @@ public class LCServiceInstanceServiceCopyTest {
 				is(equalTo("failed")));
 
 		// Once for in progress, once for failed.
-		verify(instanceManager, times(2)).saveInstance(any(), anyString());
+		verify(instanceManager, times(2)).saveProgress(any(), any());
 		assertTrue(failedInstance.isAsync());
 	}
 }
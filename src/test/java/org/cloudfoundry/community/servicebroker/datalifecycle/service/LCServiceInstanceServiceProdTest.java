@@ -14,14 +14,11 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
-import java.util.Collections;
 
-import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.cloudfoundry.community.servicebroker.datalifecycle.config.LCCatalogConfig;
 import org.cloudfoundry.community.servicebroker.datalifecycle.model.BrokerAction;
 import org.cloudfoundry.community.servicebroker.datalifecycle.provider.CopyProvider;
 import org.cloudfoundry.community.servicebroker.datalifecycle.provider.DataProvider;
-import org.cloudfoundry.community.servicebroker.datalifecycle.repo.BrokerActionRepository;
 import org.cloudfoundry.community.servicebroker.datalifecycle.service.DataProviderService;
 import org.cloudfoundry.community.servicebroker.datalifecycle.service.LCServiceInstanceManager;
 import org.cloudfoundry.community.servicebroker.datalifecycle.service.LCServiceInstanceService;
@@ -51,7 +48,7 @@ public class LCServiceInstanceServiceProdTest {
 	DataProvider dataProvider;
 
 	@Mock
-	BrokerActionRepository brokerRepo;
+	BrokerActionLog actionLog;
 
 	@Mock
 	LCServiceInstanceManager instanceManager;
@@ -59,14 +56,19 @@ public class LCServiceInstanceServiceProdTest {
 	@Mock
 	private DataProviderService dataProviderService;
 
+	@Mock
+	private CopyPoolManager copyPool;
+
 	// TODO DRY w/ copy test
 	@Before
 	public void setUp() throws ServiceInstanceExistsException,
 			ServiceBrokerException {
 		MockitoAnnotations.initMocks(this);
-		service = new LCServiceInstanceService(copyProvider, dataProvider,
-				"source_instance_id", brokerRepo, instanceManager,
-				new SyncTaskExecutor(), dataProviderService);
+		service = new LCServiceInstanceService("source_instance_id",
+				actionLog, instanceManager, new ProvisioningStateMachine(
+						copyProvider, dataProvider, dataProviderService,
+						instanceManager, actionLog, new SyncTaskExecutor(),
+						"source_instance_id"), copyPool);
 
 	}
 
@@ -79,7 +81,7 @@ public class LCServiceInstanceServiceProdTest {
 				.withServiceDefinition(serviceDef).withAsyncClient(true);
 
 		instance = service.createServiceInstance(createServiceInstanceRequest);
-		verify(copyProvider, never()).createCopy(any());
+		verify(copyProvider, never()).advanceCopy(any());
 	}
 
 	@Test
@@ -106,10 +108,10 @@ public class LCServiceInstanceServiceProdTest {
 	public void itReturnsTheProdInstanceIdForServiceInstanceId()
 			throws Exception {
 		createServiceInstance();
-		ImmutablePair<String, ServiceInstance> immutablePair = new ImmutablePair<String, ServiceInstance>(
-				"source_instance_id", instance);
-		when(instanceManager.getInstances()).thenReturn(
-				Collections.singletonList(immutablePair));
+		when(
+				instanceManager.getCopyIdForInstance(instance
+						.getServiceInstanceId())).thenReturn(
+				"source_instance_id");
 		assertThat(service.getInstanceIdForServiceInstance(instance
 				.getServiceInstanceId()), is(equalTo("source_instance_id")));
 	}
@@ -117,7 +119,7 @@ public class LCServiceInstanceServiceProdTest {
 	@Test
 	public void itShouldDocumentItsInFlightCreateActions() throws Exception {
 		createServiceInstance();
-		verify(brokerRepo, times(1)).save(any(BrokerAction.class));
+		verify(actionLog, times(1)).record(any(BrokerAction.class));
 	}
 
 	@Test
@@ -125,7 +127,7 @@ public class LCServiceInstanceServiceProdTest {
 		createServiceInstance();
 		service.deleteServiceInstance(new DeleteServiceInstanceRequest(instance
 				.getServiceInstanceId(), "serviceId", PRODUCTION, true));
-		verify(brokerRepo, times(3)).save(any(BrokerAction.class));
+		verify(actionLog, times(3)).record(any(BrokerAction.class));
 	}
 
 	@Test(expected = ServiceInstanceUpdateNotSupportedException.class)
@@ -0,0 +1,265 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.service;
+
+import static org.cloudfoundry.community.servicebroker.datalifecycle.config.LCCatalogConfig.COPY;
+import static org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState.BOOTING;
+import static org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState.DEPROVISIONING;
+import static org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState.INSTANCE_PENDING;
+import static org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState.READY;
+import static org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState.SANITIZING;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.cloudfoundry.community.servicebroker.datalifecycle.dto.CopyProgress;
+import org.cloudfoundry.community.servicebroker.datalifecycle.exception.DataProviderSanitizationFailedException;
+import org.cloudfoundry.community.servicebroker.datalifecycle.model.ProvisioningState;
+import org.cloudfoundry.community.servicebroker.datalifecycle.provider.CopyProvider;
+import org.cloudfoundry.community.servicebroker.datalifecycle.provider.DataProvider;
+import org.cloudfoundry.community.servicebroker.model.CreateServiceInstanceRequest;
+import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.core.task.SyncTaskExecutor;
+
+public class ProvisioningStateMachineTest {
+
+	@Mock
+	private CopyProvider copyProvider;
+
+	@Mock
+	private DataProvider dataProvider;
+
+	@Mock
+	private DataProviderService dataProviderService;
+
+	@Mock
+	private LCServiceInstanceManager instanceManager;
+
+	@Mock
+	private BrokerActionLog actionLog;
+
+	private ProvisioningStateMachine stateMachine;
+
+	private ServiceInstance instance = new ServiceInstance(
+			new CreateServiceInstanceRequest("def_id", COPY, "org", "space",
+					true).withServiceInstanceId("the_id"));
+
+	private CopyProgress booting = new CopyProgress(BOOTING, "source",
+			"the_image", "the_copy", "10.10.10.10");
+
+	@Before
+	public void setUp() throws Exception {
+		MockitoAnnotations.initMocks(this);
+		stateMachine = new ProvisioningStateMachine(copyProvider,
+				dataProvider, dataProviderService, instanceManager,
+				actionLog, new SyncTaskExecutor(), "source");
+		when(copyProvider.advanceCopy(any())).thenAnswer(
+				i -> CompletableFuture.completedFuture(((CopyProgress) i
+						.getArguments()[0]).withCopyId("the_copy").next(
+						SANITIZING)));
+		when(copyProvider.deleteCopy(anyString())).thenReturn(
+				CompletableFuture.completedFuture(null));
+		when(instanceManager.getInstance("the_id")).thenReturn(instance);
+	}
+
+	@Test
+	public void itShouldPickUpInFlightCopiesWhereTheyLeftOff()
+			throws Exception {
+		when(instanceManager.getInFlightInstanceIds()).thenReturn(
+				Collections.singletonList("the_id"));
+		when(instanceManager.getProgress("the_id")).thenReturn(booting);
+
+		stateMachine.resume();
+
+		verify(copyProvider).advanceCopy(booting);
+		verify(dataProvider).sanitize(any(), any(), any(), any());
+		assertThat(lastSaved().getState(), is(equalTo(READY)));
+		assertThat(lastSaved().getCopyId(), is(equalTo("the_copy")));
+		assertThat(instance.getServiceInstanceLastOperation().getState(),
+				is(equalTo("succeeded")));
+	}
+
+	@Test
+	public void itShouldFinishDeprovisioningAfterARestart() throws Exception {
+		when(instanceManager.getInFlightInstanceIds()).thenReturn(
+				Collections.singletonList("the_id"));
+		when(instanceManager.getProgress("the_id")).thenReturn(
+				booting.next(DEPROVISIONING));
+
+		stateMachine.resume();
+
+		verify(copyProvider).deleteCopy("the_copy");
+		verify(instanceManager).removeInstance("the_id");
+		verify(copyProvider, never()).advanceCopy(any());
+	}
+
+	@Test
+	public void itShouldKeepWhatItBuiltWhenAStepFails() throws Exception {
+		doThrow(new DataProviderSanitizationFailedException("nope")).when(
+				dataProvider).sanitize(any(), any(), any(), any());
+		stateMachine.provision(instance);
+
+		assertThat(lastSaved().getState(),
+				is(equalTo(ProvisioningState.FAILED)));
+		// So deprovisioning knows what to clean up.
+		assertThat(lastSaved().getCopyId(), is(equalTo("the_copy")));
+		assertThat(instance.getServiceInstanceLastOperation().getState(),
+				is(equalTo("failed")));
+	}
+
+	@Test
+	public void itShouldDeleteACopyThatFailedPartWayUp() throws Exception {
+		when(instanceManager.getProgress("the_id")).thenReturn(
+				booting.next(ProvisioningState.FAILED));
+
+		stateMachine.deprovision(instance);
+
+		verify(copyProvider).deleteCopy("the_copy");
+		verify(instanceManager).removeInstance("the_id");
+	}
+
+	@Test
+	public void itShouldTearDownACopyDeprovisionedWhileItsInstanceIsPending()
+			throws Exception {
+		CompletableFuture<CopyProgress> starting = new CompletableFuture<>();
+		doAnswer(i -> {
+			CopyProgress progress = (CopyProgress) i.getArguments()[0];
+			return INSTANCE_PENDING == progress.getState() ? starting
+					: CompletableFuture.completedFuture(progress.withImageId(
+							"the_image").next(INSTANCE_PENDING));
+		}).when(copyProvider).advanceCopy(any());
+		stateMachine.provision(instance);
+		stateMachine.deprovision(instance);
+
+		assertThat(lastSaved().getState(), is(equalTo(DEPROVISIONING)));
+		verify(copyProvider, never()).deleteCopy(anyString());
+		verify(instanceManager, never()).removeInstance("the_id");
+
+		starting.complete(new CopyProgress(INSTANCE_PENDING, "source",
+				"the_image", "the_copy", null));
+
+		verify(copyProvider, times(2)).advanceCopy(any());
+		verify(copyProvider).deleteCopy("the_copy");
+		verify(instanceManager).removeInstance("the_id");
+		assertThat(lastSaved().getState(), is(equalTo(DEPROVISIONING)));
+		assertThat(lastSaved().getCopyId(), is(equalTo("the_copy")));
+	}
+
+	@Test
+	public void itShouldDeleteTheImageOfACopyThatNeverStarted()
+			throws Exception {
+		when(copyProvider.deleteImage(anyString())).thenReturn(
+				CompletableFuture.completedFuture(null));
+		when(instanceManager.getProgress("the_id")).thenReturn(
+				new CopyProgress(ProvisioningState.FAILED, "source",
+						"the_image", null, null));
+
+		stateMachine.deprovision(instance);
+
+		verify(copyProvider).deleteImage("the_image");
+		verify(copyProvider, never()).deleteCopy(anyString());
+		verify(instanceManager).removeInstance("the_id");
+	}
+
+	@Test
+	public void itShouldLetGoOfTheCopyBeforeDeletingIt() throws Exception {
+		Map<String, Object> creds = Collections.singletonMap("uri", "the_uri");
+		when(copyProvider.getCreds("the_copy")).thenReturn(creds);
+		when(instanceManager.getProgress("the_id")).thenReturn(
+				booting.next(READY));
+
+		stateMachine.deprovision(instance);
+
+		InOrder inOrder = inOrder(dataProvider, copyProvider);
+		inOrder.verify(dataProvider).release(creds);
+		inOrder.verify(copyProvider).deleteCopy("the_copy");
+	}
+
+	@Test
+	public void itShouldSanitizeWithThePlansScriptAsItWasAtTheStart()
+			throws Exception {
+		when(dataProviderService.getScriptDigestForPlan(COPY)).thenReturn(
+				"v1");
+		when(dataProviderService.getScriptByDigest("v1")).thenReturn(
+				"the script");
+		stateMachine.provision(instance);
+
+		verify(dataProvider).sanitize(eq("the script"), eq("v1"), any(), any());
+		verify(dataProviderService, never()).getScript();
+		assertThat(lastSaved().getScriptDigest(), is(equalTo("v1")));
+	}
+
+	@Test
+	public void itShouldFailACopyWhoseScriptIsGone() throws Exception {
+		when(dataProviderService.getScriptDigestForPlan(COPY)).thenReturn(
+				"v1");
+		stateMachine.provision(instance);
+
+		verify(dataProvider, never()).sanitize(any(), any(), any(), any());
+		assertThat(lastSaved().getState(),
+				is(equalTo(ProvisioningState.FAILED)));
+	}
+
+	@Test
+	public void itShouldUseTheDefaultScriptForCopiesStartedWithoutOne()
+			throws Exception {
+		when(instanceManager.getInFlightInstanceIds()).thenReturn(
+				Collections.singletonList("the_id"));
+		when(instanceManager.getProgress("the_id")).thenReturn(booting);
+		when(dataProviderService.getScript()).thenReturn("the default");
+
+		stateMachine.resume();
+
+		verify(dataProvider).sanitize(eq("the default"), any(), any(), any());
+	}
+
+	@Test
+	public void itShouldShowHowSanitizingIsGoingInTheLastOperation()
+			throws Exception {
+		AtomicReference<String> shown = new AtomicReference<>();
+		doAnswer(i -> {
+			@SuppressWarnings("unchecked")
+			Consumer<String> status = (Consumer<String>) i.getArguments()[3];
+			status.accept("Sanitizing, 1 of 2 statements done (50%)");
+			shown.set(instance.getServiceInstanceLastOperation()
+					.getDescription());
+			assertThat(lastSaved().getState(), is(equalTo(SANITIZING)));
+			return null;
+		}).when(dataProvider).sanitize(any(), any(), any(), any());
+		stateMachine.provision(instance);
+
+		assertThat(shown.get(),
+				is(equalTo("Sanitizing, 1 of 2 statements done (50%)")));
+		assertThat(instance.getServiceInstanceLastOperation().getState(),
+				is(equalTo("succeeded")));
+	}
+
+	private CopyProgress lastSaved() {
+		ArgumentCaptor<CopyProgress> progress = ArgumentCaptor
+				.forClass(CopyProgress.class);
+		verify(instanceManager, atLeastOnce()).saveProgress(eq(instance),
+				progress.capture());
+		return progress.getValue();
+	}
+}
@@ -0,0 +1,77 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.service;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+public class ScriptMigrationTest {
+
+	@Mock
+	private DataProviderService dataProviderService;
+
+	private JdbcTemplate jdbc;
+
+	private ScriptMigration migration;
+
+	@Before
+	public void setUp() {
+		MockitoAnnotations.initMocks(this);
+		DataSource dataSource = new DriverManagerDataSource(
+				"jdbc:h2:mem:scripts;DB_CLOSE_DELAY=-1", "sa", "");
+		jdbc = new JdbcTemplate(dataSource);
+		migration = new ScriptMigration(jdbc, new TransactionTemplate(
+				new DataSourceTransactionManager(dataSource)),
+				dataProviderService);
+	}
+
+	@After
+	public void tearDown() {
+		jdbc.execute("drop table if exists sanitization_script");
+	}
+
+	@Test
+	public void itShouldSaveTheOldScriptAsTheDefault() {
+		givenOldScript("update users set email = null");
+		migration.migrate();
+
+		verify(dataProviderService).saveScript("update users set email = null");
+		assertThat(Tables.exists(jdbc, ScriptMigration.OLD_TABLE), is(false));
+	}
+
+	@Test
+	public void itShouldntReplaceADefaultScript() {
+		givenOldScript("update users set email = null");
+		when(dataProviderService.getScriptDigest()).thenReturn("digest");
+		migration.migrate();
+
+		verify(dataProviderService, never()).saveScript(anyString());
+	}
+
+	@Test
+	public void itShouldDoNothingWithoutTheOldTable() {
+		migration.migrate();
+
+		verify(dataProviderService, never()).getScriptDigest();
+	}
+
+	private void givenOldScript(String script) {
+		jdbc.execute("create table sanitization_script (id bigint primary key,"
+				+ " script varchar(4096))");
+		jdbc.update("insert into sanitization_script values (1, ?)", script);
+	}
+}
@@ -12,17 +12,22 @@ import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.cloudfoundry.community.servicebroker.datalifecycle.dto.InstancePair;
 import org.cloudfoundry.community.servicebroker.datalifecycle.model.BindingEntity;
 import org.cloudfoundry.community.servicebroker.datalifecycle.repo.BindingRepository;
 import org.cloudfoundry.community.servicebroker.datalifecycle.service.LCServiceInstanceBindingManager;
+import org.cloudfoundry.community.servicebroker.datalifecycle.utils.Pages;
 import org.cloudfoundry.community.servicebroker.model.ServiceInstanceBinding;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.data.domain.PageRequest;
 
 public class ServiceInstanceBindingManagerTest {
 
@@ -65,6 +70,39 @@ public class ServiceInstanceBindingManagerTest {
 
 	}
 
+	@Test
+	public void itShouldFindTheBindingForAnAppAndServiceInstance() {
+		when(
+				repo.findFirstByAppGuidAndServiceInstanceId("app-guid",
+						"service-instance-id")).thenReturn(bindingEntity);
+		assertThat(bindingManager.getBinding("app-guid", "service-instance-id")
+				.getId(), is(equalTo("binding-id")));
+		assertNull(bindingManager.getBinding("other-app",
+				"service-instance-id"));
+	}
+
+	@Test
+	public void itShouldPageThroughTheAppToCopyPairs() {
+		int size = Pages.PAGE_SIZE;
+		List<Object[]> firstPage = new ArrayList<>();
+		for (int i = 0; i < size; ++i) {
+			firstPage.add(new Object[] { "binding" + i, "app" + i, "copy" + i });
+		}
+		when(repo.findAppToCopyPairsAfter("", new PageRequest(0, size)))
+				.thenReturn(firstPage);
+		when(
+				repo.findAppToCopyPairsAfter("binding" + (size - 1),
+						new PageRequest(0, size))).thenReturn(
+				Collections.singletonList(new Object[] { "last_binding",
+						"last_app", "last_copy" }));
+
+		List<InstancePair> pairs = new ArrayList<>();
+		bindingManager.forEachAppToCopyPair(pairs::add);
+		assertThat(pairs, hasSize(size + 1));
+		assertThat(pairs.get(size), is(equalTo(new InstancePair("last_app",
+				"last_copy"))));
+	}
+
 	@Test
 	public void itShouldReturnAllServiceBindings() {
 		when(repo.findAll()).thenReturn(
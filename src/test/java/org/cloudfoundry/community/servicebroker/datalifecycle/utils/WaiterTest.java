@@ -0,0 +1,121 @@
+package org.cloudfoundry.community.servicebroker.datalifecycle.utils;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WaiterTest {
+
+	private ScheduledExecutorService scheduler;
+
+	private Waiter waiter;
+
+	private WaitPolicy fast = new WaitPolicy(1, 5, 2000, TimeUnit.MILLISECONDS);
+
+	@Before
+	public void setUp() {
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		waiter = new Waiter(scheduler);
+	}
+
+	@After
+	public void tearDown() {
+		scheduler.shutdownNow();
+	}
+
+	@Test
+	public void itShouldCompleteOnceTheProbeReturnsAValue() throws Exception {
+		AtomicInteger attempts = new AtomicInteger();
+		String result = waiter.waitFor("the third attempt",
+				() -> attempts.incrementAndGet() < 3 ? Optional.empty()
+						: Optional.of("done"), fast).get(1, TimeUnit.SECONDS);
+
+		assertThat(result, is(equalTo("done")));
+		assertThat(attempts.get(), is(equalTo(3)));
+	}
+
+	@Test
+	public void itShouldRunProbesOnTheExecutorItsGiven() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor(
+				r -> new Thread(r, "prober"));
+		try {
+			AtomicInteger attempts = new AtomicInteger();
+			String thread = new Waiter(scheduler, executor).waitFor(
+					"the second attempt",
+					() -> attempts.incrementAndGet() < 2 ? Optional.empty()
+							: Optional.of(Thread.currentThread().getName()),
+					fast).get(1, TimeUnit.SECONDS);
+
+			assertThat(thread, is(equalTo("prober")));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void itShouldTimeOutPastTheDeadline() throws Exception {
+		WaitPolicy shortWait = new WaitPolicy(1, 5, 50, TimeUnit.MILLISECONDS);
+		try {
+			waiter.waitFor("never", () -> Optional.empty(), shortWait).get(1,
+					TimeUnit.SECONDS);
+			fail("Should have timed out");
+		} catch (ExecutionException e) {
+			assertThat(e.getCause(), instanceOf(TimeoutException.class));
+		}
+	}
+
+	@Test
+	public void itShouldFailWithWhateverTheProbeThrows() throws Exception {
+		try {
+			waiter.waitFor("a failure", () -> {
+				throw new ServiceBrokerException("broken");
+			}, fast).get(1, TimeUnit.SECONDS);
+			fail("Should have failed");
+		} catch (ExecutionException e) {
+			assertThat(e.getCause(), instanceOf(ServiceBrokerException.class));
+		}
+	}
+
+	@Test
+	public void itShouldBackOffUpToTheMaximumDelay() {
+		WaitPolicy policy = new WaitPolicy(2, 20, 600, TimeUnit.SECONDS);
+		assertThat(policy.getDelay(0), is(equalTo(2000L)));
+		assertThat(policy.getDelay(1), is(equalTo(4000L)));
+		assertThat(policy.getDelay(3), is(equalTo(16000L)));
+		assertThat(policy.getDelay(4), is(equalTo(20000L)));
+		assertThat(policy.getDelay(100), is(equalTo(20000L)));
+	}
+
+	@Test
+	public void itShouldJitterTheDelayByUpToHalf() {
+		WaitPolicy policy = new WaitPolicy(2, 20, 600, TimeUnit.SECONDS);
+		assertThat(policy.getDelay(0, 0.0), is(equalTo(2000L)));
+		assertThat(policy.getDelay(0, 0.999),
+				is(greaterThanOrEqualTo(1000L)));
+		assertThat(policy.getDelay(4, 0.5), is(lessThanOrEqualTo(20000L)));
+		assertThat(policy.getDelay(4, 0.5), is(equalTo(15000L)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void itShouldRejectAMaxDelayBelowTheInitialDelay() {
+		new WaitPolicy(10, 5, 60, TimeUnit.SECONDS);
+	}
+}